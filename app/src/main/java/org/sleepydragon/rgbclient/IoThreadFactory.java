@@ -0,0 +1,81 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads on which network I/O is performed, giving them recognizable names (so they
+ * can be identified in traces and thread dumps) and a specific Linux scheduling priority.
+ * <p/>
+ * This class is thread-safe.
+ */
+public class IoThreadFactory implements ThreadFactory {
+
+    @NonNull
+    private final String mNamePrefix;
+    private final int mPriority;
+    private final AtomicInteger mThreadCount = new AtomicInteger();
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param namePrefix the prefix of the thread names; a dash and a sequence number are appended
+     * to form the name of each thread; must not be null.
+     * @param priority the priority to give to each thread, as accepted by
+     * {@link Process#setThreadPriority(int)}, such as {@link Process#THREAD_PRIORITY_DEFAULT}.
+     */
+    public IoThreadFactory(@NonNull String namePrefix, int priority) {
+        mNamePrefix = namePrefix;
+        mPriority = priority;
+    }
+
+    @Override
+    public Thread newThread(@NonNull Runnable runnable) {
+        final String name = mNamePrefix + "-" + mThreadCount.incrementAndGet();
+        return new Thread(new PriorityRunnable(runnable, mPriority), name);
+    }
+
+    /**
+     * Sets the priority of the thread on which it runs and then runs another runnable; the Linux
+     * priority must be set by the thread itself.
+     */
+    private static class PriorityRunnable implements Runnable {
+
+        @NonNull
+        private final Runnable mRunnable;
+        private final int mPriority;
+
+        public PriorityRunnable(@NonNull Runnable runnable, int priority) {
+            mRunnable = runnable;
+            mPriority = priority;
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(mPriority);
+            mRunnable.run();
+        }
+
+    }
+
+}
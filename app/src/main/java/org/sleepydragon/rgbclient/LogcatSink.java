@@ -0,0 +1,34 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+/**
+ * Writes the messages of {@link Logger} to logcat.
+ */
+public class LogcatSink implements Logger.Sink {
+
+    @Override
+    public void log(int priority, @NonNull String tag, @NonNull String message) {
+        // the priorities of Logger have the same values as those of Log
+        Log.println(priority, tag, message);
+    }
+
+}
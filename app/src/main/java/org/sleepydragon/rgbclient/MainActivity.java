@@ -76,6 +76,12 @@ public class MainActivity extends Activity implements MainFragment.ActivityCallb
             case R.id.action_restart_network_client:
                 mMainFragment.restartNetworkClient();
                 return true;
+            case R.id.action_dump_flight_recorder:
+                mMainFragment.dumpFlightRecorder();
+                return true;
+            case R.id.action_dump_metrics:
+                mMainFragment.dumpMetrics();
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
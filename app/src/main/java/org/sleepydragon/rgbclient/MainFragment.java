@@ -21,6 +21,7 @@ import android.app.Fragment;
 import android.app.FragmentManager;
 import android.content.Context;
 import android.graphics.Color;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
@@ -28,7 +29,6 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.support.v4.util.CircularArray;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
@@ -38,30 +38,150 @@ import android.widget.CheckBox;
 import android.widget.CompoundButton;
 import android.widget.FrameLayout;
 import android.widget.TextView;
+import android.widget.Toast;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Set;
-import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * The main fragment for the main activity.
+ * <p/>
+ * Each source from {@link NetworkClientFragment} has its own queue of received commands and its
+ * own {@link ColorState}; the displayed color is composed from the effective colors of all of
+ * them by a {@link ColorComposer}, which is updated once per source per batch of commands.  The
+ * command history shown, and the selection of its commands, is that of source 0.
  */
 public class MainFragment extends Fragment
         implements NetworkClientFragment.TargetFragmentCallbacks {
 
     private static final Logger LOG = new Logger("MainFragment");
-    private static final String KEY_COLOR_STATE = "color_state";
-    private static final String KEY_COMMAND_QUEUE = "command_queue";
+    private static final String KEY_SOURCE_SPECS = "source_specs";
+    private static final String KEY_COLOR_STATES = "color_states";
 
-    private final ColorState.RGB mRGB = new ColorState.RGB();
-    private final ArrayList<ColorCommand> mCommandQueue = new ArrayList<>();
+    /**
+     * What to do when a command is received while the queue of its source is full.
+     */
+    enum BacklogOverflowPolicy {
+        /**
+         * Drop the command and catch up from the NetworkClientFragment's history, which loses
+         * nothing as long as the history still holds every command that was dropped.
+         */
+        RESYNC,
+
+        /**
+         * Drop the command and every RELATIVE command after it until an ABSOLUTE command fits in
+         * the queue, which makes the effective color correct again without copying the history;
+         * the dropped commands are missing from the history shown.
+         */
+        SKIP_TO_NEXT_ABSOLUTE,
+    }
+
+    /**
+     * The largest number of commands of one source that may be waiting for the main thread, which
+     * is also how many are drained at a time so that a whole backlog can be fast-forwarded.
+     */
+    private static final int COMMAND_QUEUE_CAPACITY = 1024;
+    private static final BacklogOverflowPolicy BACKLOG_OVERFLOW_POLICY =
+            BacklogOverflowPolicy.RESYNC;
+
+    /**
+     * The largest number of bytes of the snapshots of all sources' color states together, which
+     * is divided evenly among the sources when the instance state is saved; a full history takes
+     * about 550 bytes.  Each snapshot gets at least {@link ColorSnapshot#MIN_LENGTH} bytes, which
+     * only exceeds the budget with more than a hundred sources.
+     */
+    private static final int MAX_SNAPSHOTS_LENGTH = 8192;
+
+    private static final String GAUGE_COMMAND_QUEUE_DEPTH = "main.command_queue.depth";
+    private static final String GAUGE_COMMAND_QUEUE_HIGH_WATER_MARK =
+            "main.command_queue.high_water_mark";
+
+    /**
+     * The time from reading the bytes of a command from the server to displaying the color that
+     * results from applying it, in microseconds; the buckets range from 50 us to about 3.3 s.
+     */
+    private static final Histogram READ_TO_DISPLAY_LATENCY = MetricsRegistry.getDefault()
+            .histogram("pipeline.read_to_display_us", Histogram.exponentialBounds(50, 2.0, 17));
+
+    private static final StripedCounter COMMANDS_FAST_FORWARDED =
+            MetricsRegistry.getDefault().counter("main.commands_fast_forwarded");
+    private static final StripedCounter COMMANDS_SKIPPED =
+            MetricsRegistry.getDefault().counter("main.commands_skipped");
+
+    private final ColorAccumulator.RGB mRGB = new ColorAccumulator.RGB();
+    private final ColorAccumulator.RGB mSourceRGB = new ColorAccumulator.RGB();
+
+    private final ColorCommand[] mDrainBatch = new ColorCommand[COMMAND_QUEUE_CAPACITY];
+    private final AtomicBoolean mProcessQueuedCommandsScheduled = new AtomicBoolean(false);
+
+    private final MetricsRegistry.Gauge mCommandQueueDepthGauge = new MetricsRegistry.Gauge() {
+        @Override
+        public long get() {
+            long depth = 0;
+            for (final SourceState state : mSourceStates) {
+                depth += state.mCommandQueue.size();
+            }
+            return depth;
+        }
+    };
+
+    private final MetricsRegistry.Gauge mCommandQueueHighWaterMarkGauge =
+            new MetricsRegistry.Gauge() {
+                @Override
+                public long get() {
+                    long highWaterMark = 0;
+                    for (final SourceState state : mSourceStates) {
+                        highWaterMark = Math.max(highWaterMark,
+                                state.mCommandQueue.getHighWaterMark());
+                    }
+                    return highWaterMark;
+                }
+            };
+
+    /**
+     * The state of each source, indexed by its position in the stack; there is always at least
+     * one, for source 0.  The array is only replaced by the main thread, but is read by the
+     * network threads without locking.
+     */
+    private volatile SourceState[] mSourceStates;
+
+    /**
+     * The specifications of the sources, which may have fewer elements than mSourceStates if the
+     * sources are not yet known; only used by the main thread.
+     */
+    @NonNull
+    private List<ColorSourceSpec> mSourceSpecs = Collections.emptyList();
+
+    /**
+     * Composes the effective colors of the sources into the displayed color; only used by the
+     * main thread.
+     */
+    private ColorComposer mComposer;
+
+    /**
+     * The {@link ColorCommand#receivedNanos} of the commands that have been applied since the
+     * displayed color was last updated, whose latencies are recorded when it is next updated;
+     * only used by the main thread.  Samples beyond the capacity of the array are dropped.
+     */
+    private final long[] mUndisplayedReceivedNanos = new long[COMMAND_QUEUE_CAPACITY];
+    private int mUndisplayedCount;
+
+    /**
+     * The largest id of the commands applied from any source; only used by the main thread.
+     */
+    private long mLastAppliedCommandId = ColorCommand.INVALID_ID;
 
     private Handler mHandler;
     private NetworkClientFragment mNetworkClientFragment;
 
-    private ColorState mColorState;
     private View mColorFillView;
     private TextView mColorTextView;
 
@@ -70,19 +190,34 @@ public class MainFragment extends Fragment
         LOG.v("onCreate()");
         super.onCreate(savedInstanceState);
         mHandler = new Handler(new MainHandlerCallback());
+        MetricsRegistry.getDefault().registerGauge(GAUGE_COMMAND_QUEUE_DEPTH,
+                mCommandQueueDepthGauge);
+        MetricsRegistry.getDefault().registerGauge(GAUGE_COMMAND_QUEUE_HIGH_WATER_MARK,
+                mCommandQueueHighWaterMarkGauge);
 
         if (savedInstanceState == null) {
-            mColorState = new ColorState();
+            mSourceStates = new SourceState[] {new SourceState(new ColorState())};
         } else {
-            mColorState = savedInstanceState.getParcelable(KEY_COLOR_STATE);
+            final Parcelable[] colorStates =
+                    savedInstanceState.getParcelableArray(KEY_COLOR_STATES);
+            final SourceState[] states = new SourceState[colorStates.length];
+            for (int i = 0; i < states.length; i++) {
+                states[i] = new SourceState((ColorState) colorStates[i]);
+            }
+            mSourceStates = states;
 
-            final ArrayList<ColorCommand> commandQueue =
-                    savedInstanceState.getParcelableArrayList(KEY_COMMAND_QUEUE);
-            synchronized (mCommandQueue) {
-                mCommandQueue.addAll(commandQueue);
+            final List<ColorSourceSpec> specs = new ArrayList<>();
+            for (final String spec : savedInstanceState.getStringArray(KEY_SOURCE_SPECS)) {
+                specs.add(ColorSourceSpec.parse(spec));
             }
+            mSourceSpecs = specs;
         }
-        mColorState.setEventHandler(mHandler);
+
+        for (final SourceState state : mSourceStates) {
+            state.mColorState.setEventHandler(mHandler);
+            mLastAppliedCommandId = Math.max(mLastAppliedCommandId, state.mLastAppliedCommandId);
+        }
+        rebuildComposer();
     }
 
     @Override
@@ -97,35 +232,41 @@ public class MainFragment extends Fragment
             mNetworkClientFragment = new NetworkClientFragment();
             mNetworkClientFragment.setTargetFragment(this, 0);
             fm.beginTransaction().add(mNetworkClientFragment, NetworkClientFragment.TAG).commit();
+        } else {
+            // the sources may have changed while this fragment was detached
+            final List<ColorSourceSpec> specs = mNetworkClientFragment.getSourceSpecs();
+            if (!specs.isEmpty()) {
+                onSourcesChanged(specs);
+            }
         }
 
         updateDisplayedColor();
 
         // add any color commands that were received during the configuration change
-        synchronized (mCommandQueue) {
-            final ColorCommand lastCommand;
-            if (mCommandQueue.size() > 0) {
-                lastCommand = mCommandQueue.get(mCommandQueue.size() - 1);
-            } else {
-                lastCommand = mColorState.getLastAddedCommand();
-            }
-            final UUID lastCommandId = (lastCommand == null) ? null : lastCommand.id;
-            mNetworkClientFragment.getCommandsSince(lastCommandId, mCommandQueue);
+        for (final SourceState state : mSourceStates) {
+            state.mResyncRequested = true;
         }
-        mHandler.removeMessages(R.id.MSG_PROCESS_QUEUED_COMMANDS);
-        mHandler.sendEmptyMessage(R.id.MSG_PROCESS_QUEUED_COMMANDS);
+        scheduleProcessQueuedCommands();
     }
 
     @Override
     public void onDestroy() {
         LOG.v("onDestroy()");
         super.onDestroy();
+        final SourceState[] states = mSourceStates;
+        for (int i = 0; i < states.length; i++) {
+            LOG.d("onDestroy() command queue stats of source {}: {}", i, states[i].mCommandQueue);
+        }
+        MetricsRegistry.getDefault().unregisterGauge(GAUGE_COMMAND_QUEUE_DEPTH,
+                mCommandQueueDepthGauge);
+        MetricsRegistry.getDefault().unregisterGauge(GAUGE_COMMAND_QUEUE_HIGH_WATER_MARK,
+                mCommandQueueHighWaterMarkGauge);
     }
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
             Bundle savedInstanceState) {
-        LOG.v("onCreateView() savedInstanceState=" + savedInstanceState);
+        LOG.v("onCreateView() savedInstanceState={}", savedInstanceState);
         final View root = inflater.inflate(R.layout.fragment_main, container, false);
         mColorFillView = root.findViewById(R.id.color_fill);
         mColorTextView = (TextView) root.findViewById(R.id.color_text);
@@ -134,7 +275,8 @@ public class MainFragment extends Fragment
         final RecyclerView commandHistoryRecyclerView = new RecyclerView(context);
         commandHistoryRecyclerView.setHasFixedSize(true);
         commandHistoryRecyclerView.setLayoutManager(new LinearLayoutManager(context));
-        commandHistoryRecyclerView.setAdapter(mColorState.getRecyclerViewAdapter());
+        commandHistoryRecyclerView.setAdapter(
+                mSourceStates[0].mColorState.getRecyclerViewAdapter());
         final FrameLayout commandHistoryLayout =
                 (FrameLayout) root.findViewById(R.id.command_history);
         commandHistoryLayout.addView(commandHistoryRecyclerView);
@@ -146,10 +288,26 @@ public class MainFragment extends Fragment
     public void onSaveInstanceState(final Bundle outState) {
         LOG.v("onSaveInstanceState()");
         super.onSaveInstanceState(outState);
-        outState.putParcelable(KEY_COLOR_STATE, mColorState);
-        synchronized (mCommandQueue) {
-            outState.putParcelableArrayList(KEY_COMMAND_QUEUE, mCommandQueue);
+
+        // fold the queued commands into the color states rather than saving them separately;
+        // commands that arrive after this are recovered from the NetworkClientFragment's history
+        processQueuedCommands();
+
+        final SourceState[] states = mSourceStates;
+        final ColorState[] colorStates = new ColorState[states.length];
+        final int maxSnapshotLength = Math.max(ColorSnapshot.MIN_LENGTH,
+                MAX_SNAPSHOTS_LENGTH / Math.max(1, states.length));
+        for (int i = 0; i < states.length; i++) {
+            colorStates[i] = states[i].mColorState;
+            colorStates[i].setMaxSnapshotLength(maxSnapshotLength);
         }
+        outState.putParcelableArray(KEY_COLOR_STATES, colorStates);
+
+        final String[] specs = new String[mSourceSpecs.size()];
+        for (int i = 0; i < specs.length; i++) {
+            specs[i] = mSourceSpecs.get(i).toString();
+        }
+        outState.putStringArray(KEY_SOURCE_SPECS, specs);
     }
 
     /**
@@ -167,26 +325,255 @@ public class MainFragment extends Fragment
         mNetworkClientFragment.restart();
     }
 
-    public void onCommandReceived(@NonNull ColorCommand command) {
-        synchronized (mCommandQueue) {
-            mCommandQueue.add(command);
+    /**
+     * Writes the contents of the {@link FlightRecorder} to a new file in the application's files
+     * directory in a worker thread, and shows the name of the file in a toast.
+     */
+    public void dumpFlightRecorder() {
+        new DumpFlightRecorderAsyncTask(getActivity()).execute();
+    }
+
+    /**
+     * Writes a snapshot of the {@link MetricsRegistry} to the log and to a new file in the
+     * application's files directory in a worker thread, and shows the name of the file in a toast.
+     */
+    public void dumpMetrics() {
+        new DumpMetricsAsyncTask(getActivity()).execute();
+    }
+
+    /**
+     * Adds a state for each new source, discards the states of the sources that were removed,
+     * rebuilds the composer for the sources' new blend modes and opacities, and catches up from
+     * the NetworkClientFragment's histories, which may have been restored from its journal.
+     */
+    @Override
+    public void onSourcesChanged(@NonNull List<ColorSourceSpec> specs) {
+        final SourceState[] oldStates = mSourceStates;
+        final SourceState[] states = new SourceState[Math.max(1, specs.size())];
+        for (int i = 0; i < states.length; i++) {
+            if (i < oldStates.length) {
+                states[i] = oldStates[i];
+            } else {
+                states[i] = new SourceState(new ColorState());
+                states[i].mColorState.setEventHandler(mHandler);
+            }
+        }
+        mSourceSpecs = new ArrayList<>(specs);
+        mSourceStates = states;
+        rebuildComposer();
+        updateDisplayedColor();
+
+        for (final SourceState state : states) {
+            state.mResyncRequested = true;
+        }
+        scheduleProcessQueuedCommands();
+    }
+
+    /**
+     * Queues a command received from a server to be applied by the main thread.
+     * This method is invoked by the network thread of the source and never blocks on the main
+     * thread.  Each source has its own queue, so that each queue has a single producer.
+     */
+    @Override
+    public void onCommandReceived(int source, @NonNull ColorCommand command) {
+        final SourceState[] states = mSourceStates;
+        if (source >= states.length) {
+            // onSourcesChanged() has not yet been invoked for this source; the command will be
+            // applied from the NetworkClientFragment's history when this fragment is reattached
+            return;
+        }
+        enqueueCommand(states[source], command);
+        scheduleProcessQueuedCommands();
+    }
+
+    /**
+     * Queues several commands received together from a server to be applied by the main thread,
+     * publishing to the main thread all of those that fit in the queue at once.
+     * This method is invoked by the network thread of the source and never blocks on the main
+     * thread.
+     */
+    @Override
+    public void onCommandsReceived(int source, @NonNull ColorCommand[] commands, int count) {
+        final SourceState[] states = mSourceStates;
+        if (source >= states.length) {
+            return;
+        }
+        final SourceState state = states[source];
+        final int acceptedCount =
+                state.mSkippingToAbsolute ? 0 : state.mCommandQueue.offerAll(commands, count);
+        for (int i = 0; i < acceptedCount; i++) {
+            FlightRecorder.getDefault().record(FlightRecorder.Event.ENQUEUED, commands[i].id, 1);
+        }
+        // the commands that did not fit are subject to the overflow policy one at a time
+        for (int i = acceptedCount; i < count; i++) {
+            enqueueCommand(state, commands[i]);
+        }
+        scheduleProcessQueuedCommands();
+    }
+
+    /**
+     * Adds a command to the queue of the given source, recovering according to
+     * {@link #BACKLOG_OVERFLOW_POLICY} if the queue is full.
+     */
+    private void enqueueCommand(@NonNull SourceState state, @NonNull ColorCommand command) {
+        if (state.mSkippingToAbsolute && command.instruction != ColorCommand.Instruction.ABSOLUTE) {
+            COMMANDS_SKIPPED.increment();
+            return;
+        }
+        final boolean accepted = state.mCommandQueue.offer(command);
+        FlightRecorder.getDefault().record(FlightRecorder.Event.ENQUEUED, command.id,
+                accepted ? 1 : 0);
+        if (accepted) {
+            state.mSkippingToAbsolute = false;
+        } else {
+            // the main thread has fallen too far behind; rather than waiting for it, recover
+            // according to the policy
+            switch (BACKLOG_OVERFLOW_POLICY) {
+                case RESYNC:
+                    // the NetworkClientFragment's history also contains this command
+                    state.mResyncRequested = true;
+                    break;
+                case SKIP_TO_NEXT_ABSOLUTE:
+                    COMMANDS_SKIPPED.increment();
+                    state.mSkippingToAbsolute = true;
+                    break;
+                default:
+                    throw new AssertionError("unknown policy: " + BACKLOG_OVERFLOW_POLICY);
+            }
+        }
+    }
+
+    private void scheduleProcessQueuedCommands() {
+        if (mProcessQueuedCommandsScheduled.compareAndSet(false, true)) {
+            mHandler.sendEmptyMessage(R.id.MSG_PROCESS_QUEUED_COMMANDS);
         }
-        mHandler.removeMessages(R.id.MSG_PROCESS_QUEUED_COMMANDS);
-        mHandler.sendEmptyMessage(R.id.MSG_PROCESS_QUEUED_COMMANDS);
     }
 
     private void processQueuedCommands() {
-        synchronized (mCommandQueue) {
-            for (final ColorCommand command : mCommandQueue) {
-                mColorState.addCommand(command);
+        mProcessQueuedCommandsScheduled.set(false);
+
+        final SourceState[] states = mSourceStates;
+        final ColorCommand[] batch = mDrainBatch;
+        for (int source = 0; source < states.length; source++) {
+            final SourceState state = states[source];
+            boolean applied = false;
+
+            if (state.mResyncRequested) {
+                state.mResyncRequested = false;
+                applied = resyncCommands(source, state);
+            }
+
+            int count;
+            while ((count = state.mCommandQueue.drain(batch)) > 0) {
+                applied |= applyCommands(state, batch, count);
+                Arrays.fill(batch, 0, count, null);
+            }
+
+            if (applied) {
+                updateComposedColor(source);
             }
-            mCommandQueue.clear();
         }
+
         updateDisplayedColor();
     }
 
+    /**
+     * Applies all commands from the NetworkClientFragment's history of the given source that have
+     * not yet been applied.  The commands in the source's queue are discarded since the history
+     * contains them too.
+     *
+     * @return true if any command was applied, or false if none were.
+     */
+    private boolean resyncCommands(int source, @NonNull SourceState state) {
+        final ColorCommand[] batch = mDrainBatch;
+        int count;
+        while ((count = state.mCommandQueue.drain(batch)) > 0) {
+            for (int i = 0; i < count; i++) {
+                batch[i] = null;
+            }
+        }
+
+        final List<ColorCommand> commands = new ArrayList<>();
+        mNetworkClientFragment.getCommandsSince(source, state.mLastAppliedCommandId, commands);
+        return applyCommands(state, commands.toArray(new ColorCommand[commands.size()]),
+                commands.size());
+    }
+
+    /**
+     * Applies a backlog of commands to the state of their source, fast-forwarding past the
+     * commands that could not affect it; see {@link ColorAccumulator#getFastForwardIndex}.  The
+     * commands skipped are still counted as displayed by the next update of the displayed color.
+     *
+     * @param commands the backlog, in the order in which the commands were received; must not be
+     * null.
+     * @param count the number of commands in the backlog, which are the first elements of the
+     * given array.
+     * @return true if any command was applied, or false if all had already been applied.
+     */
+    private boolean applyCommands(@NonNull SourceState state, @NonNull ColorCommand[] commands,
+            int count) {
+        // command ids are strictly increasing, so skip commands that have already been applied,
+        // such as commands that were both queued and retrieved from the history
+        int start = 0;
+        while (start < count && commands[start].id <= state.mLastAppliedCommandId) {
+            start++;
+        }
+        if (start == count) {
+            return false;
+        }
+
+        final int fastForwardIndex =
+                state.mColorState.getFastForwardIndex(commands, start, count);
+        if (fastForwardIndex > start) {
+            COMMANDS_FAST_FORWARDED.add(fastForwardIndex - start);
+        }
+        state.mColorState.addCommands(commands, fastForwardIndex, count);
+        for (int i = start; i < count; i++) {
+            final ColorCommand command = commands[i];
+            if (command.receivedNanos != 0
+                    && mUndisplayedCount < mUndisplayedReceivedNanos.length) {
+                mUndisplayedReceivedNanos[mUndisplayedCount++] = command.receivedNanos;
+            }
+        }
+
+        final long lastId = commands[count - 1].id;
+        state.mLastAppliedCommandId = lastId;
+        mLastAppliedCommandId = Math.max(mLastAppliedCommandId, lastId);
+        return true;
+    }
+
+    /**
+     * Creates the composer for the current sources and gives it the effective color of each.
+     */
+    private void rebuildComposer() {
+        final SourceState[] states = mSourceStates;
+        mComposer = new ColorComposer();
+        for (int i = 0; i < states.length; i++) {
+            if (i < mSourceSpecs.size()) {
+                final ColorSourceSpec spec = mSourceSpecs.get(i);
+                mComposer.addSource(i, spec.blendMode, spec.opacity);
+            } else {
+                mComposer.addSource(i, ColorComposer.BlendMode.OVER, ColorComposer.OPAQUE);
+            }
+            updateComposedColor(i);
+        }
+    }
+
+    /**
+     * Gives the composer the current effective color of the given source, which takes constant
+     * time unless the source gained or lost its effective color.
+     */
+    private void updateComposedColor(int source) {
+        final ColorState colorState = mSourceStates[source].mColorState;
+        if (colorState.getEffectiveColor(mSourceRGB)) {
+            mComposer.setColor(source, mSourceRGB.r, mSourceRGB.g, mSourceRGB.b);
+        } else {
+            mComposer.clearColor(source);
+        }
+    }
+
     private void updateDisplayedColor() {
-        final boolean colorsSuccess = mColorState.getEffectiveColor(mRGB);
+        final boolean colorsSuccess = mComposer.getColor(mRGB);
 
         final int color;
         final String text;
@@ -200,6 +587,14 @@ public class MainFragment extends Fragment
 
         mColorFillView.setBackgroundColor(color);
         mColorTextView.setText(text);
+        FlightRecorder.getDefault().record(FlightRecorder.Event.DISPLAYED, mLastAppliedCommandId,
+                color);
+
+        final long now = System.nanoTime();
+        for (int i = 0; i < mUndisplayedCount; i++) {
+            READ_TO_DISPLAY_LATENCY.record((now - mUndisplayedReceivedNanos[i]) / 1000);
+        }
+        mUndisplayedCount = 0;
     }
 
     /**
@@ -224,6 +619,8 @@ public class MainFragment extends Fragment
                     processQueuedCommands();
                     return true;
                 case R.id.MSG_UPDATE_DISPLAYED_COLOR:
+                    // the selection, which is only shown for source 0, was changed by the user
+                    updateComposedColor(0);
                     updateDisplayedColor();
                     return true;
                 default:
@@ -232,95 +629,270 @@ public class MainFragment extends Fragment
         }
     }
 
+    private static class DumpFlightRecorderAsyncTask extends AsyncTask<Void, Void, String> {
+
+        @NonNull
+        private final Context mContext;
+
+        public DumpFlightRecorderAsyncTask(@NonNull Context context) {
+            mContext = context.getApplicationContext();
+        }
+
+        @Override
+        protected String doInBackground(Void... params) {
+            final File file = new File(getDumpDirectory(mContext), "flight-recorder-"
+                    + System.currentTimeMillis() + ".bin");
+            try {
+                final int count = FlightRecorder.getDefault().dump(file);
+                LOG.i("wrote {} flight recorder events to {}", count, file);
+                return mContext.getString(R.string.flight_recorder_dump_written, count,
+                        file.getPath());
+            } catch (IOException e) {
+                LOG.w("writing flight recorder dump to {} failed: {}", file, e);
+                return mContext.getString(R.string.flight_recorder_dump_failed, e.getMessage());
+            }
+        }
+
+        @Override
+        protected void onPostExecute(String message) {
+            Toast.makeText(mContext, message, Toast.LENGTH_LONG).show();
+        }
+
+    }
+
+    private static class DumpMetricsAsyncTask extends AsyncTask<Void, Void, String> {
+
+        @NonNull
+        private final Context mContext;
+
+        public DumpMetricsAsyncTask(@NonNull Context context) {
+            mContext = context.getApplicationContext();
+        }
+
+        @Override
+        protected String doInBackground(Void... params) {
+            final String snapshot = MetricsRegistry.getDefault().snapshot();
+            LOG.i("metrics snapshot:\n{}", snapshot);
+
+            final File file = new File(getDumpDirectory(mContext), "metrics-"
+                    + System.currentTimeMillis() + ".txt");
+            try {
+                final Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+                try {
+                    out.write(snapshot);
+                } finally {
+                    out.close();
+                }
+                return mContext.getString(R.string.metrics_dump_written, file.getPath());
+            } catch (IOException e) {
+                LOG.w("writing metrics snapshot to {} failed: {}", file, e);
+                return mContext.getString(R.string.metrics_dump_failed, e.getMessage());
+            }
+        }
+
+        @Override
+        protected void onPostExecute(String message) {
+            Toast.makeText(mContext, message, Toast.LENGTH_LONG).show();
+        }
+
+    }
+
+    /**
+     * Returns the directory into which to write diagnostic files, preferring the external files
+     * directory since its files can be pulled from the device without root.
+     */
+    @NonNull
+    private static File getDumpDirectory(@NonNull Context context) {
+        final File dir = context.getExternalFilesDir(null);
+        return (dir != null) ? dir : context.getFilesDir();
+    }
+
+    /**
+     * The commands received from one source and the color that results from them.
+     */
+    private static class SourceState {
+
+        /**
+         * The commands received by the source's network thread that have not yet been applied by
+         * the main thread; the network thread is the producer and the main thread is the
+         * consumer.  When a source's connection is replaced, the new connection performs no I/O
+         * until the old one has finished, so there is only ever one producer.
+         */
+        final SpscCommandQueue mCommandQueue = new SpscCommandQueue(COMMAND_QUEUE_CAPACITY);
+
+        @NonNull
+        final ColorState mColorState;
+
+        /**
+         * Set to true if commands may have been missed, such as if mCommandQueue was full, to
+         * request that the main thread catch up from the NetworkClientFragment's history.
+         */
+        volatile boolean mResyncRequested;
+
+        /**
+         * Set to true by the network thread if commands are being dropped until the next ABSOLUTE
+         * command, according to {@link BacklogOverflowPolicy#SKIP_TO_NEXT_ABSOLUTE}; only used by
+         * the network threads of the source, one after the other.
+         */
+        volatile boolean mSkippingToAbsolute;
+
+        /**
+         * The id of the command most recently applied to mColorState; only used by the main
+         * thread.
+         */
+        long mLastAppliedCommandId = ColorCommand.INVALID_ID;
+
+        SourceState(@NonNull ColorState colorState) {
+            mColorState = colorState;
+            final ColorCommand lastCommand = colorState.getLastAddedCommand();
+            if (lastCommand != null) {
+                mLastAppliedCommandId = lastCommand.id;
+            }
+        }
+
+    }
+
+    /**
+     * The commands received from one source and the color that results from them, together with
+     * the adapter that shows them.  An instance is parceled as a {@link ColorSnapshot} of at most
+     * the length given to {@link #setMaxSnapshotLength}.
+     */
     private static class ColorState implements Parcelable {
 
         private static final int MAX_COMMAND_HISTORY = 100;
 
-        private final Set<ColorCommand> mSelectedRelativeCommands;
-        private ColorCommand mSelectedAbsoluteCommand;
-        private final CircularArray<ColorCommand> mCommandHistory;
+        private final ColorAccumulator mAccumulator;
         private final RecyclerView.Adapter<ViewHolderImpl> mRecyclerViewAdapter;
 
+        /**
+         * The largest number of bytes of the snapshot written to a parcel; this source's share of
+         * {@link #MAX_SNAPSHOTS_LENGTH}.
+         */
+        private int mMaxSnapshotLength = MAX_SNAPSHOTS_LENGTH;
+
         @Nullable
         private Handler mEventHandler;
 
         public ColorState() {
-            this(null, null, null);
+            mAccumulator = new ColorAccumulator(MAX_COMMAND_HISTORY);
+            mRecyclerViewAdapter = new AdapterImpl();
         }
 
         public void setEventHandler(@Nullable Handler handler) {
             mEventHandler = handler;
         }
 
-        public ColorState(@Nullable List<ColorCommand> commandHistory,
-                @Nullable ColorCommand selectedAbsoluteCommand,
-                @Nullable List<ColorCommand> selectedRelativeCommands) {
-            mSelectedAbsoluteCommand = selectedAbsoluteCommand;
+        public void setMaxSnapshotLength(int maxSnapshotLength) {
+            mMaxSnapshotLength = maxSnapshotLength;
+        }
 
-            mSelectedRelativeCommands = new HashSet<>();
-            if (selectedRelativeCommands != null) {
-                mSelectedRelativeCommands.addAll(selectedRelativeCommands);
+        public boolean getEffectiveColor(@NonNull ColorAccumulator.RGB rgb) {
+            return mAccumulator.getEffectiveColor(rgb);
+        }
+
+        /**
+         * Adds a batch of commands to the history, notifying the adapter once for the rows
+         * removed from the front of the history, once for the rows inserted at the end, and, if
+         * the batch contains an ABSOLUTE command, once for each run of consecutive rows that it
+         * deselected, rather than once or more per command.
+         *
+         * @param commands the array holding the batch; must not be null.
+         * @param fromIndex the index in the given array of the first command of the batch.
+         * @param toIndex the index in the given array after the last command of the batch.
+         */
+        public void addCommands(@NonNull ColorCommand[] commands, int fromIndex, int toIndex) {
+            if (fromIndex >= toIndex) {
+                return;
             }
 
-            mCommandHistory = new CircularArray<>();
-            if (commandHistory != null) {
-                for (final ColorCommand command : commandHistory) {
-                    mCommandHistory.addLast(command);
+            int[] selectedIndices = null;
+            for (int i = fromIndex; i < toIndex; i++) {
+                if (commands[i].instruction == ColorCommand.Instruction.ABSOLUTE) {
+                    selectedIndices = getSelectedIndices();
+                    break;
                 }
             }
 
-            mRecyclerViewAdapter = new AdapterImpl();
-        }
-
-        public boolean getEffectiveColor(@NonNull RGB rgb) {
-            if (mSelectedAbsoluteCommand == null) {
-                return false;
+            final int oldSize = mAccumulator.size();
+            for (int i = fromIndex; i < toIndex; i++) {
+                final ColorCommand command = commands[i];
+                FlightRecorder.getDefault().record(FlightRecorder.Event.APPLIED, command.id,
+                        command.instruction.ordinal());
+                mAccumulator.addCommand(command);
             }
 
-            int r = mSelectedAbsoluteCommand.r;
-            int g = mSelectedAbsoluteCommand.g;
-            int b = mSelectedAbsoluteCommand.b;
-
-            for (final ColorCommand command : mSelectedRelativeCommands) {
-                r += command.r;
-                g += command.g;
-                b += command.b;
+            // commands of the batch that were evicted by later commands of the same batch were
+            // never shown, so only the evicted rows that were shown need to be removed
+            final int newSize = mAccumulator.size();
+            final int evictedCount = oldSize + (toIndex - fromIndex) - newSize;
+            final int removedCount = Math.min(evictedCount, oldSize);
+            if (removedCount > 0) {
+                mRecyclerViewAdapter.notifyItemRangeRemoved(0, removedCount);
             }
-
-            rgb.r = r;
-            rgb.g = g;
-            rgb.b = b;
-            return true;
+            if (selectedIndices != null) {
+                notifyDeselected(selectedIndices, removedCount);
+            }
+            final int keptCount = oldSize - removedCount;
+            mRecyclerViewAdapter.notifyItemRangeInserted(keptCount, newSize - keptCount);
         }
 
-        public void addCommand(@NonNull ColorCommand command) {
-            switch (command.instruction) {
-                case ABSOLUTE:
-                    mSelectedAbsoluteCommand = command;
-                    mSelectedRelativeCommands.clear();
-                    mRecyclerViewAdapter.notifyItemRangeChanged(0, mCommandHistory.size());
-                    break;
-                case RELATIVE:
-                    mSelectedRelativeCommands.add(command);
-                    break;
-                default:
-                    throw new AssertionError("unknown instruction type: " + command.instruction);
+        /**
+         * Returns the indices in the history of the selected commands, in ascending order, which
+         * are the only rows whose checked state can change when an ABSOLUTE command is added or
+         * selected.
+         */
+        @NonNull
+        private int[] getSelectedIndices() {
+            final int[] relativeIndices = mAccumulator.getSelectedRelativeIndices();
+            final int absoluteIndex = mAccumulator.getSelectedAbsoluteIndex();
+            if (absoluteIndex < 0) {
+                return relativeIndices;
             }
+            final int[] indices = Arrays.copyOf(relativeIndices, relativeIndices.length + 1);
+            indices[relativeIndices.length] = absoluteIndex;
+            Arrays.sort(indices);
+            return indices;
+        }
 
-            final int position = mCommandHistory.size();
-            mCommandHistory.addLast(command);
-            if (mCommandHistory.size() <= MAX_COMMAND_HISTORY) {
-                mRecyclerViewAdapter.notifyItemInserted(position);
-            } else {
-                mCommandHistory.popFirst();
-                mRecyclerViewAdapter.notifyItemRemoved(0);
-                mRecyclerViewAdapter.notifyItemInserted(position-1);
+        /**
+         * Notifies the adapter of the rows that are no longer selected, coalescing consecutive
+         * rows into a single notification.
+         *
+         * @param indices the indices of the rows that were selected, as returned from
+         * {@link #getSelectedIndices}, before the given number of rows were removed from the
+         * front of the history; must not be null.
+         * @param removedCount the number of rows removed from the front of the history since
+         * the indices were retrieved.
+         */
+        private void notifyDeselected(@NonNull int[] indices, int removedCount) {
+            int runStart = -1;
+            int runEnd = -1;
+            for (final int index : indices) {
+                final int position = index - removedCount;
+                if (position < 0 || mAccumulator.isSlotSelected(mAccumulator.getSlot(position))) {
+                    continue;
+                }
+                if (position != runEnd) {
+                    if (runStart >= 0) {
+                        mRecyclerViewAdapter.notifyItemRangeChanged(runStart, runEnd - runStart);
+                    }
+                    runStart = position;
+                }
+                runEnd = position + 1;
+            }
+            if (runStart >= 0) {
+                mRecyclerViewAdapter.notifyItemRangeChanged(runStart, runEnd - runStart);
             }
         }
 
+        public int getFastForwardIndex(@NonNull ColorCommand[] commands, int fromIndex,
+                int toIndex) {
+            return mAccumulator.getFastForwardIndex(commands, fromIndex, toIndex);
+        }
+
         @Nullable
         public ColorCommand getLastAddedCommand() {
-            return (mCommandHistory.isEmpty()) ? null : mCommandHistory.getLast();
+            return mAccumulator.getLast();
         }
 
         @NonNull
@@ -328,12 +900,6 @@ public class MainFragment extends Fragment
             return mRecyclerViewAdapter;
         }
 
-        public static class RGB {
-            public int r;
-            public int g;
-            public int b;
-        }
-
         @Override
         public int describeContents() {
             return 0;
@@ -341,17 +907,7 @@ public class MainFragment extends Fragment
 
         @Override
         public void writeToParcel(final Parcel dest, final int flags) {
-            dest.writeParcelable(mSelectedAbsoluteCommand, 0);
-
-            final List<ColorCommand> selectedRelativeCommands = new ArrayList<>();
-            selectedRelativeCommands.addAll(mSelectedRelativeCommands);
-            dest.writeList(selectedRelativeCommands);
-
-            final List<ColorCommand> commandHistory = new ArrayList<>();
-            for (int i=0; i<mCommandHistory.size(); i++) {
-                commandHistory.add(mCommandHistory.get(i));
-            }
-            dest.writeList(commandHistory);
+            dest.writeByteArray(ColorSnapshot.encode(mAccumulator, mMaxSnapshotLength));
         }
 
         public static final Parcelable.Creator<ColorState> CREATOR =
@@ -359,13 +915,9 @@ public class MainFragment extends Fragment
 
                     @Override
                     public ColorState createFromParcel(final Parcel src) {
-                        final ColorCommand selectedAbsoluteCommand = src.readParcelable(null);
-                        final List<ColorCommand> selectedRelativeCommands = new ArrayList<>();
-                        src.readList(selectedRelativeCommands, null);
-                        final List<ColorCommand> commandHistory = new ArrayList<>();
-                        src.readList(commandHistory, null);
-                        return new ColorState(commandHistory,
-                                selectedAbsoluteCommand, selectedRelativeCommands);
+                        final ColorState colorState = new ColorState();
+                        ColorSnapshot.decode(src.createByteArray(), colorState.mAccumulator);
+                        return colorState;
                     }
 
                     @Override
@@ -382,6 +934,7 @@ public class MainFragment extends Fragment
 
             @Nullable
             private ColorCommand mCommand;
+            private int mSlot = -1;
 
             public ViewHolderImpl(@NonNull CheckBox view,
                     @NonNull CompoundButton.OnCheckedChangeListener checkedChangeListener) {
@@ -392,7 +945,7 @@ public class MainFragment extends Fragment
                 mView.setOnCheckedChangeListener(checkedChangeListener);
             }
 
-            public void setCommand(@Nullable ColorCommand command, boolean selected) {
+            public void setCommand(@Nullable ColorCommand command, int slot, boolean selected) {
                 final Boolean checked;
                 if (command == null) {
                     clearCommand();
@@ -405,6 +958,7 @@ public class MainFragment extends Fragment
                             + " (" + command.r + ", " + command.g + ", " + command.b + ")");
                     checked = selected;
                 }
+                mSlot = slot;
 
                 if (checked != null) {
                     mView.setOnCheckedChangeListener(null);
@@ -415,6 +969,7 @@ public class MainFragment extends Fragment
 
             public void clearCommand() {
                 mCommand = null;
+                mSlot = -1;
                 mView.setText("");
             }
 
@@ -422,6 +977,10 @@ public class MainFragment extends Fragment
             public ColorCommand getCommand() {
                 return mCommand;
             }
+
+            public int getSlot() {
+                return mSlot;
+            }
         }
 
         private class AdapterImpl extends RecyclerView.Adapter<ViewHolderImpl> {
@@ -435,8 +994,8 @@ public class MainFragment extends Fragment
 
             @Override
             public long getItemId(final int position) {
-                final ColorCommand command = mCommandHistory.get(position);
-                return command.id.getLeastSignificantBits();
+                final ColorCommand command = mAccumulator.get(position);
+                return command.id;
             }
 
             @Override
@@ -448,10 +1007,10 @@ public class MainFragment extends Fragment
 
             @Override
             public void onBindViewHolder(final ViewHolderImpl holder, final int position) {
-                final ColorCommand command = mCommandHistory.get(position);
-                final boolean selected = mSelectedRelativeCommands.contains(command)
-                            || mSelectedAbsoluteCommand == command;
-                holder.setCommand(command, selected);
+                final int slot = mAccumulator.getSlot(position);
+                final ColorCommand command = mAccumulator.getInSlot(slot);
+                final boolean selected = mAccumulator.isSlotSelected(slot);
+                holder.setCommand(command, slot, selected);
             }
 
             @Override
@@ -462,7 +1021,7 @@ public class MainFragment extends Fragment
 
             @Override
             public int getItemCount() {
-                return mCommandHistory.size();
+                return mAccumulator.size();
             }
 
             private class CheckBoxClickListenerImpl
@@ -472,32 +1031,19 @@ public class MainFragment extends Fragment
                 public void onCheckedChanged(final CompoundButton view, final boolean checked) {
                     final ViewHolderImpl viewHolder = (ViewHolderImpl) view.getTag();
                     final ColorCommand command = viewHolder.getCommand();
-                    if (command == null) {
+                    final int slot = viewHolder.getSlot();
+                    if (command == null || mAccumulator.getInSlot(slot) != command) {
                         return;
                     }
 
-                    switch (command.instruction) {
-                        case ABSOLUTE: {
-                            if (checked) {
-                                mSelectedAbsoluteCommand = command;
-                                mSelectedRelativeCommands.clear();
-                                notifyItemRangeChanged(0, getItemCount());
-                            } else {
-                                mSelectedAbsoluteCommand = null;
-                            }
-                            break;
-                        }
-                        case RELATIVE: {
-                            if (checked) {
-                                mSelectedRelativeCommands.add(command);
-                            } else {
-                                mSelectedRelativeCommands.remove(command);
-                            }
-                            break;
-                        }
-                        default:
-                            throw new AssertionError("unknown command instruction: "
-                                    + command.instruction);
+                    final int[] selectedIndices =
+                            (checked && command.instruction == ColorCommand.Instruction.ABSOLUTE)
+                                    ? getSelectedIndices() : null;
+                    if (!mAccumulator.setSlotSelected(slot, checked)) {
+                        return;
+                    }
+                    if (selectedIndices != null) {
+                        notifyDeselected(selectedIndices, 0);
                     }
 
                     final Handler handler = mEventHandler;
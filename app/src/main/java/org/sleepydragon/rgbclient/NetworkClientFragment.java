@@ -32,17 +32,32 @@ import android.net.NetworkRequest;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.Process;
 import android.support.annotation.NonNull;
-import android.support.annotation.Nullable;
 import android.support.v4.content.LocalBroadcastManager;
 
-import java.util.ArrayDeque;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Queue;
-import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
- * A non-UI fragment that manages the network connection with the server.
+ * A non-UI fragment that manages the network connections with the servers.
+ * <p/>
+ * The colors displayed are composed from several sources, each of which is a server to which a
+ * connection is kept open concurrently with the others: source 0 is the server whose host, port
+ * and transport are set in the settings, and the overlay servers from the settings, if any, are
+ * the sources after it.  Each source has its own connection, history of commands, resume state,
+ * and backoff between reconnect attempts, so one server going away does not disturb the others.
+ * <p/>
+ * The commands received are also appended to a {@link CommandJournal}; when the process starts
+ * the tail of the journal is read along with the settings, and each source's history and resume
+ * state are restored from it before any connection is made.
+ * <p/>
+ * The TCP connections of all sources share a single I/O thread, which runs a
+ * {@link SelectorEngine}; each UDP connection runs on a thread of its own.
  */
 public class NetworkClientFragment extends Fragment {
 
@@ -56,11 +71,61 @@ public class NetworkClientFragment extends Fragment {
     private final BroadcastReceiver mRestartBroadcastReceiver = new RestartBroadcastReceiver();
     private final ConnectivityManager.NetworkCallback mNetworkConnectionListener =
             new NetworkConnectionListener();
-    private final ClientConnection.Callback mClientConnectionCallback =
-            new ClientConnectionCallback();
 
-    private static final int MAX_COMMAND_HISTORY_SIZE = 1000;
-    private final Queue<ColorCommand> mCommands = new ArrayDeque<>();
+    /**
+     * The policy with which each connection merges bursts of frames from the server.
+     */
+    private static final CommandConflater.Policy CONFLATION_POLICY =
+            CommandConflater.Policy.PASS_THROUGH;
+
+    /**
+     * The parameters of the exponential backoff between attempts to reconnect to the server after
+     * the connection is lost or could not be established; see {@link ReconnectScheduler}.
+     */
+    private static final long RECONNECT_INITIAL_DELAY_MILLIS = 500;
+    private static final long RECONNECT_MAX_DELAY_MILLIS = 30000;
+    private static final double RECONNECT_BACKOFF_MULTIPLIER = 2.0;
+    private static final double RECONNECT_JITTER = 0.5;
+
+    /**
+     * Whether or not to ask the server to resume its stream from where the previous connection
+     * left off when reconnecting, instead of starting over from the beginning.
+     */
+    private static final boolean RESUME_ON_RECONNECT = true;
+
+    /**
+     * The scheduling priority of the threads on which the connections perform their I/O; they
+     * are slightly favoured over normal background work because they are on the path from the
+     * server to the screen.
+     */
+    private static final int IO_THREAD_PRIORITY =
+            Process.THREAD_PRIORITY_DEFAULT + Process.THREAD_PRIORITY_MORE_FAVORABLE;
+
+    /**
+     * The parameters of the journal of received commands; see {@link CommandJournal}.  A segment
+     * holds about 26000 commands.
+     */
+    private static final String JOURNAL_DIRECTORY_NAME = "journal";
+    private static final long JOURNAL_MAX_SEGMENT_LENGTH = 1024 * 1024;
+    private static final int JOURNAL_MAX_SEGMENT_COUNT = 4;
+    private static final int JOURNAL_PENDING_CAPACITY = 4096;
+    private static final long JOURNAL_COMMIT_DELAY_MILLIS = 50;
+
+    private static final String GAUGE_COMMAND_HISTORY_SIZE = "client.command_history.size";
+
+    private static final StripedCounter RECONNECTS =
+            MetricsRegistry.getDefault().counter("client.reconnects");
+
+    private final MetricsRegistry.Gauge mCommandHistorySizeGauge = new MetricsRegistry.Gauge() {
+        @Override
+        public long get() {
+            long size = 0;
+            for (final Source source : mSources) {
+                size += source.mCommands.size();
+            }
+            return size;
+        }
+    };
 
     private LoadSettingsAsyncTask mLoadSettingsAsyncTask;
     private SharedPreferences mSharedPreferences;
@@ -69,8 +134,45 @@ public class NetworkClientFragment extends Fragment {
     private ConnectivityManager mConnectivityManager;
     private TargetFragmentCallbacks mTargetFragmentCallbacks;
 
-    private final Object mClientConnectionThreadMutex = new Object();
-    private volatile ClientConnectionThread mClientConnectionThread;
+    /**
+     * The executor that runs the selector engine, the UDP connections, and the host name
+     * resolutions; its threads are reused across restarts.
+     */
+    private ExecutorService mIoExecutor;
+
+    /**
+     * The engine that performs the I/O of the TCP connections, or null if it could not be
+     * created, in which case each TCP connection runs on a thread of its own instead, as it also
+     * does once the engine has closed.
+     */
+    private SelectorEngine mSelectorEngine;
+
+    private int mCommandHistoryCapacity;
+
+    /**
+     * The journal to which received commands are appended, or null if it has not been opened
+     * yet or could not be opened.
+     */
+    private volatile CommandJournal mJournal;
+
+    /**
+     * The tails read from the journal when it was opened, indexed by source, which are consumed
+     * as the sources are created the first time that the connections are started; only used by
+     * the main thread.
+     */
+    private CommandJournal.Tail[] mJournalTails;
+
+    private final Object mConnectionMutex = new Object();
+
+    // the generation number given to the most recently created connection of any source;
+    // guarded by mConnectionMutex
+    private long mLastGeneration;
+
+    /**
+     * The sources, indexed by their position in the stack.  The array is only replaced by the
+     * main thread, but is read by any thread without locking.
+     */
+    private volatile Source[] mSources = new Source[0];
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -82,6 +184,18 @@ public class NetworkClientFragment extends Fragment {
         setRetainInstance(true);
 
         mHandler = new Handler(new MainHandlerCallback());
+        mIoExecutor = Executors.newCachedThreadPool(
+                new IoThreadFactory("ClientConnection", IO_THREAD_PRIORITY));
+        try {
+            mSelectorEngine = new SelectorEngine(mIoExecutor);
+            mIoExecutor.execute(mSelectorEngine);
+        } catch (IOException e) {
+            LOG.w("unable to create the selector engine; using a thread per connection: " + e);
+        }
+        mCommandHistoryCapacity =
+                getResources().getInteger(R.integer.network_command_history_capacity);
+        MetricsRegistry.getDefault().registerGauge(GAUGE_COMMAND_HISTORY_SIZE,
+                mCommandHistorySizeGauge);
 
         mConnectivityManager =
                 (ConnectivityManager) getActivity().getSystemService(Context.CONNECTIVITY_SERVICE);
@@ -116,7 +230,27 @@ public class NetworkClientFragment extends Fragment {
         mLocalBroadcastManager.unregisterReceiver(mRestartBroadcastReceiver);
         mHandler.removeMessages(R.id.MSG_START_CLIENT);
         mHandler.removeMessages(R.id.MSG_STOP_CLIENT);
+        for (final Source source : mSources) {
+            mHandler.removeCallbacks(source.mStartRunnable);
+        }
         mConnectivityManager.unregisterNetworkCallback(mNetworkConnectionListener);
+        final CommandJournal journal = mJournal;
+        mJournal = null;
+        if (journal != null) {
+            // writes the pending commands, so do not block the main thread on it
+            mIoExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    journal.close();
+                }
+            });
+        }
+        if (mSelectorEngine != null) {
+            mSelectorEngine.requestStop();
+        }
+        mIoExecutor.shutdown();
+        MetricsRegistry.getDefault().unregisterGauge(GAUGE_COMMAND_HISTORY_SIZE,
+                mCommandHistorySizeGauge);
     }
 
     @Override
@@ -160,58 +294,166 @@ public class NetworkClientFragment extends Fragment {
             return;
         }
 
+        final ClientConnection.Transport transport = Settings.getServerTransport(context, prefs);
+
+        final List<ColorSourceSpec> specs = new ArrayList<>();
+        specs.add(new ColorSourceSpec(host, port, transport, ColorComposer.BlendMode.OVER,
+                ColorComposer.OPAQUE));
+        specs.addAll(Settings.getServerOverlays(context, prefs));
+
+        // tell the target fragment about new sources before their connections can deliver any
+        // commands from them
+        final boolean sourcesChanged = updateSources(specs);
+        // the journal is only restored from when the process starts
+        mJournalTails = null;
+        if (sourcesChanged) {
+            final TargetFragmentCallbacks cb = mTargetFragmentCallbacks;
+            if (cb != null) {
+                cb.onSourcesChanged(getSourceSpecs());
+            }
+        }
+
+        for (final Source source : mSources) {
+            mHandler.removeCallbacks(source.mStartRunnable);
+            startSource(source);
+        }
+    }
+
+    /**
+     * Makes the sources match the given specifications, keeping the history of each source whose
+     * index is unchanged and stopping the connections of the sources that are removed.  The
+     * connections of sources whose server changed are replaced by {@link #startSource}.
+     *
+     * @return true if the sources changed in any way, or false if they are unchanged.
+     */
+    private boolean updateSources(@NonNull List<ColorSourceSpec> specs) {
+        final Source[] oldSources = mSources;
+        final Source[] sources = new Source[specs.size()];
+        boolean changed = (oldSources.length != sources.length);
+        synchronized (mConnectionMutex) {
+            for (int i = 0; i < sources.length; i++) {
+                sources[i] = (i < oldSources.length) ? oldSources[i] : new Source(i);
+                if (!specs.get(i).equals(sources[i].mSpec)) {
+                    sources[i].mSpec = specs.get(i);
+                    changed = true;
+                }
+                if (i >= oldSources.length) {
+                    restoreFromJournal(sources[i]);
+                }
+            }
+            for (int i = sources.length; i < oldSources.length; i++) {
+                mHandler.removeCallbacks(oldSources[i].mStartRunnable);
+                oldSources[i].stop();
+            }
+            mSources = sources;
+        }
+        return changed;
+    }
+
+    /**
+     * Restores the history of a newly-created source from the tail read from the journal, if any,
+     * and arranges for its first connection to resume the stream from where the journal left off
+     * if it is to the same server.  Must be invoked with mConnectionMutex held.
+     */
+    private void restoreFromJournal(@NonNull Source source) {
+        final CommandJournal.Tail[] tails = mJournalTails;
+        if (tails == null || source.mIndex >= tails.length) {
+            return;
+        }
+        final CommandJournal.Tail tail = tails[source.mIndex];
+        for (final ColorCommand command : tail.getCommands()) {
+            source.mCommands.add(command);
+        }
+        if (RESUME_ON_RECONNECT && tail.getSequence() >= 0
+                && tail.getServerHash() == source.mSpec.serverHashCode()) {
+            source.mResumeSpec = source.mSpec;
+            source.mResumeSequence = tail.getSequence();
+        }
+        LOG.d("restored the history of source {} from the journal ({} commands)", source.mSpec,
+                tail.getCommands().size());
+    }
+
+    /**
+     * Starts a connection to the server of the given source, unless it is already connected or
+     * connecting to it.
+     */
+    private void startSource(@NonNull Source source) {
         final NetworkInfo networkInfo = mConnectivityManager.getActiveNetworkInfo();
         if (networkInfo == null) {
-            LOG.w("startClient(): no network connection available; aborting");
+            LOG.w("startSource(): no network connection available; aborting");
             return;
         } else if (!networkInfo.isConnected()) {
-            LOG.w("startClient(): the default network is not currently connected; aborting");
+            LOG.w("startSource(): the default network is not currently connected; aborting");
             return;
         }
 
-        synchronized (mClientConnectionThreadMutex) {
-            if (mClientConnectionThread != null) {
-                final ClientConnection connection = mClientConnectionThread.getConnection();
-                if (!connection.isStopRequested() && host.equals(connection.getHost())
-                        && port == connection.getPort()) {
+        final ColorSourceSpec spec;
+        synchronized (mConnectionMutex) {
+            if (mSources.length <= source.mIndex || mSources[source.mIndex] != source) {
+                LOG.w("startSource(): source {} was removed; aborting", source.mIndex);
+                return;
+            }
+            spec = source.mSpec;
+
+            if (source.mConnection != null) {
+                final ClientConnection connection = source.mConnection;
+                if (!connection.isStopRequested() && spec.host.equals(connection.getHost())
+                        && spec.port == connection.getPort()
+                        && spec.transport == connection.getTransport()) {
+                    // if the connection attempt fails then a reconnect will be scheduled
                     if (connection.isConnected()) {
-                        LOG.w("startClient(): already connected to the server; aborting");
+                        LOG.w("startSource(): already connected to {}; aborting", spec);
                     } else {
-                        LOG.w("startClient(): establishing connection to the server; "
-                                + "will check back again shortly to make sure it succeeded");
-                        mHandler.removeMessages(R.id.MSG_START_CLIENT);
-                        mHandler.sendEmptyMessageDelayed(R.id.MSG_START_CLIENT, 1000);
+                        LOG.w("startSource(): already establishing connection to {}; aborting",
+                                spec);
                     }
                     return;
                 }
-                connection.requestStop();
-                mClientConnectionThread.interrupt();
-                mClientConnectionThread = null;
+                source.stop();
             }
 
-            final ClientConnection connection = new ClientConnection(host, port,
-                    mClientConnectionCallback);
-            final ClientConnectionThread thread = new ClientConnectionThread(connection);
-            thread.start();
+            final long generation = ++mLastGeneration;
+            final ClientConnection connection = new ClientConnection(spec.host, spec.port,
+                    new ClientConnectionCallback(source, generation, spec.serverHashCode()));
+            connection.setConflationPolicy(CONFLATION_POLICY);
+            connection.setTransport(spec.transport);
+            if (source.mResumeSpec != null && spec.isSameServer(source.mResumeSpec)) {
+                if (source.mResumeSequence >= 0) {
+                    connection.setResumeSequence(source.mResumeSequence);
+                }
+            } else {
+                // a different server or transport; start its stream from the beginning with a
+                // fresh backoff
+                source.mResumeSpec = spec;
+                source.mResumeSequence = -1;
+                source.mReconnectScheduler.reset();
+            }
 
-            mClientConnectionThread = thread;
+            // the previous connection's thread may still be delivering a command, and the
+            // target fragment's queue for this source only supports a single producer
+            connection.setPredecessor(source.mLastConnection);
+            source.mLastConnection = connection;
+            source.mConnection = connection;
+            source.mActiveGeneration = generation;
+            // an engine whose I/O thread has died fails every connection registered with it
+            if (mSelectorEngine != null && !mSelectorEngine.isClosed()
+                    && spec.transport == ClientConnection.Transport.TCP) {
+                mSelectorEngine.register(connection);
+            } else {
+                mIoExecutor.execute(connection);
+            }
         }
 
-        LOG.d("startClient(): started connection with server " + host + ":" + port);
+        LOG.d("startSource(): started connection {} with server {} (lingering connections: {})",
+                source.mIndex, spec, ClientConnection.getLingeringConnectionCount());
     }
 
     private void stopClient() {
         LOG.d("stopClient()");
-
-        final ClientConnectionThread thread;
-        synchronized (mClientConnectionThreadMutex) {
-            thread = mClientConnectionThread;
-            mClientConnectionThread = null;
-        }
-        if (thread != null) {
-            final ClientConnection connection = thread.getConnection();
-            connection.requestStop();
-            thread.interrupt();
+        synchronized (mConnectionMutex) {
+            for (final Source source : mSources) {
+                source.stop();
+            }
         }
     }
 
@@ -221,50 +463,190 @@ public class NetworkClientFragment extends Fragment {
         mHandler.sendEmptyMessage(R.id.MSG_START_CLIENT);
     }
 
+    /**
+     * Schedules an attempt to reconnect to the server of the given source after its backoff
+     * delay.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    private void scheduleReconnect(@NonNull Source source) {
+        RECONNECTS.increment();
+        final ReconnectScheduler reconnectScheduler = source.mReconnectScheduler;
+        final long delayMillis = reconnectScheduler.nextDelayMillis();
+        LOG.i("reconnecting to {} in {} ms (attempt {})", source.mSpec, delayMillis,
+                reconnectScheduler.getAttemptCount());
+        mHandler.removeCallbacks(source.mStartRunnable);
+        mHandler.postDelayed(source.mStartRunnable, delayMillis);
+    }
+
     public void restart() {
         mHandler.removeMessages(R.id.MSG_START_CLIENT);
         mHandler.removeMessages(R.id.MSG_STOP_CLIENT);
         stopClient();
+        synchronized (mConnectionMutex) {
+            for (final Source source : mSources) {
+                mHandler.removeCallbacks(source.mStartRunnable);
+                // an explicit restart starts each server's stream over from the beginning
+                source.mResumeSequence = -1;
+                source.mReconnectScheduler.reset();
+            }
+        }
         startClient();
     }
 
-    public void getCommandsSince(@Nullable UUID id, @NonNull List<ColorCommand> commands) {
-        boolean idFound = false;
-        synchronized (mCommands) {
-            if (id != null) {
-                for (final ColorCommand command : mCommands) {
-                    if (idFound) {
-                        commands.add(command);
-                    } else if (command.id.equals(id)) {
-                        idFound = true;
-                    }
-                }
+    /**
+     * Returns the specifications of the sources, indexed by their position in the stack.  This is
+     * empty until the settings have been loaded.
+     * <p/>
+     * This method must be invoked on the main thread.
+     *
+     * @return a new list of the specifications; never returns null.
+     */
+    @NonNull
+    public List<ColorSourceSpec> getSourceSpecs() {
+        final Source[] sources = mSources;
+        final List<ColorSourceSpec> specs = new ArrayList<>(sources.length);
+        for (final Source source : sources) {
+            specs.add(source.mSpec);
+        }
+        return specs;
+    }
+
+    /**
+     * Adds to the given list the commands received from the given source after the command with
+     * the given id.  If the given id is not found then it must have fallen off the end of the
+     * history; in that case all commands in the history are treated as being new and are added.
+     *
+     * @param source the index of the source; if there is no such source then nothing is added.
+     * @param id the id of the last command that the caller knows about, or
+     * {@link ColorCommand#INVALID_ID} to get all commands in the history.
+     * @param commands the list to which to add the commands; must not be null.
+     */
+    public void getCommandsSince(int source, long id, @NonNull List<ColorCommand> commands) {
+        final Source[] sources = mSources;
+        if (source >= 0 && source < sources.length) {
+            sources[source].mCommands.getCommandsSince(id, commands);
+        }
+    }
+
+    /**
+     * The state of one source, which outlives the connections that are made to its server.
+     */
+    private class Source {
+
+        final int mIndex;
+        final CommandHistory mCommands = new CommandHistory(mCommandHistoryCapacity);
+        final ReconnectScheduler mReconnectScheduler = new ReconnectScheduler(
+                RECONNECT_INITIAL_DELAY_MILLIS, RECONNECT_MAX_DELAY_MILLIS,
+                RECONNECT_BACKOFF_MULTIPLIER, RECONNECT_JITTER);
+
+        final Runnable mStartRunnable = new Runnable() {
+            @Override
+            public void run() {
+                startSource(Source.this);
             }
+        };
+
+        // the server and the active connection to it; guarded by mConnectionMutex
+        ColorSourceSpec mSpec;
+        ClientConnection mConnection;
+
+        // the most recently started connection, which may still be running even if it is no
+        // longer the active connection; guarded by mConnectionMutex
+        ClientConnection mLastConnection;
 
-            // if the given ID was not found, then it must have fallen off the end; so treat all
-            // command as being new
-            if (! idFound) {
-                commands.addAll(mCommands);
+        /**
+         * The generation of the active connection, or 0 if there is no active connection.  This
+         * is written with mConnectionMutex held but is read without it, so that a connection's
+         * callbacks can check whether they come from the active connection without locking.
+         */
+        volatile long mActiveGeneration;
+
+        // the server and sequence number from which the next connection should resume its
+        // stream; guarded by mConnectionMutex
+        ColorSourceSpec mResumeSpec;
+        long mResumeSequence = -1;
+
+        Source(int index) {
+            mIndex = index;
+        }
+
+        /**
+         * Stops the active connection, if any.  Must be invoked with mConnectionMutex held.
+         */
+        void stop() {
+            final ClientConnection connection = mConnection;
+            mConnection = null;
+            mActiveGeneration = 0;
+            if (connection != null) {
+                // closes the connection's socket, so its thread exits even if blocked in a read
+                connection.requestStop();
             }
         }
+
     }
 
+    /**
+     * Loads the settings and opens the journal, reading its tail for the configured sources.
+     */
     private class LoadSettingsAsyncTask extends Settings.GetSharedPreferencesAsyncTask {
 
+        private final int mMaxTailLength;
+        private CommandJournal mLoadedJournal;
+        private CommandJournal.Tail[] mLoadedTails;
+
         public LoadSettingsAsyncTask(@NonNull Context context) {
             super(context);
+            mMaxTailLength = mCommandHistoryCapacity;
+        }
+
+        @Override
+        protected SharedPreferences doInBackground(Void... params) {
+            final SharedPreferences prefs = super.doInBackground(params);
+
+            final File directory = new File(mContext.getFilesDir(), JOURNAL_DIRECTORY_NAME);
+            final int sourceCount = Math.min(CommandJournal.MAX_SOURCE_COUNT,
+                    1 + Settings.getServerOverlays(mContext, prefs).size());
+            final long startNanos = System.nanoTime();
+            try {
+                mLoadedJournal = new CommandJournal(directory, JOURNAL_MAX_SEGMENT_LENGTH,
+                        JOURNAL_MAX_SEGMENT_COUNT, JOURNAL_PENDING_CAPACITY,
+                        JOURNAL_COMMIT_DELAY_MILLIS);
+                mLoadedTails = mLoadedJournal.readTails(sourceCount, mMaxTailLength);
+            } catch (IOException e) {
+                LOG.w("opening the journal in {} failed: {}", directory, e);
+                if (mLoadedJournal != null) {
+                    mLoadedJournal.close();
+                    mLoadedJournal = null;
+                }
+                return prefs;
+            }
+            LOG.i("read the journal tails of {} sources in {} us", sourceCount,
+                    (System.nanoTime() - startNanos) / 1000);
+            return prefs;
         }
 
         @Override
         protected void onPostExecute(SharedPreferences sharedPreferences) {
             LOG.d("LoadSettingsAsyncTask.onPostExecute() SharedPreferences loaded");
             if (isCancelled()) {
+                onCancelled(sharedPreferences);
                 return;
             }
             mSharedPreferences = sharedPreferences;
+            mJournal = mLoadedJournal;
+            mJournalTails = mLoadedTails;
             scheduleStartClient();
         }
 
+        @Override
+        protected void onCancelled(SharedPreferences sharedPreferences) {
+            if (mLoadedJournal != null) {
+                mLoadedJournal.close();
+                mLoadedJournal = null;
+            }
+        }
+
     }
 
     /**
@@ -310,6 +692,7 @@ public class NetworkClientFragment extends Fragment {
         @Override
         public void onAvailable(Network network) {
             LOG.d("NetworkConnectionListener.onAvailable() network=" + network);
+            ResolverCache.getDefault().clear();
             scheduleStartClient();
         }
 
@@ -336,28 +719,12 @@ public class NetworkClientFragment extends Fragment {
         public void onLinkPropertiesChanged(Network network, LinkProperties linkProperties) {
             LOG.d("NetworkConnectionListener.onLinkPropertiesChanged() network=" + network
                     + " linkProperties=" + linkProperties);
+            ResolverCache.getDefault().clear();
             scheduleStartClient();
         }
 
     }
 
-    private static class ClientConnectionThread extends Thread {
-
-        @NonNull
-        private final ClientConnection mConnection;
-
-        public ClientConnectionThread(@NonNull ClientConnection connection) {
-            super(connection);
-            mConnection = connection;
-        }
-
-        @NonNull
-        public ClientConnection getConnection() {
-            return mConnection;
-        }
-
-    }
-
     /**
      * An interface to be implemented by the target fragment of this fragment to allow this fragment
      * to make demands on it.
@@ -370,20 +737,64 @@ public class NetworkClientFragment extends Fragment {
         void showSetServerDialog();
 
         /**
-         * Process a command received from the server.
+         * Notifies that the sources were added, removed, or reconfigured.  This method is invoked
+         * on the main thread before any command is received from a new source.
+         * @param specs the specifications of the sources, indexed by their position in the stack;
+         * will never be null.
+         */
+        void onSourcesChanged(@NonNull List<ColorSourceSpec> specs);
+
+        /**
+         * Process a command received from a server.
+         * This method is invoked on the network thread of the source and must return quickly
+         * without blocking; commands from different sources may be delivered concurrently.
+         * @param source the index of the source from which the command was received.
          * @param command the command that was received; will never be null.
          */
-        void onCommandReceived(@NonNull ColorCommand command);
+        void onCommandReceived(int source, @NonNull ColorCommand command);
+
+        /**
+         * Process several commands received together from a server, such as the records of a
+         * BATCH frame; this is invoked instead of {@link #onCommandReceived} for each of them.
+         * This method is invoked on the network thread of the source and must return quickly
+         * without blocking; commands from different sources may be delivered concurrently.
+         * @param source the index of the source from which the commands were received.
+         * @param commands the commands that were received, in the order in which they were
+         * received; will never be null.  The array is reused, so its contents are only valid until
+         * this method returns.
+         * @param count the number of commands, which are the first elements of the given array.
+         */
+        void onCommandsReceived(int source, @NonNull ColorCommand[] commands, int count);
 
     }
 
+    /**
+     * The callback of a single connection, which ignores the connection's events once it is no
+     * longer the active connection.
+     */
     private class ClientConnectionCallback implements ClientConnection.Callback {
 
+        @NonNull
+        private final Source mSource;
+        private final long mGeneration;
+        private final int mServerHash;
+
+        public ClientConnectionCallback(@NonNull Source source, long generation,
+                int serverHash) {
+            mSource = source;
+            mGeneration = generation;
+            mServerHash = serverHash;
+        }
+
         @Override
         public void connectionStateChanged(@NonNull ClientConnection connection,
                 boolean connected) {
-            LOG.d("ClientConnectionCallback: connectionStateChanged() connected=" + connected);
-            if (!connected) {
+            LOG.d("ClientConnectionCallback: connectionStateChanged() connected={}", connected);
+            if (connected) {
+                if (isActiveConnection()) {
+                    mSource.mReconnectScheduler.reset();
+                }
+            } else {
                 clearConnection(connection);
             }
         }
@@ -399,36 +810,63 @@ public class NetworkClientFragment extends Fragment {
         @Override
         public void commandReceived(@NonNull ClientConnection connection,
                 @NonNull ColorCommand command) {
-            if (isActiveConnection(connection)) {
-                LOG.d("ClientConnectionCallback: commandReceived() command=" + command);
+            if (isActiveConnection()) {
+                LOG.d("ClientConnectionCallback: commandReceived() command={}", command);
+                // add the command to the history first so that the target fragment can always
+                // catch up from the history if it cannot keep up with the commands it is sent
+                mSource.mCommands.add(command);
+                final CommandJournal journal = mJournal;
+                if (journal != null && mSource.mIndex < CommandJournal.MAX_SOURCE_COUNT) {
+                    journal.append(mSource.mIndex, mServerHash, connection.getFrameSequence(),
+                            command);
+                }
                 final TargetFragmentCallbacks cb = mTargetFragmentCallbacks;
                 if (cb != null) {
-                    cb.onCommandReceived(command);
-                }
-                synchronized (mCommands) {
-                    mCommands.offer(command);
-                    if (mCommands.size() > MAX_COMMAND_HISTORY_SIZE) {
-                        mCommands.poll();
-                    }
+                    cb.onCommandReceived(mSource.mIndex, command);
                 }
             }
         }
 
-        private boolean isActiveConnection(@NonNull ClientConnection connection) {
-            synchronized (mClientConnectionThreadMutex) {
-                return (mClientConnectionThread != null
-                        && mClientConnectionThread.getConnection() == connection);
+        @Override
+        public void commandsReceived(@NonNull ClientConnection connection,
+                @NonNull ColorCommand[] commands, int count) {
+            if (isActiveConnection()) {
+                LOG.d("ClientConnectionCallback: commandsReceived() count={}", count);
+                // as in commandReceived(), the history comes first
+                mSource.mCommands.addAll(commands, count);
+                final CommandJournal journal = mJournal;
+                if (journal != null && mSource.mIndex < CommandJournal.MAX_SOURCE_COUNT) {
+                    journal.appendAll(mSource.mIndex, mServerHash, connection.getFrameSequence(),
+                            commands, count);
+                }
+                final TargetFragmentCallbacks cb = mTargetFragmentCallbacks;
+                if (cb != null) {
+                    cb.onCommandsReceived(mSource.mIndex, commands, count);
+                }
             }
         }
 
+        private boolean isActiveConnection() {
+            return (mGeneration == mSource.mActiveGeneration);
+        }
+
+        /**
+         * Stops the given connection and, if it was the active connection, schedules a reconnect.
+         */
         private void clearConnection(@NonNull ClientConnection connection) {
             connection.requestStop();
-            synchronized (mClientConnectionThreadMutex) {
-                if (mClientConnectionThread != null
-                        && mClientConnectionThread.getConnection() == connection) {
-                    mClientConnectionThread = null;
+            synchronized (mConnectionMutex) {
+                if (!isActiveConnection()) {
+                    return;
+                }
+                mSource.mConnection = null;
+                mSource.mActiveGeneration = 0;
+                if (RESUME_ON_RECONNECT && (connection.getFrameSequence() > 0
+                        || connection.isResumed())) {
+                    mSource.mResumeSequence = connection.getFrameSequence();
                 }
             }
+            scheduleReconnect(mSource);
         }
 
     }
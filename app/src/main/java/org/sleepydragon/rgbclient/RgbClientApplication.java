@@ -0,0 +1,34 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.app.Application;
+
+/**
+ * The application object, which configures the process before any of its components are created.
+ */
+public class RgbClientApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        Logger.setSink(new LogcatSink());
+        Logger.setMinPriority(BuildConfig.DEBUG ? Logger.VERBOSE : Logger.INFO);
+    }
+
+}
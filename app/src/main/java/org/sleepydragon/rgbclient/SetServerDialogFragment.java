@@ -29,8 +29,11 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.EditText;
 
+import java.util.List;
+
 /**
  * A fragment to set the server information.
  */
@@ -38,11 +41,15 @@ public class SetServerDialogFragment extends DialogFragment {
 
     private EditText mHostView;
     private EditText mPortView;
+    private CheckBox mUdpView;
+    private EditText mOverlaysView;
     private Button mOkButtonView;
 
     private SharedPreferences mSharedPreferences;
     private String mKeyHost;
     private String mKeyPort;
+    private String mKeyTransport;
+    private String mKeyOverlays;
 
     @Nullable
     @Override
@@ -56,9 +63,12 @@ public class SetServerDialogFragment extends DialogFragment {
         mOkButtonView.setEnabled(false);
         mHostView = (EditText) view.findViewById(R.id.server_host);
         mPortView = (EditText) view.findViewById(R.id.server_port);
+        mUdpView = (CheckBox) view.findViewById(R.id.server_transport_udp);
+        mOverlaysView = (EditText) view.findViewById(R.id.server_overlays);
         final TextWatcher updateOkButtonTextWatcher = new UpdateOkButtonTextWatcher();
         mHostView.addTextChangedListener(updateOkButtonTextWatcher);
         mPortView.addTextChangedListener(updateOkButtonTextWatcher);
+        mOverlaysView.addTextChangedListener(updateOkButtonTextWatcher);
 
         new LoadSettingsAsyncTask(getActivity()).execute();
 
@@ -76,9 +86,19 @@ public class SetServerDialogFragment extends DialogFragment {
             return;
         }
 
+        final List<ColorSourceSpec> overlays = getOverlaysFromViews();
+        if (overlays == null) {
+            return;
+        }
+
+        final ClientConnection.Transport transport = mUdpView.isChecked()
+                ? ClientConnection.Transport.UDP : ClientConnection.Transport.TCP;
+
         prefs.edit()
                 .putString(mKeyHost, serverInfo.host)
                 .putInt(mKeyPort, serverInfo.port)
+                .putString(mKeyTransport, transport.name())
+                .putString(mKeyOverlays, formatOverlays(overlays))
                 .apply();
 
         final Context context = getActivity();
@@ -117,9 +137,42 @@ public class SetServerDialogFragment extends DialogFragment {
         return new HostPortPair(host, port);
     }
 
+    /**
+     * Parses the overlay servers entered by the user, showing an error on the view if they are
+     * not valid.
+     *
+     * @return the overlay servers, or null if they are not valid.
+     */
+    @Nullable
+    private List<ColorSourceSpec> getOverlaysFromViews() {
+        final CharSequence overlaysCS = mOverlaysView.getText();
+        try {
+            final List<ColorSourceSpec> overlays =
+                    ColorSourceSpec.parseList((overlaysCS == null) ? "" : overlaysCS.toString());
+            mOverlaysView.setError(null);
+            return overlays;
+        } catch (IllegalArgumentException e) {
+            mOverlaysView.setError(e.getMessage());
+            return null;
+        }
+    }
+
+    @NonNull
+    private static String formatOverlays(@NonNull List<ColorSourceSpec> overlays) {
+        final StringBuilder sb = new StringBuilder();
+        for (final ColorSourceSpec overlay : overlays) {
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(overlay);
+        }
+        return sb.toString();
+    }
+
     private void updateOkButtonEnabledState() {
         final HostPortPair serverInfo = getHostAndPortFromViews();
-        mOkButtonView.setEnabled(serverInfo != null);
+        final List<ColorSourceSpec> overlays = getOverlaysFromViews();
+        mOkButtonView.setEnabled(serverInfo != null && overlays != null);
     }
 
     private class OkButtonClickListener implements View.OnClickListener {
@@ -169,9 +222,19 @@ public class SetServerDialogFragment extends DialogFragment {
                 mPortView.setText(Integer.toString(port));
             }
 
+            final ClientConnection.Transport transport =
+                    Settings.getServerTransport(mContext, sharedPreferences);
+            mUdpView.setChecked(transport == ClientConnection.Transport.UDP);
+
+            final List<ColorSourceSpec> overlays =
+                    Settings.getServerOverlays(mContext, sharedPreferences);
+            mOverlaysView.setText(formatOverlays(overlays));
+
             mSharedPreferences = sharedPreferences;
             mKeyHost = hostKey;
             mKeyPort = portKey;
+            mKeyTransport = Settings.getServerTransportKey(mContext);
+            mKeyOverlays = Settings.getServerOverlaysKey(mContext);
         }
 
     }
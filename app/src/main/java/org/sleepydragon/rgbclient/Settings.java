@@ -25,6 +25,9 @@ import android.os.StrictMode;
 import android.support.annotation.NonNull;
 import android.support.v4.content.LocalBroadcastManager;
 
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Helper methods for saving and loading application settings.
  */
@@ -83,10 +86,80 @@ public class Settings {
         return context.getString(R.string.pref_key_server_port);
     }
 
+    /**
+     * Retrieves and returns the key in SharedPreferences where the transport over which to
+     * connect to the server is stored as the name of a {@link ClientConnection.Transport}.
+     *
+     * @param context the Context to use to retrieve the key's value; must not be null.
+     * @return the SharedPreferences key; never returns null.
+     */
+    @NonNull
+    public static String getServerTransportKey(@NonNull Context context) {
+        return context.getString(R.string.pref_key_server_transport);
+    }
+
+    /**
+     * Retrieves and returns the transport over which to connect to the server.
+     *
+     * @param context the Context to use to retrieve the key; must not be null.
+     * @param prefs the SharedPreferences from which to retrieve the transport; must not be null.
+     * @return the transport, which is {@link ClientConnection.Transport#TCP} if none is stored or
+     * the stored value is not recognized; never returns null.
+     */
+    @NonNull
+    public static ClientConnection.Transport getServerTransport(@NonNull Context context,
+            @NonNull SharedPreferences prefs) {
+        final String name = prefs.getString(getServerTransportKey(context), null);
+        if (name != null) {
+            for (final ClientConnection.Transport transport : ClientConnection.Transport.values()) {
+                if (transport.name().equals(name)) {
+                    return transport;
+                }
+            }
+        }
+        return ClientConnection.Transport.TCP;
+    }
+
+    /**
+     * Retrieves and returns the key in SharedPreferences where the servers whose colors are
+     * composed on top of that of the server are stored as a string, in the text form of
+     * {@link ColorSourceSpec#parseList}.
+     *
+     * @param context the Context to use to retrieve the key's value; must not be null.
+     * @return the SharedPreferences key; never returns null.
+     */
+    @NonNull
+    public static String getServerOverlaysKey(@NonNull Context context) {
+        return context.getString(R.string.pref_key_server_overlays);
+    }
+
+    /**
+     * Retrieves and returns the servers whose colors are composed on top of that of the server,
+     * from the bottom of the stack to the top.
+     *
+     * @param context the Context to use to retrieve the key; must not be null.
+     * @param prefs the SharedPreferences from which to retrieve the servers; must not be null.
+     * @return the servers, which is empty if none are stored or the stored value is not valid;
+     * never returns null.
+     */
+    @NonNull
+    public static List<ColorSourceSpec> getServerOverlays(@NonNull Context context,
+            @NonNull SharedPreferences prefs) {
+        final String text = prefs.getString(getServerOverlaysKey(context), null);
+        if (text != null) {
+            try {
+                return ColorSourceSpec.parseList(text);
+            } catch (IllegalArgumentException e) {
+                // fall through; the dialog only stores valid values
+            }
+        }
+        return Collections.emptyList();
+    }
+
     /**
      * Notifies other parties in this application that the server settings have been changed.
-     * This method should be invoked whenever {@link #KEY_SERVER_HOST} or {@link #KEY_SERVER_PORT}
-     * are changed so that the application can respond accordingly.
+     * This method should be invoked whenever the server's host, port, transport or overlays are
+     * changed so that the application can respond accordingly.
      * <p/>
      * This method will post an intent with action {@link #ACTION_SERVER_INFO_CHANGED} to
      * {@link android.support.v4.content.LocalBroadcastManager}.
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link ColorAccumulator}, the engine behind MainFragment's ColorState, with a full
+ * history in which every RELATIVE command is selected.
+ * <p/>
+ * ColorState itself also notifies its RecyclerView adapter, which cannot run outside of Android,
+ * so the accumulator is measured directly.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ColorAccumulatorBenchmark {
+
+    private static final int COMMAND_COUNT = 1024;
+
+    /**
+     * The capacity of the history: that of ColorState, and a much larger one to show whether the
+     * cost of an operation grows with the size of the selection.
+     */
+    @Param({"100", "10000"})
+    public int capacity;
+
+    private ColorAccumulator mAccumulator;
+    private ColorCommand[] mRelativeCommands;
+    private int mNextCommandIndex;
+    private int mNextSlot;
+    private final ColorAccumulator.RGB mRGB = new ColorAccumulator.RGB();
+
+    @Setup
+    public void setUp() {
+        // create the commands up front so that their allocation is not measured
+        mRelativeCommands = new ColorCommand[COMMAND_COUNT];
+        for (int i = 0; i < COMMAND_COUNT; i++) {
+            mRelativeCommands[i] = new ColorCommand(ColorCommand.Instruction.RELATIVE,
+                    (i % 3) - 1, (i % 5) - 2, (i % 7) - 3);
+        }
+
+        mAccumulator = new ColorAccumulator(capacity);
+        mAccumulator.addCommand(new ColorCommand(ColorCommand.Instruction.ABSOLUTE, 127, 127, 127));
+        for (int i = 1; i < capacity; i++) {
+            addRelativeCommand();
+        }
+        mNextSlot = 1;
+    }
+
+    @Benchmark
+    public boolean addRelativeCommand() {
+        final ColorCommand command = mRelativeCommands[mNextCommandIndex];
+        mNextCommandIndex = (mNextCommandIndex + 1) % COMMAND_COUNT;
+        return mAccumulator.addCommand(command);
+    }
+
+    @Benchmark
+    public int getEffectiveColor() {
+        mAccumulator.getEffectiveColor(mRGB);
+        return mRGB.r + mRGB.g + mRGB.b;
+    }
+
+    /**
+     * Deselects and reselects a RELATIVE command, as when the user toggles its checkbox.  Slot 0
+     * holds the ABSOLUTE command and is skipped, since reselecting it would clear the selection.
+     */
+    @Benchmark
+    public boolean toggleSelection() {
+        final int slot = mNextSlot;
+        mNextSlot = (mNextSlot + 1 < capacity) ? (mNextSlot + 1) : 1;
+        mAccumulator.setSlotSelected(slot, false);
+        return mAccumulator.setSlotSelected(slot, true);
+    }
+
+    /**
+     * Gets the indices of the selected commands, as done when ColorState is saved.
+     */
+    @Benchmark
+    public int[] getSelectedRelativeIndices() {
+        return mAccumulator.getSelectedRelativeIndices();
+    }
+
+}
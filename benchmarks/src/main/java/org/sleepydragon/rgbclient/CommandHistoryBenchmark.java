@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures NetworkClientFragment.getCommandsSince(), which copies commands out of a full
+ * {@link CommandHistory} when the main thread catches up after a configuration change or after
+ * its queue overflowed.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandHistoryBenchmark {
+
+    /**
+     * The capacity of the history, as specified by the network_command_history_capacity
+     * resource.
+     */
+    private static final int CAPACITY = 1000;
+
+    /**
+     * The number of commands to catch up on: a few, half of the history, or all of it.
+     */
+    @Param({"10", "500", "1000"})
+    public int sinceCount;
+
+    private CommandHistory mHistory;
+    private long mSinceId;
+    private CommandHistory.Snapshot mSnapshot;
+
+    @Setup
+    public void setUp() {
+        mHistory = new CommandHistory(CAPACITY);
+        // fill the history more than once so that it has wrapped around, as it will have in use
+        ColorCommand command = null;
+        for (int i = 0; i < CAPACITY * 3 / 2; i++) {
+            final ColorCommand.Instruction instruction = (i % 8 == 0)
+                    ? ColorCommand.Instruction.ABSOLUTE : ColorCommand.Instruction.RELATIVE;
+            command = new ColorCommand(instruction, i & 0xFF, (i >> 1) & 0xFF, (i >> 2) & 0xFF);
+            mHistory.add(command);
+        }
+        // ids are contiguous, so this is the id of the command that precedes the ones to get
+        mSinceId = (sinceCount >= CAPACITY) ? ColorCommand.INVALID_ID : command.id - sinceCount;
+        mSnapshot = new CommandHistory.Snapshot(CAPACITY);
+    }
+
+    @Benchmark
+    public List<ColorCommand> getCommandsSince() {
+        final List<ColorCommand> commands = new ArrayList<>();
+        mHistory.getCommandsSince(mSinceId, commands);
+        return commands;
+    }
+
+    /**
+     * Copies the commands into a reused snapshot without materializing them, which is the part
+     * of {@link #getCommandsSince} that is performed with the history's lock held.
+     */
+    @Benchmark
+    public int copySince() {
+        return mHistory.copySince(mSinceId, mSnapshot);
+    }
+
+}
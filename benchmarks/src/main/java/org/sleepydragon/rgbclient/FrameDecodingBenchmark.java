@@ -0,0 +1,225 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the decoding of a stream of frames by {@link ClientConnection#readFrames}, as done by
+ * {@link ClientConnection#run}: reading from a channel into a {@link FrameDecoder}, decoding the
+ * frames, passing them through a {@link CommandConflater}, and creating a {@link ColorCommand}
+ * for each command delivered to the callback.
+ * <p/>
+ * The score is the number of frames decoded per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameDecodingBenchmark {
+
+    private static final int FRAME_COUNT = 4096;
+
+    /**
+     * The number of bytes returned by each read of the channel: a typical TCP segment, or enough
+     * to fill the decoder's buffer, as when the client has fallen behind the server.
+     */
+    @Param({"1460", "8192"})
+    public int readSize;
+
+    @Param({"PASS_THROUGH", "LATEST_ABSOLUTE_AND_SUM_RELATIVE"})
+    public CommandConflater.Policy policy;
+
+    /**
+     * Whether the frames are sent in BATCH frames, as by a server that agreed on the batch
+     * capability, or one per frame, as by older servers.
+     */
+    @Param({"false", "true"})
+    public boolean batched;
+
+    private StreamChannel mChannel;
+    private ConnectionCallback mCallback;
+    private ClientConnection mConnection;
+
+    @Setup
+    public void setUp() throws Exception {
+        mChannel = new StreamChannel(createStream(FRAME_COUNT, batched), readSize);
+        mCallback = new ConnectionCallback();
+        // the connection is never started, so its host and port are not used
+        mConnection = new ClientConnection("localhost", 0, mCallback);
+        mConnection.setConflationPolicy(policy);
+        if (batched) {
+            // agree on the batch capability, as the server does at the start of the stream
+            final ByteBuffer helloAck = ByteBuffer.allocate(1 + Protocol.HELLO_ACK_PAYLOAD_LENGTH);
+            helloAck.put(Protocol.OPCODE_HELLO_ACK);
+            helloAck.put((byte) Protocol.VERSION);
+            helloAck.putInt(Protocol.CAPABILITY_BATCH);
+            mConnection.readFrames(new StreamChannel(helloAck.array(), helloAck.capacity()));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAME_COUNT)
+    public void decodeStream(Blackhole blackhole) throws Exception {
+        mCallback.mBlackhole = blackhole;
+        mChannel.rewind();
+        // stop before the end of the stream, which readFrames() reports with an exception
+        while (mChannel.hasRemaining()) {
+            mConnection.readFrames(mChannel);
+        }
+    }
+
+    /**
+     * Creates a stream of frames in which roughly one in eight frames is ABSOLUTE, as sent by the
+     * RGB Server.  If batched, each run of frames of the same kind is sent as one BATCH frame.
+     */
+    @NonNull
+    private static byte[] createStream(int frameCount, boolean batched) {
+        final Random random = new Random(42);
+        final ByteBuffer buffer = ByteBuffer.allocate(frameCount * Protocol.MAX_FRAME_LENGTH);
+        byte batchOpcode = 0;
+        int batchCountPosition = -1;
+        int batchRecordCount = 0;
+        for (int i = 0; i < frameCount; i++) {
+            final byte opcode = (random.nextInt(8) == 0)
+                    ? Protocol.OPCODE_ABSOLUTE : Protocol.OPCODE_RELATIVE;
+            if (!batched) {
+                buffer.put(opcode);
+            } else if (batchCountPosition < 0 || opcode != batchOpcode) {
+                if (batchCountPosition >= 0) {
+                    buffer.putShort(batchCountPosition, (short) batchRecordCount);
+                }
+                buffer.put(Protocol.OPCODE_BATCH);
+                buffer.put(opcode);
+                batchCountPosition = buffer.position();
+                buffer.putShort((short) 0);
+                batchOpcode = opcode;
+                batchRecordCount = 0;
+            }
+            batchRecordCount++;
+
+            if (opcode == Protocol.OPCODE_ABSOLUTE) {
+                buffer.put((byte) random.nextInt(256));
+                buffer.put((byte) random.nextInt(256));
+                buffer.put((byte) random.nextInt(256));
+            } else {
+                buffer.putShort((short) (random.nextInt(21) - 10));
+                buffer.putShort((short) (random.nextInt(21) - 10));
+                buffer.putShort((short) (random.nextInt(21) - 10));
+            }
+        }
+        if (batchCountPosition >= 0) {
+            buffer.putShort(batchCountPosition, (short) batchRecordCount);
+        }
+        final byte[] stream = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(stream);
+        return stream;
+    }
+
+    private static class ConnectionCallback extends ClientConnection.SimpleCallback {
+
+        Blackhole mBlackhole;
+
+        @Override
+        public void connectionStateChanged(@NonNull ClientConnection connection,
+                boolean connected) {
+        }
+
+        @Override
+        public void connectionError(@NonNull ClientConnection connection,
+                @NonNull ConnectionError error, @NonNull String message) {
+            throw new AssertionError("unexpected error: " + error + ": " + message);
+        }
+
+        @Override
+        public void commandReceived(@NonNull ClientConnection connection,
+                @NonNull ColorCommand command) {
+            mBlackhole.consume(command);
+        }
+
+    }
+
+    /**
+     * A channel that returns the bytes of a stream in reads of a fixed size, like a socket.
+     */
+    private static class StreamChannel implements ReadableByteChannel {
+
+        @NonNull
+        private final byte[] mStream;
+        private final int mReadSize;
+        private int mPosition;
+
+        public StreamChannel(@NonNull byte[] stream, int readSize) {
+            mStream = stream;
+            mReadSize = readSize;
+        }
+
+        public void rewind() {
+            mPosition = 0;
+        }
+
+        public boolean hasRemaining() {
+            return (mPosition < mStream.length);
+        }
+
+        @Override
+        public int read(@NonNull ByteBuffer dst) {
+            if (mPosition >= mStream.length) {
+                return -1;
+            }
+            final int count = Math.min(Math.min(mReadSize, dst.remaining()),
+                    mStream.length - mPosition);
+            dst.put(mStream, mPosition, count);
+            mPosition += count;
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+}
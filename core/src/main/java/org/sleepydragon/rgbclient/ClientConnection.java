@@ -0,0 +1,1306 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Manages a connection with the RGB Server.
+ * <p/>
+ * By default the connection is a TCP stream, which delivers every frame in order.  Alternatively
+ * the server's frames can be received as UDP datagrams (see {@link Transport#UDP}), which favors
+ * the latest color over delivering every frame: a datagram that is lost is never retransmitted,
+ * so it cannot hold up the datagrams behind it.
+ * <p/>
+ * If the server agrees on {@link Protocol#CAPABILITY_HEARTBEAT} then the client sends it PING
+ * frames periodically, measures the round-trip time from its PONG frames (see
+ * {@link #getHeartbeat}), and treats a server that falls silent for longer than the adaptive idle
+ * timeout of the {@link HeartbeatMonitor} as a read error, so that a connection that stalls
+ * without being closed, such as one whose network went away, is replaced within seconds.
+ */
+public class ClientConnection implements Runnable {
+
+    private static final int STATE_STOP_REQUESTED = 1;
+    private static final int STATE_FINISHED = 2;
+
+    /**
+     * The number of connections that have been requested to stop but have not yet finished.
+     */
+    private static final AtomicInteger sLingeringCount = new AtomicInteger();
+
+    // the metrics of all connections, indexed by the ordinal of ColorCommand.Instruction
+    private static final StripedCounter[] FRAMES_RECEIVED = createFrameCounters();
+    private static final StripedCounter RESUMED_FRAMES_RECEIVED =
+            MetricsRegistry.getDefault().counter("connection.frames.resumed");
+    private static final StripedCounter BATCHED_FRAMES_RECEIVED =
+            MetricsRegistry.getDefault().counter("connection.frames.batched");
+    private static final StripedCounter BYTES_READ =
+            MetricsRegistry.getDefault().counter("connection.bytes_read");
+    private static final StripedCounter CONNECTION_FAILURES =
+            MetricsRegistry.getDefault().counter("connection.connect_failures");
+    private static final StripedCounter READ_ERRORS =
+            MetricsRegistry.getDefault().counter("connection.read_errors");
+    private static final StripedCounter PROTOCOL_ERRORS =
+            MetricsRegistry.getDefault().counter("connection.protocol_errors");
+    private static final StripedCounter DATAGRAMS_RECEIVED =
+            MetricsRegistry.getDefault().counter("connection.datagrams.received");
+    private static final StripedCounter DATAGRAMS_LOST =
+            MetricsRegistry.getDefault().counter("connection.datagrams.lost");
+    private static final StripedCounter DATAGRAMS_REORDERED =
+            MetricsRegistry.getDefault().counter("connection.datagrams.reordered");
+    private static final StripedCounter STALLS =
+            MetricsRegistry.getDefault().counter("connection.stalls");
+    private static final Histogram ROUND_TRIP_TIME = MetricsRegistry.getDefault().histogram(
+            "connection.rtt_us", Histogram.exponentialBounds(100, 2.0, 16));
+
+    /**
+     * The time after which to give up on the server if no datagrams are received from it when
+     * using the UDP transport.
+     */
+    private static final long DATAGRAM_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(
+            Protocol.DATAGRAM_SUBSCRIPTION_TIMEOUT_MILLIS);
+
+    /**
+     * How often to log a warning while waiting for the predecessor to finish, in milliseconds.
+     */
+    private static final long PREDECESSOR_WARNING_INTERVAL_MILLIS = 5000;
+
+    @NonNull
+    private final String mHost;
+    private final int mPort;
+
+    @NonNull
+    private final Callback mCallback;
+
+    private final AtomicInteger mState = new AtomicInteger(0);
+    private final AtomicBoolean mConnected = new AtomicBoolean(false);
+    private final CountDownLatch mFinishedLatch = new CountDownLatch(1);
+
+    /**
+     * The object to close to unblock the thread performing I/O when a stop is requested.
+     */
+    private volatile Closeable mTransport;
+
+    private final Logger mLogger;
+    private final Logger mRunLogger;
+
+    private final FrameDecoder mDecoder = new FrameDecoder();
+    private final DatagramSequenceTracker mSequenceTracker = new DatagramSequenceTracker();
+    private final FrameListener mFrameListener = new FrameListener();
+    private final CommandConflater mConflater = new CommandConflater(mFrameListener);
+
+    private volatile HeartbeatMonitor mHeartbeat =
+            new HeartbeatMonitor(HeartbeatMonitor.DEFAULT_PING_INTERVAL_MILLIS);
+    private volatile Transport mTransportType = Transport.TCP;
+    private volatile int mConnectTimeoutMillis = ConnectAttempt.DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private volatile int mOfferedCapabilities = Protocol.SUPPORTED_CAPABILITIES;
+    private volatile int mServerProtocolVersion;
+    private volatile int mAgreedCapabilities;
+    private volatile long mResumeSequence = -1;
+    private volatile long mFrameSequence;
+    private volatile boolean mResumed;
+
+    /**
+     * The connection that this connection replaces, which must finish before this connection
+     * performs any I/O, or null if there is none or it has finished.
+     */
+    private volatile ClientConnection mPredecessor;
+
+    /**
+     * The value of {@link System#nanoTime} at which the bytes being decoded were read; only used
+     * by the thread performing I/O.
+     */
+    private long mReadNanos;
+
+    /**
+     * The PING frame being sent, which has remaining bytes only if it could not be written in its
+     * entirety; only used by the thread performing I/O.
+     */
+    private final ByteBuffer mPing =
+            (ByteBuffer) ByteBuffer.allocate(1 + Protocol.PING_PAYLOAD_LENGTH).limit(0);
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param host the host name or IP address of the server; must not be null.
+     * @param port the TCP port number of the server.
+     * @param callback the callback to be notified of interesting events; must not be null;
+     * the callbacks will occur on the same thread that invokes {@link #run} and therefore should
+     * return quickly and schedule any long-running work asynchronously.
+     * @see SelectorEngine
+     */
+    public ClientConnection(@NonNull String host, int port, @NonNull Callback callback) {
+        mHost = host;
+        mPort = port;
+        mCallback = callback;
+        mLogger = new Logger("ClientConnection " + host + ":" + port);
+        mRunLogger = mLogger.createSubLogger("run()");
+    }
+
+    /**
+     * Returns the TCP port number of the server that was specified to the constructor.
+     */
+    public int getPort() {
+        return mPort;
+    }
+
+    /**
+     * Returns the host name or IP address of the server that was specified to the constructor.
+     */
+    @NonNull
+    public String getHost() {
+        return mHost;
+    }
+
+    /**
+     * Sets the policy with which to merge the frames of each batch received from the server
+     * before delivering them to the callback.  The default policy is
+     * {@link CommandConflater.Policy#PASS_THROUGH}.
+     * <p/>
+     * This method must be invoked before the connection is started.
+     *
+     * @param policy the policy to use; must not be null.
+     */
+    public void setConflationPolicy(@NonNull CommandConflater.Policy policy) {
+        mConflater.setPolicy(policy);
+    }
+
+    /**
+     * Returns the object that merges the frames received from the server, which can be used to
+     * query how many frames were merged.
+     */
+    @NonNull
+    public CommandConflater getConflater() {
+        return mConflater;
+    }
+
+    /**
+     * Sets the transport over which to receive frames from the server.  The default is
+     * {@link Transport#TCP}.
+     * <p/>
+     * This method must be invoked before the connection is started.
+     *
+     * @param transport the transport to use; must not be null.
+     */
+    public void setTransport(@NonNull Transport transport) {
+        mTransportType = transport;
+    }
+
+    /**
+     * Returns the transport over which frames are received from the server.
+     *
+     * @see #setTransport
+     */
+    @NonNull
+    public Transport getTransport() {
+        return mTransportType;
+    }
+
+    /**
+     * Returns the object that tracks the sequence numbers of the datagrams received from the
+     * server, which can be used to query how many datagrams were lost or reordered.  It is only
+     * used by the UDP transport.
+     */
+    @NonNull
+    public DatagramSequenceTracker getSequenceTracker() {
+        return mSequenceTracker;
+    }
+
+    /**
+     * Sets the interval at which to send PING frames to the server if it agrees on
+     * {@link Protocol#CAPABILITY_HEARTBEAT}.  The default is
+     * {@link HeartbeatMonitor#DEFAULT_PING_INTERVAL_MILLIS}.  The time that the server may be
+     * silent before the connection is considered stalled is derived from this interval.
+     * <p/>
+     * This method must be invoked before the connection is started.
+     *
+     * @param intervalMillis the interval, in milliseconds; must be greater than zero.
+     * @throws IllegalArgumentException if the given interval is not greater than zero.
+     */
+    public void setPingInterval(int intervalMillis) {
+        mHeartbeat = new HeartbeatMonitor(intervalMillis);
+    }
+
+    /**
+     * Returns the object that decides when the server has stalled, which can be used to query the
+     * round-trip time to the server.  It is only used if the server agrees on
+     * {@link Protocol#CAPABILITY_HEARTBEAT}.
+     */
+    @NonNull
+    public HeartbeatMonitor getHeartbeat() {
+        return mHeartbeat;
+    }
+
+    /**
+     * Sets the maximum amount of time to spend establishing the connection to the server, which
+     * includes trying each of its addresses.  The default timeout is
+     * {@link ConnectAttempt#DEFAULT_CONNECT_TIMEOUT_MILLIS}.
+     * <p/>
+     * This method must be invoked before the connection is started.
+     *
+     * @param timeoutMillis the timeout, in milliseconds; must be greater than zero.
+     * @throws IllegalArgumentException if the given timeout is not greater than zero.
+     */
+    public void setConnectTimeout(int timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("invalid timeoutMillis: " + timeoutMillis);
+        }
+        mConnectTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Returns the connect timeout, in milliseconds.
+     *
+     * @see #setConnectTimeout
+     */
+    public int getConnectTimeoutMillis() {
+        return mConnectTimeoutMillis;
+    }
+
+    /**
+     * Sets the capabilities to offer to the server in the HELLO frame that is sent when the
+     * connection is established.  The default is {@link Protocol#SUPPORTED_CAPABILITIES}.  If no
+     * capabilities are offered then no HELLO frame is sent at all, and the server is spoken to
+     * exactly as a server that does not support the handshake would be.
+     * <p/>
+     * This method must be invoked before the connection is started.
+     *
+     * @param capabilities the {@code CAPABILITY_} flags of {@link Protocol} to offer; must be a
+     * subset of {@link Protocol#SUPPORTED_CAPABILITIES}.
+     * @throws IllegalArgumentException if an unsupported capability is given.
+     */
+    public void setOfferedCapabilities(int capabilities) {
+        if ((capabilities & ~Protocol.SUPPORTED_CAPABILITIES) != 0) {
+            throw new IllegalArgumentException("invalid capabilities: " + capabilities);
+        }
+        mOfferedCapabilities = capabilities;
+    }
+
+    /**
+     * Returns the version of the protocol spoken by the server, as specified in its HELLO_ACK
+     * frame; this is 0 until a HELLO_ACK frame is received, and remains 0 for servers that do not
+     * support the handshake.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    public int getServerProtocolVersion() {
+        return mServerProtocolVersion;
+    }
+
+    /**
+     * Returns the capabilities that were agreed on with the server: those that were both offered
+     * by this client and acknowledged by the server.  This is 0 until a HELLO_ACK frame is
+     * received.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    public int getAgreedCapabilities() {
+        return mAgreedCapabilities;
+    }
+
+    /**
+     * Requests that the server resume its stream of frames from the given sequence number rather
+     * than starting over from the beginning.  When the connection is established a RESUME frame
+     * is sent to the server; if the server responds with a RESUMED frame for the same sequence
+     * number then only the frames that were missed are received and the synthetic reset command
+     * that normally precedes the first command is not delivered.  Servers that do not support
+     * resuming ignore the request and the stream starts over from the beginning.  The UDP
+     * transport does not resume, so this has no effect on it.
+     * <p/>
+     * This method must be invoked before the connection is started.
+     *
+     * @param sequence the value returned from {@link #getFrameSequence} of the previous
+     * connection to the same server; must not be negative.
+     * @throws IllegalArgumentException if the given sequence number is negative.
+     */
+    public void setResumeSequence(long sequence) {
+        if (sequence < 0) {
+            throw new IllegalArgumentException("invalid sequence: " + sequence);
+        }
+        mResumeSequence = sequence;
+        mFrameSequence = sequence;
+    }
+
+    /**
+     * Sets the connection that this connection replaces.  The predecessor is requested to stop
+     * and this connection performs no I/O, and so invokes no callbacks, until the predecessor has
+     * finished.  This allows a new connection to share its callback's state with the connection
+     * that it replaces, such as a queue that only supports a single producer, even though the
+     * thread of the predecessor may still be delivering a command when the new connection is
+     * started.
+     * <p/>
+     * This method must be invoked before the connection is started.
+     *
+     * @param predecessor the connection that this connection replaces, or null if there is none.
+     * @see #isFinished
+     */
+    public void setPredecessor(@Nullable ClientConnection predecessor) {
+        mPredecessor = predecessor;
+    }
+
+    /**
+     * Returns the connection that this connection replaces if it has not yet finished, and
+     * forgets it once it has.
+     * <p/>
+     * This method may be invoked by any thread.
+     *
+     * @return the predecessor that has not yet finished, or null if there is none.
+     * @see #setPredecessor
+     */
+    @Nullable
+    ClientConnection getUnfinishedPredecessor() {
+        final ClientConnection predecessor = mPredecessor;
+        if (predecessor != null && predecessor.isFinished()) {
+            mPredecessor = null;
+            return null;
+        }
+        return predecessor;
+    }
+
+    /**
+     * Returns the sequence number of the next frame expected from the server's stream; that is,
+     * the number of frames of the server's stream that have been received, including those
+     * received by previous connections that this connection resumed from.  If no frames have
+     * been received then this is the sequence number given to {@link #setResumeSequence}, if any.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    public long getFrameSequence() {
+        return mFrameSequence;
+    }
+
+    /**
+     * Returns whether or not the server accepted the request to resume its stream that was made
+     * by {@link #setResumeSequence}.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    public boolean isResumed() {
+        return mResumed;
+    }
+
+    /**
+     * Creates the bytes to send to the server immediately after the connection is established:
+     * a HELLO frame, if any capabilities are offered, followed by a RESUME frame, if resuming.
+     *
+     * @return the bytes to send, or null if nothing needs to be sent.
+     */
+    @Nullable
+    ByteBuffer createHandshake() {
+        final int capabilities = mOfferedCapabilities;
+        final long sequence = mResumeSequence;
+        int length = 0;
+        if (capabilities != 0) {
+            length += 1 + Protocol.HELLO_PAYLOAD_LENGTH;
+        }
+        if (sequence >= 0) {
+            length += 1 + Protocol.RESUME_PAYLOAD_LENGTH;
+        }
+        if (length == 0) {
+            return null;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        if (capabilities != 0) {
+            buffer.put(Protocol.OPCODE_HELLO);
+            buffer.put((byte) Protocol.VERSION);
+            buffer.putInt(capabilities);
+        }
+        if (sequence >= 0) {
+            buffer.put(Protocol.OPCODE_RESUME);
+            buffer.putLong(sequence);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Connect to the server and start sending callbacks to the registered callback.
+     * <p/>
+     * This method blocks the calling thread until the connection is closed.  To instead share
+     * a single thread between many connections, register this object with a
+     * {@link SelectorEngine} and do not invoke this method.
+     */
+    @Override
+    public void run() {
+        try {
+            if (!awaitPredecessor()) {
+                return;
+            }
+            if (mTransportType == Transport.UDP) {
+                receiveDatagrams();
+            } else {
+                connectAndRead();
+            }
+        } finally {
+            markFinished();
+        }
+    }
+
+    /**
+     * Waits for the predecessor, if any, to finish.
+     *
+     * @return true if the predecessor finished, or false if the thread was interrupted first.
+     */
+    private boolean awaitPredecessor() {
+        final ClientConnection predecessor = getUnfinishedPredecessor();
+        if (predecessor == null) {
+            return true;
+        }
+        mRunLogger.d("waiting for the previous connection to finish");
+        try {
+            while (!predecessor.stopAndAwait(PREDECESSOR_WARNING_INTERVAL_MILLIS,
+                    TimeUnit.MILLISECONDS)) {
+                mRunLogger.w("the previous connection has not finished after waiting {} ms",
+                        PREDECESSOR_WARNING_INTERVAL_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        mPredecessor = null;
+        return true;
+    }
+
+    private void connectAndRead() {
+        final Logger log = mRunLogger;
+        log.d("run()");
+
+        if (isStopRequested()) {
+            log.d("run() cancelled at checkpoint A");
+            return;
+        }
+
+        log.d("connecting to server");
+        final SocketChannel channel;
+        try {
+            final InetAddress[] addresses = ResolverCache.getDefault().resolve(mHost);
+            final ConnectAttempt attempt = new ConnectAttempt(addresses, mPort,
+                    mConnectTimeoutMillis, ConnectAttempt.DEFAULT_ATTEMPT_DELAY_MILLIS, this);
+            attachTransport(new Closeable() {
+                @Override
+                public void close() {
+                    attempt.abort();
+                }
+            });
+            channel = attempt.await();
+        } catch (IOException e) {
+            if (isStopRequested()) {
+                log.d("run() cancelled while connecting");
+            } else {
+                notifyConnectionFailed(e);
+            }
+            return;
+        }
+
+        try {
+            log.d("connected to server");
+            if (!attachTransport(channel)) {
+                log.d("run() cancelled at checkpoint B");
+                return;
+            }
+
+            final ByteBuffer handshake = createHandshake();
+            if (handshake != null) {
+                log.d("sending handshake: capabilities=0x{} resumeSequence={}",
+                        Integer.toHexString(mOfferedCapabilities), mResumeSequence);
+                while (handshake.hasRemaining()) {
+                    channel.write(handshake);
+                }
+            }
+            notifyConnected();
+
+            // reads block indefinitely until the server agrees to answer PING frames, after which
+            // they are made with a selector so that the PING frames are sent on time and a stall
+            // is noticed
+            Selector selector = null;
+            try {
+                while (true) {
+                    if (isStopRequested()) {
+                        log.d("run() cancelled at checkpoint C");
+                        return;
+                    }
+
+                    final long waitNanos = pollHeartbeat(channel, System.nanoTime());
+                    if (waitNanos >= 0) {
+                        if (selector == null) {
+                            selector = openHeartbeatSelector(channel);
+                            if (selector == null) {
+                                log.d("run() cancelled at checkpoint D");
+                                return;
+                            }
+                        }
+                        final long waitMillis = TimeUnit.NANOSECONDS.toMillis(waitNanos) + 1;
+                        if (selector.select(waitMillis) == 0) {
+                            continue;
+                        }
+                        selector.selectedKeys().clear();
+                    }
+
+                    readFrames(channel);
+                }
+            } finally {
+                if (selector != null) {
+                    selector.close();
+                }
+            }
+        } catch (IOException e) {
+            // requestStop() closes the channel to unblock the read, which is not an error
+            if (!isStopRequested()) {
+                notifyReadFailed(e);
+            }
+        } catch (ProtocolException e) {
+            notifyProtocolError(e);
+        } finally {
+            log.d("closing connection to server");
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // oh well
+            } finally {
+                notifyDisconnected();
+            }
+        }
+    }
+
+    /**
+     * Switches the given channel to non-blocking mode and registers it with a new selector that
+     * is woken up when a stop is requested.
+     *
+     * @return the selector, or null if a stop has already been requested.
+     */
+    @Nullable
+    private Selector openHeartbeatSelector(@NonNull final SocketChannel channel)
+            throws IOException {
+        final Selector selector = Selector.open();
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ);
+        final boolean attached = attachTransport(new Closeable() {
+            @Override
+            public void close() throws IOException {
+                try {
+                    channel.close();
+                } finally {
+                    selector.wakeup();
+                }
+            }
+        });
+        if (!attached) {
+            selector.close();
+            return null;
+        }
+        return selector;
+    }
+
+    /**
+     * Sends a PING frame to the server if one is due and checks whether the server has stalled;
+     * this does nothing until the server agrees on {@link Protocol#CAPABILITY_HEARTBEAT}.
+     * <p/>
+     * This method is invoked by {@link #run} and, for connections driven by a
+     * {@link SelectorEngine}, by the engine periodically.
+     *
+     * @param channel the channel to which to write the PING frame; must not be null.  If it is in
+     * non-blocking mode then a PING frame that does not fit into the send buffer is finished by
+     * later invocations.
+     * @param now the current value of {@link System#nanoTime}.
+     * @return the number of nanoseconds after which this method should be invoked again, or -1 if
+     * the server has not agreed to answer PING frames.
+     * @throws SocketTimeoutException if the server has stalled.
+     * @throws IOException if writing the PING frame fails.
+     */
+    long pollHeartbeat(@NonNull WritableByteChannel channel, long now) throws IOException {
+        final HeartbeatMonitor heartbeat = mHeartbeat;
+        if (!heartbeat.isStarted()) {
+            return -1;
+        } else if (heartbeat.isStalled(now)) {
+            STALLS.increment();
+            throw new SocketTimeoutException("no data received from the server in "
+                    + TimeUnit.NANOSECONDS.toMillis(heartbeat.getIdleTimeoutNanos()) + " ms");
+        }
+
+        final ByteBuffer ping = mPing;
+        if (!ping.hasRemaining() && heartbeat.isPingDue(now)) {
+            ping.clear();
+            ping.put(Protocol.OPCODE_PING);
+            ping.putLong(heartbeat.onPingSent(now));
+            ping.flip();
+        }
+        if (ping.hasRemaining()) {
+            channel.write(ping);
+        }
+        return heartbeat.getNanosUntilDue(now);
+    }
+
+    private void receiveDatagrams() {
+        final Logger log = mRunLogger;
+        log.d("run() using UDP");
+
+        if (isStopRequested()) {
+            log.d("run() cancelled at checkpoint A");
+            return;
+        }
+
+        final InetAddress[] addresses;
+        final DatagramSocket socket;
+        try {
+            addresses = ResolverCache.getDefault().resolve(mHost);
+            socket = new DatagramSocket();
+            if (!attachTransport(socket)) {
+                log.d("run() cancelled at checkpoint B");
+                return;
+            }
+            socket.setSoTimeout(ConnectAttempt.DEFAULT_ATTEMPT_DELAY_MILLIS);
+        } catch (IOException e) {
+            if (isStopRequested()) {
+                log.d("run() cancelled while connecting");
+            } else {
+                notifyConnectionFailed(e);
+            }
+            return;
+        }
+
+        final ByteBuffer hello = ByteBuffer.allocate(1 + Protocol.HELLO_PAYLOAD_LENGTH);
+        hello.put(Protocol.OPCODE_HELLO);
+        hello.put((byte) Protocol.VERSION);
+        hello.putInt(mOfferedCapabilities);
+        final DatagramPacket helloPacket = new DatagramPacket(hello.array(), hello.capacity());
+
+        final byte[] data = new byte[Protocol.MAX_DATAGRAM_LENGTH];
+        final DatagramPacket packet = new DatagramPacket(data, data.length);
+        final ByteBuffer datagram = ByteBuffer.wrap(data);
+        final DatagramSequenceTracker tracker = mSequenceTracker;
+        final DatagramSubscription subscription = new DatagramSubscription(addresses,
+                mConnectTimeoutMillis, ConnectAttempt.DEFAULT_ATTEMPT_DELAY_MILLIS);
+
+        long lastReceivedNanos = System.nanoTime();
+        long lastHelloNanos = lastReceivedNanos - DATAGRAM_TIMEOUT_NANOS;
+        try {
+            while (true) {
+                if (isStopRequested()) {
+                    log.d("run() cancelled at checkpoint C");
+                    return;
+                }
+
+                // the HELLO datagram subscribes to the server's datagrams and must be repeated;
+                // until the server answers, it is sent to each of the server's addresses in turn
+                final long now = System.nanoTime();
+                if (!isConnected()) {
+                    subscription.sendHellos(socket, helloPacket, mPort, now);
+                } else if (now - lastHelloNanos >= TimeUnit.MILLISECONDS.toNanos(
+                        Protocol.DATAGRAM_SUBSCRIBE_INTERVAL_MILLIS)) {
+                    socket.send(helloPacket);
+                    lastHelloNanos = now;
+                }
+
+                packet.setLength(data.length);
+                try {
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    if (!isConnected()) {
+                        subscription.checkTimeout(System.nanoTime());
+                    } else if (System.nanoTime() - lastReceivedNanos >= DATAGRAM_TIMEOUT_NANOS) {
+                        throw new SocketTimeoutException("no datagrams received from the server in "
+                                + Protocol.DATAGRAM_SUBSCRIPTION_TIMEOUT_MILLIS + " ms");
+                    }
+                    continue;
+                }
+                if (!isConnected()) {
+                    if (packet.getPort() != mPort || !subscription.isSubscribed(
+                            packet.getAddress())) {
+                        log.d("ignoring datagram from {}", packet.getSocketAddress());
+                        continue;
+                    }
+                    // only accept datagrams from the address that answered from now on
+                    log.d("first datagram received from server at {}", packet.getAddress());
+                    socket.connect(packet.getAddress(), mPort);
+                    socket.setSoTimeout(Protocol.DATAGRAM_SUBSCRIBE_INTERVAL_MILLIS);
+                    helloPacket.setSocketAddress(packet.getSocketAddress());
+                    lastHelloNanos = System.nanoTime();
+                }
+                lastReceivedNanos = mReadNanos = System.nanoTime();
+                final int length = packet.getLength();
+                BYTES_READ.add(length);
+                DATAGRAMS_RECEIVED.increment();
+                if (length < Protocol.DATAGRAM_HEADER_LENGTH) {
+                    throw new ProtocolException("datagram too short: " + length + " bytes");
+                }
+
+                datagram.limit(length).position(0);
+                final long sequence = datagram.getLong();
+                final long lostCount = tracker.getLostCount();
+                if (!tracker.accept(sequence)) {
+                    log.d("dropping stale datagram: sequence={}", sequence);
+                    DATAGRAMS_REORDERED.increment();
+                    continue;
+                }
+                if (tracker.getLostCount() != lostCount) {
+                    DATAGRAMS_LOST.add(tracker.getLostCount() - lostCount);
+                }
+
+                if (!isConnected()) {
+                    notifyConnected();
+                }
+                decodeFrames(datagram);
+            }
+        } catch (IOException e) {
+            if (isStopRequested()) {
+                log.d("run() cancelled while receiving");
+            } else if (isConnected()) {
+                notifyReadFailed(e);
+            } else {
+                notifyConnectionFailed(e);
+            }
+        } catch (ProtocolException e) {
+            notifyProtocolError(e);
+        } finally {
+            log.d("closing datagram socket");
+            socket.close();
+            if (isConnected()) {
+                notifyDisconnected();
+            }
+        }
+    }
+
+    /**
+     * Performs a single read from the given channel and delivers all complete frames that have
+     * been received to the callback.
+     * <p/>
+     * This method is invoked by {@link #run} and, for connections driven by a
+     * {@link SelectorEngine}, by the engine when the connection's channel is readable.
+     *
+     * @param channel the channel from which to read; must not be null.
+     * @throws IOException if reading from the channel fails or the server closed the connection.
+     * @throws ProtocolException if the data received from the server does not conform to the
+     * protocol.
+     */
+    void readFrames(@NonNull ReadableByteChannel channel) throws IOException, ProtocolException {
+        final int byteCount = mDecoder.readFrom(channel);
+        if (byteCount < 0) {
+            throw new EOFException("connection closed by server");
+        }
+        mReadNanos = System.nanoTime();
+        if (byteCount > 0) {
+            BYTES_READ.add(byteCount);
+            mHeartbeat.onReceived(mReadNanos);
+        }
+        decodeFrames(null);
+    }
+
+    /**
+     * Sets the object to close when a stop is requested, closing it immediately if a stop has
+     * already been requested.
+     *
+     * @param transport the object to close to unblock the thread performing I/O; may be null.
+     * @return true if the given object was attached, or false if a stop has already been
+     * requested and it was closed.
+     */
+    boolean attachTransport(@Nullable Closeable transport) {
+        mTransport = transport;
+        if (transport != null && isStopRequested()) {
+            closeQuietly(transport);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Marks this connection as finished: it will perform no more I/O and invoke no more
+     * callbacks.  This wakes up any threads blocked in {@link #stopAndAwait}.
+     */
+    void markFinished() {
+        final int oldState = addStateFlag(STATE_FINISHED);
+        if ((oldState & STATE_FINISHED) != 0) {
+            return;
+        }
+        mTransport = null;
+        if ((oldState & STATE_STOP_REQUESTED) != 0) {
+            sLingeringCount.decrementAndGet();
+        }
+        mFinishedLatch.countDown();
+    }
+
+    /**
+     * Decodes all complete frames that have been read, or those of the given datagram, and
+     * delivers the resulting commands to the callback.  Frames that were decoded before a protocol
+     * error are still delivered.
+     *
+     * @param datagram the datagram whose frames to decode, positioned after its header, or null
+     * to decode the bytes that were read from the stream.
+     */
+    private void decodeFrames(@Nullable ByteBuffer datagram) throws ProtocolException {
+        final long frameCount = mConflater.getFrameCount();
+        final long commandCount = mConflater.getCommandCount();
+        try {
+            if (datagram == null) {
+                mDecoder.decode(mFrameListener);
+            } else {
+                mDecoder.decodeDatagram(datagram, mFrameListener);
+            }
+        } finally {
+            mConflater.flush();
+            mFrameListener.deliverPendingCommands();
+            final long batchFrameCount = mConflater.getFrameCount() - frameCount;
+            if (batchFrameCount > 0) {
+                FlightRecorder.getDefault().record(FlightRecorder.Event.CONFLATED,
+                        batchFrameCount, (int) (mConflater.getCommandCount() - commandCount));
+            }
+        }
+    }
+
+    /**
+     * Marks this connection as connected and notifies the callback.
+     */
+    void notifyConnected() {
+        mConnected.set(true);
+        mCallback.connectionStateChanged(this, true);
+    }
+
+    /**
+     * Notifies the callback that the connection to the server could not be established.
+     *
+     * @param e the exception that caused the failure; must not be null.
+     */
+    void notifyConnectionFailed(@NonNull IOException e) {
+        mLogger.w("server connection failed: {}", e);
+        CONNECTION_FAILURES.increment();
+        // the cached addresses of the server may be stale, so resolve them again next time
+        ResolverCache.getDefault().invalidate(mHost);
+        mCallback.connectionError(this, Callback.ConnectionError.CONNECTION_ESTABLISHMENT,
+                String.valueOf(e.getMessage()));
+    }
+
+    /**
+     * Notifies the callback that reading from the established connection failed.
+     *
+     * @param e the exception that caused the failure; must not be null.
+     */
+    void notifyReadFailed(@NonNull IOException e) {
+        mLogger.w("error reading from server: {}", e);
+        READ_ERRORS.increment();
+        mCallback.connectionError(this, Callback.ConnectionError.READ,
+                String.valueOf(e.getMessage()));
+    }
+
+    /**
+     * Notifies the callback that the server sent data that does not conform to the protocol.
+     *
+     * @param e the exception describing the error; must not be null.
+     */
+    void notifyProtocolError(@NonNull ProtocolException e) {
+        mLogger.w("protocol error reading from server: {}", e.getMessage());
+        PROTOCOL_ERRORS.increment();
+        mCallback.connectionError(this, Callback.ConnectionError.PROTOCOL, e.getMessage());
+    }
+
+    /**
+     * Marks this connection as no longer connected and notifies the callback.
+     */
+    void notifyDisconnected() {
+        mConnected.set(false);
+        mCallback.connectionStateChanged(this, false);
+    }
+
+    /**
+     * Signals to run() that the server connection should be closed.  The underlying socket is
+     * closed immediately (or, for connections driven by a {@link SelectorEngine}, the engine is
+     * woken up to close it) so that a thread blocked waiting for data from a quiet server returns
+     * promptly.  No error is reported to the callback as a result.
+     * <p/>
+     * This method may be invoked by any thread.
+     *
+     * @see #isStopRequested
+     * @see #stopAndAwait
+     */
+    public void requestStop() {
+        final int oldState = addStateFlag(STATE_STOP_REQUESTED);
+        if ((oldState & STATE_STOP_REQUESTED) != 0) {
+            return;
+        }
+        mLogger.d("requestStop()");
+        if ((oldState & STATE_FINISHED) == 0) {
+            sLingeringCount.incrementAndGet();
+        }
+        final Closeable transport = mTransport;
+        if (transport != null) {
+            closeQuietly(transport);
+        }
+    }
+
+    /**
+     * Requests this connection to stop, as if by {@link #requestStop}, and waits for it to
+     * finish performing I/O and invoking callbacks.
+     * <p/>
+     * This method may be invoked by any thread other than the one performing this connection's
+     * I/O.  Note that a connection that was never started never finishes.
+     *
+     * @param timeout the maximum amount of time to wait.
+     * @param unit the unit of the timeout argument; must not be null.
+     * @return true if the connection finished, or false if the timeout elapsed first.
+     * @throws InterruptedException if the calling thread is interrupted while waiting.
+     */
+    public boolean stopAndAwait(long timeout, @NonNull TimeUnit unit)
+            throws InterruptedException {
+        requestStop();
+        return mFinishedLatch.await(timeout, unit);
+    }
+
+    /**
+     * Returns whether or not this connection has finished performing I/O and invoking callbacks.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    public boolean isFinished() {
+        return (mState.get() & STATE_FINISHED) != 0;
+    }
+
+    /**
+     * Returns the number of connections that have been requested to stop but have not yet
+     * finished; a number that stays above zero indicates connections whose threads are stuck.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    public static int getLingeringConnectionCount() {
+        return sLingeringCount.get();
+    }
+
+    /**
+     * Returns whether or not {@link #requestStop} has been invoked.
+     * <p/>
+     * This method may be invoked by any thread.
+     *
+     * @return true if {@link #requestStop} has been invoked or false if it has not.
+     */
+    public boolean isStopRequested() {
+        return (mState.get() & STATE_STOP_REQUESTED) != 0;
+    }
+
+    /**
+     * Returns whether or not the connection to the server has been successfully established.  A
+     * connection whose server stopped answering PING frames is closed, and is then no longer
+     * connected; without the heartbeat, a connection that stalls without being closed remains
+     * connected.
+     *
+     * @return true if the connection to the server has been successfully established or false if
+     * it has not.
+     */
+    public boolean isConnected() {
+        return mConnected.get();
+    }
+
+    /**
+     * Atomically sets the given flag in mState.
+     *
+     * @return the state before the flag was set.
+     */
+    private int addStateFlag(int flag) {
+        while (true) {
+            final int oldState = mState.get();
+            if ((oldState & flag) != 0 || mState.compareAndSet(oldState, oldState | flag)) {
+                return oldState;
+            }
+        }
+    }
+
+    @NonNull
+    private static StripedCounter[] createFrameCounters() {
+        final ColorCommand.Instruction[] instructions = ColorCommand.Instruction.values();
+        final StripedCounter[] counters = new StripedCounter[instructions.length];
+        for (final ColorCommand.Instruction instruction : instructions) {
+            counters[instruction.ordinal()] = MetricsRegistry.getDefault().counter(
+                    "connection.frames." + instruction.name().toLowerCase(Locale.US));
+        }
+        return counters;
+    }
+
+    private static void closeQuietly(@NonNull Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // oh well
+        }
+    }
+
+    /**
+     * The transports over which frames can be received from the server.
+     */
+    public enum Transport {
+        /**
+         * A TCP stream, which delivers every frame in order.
+         */
+        TCP,
+
+        /**
+         * UDP datagrams, each of which carries a sequence number.  Datagrams that are lost are not
+         * retransmitted and datagrams that arrive after a later one are dropped, so a lost
+         * datagram delays nothing but may cause the effect of its RELATIVE frames to be missed.
+         */
+        UDP,
+    }
+
+    /**
+     * Implement this class to receive information about the server connection.
+     */
+    public interface Callback {
+
+        enum ConnectionError {
+            /**
+             * Connection error reported when establishing the initial connection fails.
+             */
+            CONNECTION_ESTABLISHMENT,
+
+            /**
+             * An I/O error occurred while reading from the socket.
+             */
+            READ,
+
+            /**
+             * The data that was received from the server does not conform to the protocol.
+             */
+            PROTOCOL,
+        }
+
+        /**
+         * Called when the state of the connection with the server changes.
+         *
+         * @param connection the connection from which this event originated; will never be null.
+         * @param connected true if a connection was established
+         * or false if the connection was closed.
+         */
+        void connectionStateChanged(@NonNull ClientConnection connection, boolean connected);
+
+        /**
+         * Called when an error occurred in the connection with the server.
+         *
+         * @param connection the connection from which this event originated; will never be null.
+         * @param error the type of error that occurred.
+         * @param message a message describing the error; will never be null.
+         */
+        void connectionError(@NonNull ClientConnection connection,
+                @NonNull ConnectionError error, @NonNull String message);
+
+        /**
+         * Called when a command is received from the server.
+         *
+         * @param connection the connection from which this event originated; will never be null.
+         * @param command the command that was received; will never be null.
+         */
+        void commandReceived(@NonNull ClientConnection connection, @NonNull ColorCommand command);
+
+        /**
+         * Called when several commands are received from the server at once, such as the records
+         * of a BATCH frame or the commands that remain of a batch after conflation; this is
+         * called instead of {@link #commandReceived} for each of them.
+         *
+         * @param connection the connection from which this event originated; will never be null.
+         * @param commands the commands that were received, in the order in which they were
+         * received; will never be null.  The array is reused, so its contents are only valid
+         * until this method returns.
+         * @param count the number of commands, which are the first elements of the given array;
+         * will be greater than one.
+         */
+        void commandsReceived(@NonNull ClientConnection connection,
+                @NonNull ColorCommand[] commands, int count);
+
+    }
+
+    /**
+     * A {@link Callback} for callers that handle each command on its own, which delivers the
+     * commands of a batch to {@link #commandReceived} one at a time.
+     */
+    public abstract static class SimpleCallback implements Callback {
+
+        @Override
+        public void commandsReceived(@NonNull ClientConnection connection,
+                @NonNull ColorCommand[] commands, int count) {
+            for (int i = 0; i < count; i++) {
+                commandReceived(connection, commands[i]);
+            }
+        }
+
+    }
+
+    /**
+     * Receives the frames decoded by the {@link FrameDecoder}, passes them through the
+     * {@link CommandConflater} and delivers the resulting commands to the callback as
+     * {@link ColorCommand} objects.  The commands that result from a single frame are delivered
+     * by {@link Callback#commandReceived}, and those that result from a run of records of a BATCH
+     * frame or from flushing the conflater are delivered together by
+     * {@link Callback#commandsReceived}.
+     */
+    private class FrameListener implements FrameDecoder.Listener, CommandConflater.Sink {
+
+        private boolean mResetCommandSent;
+        private boolean mStreamStarted;
+
+        // the commands delivered by the conflater that have not yet been delivered to the
+        // callback; the array grows if the conflater delivers more commands at once
+        private ColorCommand[] mPendingCommands =
+                new ColorCommand[FrameDecoder.MAX_BATCH_RUN_LENGTH + 1];
+        private int mPendingCount;
+
+        @Override
+        public void onFrameDecoded(@NonNull ColorCommand.Instruction instruction,
+                int r, int g, int b) {
+            mLogger.d("data received from server: instruction={} ({}, {}, {})",
+                    instruction, r, g, b);
+            if (!mStreamStarted) {
+                // the server did not resume the stream, so it is starting over from the beginning
+                mStreamStarted = true;
+                mFrameSequence = 0;
+            }
+            final long sequence = mFrameSequence++;
+            FRAMES_RECEIVED[instruction.ordinal()].increment();
+            FlightRecorder.getDefault().record(FlightRecorder.Event.FRAME_DECODED, sequence,
+                    instruction.ordinal());
+            mConflater.add(instruction, r, g, b);
+            deliverPendingCommands();
+        }
+
+        @Override
+        public void onResumed(long sequence) {
+            RESUMED_FRAMES_RECEIVED.increment();
+            if (mStreamStarted) {
+                mLogger.w("ignoring unexpected RESUMED frame: sequence={}", sequence);
+                return;
+            }
+            mStreamStarted = true;
+            mFrameSequence = sequence;
+            if (sequence == mResumeSequence) {
+                mLogger.d("server resumed stream at sequence {}", sequence);
+                mResumed = true;
+                mResetCommandSent = true;
+            } else {
+                mLogger.w("server resumed stream at sequence {} but {} was requested; "
+                        + "frames were lost", sequence, mResumeSequence);
+            }
+        }
+
+        @Override
+        public void onHelloAcknowledged(int version, int capabilities) {
+            if (mStreamStarted) {
+                mLogger.w("ignoring unexpected HELLO_ACK frame: version={}", version);
+                return;
+            }
+            final int agreedCapabilities = capabilities & mOfferedCapabilities;
+            mLogger.d("server acknowledged handshake: version={} capabilities=0x{}",
+                    version, Integer.toHexString(agreedCapabilities));
+            mServerProtocolVersion = version;
+            mAgreedCapabilities = agreedCapabilities;
+            mDecoder.setCapabilities(agreedCapabilities);
+            if ((agreedCapabilities & Protocol.CAPABILITY_HEARTBEAT) != 0) {
+                mHeartbeat.start(mReadNanos);
+            }
+        }
+
+        @Override
+        public void onPong(long token) {
+            final HeartbeatMonitor heartbeat = mHeartbeat;
+            if (!heartbeat.onPong(token, mReadNanos)) {
+                mLogger.w("ignoring PONG frame that answers no PING frame: token={}", token);
+                return;
+            }
+            final long rttMicros = TimeUnit.NANOSECONDS.toMicros(heartbeat.getLastRttNanos());
+            mLogger.d("PONG received from server: rtt={}us", rttMicros);
+            ROUND_TRIP_TIME.record(rttMicros);
+        }
+
+        @Override
+        public void onBatchDecoded(@NonNull ColorCommand.Instruction instruction,
+                @NonNull int[] components, int count) {
+            mLogger.d("batch received from server: instruction={} count={}", instruction, count);
+            if (!mStreamStarted) {
+                mStreamStarted = true;
+                mFrameSequence = 0;
+            }
+            final long sequence = mFrameSequence;
+            mFrameSequence = sequence + count;
+            FRAMES_RECEIVED[instruction.ordinal()].add(count);
+            BATCHED_FRAMES_RECEIVED.add(count);
+            FlightRecorder.getDefault().record(FlightRecorder.Event.BATCH_DECODED, sequence,
+                    count);
+            final CommandConflater conflater = mConflater;
+            for (int i = 0, j = 0; i < count; i++, j += 3) {
+                conflater.add(instruction, components[j], components[j + 1], components[j + 2]);
+            }
+            deliverPendingCommands();
+        }
+
+        @Override
+        public void deliver(@NonNull ColorCommand.Instruction instruction, int r, int g, int b) {
+            if (!mResetCommandSent) {
+                mLogger.d("sending synthetic reset command");
+                addPendingCommand(new ColorCommand(ColorCommand.Instruction.ABSOLUTE,
+                        127, 127, 127, mReadNanos));
+                mResetCommandSent = true;
+            }
+            addPendingCommand(new ColorCommand(instruction, r, g, b, mReadNanos));
+        }
+
+        /**
+         * Delivers the commands that the conflater has delivered since the last invocation to the
+         * callback, as a batch if there is more than one.
+         */
+        void deliverPendingCommands() {
+            final int count = mPendingCount;
+            if (count == 0) {
+                return;
+            }
+            mPendingCount = 0;
+            final ColorCommand[] commands = mPendingCommands;
+            try {
+                if (count == 1) {
+                    mCallback.commandReceived(ClientConnection.this, commands[0]);
+                } else {
+                    mCallback.commandsReceived(ClientConnection.this, commands, count);
+                }
+            } finally {
+                Arrays.fill(commands, 0, count, null);
+            }
+        }
+
+        private void addPendingCommand(@NonNull ColorCommand command) {
+            if (mPendingCount == mPendingCommands.length) {
+                mPendingCommands = Arrays.copyOf(mPendingCommands, mPendingCount * 2);
+            }
+            mPendingCommands[mPendingCount++] = command;
+        }
+
+    }
+
+}
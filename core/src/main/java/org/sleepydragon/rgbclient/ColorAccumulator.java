@@ -0,0 +1,350 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.BitSet;
+
+/**
+ * Composes the effective color from a bounded history of commands and the user's selection of
+ * them.
+ * <p/>
+ * The effective color is the selected ABSOLUTE command plus the sum of the selected RELATIVE
+ * commands.  Rather than recomputing that sum on every query, running red, green, and blue sums
+ * are updated in constant time whenever a command is added, selected, or deselected, so
+ * {@link #getEffectiveColor} is a constant-time read regardless of how many commands are selected.
+ * <p/>
+ * The history is a ring buffer; each command occupies a "slot" for as long as it remains in the
+ * history, and the selection is tracked in a {@link BitSet} indexed by slot.  A selected RELATIVE
+ * command that falls off the end of the history continues to contribute to the effective color
+ * until the next ABSOLUTE command is selected.
+ * <p/>
+ * This class is not thread-safe.
+ */
+public class ColorAccumulator {
+
+    @NonNull
+    private final ColorCommand[] mHistory;
+    private int mFirstSlot;
+    private int mSize;
+
+    @NonNull
+    private final BitSet mSelectedSlots;
+
+    @Nullable
+    private ColorCommand mSelectedAbsoluteCommand;
+    private int mSelectedAbsoluteSlot = -1;
+
+    private int mRelativeSumR;
+    private int mRelativeSumG;
+    private int mRelativeSumB;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param capacity the maximum number of commands to retain in the history; must be greater
+     * than zero.
+     * @throws IllegalArgumentException if the given capacity is not greater than zero.
+     */
+    public ColorAccumulator(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("invalid capacity: " + capacity);
+        }
+        mHistory = new ColorCommand[capacity];
+        mSelectedSlots = new BitSet(capacity);
+    }
+
+    /**
+     * Returns the maximum number of commands retained in the history.
+     */
+    public int getCapacity() {
+        return mHistory.length;
+    }
+
+    /**
+     * Returns the number of commands in the history.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the slot of the command at the given index in the history, where index 0 is the
+     * oldest command.
+     */
+    public int getSlot(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("index=" + index + " size=" + mSize);
+        }
+        return (mFirstSlot + index) % mHistory.length;
+    }
+
+    /**
+     * Returns the command at the given index in the history, where index 0 is the oldest command.
+     */
+    @NonNull
+    public ColorCommand get(int index) {
+        return mHistory[getSlot(index)];
+    }
+
+    /**
+     * Returns the command currently occupying the given slot, or null if the slot is empty.
+     */
+    @Nullable
+    public ColorCommand getInSlot(int slot) {
+        return mHistory[slot];
+    }
+
+    /**
+     * Returns the most recently added command, or null if the history is empty.
+     */
+    @Nullable
+    public ColorCommand getLast() {
+        return (mSize == 0) ? null : get(mSize - 1);
+    }
+
+    /**
+     * Returns the selected ABSOLUTE command, or null if none is selected.
+     */
+    @Nullable
+    public ColorCommand getSelectedAbsoluteCommand() {
+        return mSelectedAbsoluteCommand;
+    }
+
+    /**
+     * Adds a command to the end of the history, discarding the oldest command if the history is
+     * full, and selects it.  Adding an ABSOLUTE command deselects all other commands.
+     *
+     * @param command the command to add; must not be null.
+     * @return true if the oldest command was discarded to make room, or false otherwise.
+     */
+    public boolean addCommand(@NonNull ColorCommand command) {
+        final boolean evicted = (mSize == mHistory.length);
+        final int slot;
+        if (evicted) {
+            slot = mFirstSlot;
+            mFirstSlot = (mFirstSlot + 1) % mHistory.length;
+            mSelectedSlots.clear(slot);
+            if (mSelectedAbsoluteSlot == slot) {
+                mSelectedAbsoluteSlot = -1;
+            }
+        } else {
+            slot = (mFirstSlot + mSize) % mHistory.length;
+            mSize++;
+        }
+
+        mHistory[slot] = command;
+        select(slot, command);
+        return evicted;
+    }
+
+    /**
+     * Finds how many leading commands of the given backlog can be skipped when adding all of its
+     * commands with {@link #addCommand}, because adding only the rest leaves exactly the same
+     * history, selection, and effective color.
+     * <p/>
+     * Everything before the last ABSOLUTE command of the backlog is irrelevant to the effective
+     * color, since adding it deselects all other commands; but the commands that will still be
+     * in the history afterwards must be added regardless, so the backlog is skipped up to the
+     * last ABSOLUTE command or up to the last {@link #getCapacity} commands, whichever comes
+     * first.  A backlog without an ABSOLUTE command cannot be skipped at all, since every RELATIVE
+     * command contributes to the effective color even after it falls off the end of the history.
+     *
+     * @param commands the array holding the backlog; must not be null.
+     * @param fromIndex the index in the given array of the first command of the backlog.
+     * @param toIndex the index in the given array after the last command of the backlog.
+     * @return the index in the given array of the first command that must be added, which is
+     * {@code fromIndex} if none can be skipped.
+     */
+    public int getFastForwardIndex(@NonNull ColorCommand[] commands, int fromIndex, int toIndex) {
+        int absoluteIndex = toIndex - 1;
+        while (absoluteIndex >= fromIndex
+                && commands[absoluteIndex].instruction != ColorCommand.Instruction.ABSOLUTE) {
+            absoluteIndex--;
+        }
+        if (absoluteIndex < fromIndex) {
+            return fromIndex;
+        }
+        return Math.min(absoluteIndex, Math.max(fromIndex, toIndex - mHistory.length));
+    }
+
+    /**
+     * Returns whether or not the command in the given slot is selected.
+     */
+    public boolean isSlotSelected(int slot) {
+        final ColorCommand command = mHistory[slot];
+        if (command == null) {
+            return false;
+        }
+        switch (command.instruction) {
+            case ABSOLUTE:
+                return (slot == mSelectedAbsoluteSlot);
+            case RELATIVE:
+                return mSelectedSlots.get(slot);
+            default:
+                throw new AssertionError("unknown instruction type: " + command.instruction);
+        }
+    }
+
+    /**
+     * Selects or deselects the command in the given slot.  Selecting an ABSOLUTE command
+     * deselects all other commands.
+     *
+     * @param slot the slot of the command to select or deselect.
+     * @param selected true to select the command or false to deselect it.
+     * @return true if the selection changed, or false if it did not.
+     */
+    public boolean setSlotSelected(int slot, boolean selected) {
+        final ColorCommand command = mHistory[slot];
+        if (command == null || isSlotSelected(slot) == selected) {
+            return false;
+        }
+
+        if (selected) {
+            select(slot, command);
+        } else {
+            switch (command.instruction) {
+                case ABSOLUTE:
+                    mSelectedAbsoluteCommand = null;
+                    mSelectedAbsoluteSlot = -1;
+                    break;
+                case RELATIVE:
+                    mSelectedSlots.clear(slot);
+                    mRelativeSumR -= command.r;
+                    mRelativeSumG -= command.g;
+                    mRelativeSumB -= command.b;
+                    break;
+                default:
+                    throw new AssertionError("unknown instruction type: " + command.instruction);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stores the effective color into the given object.
+     *
+     * @param rgb the object into which to store the effective color; must not be null.
+     * @return true if the effective color was stored, or false if there is no effective color
+     * because no ABSOLUTE command is selected.
+     */
+    public boolean getEffectiveColor(@NonNull RGB rgb) {
+        final ColorCommand absoluteCommand = mSelectedAbsoluteCommand;
+        if (absoluteCommand == null) {
+            return false;
+        }
+        rgb.r = absoluteCommand.r + mRelativeSumR;
+        rgb.g = absoluteCommand.g + mRelativeSumG;
+        rgb.b = absoluteCommand.b + mRelativeSumB;
+        return true;
+    }
+
+    /**
+     * Stores the sum of the selected RELATIVE commands into the given object, including those
+     * that have fallen off the end of the history.
+     *
+     * @param rgb the object into which to store the sums; must not be null.
+     */
+    public void getRelativeSum(@NonNull RGB rgb) {
+        rgb.r = mRelativeSumR;
+        rgb.g = mRelativeSumG;
+        rgb.b = mRelativeSumB;
+    }
+
+    /**
+     * Restores the selection state, such as that saved from another instance of this class.
+     * The history must have already been populated using {@link #addCommand}.
+     *
+     * @param absoluteCommand the selected ABSOLUTE command, or null if none is selected.
+     * @param absoluteIndex the index in the history of the selected ABSOLUTE command, or -1 if it
+     * is not in the history.
+     * @param selectedRelativeIndices the indices in the history of the selected RELATIVE commands;
+     * must not be null.
+     * @param relativeSum the sum of all selected RELATIVE commands, including those that are no
+     * longer in the history; must not be null.
+     */
+    public void restoreSelection(@Nullable ColorCommand absoluteCommand, int absoluteIndex,
+            @NonNull int[] selectedRelativeIndices, @NonNull RGB relativeSum) {
+        mSelectedSlots.clear();
+        for (final int index : selectedRelativeIndices) {
+            mSelectedSlots.set(getSlot(index));
+        }
+        mSelectedAbsoluteCommand = absoluteCommand;
+        mSelectedAbsoluteSlot = (absoluteIndex < 0) ? -1 : getSlot(absoluteIndex);
+        mRelativeSumR = relativeSum.r;
+        mRelativeSumG = relativeSum.g;
+        mRelativeSumB = relativeSum.b;
+    }
+
+    /**
+     * Returns the index in the history of the selected ABSOLUTE command, or -1 if none is
+     * selected or it is no longer in the history.
+     */
+    public int getSelectedAbsoluteIndex() {
+        return (mSelectedAbsoluteSlot < 0) ? -1 : indexOfSlot(mSelectedAbsoluteSlot);
+    }
+
+    /**
+     * Returns the indices in the history of the selected RELATIVE commands, in ascending order.
+     */
+    @NonNull
+    public int[] getSelectedRelativeIndices() {
+        final int[] indices = new int[mSelectedSlots.cardinality()];
+        int count = 0;
+        for (int i = 0; i < mSize; i++) {
+            if (mSelectedSlots.get(getSlot(i))) {
+                indices[count++] = i;
+            }
+        }
+        return indices;
+    }
+
+    private int indexOfSlot(int slot) {
+        return (slot - mFirstSlot + mHistory.length) % mHistory.length;
+    }
+
+    private void select(int slot, @NonNull ColorCommand command) {
+        switch (command.instruction) {
+            case ABSOLUTE:
+                mSelectedAbsoluteCommand = command;
+                mSelectedAbsoluteSlot = slot;
+                mSelectedSlots.clear();
+                mRelativeSumR = 0;
+                mRelativeSumG = 0;
+                mRelativeSumB = 0;
+                break;
+            case RELATIVE:
+                mSelectedSlots.set(slot);
+                mRelativeSumR += command.r;
+                mRelativeSumG += command.g;
+                mRelativeSumB += command.b;
+                break;
+            default:
+                throw new AssertionError("unknown instruction type: " + command.instruction);
+        }
+    }
+
+    public static class RGB {
+        public int r;
+        public int g;
+        public int b;
+    }
+
+}
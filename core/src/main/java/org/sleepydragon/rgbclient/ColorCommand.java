@@ -0,0 +1,135 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stores information about a command received from the server.
+ */
+public class ColorCommand {
+
+    public enum Instruction {
+        RELATIVE,
+        ABSOLUTE,
+    }
+
+    /**
+     * A value that is never used as the {@link #id} of a command; it can be used to indicate
+     * "no command".
+     */
+    public static final long INVALID_ID = 0;
+
+    /**
+     * The most recently assigned id; ids are assigned in strictly increasing order so that
+     * comparing the ids of two commands reveals which one was created first.
+     */
+    private static final AtomicLong sLastId = new AtomicLong(INVALID_ID);
+
+    /**
+     * The id of this command, which uniquely identifies it within this process.
+     */
+    public final long id;
+
+    @NonNull
+    public final Instruction instruction;
+    public final int r;
+    public final int g;
+    public final int b;
+
+    /**
+     * The value of {@link System#nanoTime} at which the bytes of this command were read from the
+     * server, or 0 if it is not known, such as for commands restored from saved state or from the
+     * history.  This is only used to measure latency and is not saved, nor does it take part in
+     * {@link #equals}.
+     */
+    public final long receivedNanos;
+
+    public ColorCommand(@NonNull Instruction instruction, int r, int g, int b) {
+        this(instruction, r, g, b, 0);
+    }
+
+    public ColorCommand(@NonNull Instruction instruction, int r, int g, int b,
+            long receivedNanos) {
+        this(sLastId.incrementAndGet(), instruction, r, g, b, receivedNanos);
+    }
+
+    public ColorCommand(long id, @NonNull Instruction instruction,
+            int r, int g, int b) {
+        this(id, instruction, r, g, b, 0);
+    }
+
+    public ColorCommand(long id, @NonNull Instruction instruction,
+            int r, int g, int b, long receivedNanos) {
+        this.id = id;
+        this.instruction = instruction;
+        this.r = r;
+        this.g = g;
+        this.b = b;
+        this.receivedNanos = receivedNanos;
+    }
+
+    /**
+     * Ensures that the ids assigned to commands created from now on are greater than the given
+     * id.  This must be invoked when commands are restored from a previous process, such as from
+     * saved instance state, so that their ids do not collide with those of new commands.
+     * <p/>
+     * This method may be invoked by any thread.
+     *
+     * @param id the id to reserve.
+     */
+    public static void reserveId(long id) {
+        while (true) {
+            final long lastId = sLastId.get();
+            if (lastId >= id || sLastId.compareAndSet(lastId, id)) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return instruction + " (" + r + ", " + g + ", " + b + ")";
+    }
+
+    @Override
+    public int hashCode() {
+        int hashCode = (int) (id ^ (id >>> 32));
+        hashCode += r * 97813;
+        hashCode += g * 97787;
+        hashCode += b * 97673;
+        hashCode += instruction.ordinal();
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (o == this) {
+            return true;
+        } else if (!(o instanceof ColorCommand)) {
+            return false;
+        }
+        final ColorCommand other = (ColorCommand) o;
+        return id == other.id &&
+                r == other.r && g == other.g && b == other.b &&
+                instruction == other.instruction;
+    }
+
+}
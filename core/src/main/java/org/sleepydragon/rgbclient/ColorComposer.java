@@ -0,0 +1,237 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Composes the colors of several sources, such as several servers, into a single color.
+ * <p/>
+ * The sources are stacked by priority, with higher priorities on top and ties broken in favour of
+ * the source added last.  Each source has a {@link BlendMode} and an opacity: an {@link
+ * BlendMode#OVER} source covers the sources below it in proportion to its opacity, whereas an
+ * {@link BlendMode#ADD} source adds its color, scaled by its opacity, to theirs without covering
+ * them.  A source that has no color is transparent.
+ * <p/>
+ * Both modes are linear in the colors of the sources, so the composed color is a weighted sum of
+ * them in which each weight depends only on the blend modes, the opacities, and which sources
+ * have a color.  The weights are recomputed, in time linear in the number of sources, only when
+ * one of those changes; changing the color of a source that already has one adjusts running red,
+ * green, and blue sums by the difference in constant time, so {@link #setColor} and
+ * {@link #getColor} cost the same no matter how many sources there are.  The weights are fixed
+ * point so that the sums are exact and do not drift however many times they are adjusted.
+ * <p/>
+ * Like {@link ColorAccumulator}, the components are neither clamped nor wrapped; a single opaque
+ * source composes to exactly its own color.
+ * <p/>
+ * This class is not thread-safe.
+ */
+public class ColorComposer {
+
+    /**
+     * How a source is combined with the sources below it.
+     */
+    public enum BlendMode {
+        /**
+         * The source covers the sources below it in proportion to its opacity.
+         */
+        OVER,
+
+        /**
+         * The source's color, scaled by its opacity, is added to that of the sources below it.
+         */
+        ADD,
+    }
+
+    /**
+     * The opacity of a source that, when blended {@link BlendMode#OVER}, completely covers the
+     * sources below it.
+     */
+    public static final int OPAQUE = 255;
+
+    /**
+     * The number of fractional bits in the fixed-point weights.
+     */
+    private static final int WEIGHT_SHIFT = 16;
+    private static final long WEIGHT_ONE = 1L << WEIGHT_SHIFT;
+
+    private static final Comparator<Layer> TOP_FIRST = new Comparator<Layer>() {
+        @Override
+        public int compare(Layer a, Layer b) {
+            if (a.priority != b.priority) {
+                return (a.priority > b.priority) ? -1 : 1;
+            }
+            return (a.index > b.index) ? -1 : ((a.index == b.index) ? 0 : 1);
+        }
+    };
+
+    private final List<Layer> mLayers = new ArrayList<>();
+
+    /**
+     * The same layers as mLayers, ordered from the top of the stack to the bottom.
+     */
+    private final List<Layer> mStack = new ArrayList<>();
+
+    private int mColoredCount;
+    private long mSumR;
+    private long mSumG;
+    private long mSumB;
+
+    /**
+     * Adds a source, which initially has no color.
+     *
+     * @param priority the position of the source in the stack; sources with higher priorities
+     * are on top of those with lower priorities.
+     * @param mode how to combine the source with the sources below it; must not be null.
+     * @param opacity the opacity of the source, from 0 (invisible) to {@link #OPAQUE}.
+     * @return the index of the source, which is the number of sources added before it.
+     * @throws IllegalArgumentException if the given opacity is out of range.
+     */
+    public int addSource(int priority, @NonNull BlendMode mode, int opacity) {
+        if (opacity < 0 || opacity > OPAQUE) {
+            throw new IllegalArgumentException("invalid opacity: " + opacity);
+        }
+        final Layer layer = new Layer(mLayers.size(), priority, mode, opacity);
+        mLayers.add(layer);
+        mStack.add(layer);
+        Collections.sort(mStack, TOP_FIRST);
+        return layer.index;
+    }
+
+    /**
+     * Returns the number of sources that have been added.
+     */
+    public int getSourceCount() {
+        return mLayers.size();
+    }
+
+    /**
+     * Sets the color of a source.  This takes constant time if the source already had a color.
+     *
+     * @param source the index of the source, as returned from {@link #addSource}.
+     * @throws IndexOutOfBoundsException if there is no source with the given index.
+     */
+    public void setColor(int source, int r, int g, int b) {
+        final Layer layer = mLayers.get(source);
+        if (!layer.hasColor) {
+            layer.hasColor = true;
+            layer.r = r;
+            layer.g = g;
+            layer.b = b;
+            mColoredCount++;
+            recomputeWeights();
+            return;
+        }
+
+        final long weight = layer.weight;
+        mSumR += weight * (r - layer.r);
+        mSumG += weight * (g - layer.g);
+        mSumB += weight * (b - layer.b);
+        layer.r = r;
+        layer.g = g;
+        layer.b = b;
+    }
+
+    /**
+     * Removes the color of a source, making it transparent.
+     *
+     * @param source the index of the source, as returned from {@link #addSource}.
+     * @throws IndexOutOfBoundsException if there is no source with the given index.
+     */
+    public void clearColor(int source) {
+        final Layer layer = mLayers.get(source);
+        if (layer.hasColor) {
+            layer.hasColor = false;
+            mColoredCount--;
+            recomputeWeights();
+        }
+    }
+
+    /**
+     * Stores the composed color into the given object.
+     *
+     * @param rgb the object into which to store the composed color; must not be null.
+     * @return true if the composed color was stored, or false if there is no composed color
+     * because no source has a color.
+     */
+    public boolean getColor(@NonNull ColorAccumulator.RGB rgb) {
+        if (mColoredCount == 0) {
+            return false;
+        }
+        rgb.r = toComponent(mSumR);
+        rgb.g = toComponent(mSumG);
+        rgb.b = toComponent(mSumB);
+        return true;
+    }
+
+    private static int toComponent(long sum) {
+        return (int) ((sum + (WEIGHT_ONE / 2)) >> WEIGHT_SHIFT);
+    }
+
+    /**
+     * Recomputes the weight of each source, working down from the top of the stack while keeping
+     * track of how much of the stack is still uncovered, and then recomputes the sums.
+     */
+    private void recomputeWeights() {
+        double uncovered = 1.0;
+        mSumR = 0;
+        mSumG = 0;
+        mSumB = 0;
+        for (final Layer layer : mStack) {
+            if (!layer.hasColor || uncovered <= 0.0) {
+                layer.weight = 0;
+                continue;
+            }
+            final double alpha = (double) layer.opacity / OPAQUE;
+            layer.weight = Math.round(uncovered * alpha * WEIGHT_ONE);
+            if (layer.mode == BlendMode.OVER) {
+                uncovered *= (1.0 - alpha);
+            }
+            mSumR += layer.weight * layer.r;
+            mSumG += layer.weight * layer.g;
+            mSumB += layer.weight * layer.b;
+        }
+    }
+
+    private static class Layer {
+        final int index;
+        final int priority;
+        @NonNull
+        final BlendMode mode;
+        final int opacity;
+
+        boolean hasColor;
+        int r;
+        int g;
+        int b;
+        long weight;
+
+        Layer(int index, int priority, @NonNull BlendMode mode, int opacity) {
+            this.index = index;
+            this.priority = priority;
+            this.mode = mode;
+            this.opacity = opacity;
+        }
+    }
+
+}
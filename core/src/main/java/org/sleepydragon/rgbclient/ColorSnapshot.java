@@ -0,0 +1,304 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Encodes the state of a {@link ColorAccumulator} into a compact byte array of bounded length,
+ * and decodes it again, such as to keep it in saved instance state without risking an oversized
+ * Binder transaction.
+ * <p/>
+ * The history is stored from the newest command to the oldest, each command as the difference
+ * between its id and that of the command before it, a flags byte holding its instruction and
+ * whether it is selected, and its components; all integers are zigzag-encoded varints, so a
+ * typical command takes five to eight bytes.  If the whole history does not fit within the given
+ * length then the oldest commands are left out.  That does not change the effective color: the
+ * selected ABSOLUTE command and the sum of the selected RELATIVE commands are stored separately,
+ * and selected RELATIVE commands that are left out keep contributing to the sum just as if they
+ * had fallen off the end of the history.
+ */
+public class ColorSnapshot {
+
+    /**
+     * The version of the encoding, which is the first byte of every snapshot.
+     */
+    static final int VERSION = 1;
+
+    /**
+     * The largest number of bytes in a varint-encoded long.
+     */
+    private static final int MAX_VARINT_LENGTH = 10;
+
+    /**
+     * The largest number of bytes in everything but the history: the version, the relative sum,
+     * the selected ABSOLUTE command, and the number of commands in the history.
+     */
+    private static final int MAX_HEADER_LENGTH = 1 + (3 * 5) + 1 + MAX_VARINT_LENGTH + (3 * 5)
+            + 5;
+
+    /**
+     * The largest number of bytes of one command in the history.
+     */
+    private static final int MAX_RECORD_LENGTH = MAX_VARINT_LENGTH + 1 + (3 * 5);
+
+    /**
+     * The smallest maximum length that may be given to {@link #encode}.
+     */
+    public static final int MIN_LENGTH = MAX_HEADER_LENGTH + MAX_RECORD_LENGTH;
+
+    private static final int FLAG_SELECTED = 0x80;
+    private static final int INSTRUCTION_MASK = 0x7F;
+
+    private static final ColorCommand.Instruction[] INSTRUCTIONS =
+            ColorCommand.Instruction.values();
+
+    /**
+     * Private constructor to prevent instantiation.
+     */
+    private ColorSnapshot() {
+    }
+
+    /**
+     * Encodes the state of the given accumulator.
+     *
+     * @param accumulator the accumulator whose state to encode; must not be null.
+     * @param maxLength the largest number of bytes to return; must be at least
+     * {@link #MIN_LENGTH}.
+     * @return the snapshot; never returns null.
+     * @throws IllegalArgumentException if the given maximum length is too small.
+     */
+    @NonNull
+    public static byte[] encode(@NonNull ColorAccumulator accumulator, int maxLength) {
+        if (maxLength < MIN_LENGTH) {
+            throw new IllegalArgumentException("invalid maxLength: " + maxLength);
+        }
+
+        // encode the history first, from the newest command backwards, to know how many fit
+        final int size = accumulator.size();
+        final Writer records = new Writer(Math.min(maxLength, size * MAX_RECORD_LENGTH));
+        final int budget = maxLength - MAX_HEADER_LENGTH;
+        int count = 0;
+        long previousId = 0;
+        for (int i = size - 1; i >= 0; i--) {
+            if (records.length() + MAX_RECORD_LENGTH > budget) {
+                break;
+            }
+            final int slot = accumulator.getSlot(i);
+            final ColorCommand command = accumulator.getInSlot(slot);
+            records.writeVarLong((count == 0) ? command.id : previousId - command.id);
+            records.writeByte(command.instruction.ordinal()
+                    | (accumulator.isSlotSelected(slot) ? FLAG_SELECTED : 0));
+            records.writeVarInt(command.r);
+            records.writeVarInt(command.g);
+            records.writeVarInt(command.b);
+            previousId = command.id;
+            count++;
+        }
+
+        final Writer out = new Writer(MAX_HEADER_LENGTH + records.length());
+        out.writeByte(VERSION);
+        final ColorAccumulator.RGB relativeSum = new ColorAccumulator.RGB();
+        accumulator.getRelativeSum(relativeSum);
+        out.writeVarInt(relativeSum.r);
+        out.writeVarInt(relativeSum.g);
+        out.writeVarInt(relativeSum.b);
+        final ColorCommand absoluteCommand = accumulator.getSelectedAbsoluteCommand();
+        if (absoluteCommand == null) {
+            out.writeByte(0);
+        } else {
+            out.writeByte(1);
+            out.writeVarLong(absoluteCommand.id);
+            out.writeVarInt(absoluteCommand.r);
+            out.writeVarInt(absoluteCommand.g);
+            out.writeVarInt(absoluteCommand.b);
+        }
+        out.writeVarInt(count);
+        out.writeBytes(records);
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a snapshot returned from {@link #encode} into the given accumulator, which should
+     * be empty.  If the snapshot has more commands than the accumulator's capacity then the
+     * oldest are left out.  The ids of the commands are reserved with
+     * {@link ColorCommand#reserveId} so that they do not collide with those of new commands.
+     *
+     * @param snapshot the snapshot to decode; must not be null.
+     * @param accumulator the accumulator into which to decode it; must not be null.
+     * @throws IllegalArgumentException if the snapshot is malformed or of an unknown version.
+     */
+    public static void decode(@NonNull byte[] snapshot, @NonNull ColorAccumulator accumulator) {
+        final Reader in = new Reader(snapshot);
+        final int version = in.readByte();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("unsupported snapshot version: " + version);
+        }
+        final ColorAccumulator.RGB relativeSum = new ColorAccumulator.RGB();
+        relativeSum.r = in.readVarInt();
+        relativeSum.g = in.readVarInt();
+        relativeSum.b = in.readVarInt();
+        ColorCommand absoluteCommand = null;
+        if (in.readByte() != 0) {
+            final long id = in.readVarLong();
+            absoluteCommand = new ColorCommand(id, ColorCommand.Instruction.ABSOLUTE,
+                    in.readVarInt(), in.readVarInt(), in.readVarInt());
+        }
+
+        final int count = in.readVarInt();
+        if (count < 0 || count > snapshot.length) {
+            throw new IllegalArgumentException("invalid command count: " + count);
+        }
+        final int keepCount = Math.min(count, accumulator.getCapacity());
+        final ColorCommand[] commands = new ColorCommand[keepCount];
+        final boolean[] selected = new boolean[keepCount];
+        long id = 0;
+        for (int i = 0; i < keepCount; i++) {
+            id = (i == 0) ? in.readVarLong() : id - in.readVarLong();
+            final int flags = in.readByte();
+            final int instruction = flags & INSTRUCTION_MASK;
+            if (instruction >= INSTRUCTIONS.length || id == ColorCommand.INVALID_ID) {
+                throw new IllegalArgumentException("invalid command: id=" + id
+                        + " flags=" + flags);
+            }
+            final int r = in.readVarInt();
+            final int g = in.readVarInt();
+            final int b = in.readVarInt();
+            // the newest command is first, so fill the arrays from the end
+            final int index = keepCount - 1 - i;
+            if (absoluteCommand != null && id == absoluteCommand.id) {
+                commands[index] = absoluteCommand;
+            } else {
+                commands[index] = new ColorCommand(id, INSTRUCTIONS[instruction], r, g, b);
+            }
+            selected[index] = (flags & FLAG_SELECTED) != 0;
+        }
+
+        int absoluteIndex = -1;
+        final int[] relativeIndices = new int[keepCount];
+        int relativeCount = 0;
+        long maxId = (absoluteCommand == null) ? ColorCommand.INVALID_ID : absoluteCommand.id;
+        for (int i = 0; i < keepCount; i++) {
+            final ColorCommand command = commands[i];
+            accumulator.addCommand(command);
+            maxId = Math.max(maxId, command.id);
+            if (!selected[i]) {
+                continue;
+            }
+            if (command == absoluteCommand) {
+                absoluteIndex = i;
+            } else if (command.instruction == ColorCommand.Instruction.RELATIVE) {
+                relativeIndices[relativeCount++] = i;
+            }
+        }
+        ColorCommand.reserveId(maxId);
+        accumulator.restoreSelection(absoluteCommand, absoluteIndex,
+                Arrays.copyOf(relativeIndices, relativeCount), relativeSum);
+    }
+
+    private static class Writer {
+
+        private byte[] mBytes;
+        private int mLength;
+
+        Writer(int capacity) {
+            mBytes = new byte[Math.max(16, capacity)];
+        }
+
+        int length() {
+            return mLength;
+        }
+
+        void writeByte(int value) {
+            if (mLength == mBytes.length) {
+                mBytes = Arrays.copyOf(mBytes, mBytes.length * 2);
+            }
+            mBytes[mLength++] = (byte) value;
+        }
+
+        void writeVarInt(int value) {
+            writeVarLong(value);
+        }
+
+        /**
+         * Writes a zigzag-encoded varint, so that values near zero are short whatever their sign.
+         */
+        void writeVarLong(long value) {
+            long zigzag = (value << 1) ^ (value >> 63);
+            while ((zigzag & ~0x7FL) != 0) {
+                writeByte((int) ((zigzag & 0x7F) | 0x80));
+                zigzag >>>= 7;
+            }
+            writeByte((int) zigzag);
+        }
+
+        void writeBytes(@NonNull Writer other) {
+            for (int i = 0; i < other.mLength; i++) {
+                writeByte(other.mBytes[i]);
+            }
+        }
+
+        @NonNull
+        byte[] toByteArray() {
+            return Arrays.copyOf(mBytes, mLength);
+        }
+
+    }
+
+    private static class Reader {
+
+        @NonNull
+        private final byte[] mBytes;
+        private int mPosition;
+
+        Reader(@NonNull byte[] bytes) {
+            mBytes = bytes;
+        }
+
+        int readByte() {
+            if (mPosition >= mBytes.length) {
+                throw new IllegalArgumentException("truncated snapshot");
+            }
+            return mBytes[mPosition++] & 0xFF;
+        }
+
+        int readVarInt() {
+            final long value = readVarLong();
+            if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("invalid int: " + value);
+            }
+            return (int) value;
+        }
+
+        long readVarLong() {
+            long zigzag = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final int b = readByte();
+                zigzag |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return (zigzag >>> 1) ^ -(zigzag & 1);
+                }
+            }
+            throw new IllegalArgumentException("malformed varint");
+        }
+
+    }
+
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Describes one server from which colors are received and how its color is composed with those
+ * of the other servers; see {@link ColorComposer}.
+ * <p/>
+ * The text form of a source, as parsed by {@link #parse} and returned from {@link #toString}, is
+ * {@code HOST:PORT [udp] [add] [OPACITY%]}, for example {@code 10.0.0.7:5000 udp add 50%}.  The
+ * transport defaults to TCP, the blend mode to {@link ColorComposer.BlendMode#OVER}, and the
+ * opacity to 100%.
+ */
+public class ColorSourceSpec {
+
+    @NonNull
+    public final String host;
+    public final int port;
+    @NonNull
+    public final ClientConnection.Transport transport;
+    @NonNull
+    public final ColorComposer.BlendMode blendMode;
+
+    /**
+     * The opacity of the source, from 0 to {@link ColorComposer#OPAQUE}.
+     */
+    public final int opacity;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @throws IllegalArgumentException if the given port or opacity is out of range.
+     */
+    public ColorSourceSpec(@NonNull String host, int port,
+            @NonNull ClientConnection.Transport transport,
+            @NonNull ColorComposer.BlendMode blendMode, int opacity) {
+        if (port < 0 || port > 0xFFFF) {
+            throw new IllegalArgumentException("invalid port: " + port);
+        } else if (opacity < 0 || opacity > ColorComposer.OPAQUE) {
+            throw new IllegalArgumentException("invalid opacity: " + opacity);
+        }
+        this.host = host;
+        this.port = port;
+        this.transport = transport;
+        this.blendMode = blendMode;
+        this.opacity = opacity;
+    }
+
+    /**
+     * Parses the text form of a source.
+     *
+     * @param text the text to parse; must not be null.
+     * @return the source; never returns null.
+     * @throws IllegalArgumentException if the text is not a valid source.
+     */
+    @NonNull
+    public static ColorSourceSpec parse(@NonNull String text) {
+        final String[] tokens = text.trim().split("\\s+");
+        final String address = tokens[0];
+        final int colonIndex = address.lastIndexOf(':');
+        if (colonIndex <= 0) {
+            throw new IllegalArgumentException("invalid source (expected HOST:PORT): " + text);
+        }
+        final String host = address.substring(0, colonIndex);
+        final int port;
+        try {
+            port = Integer.parseInt(address.substring(colonIndex + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid port: " + address);
+        }
+
+        ClientConnection.Transport transport = ClientConnection.Transport.TCP;
+        ColorComposer.BlendMode blendMode = ColorComposer.BlendMode.OVER;
+        int opacity = ColorComposer.OPAQUE;
+        for (int i = 1; i < tokens.length; i++) {
+            final String token = tokens[i].toLowerCase(Locale.US);
+            switch (token) {
+                case "tcp":
+                    transport = ClientConnection.Transport.TCP;
+                    break;
+                case "udp":
+                    transport = ClientConnection.Transport.UDP;
+                    break;
+                case "over":
+                    blendMode = ColorComposer.BlendMode.OVER;
+                    break;
+                case "add":
+                    blendMode = ColorComposer.BlendMode.ADD;
+                    break;
+                default:
+                    opacity = parseOpacity(token);
+                    break;
+            }
+        }
+
+        return new ColorSourceSpec(host, port, transport, blendMode, opacity);
+    }
+
+    /**
+     * Parses the text form of zero or more sources, one per line; blank lines are ignored.
+     *
+     * @param text the text to parse; must not be null.
+     * @return the sources, in the order in which they appear; never returns null.
+     * @throws IllegalArgumentException if any line is not a valid source.
+     */
+    @NonNull
+    public static List<ColorSourceSpec> parseList(@NonNull String text) {
+        final List<ColorSourceSpec> specs = new ArrayList<>();
+        for (final String line : text.split("\n")) {
+            if (line.trim().length() > 0) {
+                specs.add(parse(line));
+            }
+        }
+        return specs;
+    }
+
+    private static int parseOpacity(@NonNull String token) {
+        final String digits = token.endsWith("%") ? token.substring(0, token.length() - 1) : token;
+        final int percent;
+        try {
+            percent = Integer.parseInt(digits);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("unrecognized source option: " + token);
+        }
+        if (percent < 0 || percent > 100) {
+            throw new IllegalArgumentException("invalid opacity: " + token);
+        }
+        return Math.round(percent * ColorComposer.OPAQUE / 100.0f);
+    }
+
+    /**
+     * Returns whether or not the given source is received from the same server over the same
+     * transport as this source, which is all that matters to the connection.
+     */
+    public boolean isSameServer(@NonNull ColorSourceSpec other) {
+        return host.equals(other.host) && port == other.port && transport == other.transport;
+    }
+
+    /**
+     * Returns a hash of the server and transport of this source, which, unlike
+     * {@link #hashCode}, is the same in every process; see {@link CommandJournal}.
+     */
+    public int serverHashCode() {
+        return (host + ':' + port + '/' + transport.name()).hashCode();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(host).append(':').append(port);
+        if (transport != ClientConnection.Transport.TCP) {
+            sb.append(' ').append(transport.name().toLowerCase(Locale.US));
+        }
+        if (blendMode != ColorComposer.BlendMode.OVER) {
+            sb.append(' ').append(blendMode.name().toLowerCase(Locale.US));
+        }
+        if (opacity != ColorComposer.OPAQUE) {
+            sb.append(' ').append(Math.round(opacity * 100.0f / ColorComposer.OPAQUE)).append('%');
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public int hashCode() {
+        int hashCode = host.hashCode();
+        hashCode += port * 97813;
+        hashCode += transport.ordinal() * 97787;
+        hashCode += blendMode.ordinal() * 97673;
+        hashCode += opacity;
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (o == this) {
+            return true;
+        } else if (!(o instanceof ColorSourceSpec)) {
+            return false;
+        }
+        final ColorSourceSpec other = (ColorSourceSpec) o;
+        return isSameServer(other) && blendMode == other.blendMode && opacity == other.opacity;
+    }
+
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Merges the frames of a batch received from the server into fewer commands that produce the same
+ * final color, according to a {@link Policy}.
+ * <p/>
+ * Frames are added with {@link #add} and the resulting commands are delivered to the
+ * {@link Sink} either immediately (for {@link Policy#PASS_THROUGH}) or when {@link #flush} is
+ * invoked at the end of the batch.
+ * <p/>
+ * This class is not thread-safe, except that its counters may be read by any thread.
+ */
+public class CommandConflater {
+
+    public enum Policy {
+        /**
+         * Every frame is delivered as its own command.
+         */
+        PASS_THROUGH,
+
+        /**
+         * An ABSOLUTE frame discards all frames that precede it in the same batch, since they
+         * cannot affect the final color.
+         */
+        LATEST_ABSOLUTE,
+
+        /**
+         * Consecutive RELATIVE frames in the same batch are summed into a single command.
+         */
+        SUM_RELATIVE,
+
+        /**
+         * The combination of {@link #LATEST_ABSOLUTE} and {@link #SUM_RELATIVE}.
+         */
+        LATEST_ABSOLUTE_AND_SUM_RELATIVE,
+    }
+
+    private static final int INITIAL_PENDING_CAPACITY = 16;
+
+    @NonNull
+    private final Sink mSink;
+
+    @NonNull
+    private Policy mPolicy = Policy.PASS_THROUGH;
+
+    private ColorCommand.Instruction[] mPendingInstructions;
+    private int[] mPendingR;
+    private int[] mPendingG;
+    private int[] mPendingB;
+    private int mPendingCount;
+
+    private volatile long mFrameCount;
+    private volatile long mCommandCount;
+
+    /**
+     * Creates a new instance of this class with the {@link Policy#PASS_THROUGH} policy.
+     *
+     * @param sink the sink to which to deliver the conflated commands; must not be null.
+     */
+    public CommandConflater(@NonNull Sink sink) {
+        mSink = sink;
+        mPendingInstructions = new ColorCommand.Instruction[INITIAL_PENDING_CAPACITY];
+        mPendingR = new int[INITIAL_PENDING_CAPACITY];
+        mPendingG = new int[INITIAL_PENDING_CAPACITY];
+        mPendingB = new int[INITIAL_PENDING_CAPACITY];
+    }
+
+    /**
+     * Sets the policy with which to merge frames.  Any pending frames are flushed first.
+     *
+     * @param policy the policy to use; must not be null.
+     */
+    public void setPolicy(@NonNull Policy policy) {
+        flush();
+        mPolicy = policy;
+    }
+
+    @NonNull
+    public Policy getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * Adds a frame received from the server.
+     *
+     * @param instruction the instruction of the frame; must not be null.
+     * @param r the red component of the frame.
+     * @param g the green component of the frame.
+     * @param b the blue component of the frame.
+     */
+    public void add(@NonNull ColorCommand.Instruction instruction, int r, int g, int b) {
+        mFrameCount++;
+
+        final boolean latestAbsolute;
+        final boolean sumRelative;
+        switch (mPolicy) {
+            case PASS_THROUGH:
+                mCommandCount++;
+                mSink.deliver(instruction, r, g, b);
+                return;
+            case LATEST_ABSOLUTE:
+                latestAbsolute = true;
+                sumRelative = false;
+                break;
+            case SUM_RELATIVE:
+                latestAbsolute = false;
+                sumRelative = true;
+                break;
+            case LATEST_ABSOLUTE_AND_SUM_RELATIVE:
+                latestAbsolute = true;
+                sumRelative = true;
+                break;
+            default:
+                throw new AssertionError("unknown policy: " + mPolicy);
+        }
+
+        final int last = mPendingCount - 1;
+        if (latestAbsolute && instruction == ColorCommand.Instruction.ABSOLUTE) {
+            mPendingCount = 0;
+        } else if (sumRelative && instruction == ColorCommand.Instruction.RELATIVE
+                && last >= 0 && mPendingInstructions[last] == ColorCommand.Instruction.RELATIVE) {
+            mPendingR[last] += r;
+            mPendingG[last] += g;
+            mPendingB[last] += b;
+            return;
+        }
+
+        if (mPendingCount == mPendingInstructions.length) {
+            growPending();
+        }
+        final int index = mPendingCount++;
+        mPendingInstructions[index] = instruction;
+        mPendingR[index] = r;
+        mPendingG[index] = g;
+        mPendingB[index] = b;
+    }
+
+    /**
+     * Delivers all pending commands to the sink, in the order in which they were received.
+     * This should be invoked at the end of each batch of frames.
+     */
+    public void flush() {
+        final int count = mPendingCount;
+        if (count == 0) {
+            return;
+        }
+        mPendingCount = 0;
+        mCommandCount += count;
+        for (int i = 0; i < count; i++) {
+            mSink.deliver(mPendingInstructions[i], mPendingR[i], mPendingG[i], mPendingB[i]);
+        }
+    }
+
+    /**
+     * Returns the number of frames that have been added.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Returns the number of commands that have been delivered to the sink.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    public long getCommandCount() {
+        return mCommandCount;
+    }
+
+    /**
+     * Returns the number of frames that were merged into, or discarded in favour of, other frames
+     * and were therefore never delivered to the sink as commands of their own.
+     * <p/>
+     * This method may be invoked by any thread; the result may include frames that are still
+     * pending.
+     */
+    public long getMergedFrameCount() {
+        return mFrameCount - mCommandCount;
+    }
+
+    private void growPending() {
+        final int capacity = mPendingInstructions.length * 2;
+        final ColorCommand.Instruction[] instructions = new ColorCommand.Instruction[capacity];
+        System.arraycopy(mPendingInstructions, 0, instructions, 0, mPendingCount);
+        mPendingInstructions = instructions;
+        mPendingR = grow(mPendingR, capacity);
+        mPendingG = grow(mPendingG, capacity);
+        mPendingB = grow(mPendingB, capacity);
+    }
+
+    @NonNull
+    private int[] grow(@NonNull int[] array, int capacity) {
+        final int[] newArray = new int[capacity];
+        System.arraycopy(array, 0, newArray, 0, mPendingCount);
+        return newArray;
+    }
+
+    /**
+     * Implement this interface to receive the commands produced by a {@link CommandConflater}.
+     */
+    public interface Sink {
+
+        /**
+         * Called to deliver a command.
+         *
+         * @param instruction the instruction of the command; will never be null.
+         * @param r the red component of the command.
+         * @param g the green component of the command.
+         * @param b the blue component of the command.
+         */
+        void deliver(@NonNull ColorCommand.Instruction instruction, int r, int g, int b);
+
+    }
+
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+
+import java.util.List;
+
+/**
+ * A fixed-capacity history of the most recent commands received from the server.
+ * <p/>
+ * The commands are stored in a ring buffer as a "struct of arrays" with one primitive array per
+ * field, so adding a command never allocates and the history does not retain the
+ * {@link ColorCommand} objects themselves.  Because command ids are strictly increasing, the
+ * position of a given command in the history is found by a binary search.  All sources share
+ * the id counter, so the ids in the history of one source are contiguous only while no other
+ * source is receiving commands; in that case a constant-time index calculation finds the
+ * position without searching.
+ * <p/>
+ * This class is thread-safe.  The lock is only held while computing a range and copying it out
+ * with {@link System#arraycopy}; the copied commands are then materialized without the lock.
+ */
+public class CommandHistory {
+
+    private static final ColorCommand.Instruction[] INSTRUCTIONS =
+            ColorCommand.Instruction.values();
+
+    private final Object mMutex = new Object();
+
+    private final int mCapacity;
+    private final long[] mIds;
+    private final byte[] mInstructions;
+    private final int[] mR;
+    private final int[] mG;
+    private final int[] mB;
+
+    /**
+     * The total number of commands that have ever been added; the command at "position" p (where
+     * 0 is the first command ever added) is stored in slot (p % mCapacity).
+     */
+    private long mAddedCount;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param capacity the maximum number of commands to retain; must be greater than zero.
+     * @throws IllegalArgumentException if the given capacity is not greater than zero.
+     */
+    public CommandHistory(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("invalid capacity: " + capacity);
+        }
+        mCapacity = capacity;
+        mIds = new long[capacity];
+        mInstructions = new byte[capacity];
+        mR = new int[capacity];
+        mG = new int[capacity];
+        mB = new int[capacity];
+    }
+
+    /**
+     * Returns the maximum number of commands that this history retains, as specified to the
+     * constructor.
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Returns the number of commands currently in this history.
+     */
+    public int size() {
+        synchronized (mMutex) {
+            return (int) Math.min(mAddedCount, mCapacity);
+        }
+    }
+
+    /**
+     * Adds a command to this history, discarding the oldest command if the history is full.
+     * The id of the given command must be greater than the ids of all commands previously added.
+     *
+     * @param command the command to add; must not be null.
+     */
+    public void add(@NonNull ColorCommand command) {
+        synchronized (mMutex) {
+            final int slot = (int) (mAddedCount % mCapacity);
+            mIds[slot] = command.id;
+            mInstructions[slot] = (byte) command.instruction.ordinal();
+            mR[slot] = command.r;
+            mG[slot] = command.g;
+            mB[slot] = command.b;
+            mAddedCount++;
+        }
+    }
+
+    /**
+     * Adds several commands to this history, as if by invoking {@link #add} for each of them, but
+     * acquiring the lock only once.
+     *
+     * @param commands the commands to add, in the order in which they were received; must not be
+     * null.
+     * @param count the number of commands to add, which are the first elements of the given
+     * array.
+     */
+    public void addAll(@NonNull ColorCommand[] commands, int count) {
+        synchronized (mMutex) {
+            for (int i = 0; i < count; i++) {
+                final ColorCommand command = commands[i];
+                final int slot = (int) (mAddedCount % mCapacity);
+                mIds[slot] = command.id;
+                mInstructions[slot] = (byte) command.instruction.ordinal();
+                mR[slot] = command.r;
+                mG[slot] = command.g;
+                mB[slot] = command.b;
+                mAddedCount++;
+            }
+        }
+    }
+
+    /**
+     * Copies the commands that were added after the command with the given id into the given
+     * snapshot, replacing its previous contents.  If the given id is not in this history (either
+     * because it is {@link ColorCommand#INVALID_ID} or because the command has been discarded)
+     * then all commands in this history are copied.
+     *
+     * @param id the id of the command after which to copy.
+     * @param snapshot the snapshot into which to copy the commands; must not be null.
+     * @return the number of commands copied into the snapshot.
+     */
+    public int copySince(long id, @NonNull Snapshot snapshot) {
+        synchronized (mMutex) {
+            final long oldestPosition = Math.max(0, mAddedCount - mCapacity);
+            final long position = findPosition(id, oldestPosition);
+            final long startPosition = (position < 0) ? oldestPosition : position + 1;
+            final int count = (int) (mAddedCount - startPosition);
+            snapshot.ensureCapacity(count);
+
+            final int startSlot = (int) (startPosition % mCapacity);
+            final int firstCount = Math.min(count, mCapacity - startSlot);
+            copy(startSlot, snapshot, 0, firstCount);
+            copy(0, snapshot, firstCount, count - firstCount);
+            snapshot.mCount = count;
+            return count;
+        }
+    }
+
+    /**
+     * Adds to the given list the commands that were added after the command with the given id.
+     * If the given id is not in this history (either because it is {@link ColorCommand#INVALID_ID}
+     * or because the command has been discarded) then all commands in this history are added.
+     *
+     * @param id the id of the command after which to get commands.
+     * @param commands the list to which to add the commands; must not be null.
+     */
+    public void getCommandsSince(long id, @NonNull List<ColorCommand> commands) {
+        final Snapshot snapshot = new Snapshot(0);
+        final int count = copySince(id, snapshot);
+        for (int i = 0; i < count; i++) {
+            commands.add(snapshot.get(i));
+        }
+    }
+
+    /**
+     * Returns the position of the command with the given id, or -1 if it is not in this history.
+     * Must be invoked with mMutex held.
+     */
+    private long findPosition(long id, long oldestPosition) {
+        if (id == ColorCommand.INVALID_ID || oldestPosition >= mAddedCount) {
+            return -1;
+        }
+
+        // fast path: the ids in the history are contiguous if only one source is active
+        final long oldestId = mIds[(int) (oldestPosition % mCapacity)];
+        final long candidate = oldestPosition + (id - oldestId);
+        if (candidate >= oldestPosition && candidate < mAddedCount
+                && mIds[(int) (candidate % mCapacity)] == id) {
+            return candidate;
+        }
+
+        // slow path: the ids are strictly increasing, so binary search them
+        long low = oldestPosition;
+        long high = mAddedCount - 1;
+        while (low <= high) {
+            final long mid = (low + high) >>> 1;
+            final long midId = mIds[(int) (mid % mCapacity)];
+            if (midId < id) {
+                low = mid + 1;
+            } else if (midId > id) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private void copy(int slot, @NonNull Snapshot snapshot, int index, int count) {
+        if (count <= 0) {
+            return;
+        }
+        System.arraycopy(mIds, slot, snapshot.mIds, index, count);
+        System.arraycopy(mInstructions, slot, snapshot.mInstructions, index, count);
+        System.arraycopy(mR, slot, snapshot.mR, index, count);
+        System.arraycopy(mG, slot, snapshot.mG, index, count);
+        System.arraycopy(mB, slot, snapshot.mB, index, count);
+    }
+
+    /**
+     * A range of commands copied out of a {@link CommandHistory}, stored as primitive arrays.
+     * Instances may be reused for multiple copies to avoid allocation.
+     * <p/>
+     * This class is not thread-safe.
+     */
+    public static class Snapshot {
+
+        private long[] mIds;
+        private byte[] mInstructions;
+        private int[] mR;
+        private int[] mG;
+        private int[] mB;
+        private int mCount;
+
+        /**
+         * Creates a new instance of this class.
+         *
+         * @param initialCapacity the number of commands for which to initially allocate space;
+         * the space grows as needed.
+         */
+        public Snapshot(int initialCapacity) {
+            mIds = new long[initialCapacity];
+            mInstructions = new byte[initialCapacity];
+            mR = new int[initialCapacity];
+            mG = new int[initialCapacity];
+            mB = new int[initialCapacity];
+        }
+
+        /**
+         * Returns the number of commands in this snapshot.
+         */
+        public int size() {
+            return mCount;
+        }
+
+        public long getId(int index) {
+            return mIds[index];
+        }
+
+        @NonNull
+        public ColorCommand.Instruction getInstruction(int index) {
+            return INSTRUCTIONS[mInstructions[index]];
+        }
+
+        public int getR(int index) {
+            return mR[index];
+        }
+
+        public int getG(int index) {
+            return mG[index];
+        }
+
+        public int getB(int index) {
+            return mB[index];
+        }
+
+        /**
+         * Creates and returns a {@link ColorCommand} for the command at the given index.
+         *
+         * @param index the index of the command.
+         * @return the newly-created command; never returns null.
+         */
+        @NonNull
+        public ColorCommand get(int index) {
+            return new ColorCommand(mIds[index], getInstruction(index),
+                    mR[index], mG[index], mB[index]);
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (mIds.length >= capacity) {
+                return;
+            }
+            mIds = new long[capacity];
+            mInstructions = new byte[capacity];
+            mR = new int[capacity];
+            mG = new int[capacity];
+            mB = new int[capacity];
+        }
+
+    }
+
+}
@@ -0,0 +1,644 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the commands received from the servers, stored on disk so that the
+ * colors can be restored after the process is killed without waiting for the servers.
+ * <p/>
+ * The journal is a directory of segment files, each of which is a header followed by fixed-length
+ * records, one per command.  Each record also stores the index of the source from which the
+ * command was received, a hash of that source's server (see
+ * {@link ColorSourceSpec#serverHashCode}), and the connection's frame sequence number after the
+ * command, so that the stream can be resumed from where it left off; and it ends with a CRC32 of
+ * the rest of the record, so that a record torn by the process being killed mid-write is ignored.
+ * <p/>
+ * {@link #append} never blocks on I/O: it copies the record into a pending buffer, which a
+ * dedicated writer thread swaps out and writes with a single write, followed by a single
+ * {@link FileChannel#force}, for all of the commands appended since the last one (a "group
+ * commit").  After the first command of a group arrives, the writer waits for the commit delay
+ * before writing so that bursts of commands share one write and one sync.  If the writer falls so
+ * far behind that the pending buffer is full, commands are dropped rather than blocking the
+ * caller; the journal is a cache, and the servers remain the source of truth.
+ * <p/>
+ * Each instance writes to a new segment, created when its first group is written, and starts
+ * another one whenever the current one would exceed the maximum segment size; the oldest segments
+ * are deleted whenever there are more than the maximum number.  {@link #readTails} reads the
+ * segments through memory-mapped buffers, from the newest record backwards, and stops as soon as
+ * it has enough commands from every source.
+ * <p/>
+ * This class is thread-safe.
+ */
+public class CommandJournal implements Closeable {
+
+    private static final Logger LOG = new Logger("CommandJournal");
+
+    /**
+     * The value at the start of a segment file that identifies it as such.
+     */
+    static final int SEGMENT_MAGIC = 0x52474A4C;
+
+    /**
+     * The version of the format of segment files.
+     */
+    static final int SEGMENT_VERSION = 1;
+
+    /**
+     * The number of bytes in the header of a segment file: the magic number, the version, the
+     * record length, and a reserved field that is zero.
+     */
+    static final int SEGMENT_HEADER_LENGTH = 4 + 4 + 4 + 4;
+
+    /**
+     * The number of bytes of each record in a segment file: the command id, the frame sequence
+     * number, the server hash, the source index, the instruction, two reserved bytes, the red,
+     * green, and blue components, and the CRC32 of everything before it.
+     */
+    static final int RECORD_LENGTH = 8 + 8 + 4 + 1 + 1 + 2 + 4 + 4 + 4 + 4;
+
+    private static final int RECORD_CHECKED_LENGTH = RECORD_LENGTH - 4;
+
+    /**
+     * The largest number of sources whose commands can be journaled, which is limited by the
+     * width of the source index in a record.
+     */
+    public static final int MAX_SOURCE_COUNT = 256;
+
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    private static final ColorCommand.Instruction[] INSTRUCTIONS =
+            ColorCommand.Instruction.values();
+
+    private static final StripedCounter RECORDS_WRITTEN =
+            MetricsRegistry.getDefault().counter("journal.records_written");
+    private static final StripedCounter RECORDS_DROPPED =
+            MetricsRegistry.getDefault().counter("journal.records_dropped");
+    private static final StripedCounter SEGMENTS_DELETED =
+            MetricsRegistry.getDefault().counter("journal.segments_deleted");
+
+    /**
+     * The time to write and sync one group of records, in microseconds; the buckets range from
+     * 50 us to about 3.3 s.
+     */
+    private static final Histogram COMMIT_LATENCY = MetricsRegistry.getDefault()
+            .histogram("journal.commit_us", Histogram.exponentialBounds(50, 2.0, 17));
+
+    /**
+     * The number of records in each group; the buckets range from 1 to 32768.
+     */
+    private static final Histogram GROUP_SIZE = MetricsRegistry.getDefault()
+            .histogram("journal.group_size", Histogram.exponentialBounds(1, 2.0, 16));
+
+    @NonNull
+    private final File mDirectory;
+    private final long mMaxSegmentLength;
+    private final int mMaxSegmentCount;
+    private final long mCommitDelayMillis;
+
+    private final Object mMutex = new Object();
+
+    // the records appended but not yet taken by the writer thread, and whether close() has been
+    // invoked; guarded by mMutex
+    @NonNull
+    private ByteBuffer mPending;
+    private boolean mClosed;
+
+    // used only by the writer thread
+    @NonNull
+    private ByteBuffer mWriting;
+    private final CRC32 mCrc = new CRC32();
+    private long mNextSegmentNumber;
+    @Nullable
+    private RandomAccessFile mSegmentFile;
+    private long mSegmentLength;
+
+    @NonNull
+    private final Thread mWriterThread;
+
+    /**
+     * Creates a new instance of this class and starts its writer thread.  Existing segments in the
+     * given directory are kept, and can be read with {@link #readTails}.
+     *
+     * @param directory the directory in which to store the segments, which is created if it does
+     * not exist; must not be null.
+     * @param maxSegmentLength the largest number of bytes in a segment; must be large enough for
+     * the header and at least one record.
+     * @param maxSegmentCount the largest number of segments to keep; must be greater than zero.
+     * @param pendingCapacity the largest number of records to buffer while the writer thread is
+     * busy, beyond which records are dropped; must be greater than zero.
+     * @param commitDelayMillis the time to wait after the first record of a group is appended
+     * before writing the group; must not be negative.
+     * @throws IllegalArgumentException if any of the given numbers are out of range.
+     * @throws IOException if the directory could not be created.
+     */
+    public CommandJournal(@NonNull File directory, long maxSegmentLength, int maxSegmentCount,
+            int pendingCapacity, long commitDelayMillis) throws IOException {
+        if (maxSegmentLength < SEGMENT_HEADER_LENGTH + RECORD_LENGTH) {
+            throw new IllegalArgumentException("invalid maxSegmentLength: " + maxSegmentLength);
+        } else if (maxSegmentCount <= 0) {
+            throw new IllegalArgumentException("invalid maxSegmentCount: " + maxSegmentCount);
+        } else if (pendingCapacity <= 0) {
+            throw new IllegalArgumentException("invalid pendingCapacity: " + pendingCapacity);
+        } else if (commitDelayMillis < 0) {
+            throw new IllegalArgumentException("invalid commitDelayMillis: " + commitDelayMillis);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("unable to create directory: " + directory);
+        }
+
+        mDirectory = directory;
+        mMaxSegmentLength = maxSegmentLength;
+        mMaxSegmentCount = maxSegmentCount;
+        mCommitDelayMillis = commitDelayMillis;
+        mPending = ByteBuffer.allocate(pendingCapacity * RECORD_LENGTH);
+        mWriting = ByteBuffer.allocate(pendingCapacity * RECORD_LENGTH);
+
+        final File[] segments = listSegments(directory);
+        mNextSegmentNumber = (segments.length == 0)
+                ? 0 : parseSegmentNumber(segments[segments.length - 1]) + 1;
+
+        mWriterThread = new Thread(new Writer(), "CommandJournal");
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
+    }
+
+    /**
+     * Returns the directory in which the segments are stored.
+     */
+    @NonNull
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Appends a command to the journal.  This method never blocks on I/O; the command is written
+     * by the writer thread in the next group.
+     * <p/>
+     * This method may be invoked by any thread.
+     *
+     * @param source the index of the source from which the command was received.
+     * @param serverHash the {@link ColorSourceSpec#serverHashCode} of the source's server.
+     * @param sequence the frame sequence number of the connection after the command, or -1 if
+     * it is not known.
+     * @param command the command to append; must not be null.
+     * @return true if the command was appended, or false if it was dropped because the journal is
+     * closed or the pending buffer is full.
+     * @throws IllegalArgumentException if the given source index is out of range.
+     */
+    public boolean append(int source, int serverHash, long sequence,
+            @NonNull ColorCommand command) {
+        if (source < 0 || source >= MAX_SOURCE_COUNT) {
+            throw new IllegalArgumentException("invalid source: " + source);
+        }
+        synchronized (mMutex) {
+            final ByteBuffer pending = mPending;
+            if (mClosed || pending.remaining() < RECORD_LENGTH) {
+                RECORDS_DROPPED.increment();
+                return false;
+            }
+            final boolean wasEmpty = (pending.position() == 0);
+            putRecord(pending, source, serverHash, sequence, command);
+            if (wasEmpty) {
+                mMutex.notifyAll();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Appends several commands received together to the journal, as if by invoking
+     * {@link #append} for each of them, but acquiring the lock only once.  Either all of the
+     * commands are appended or, if the pending buffer does not have room for all of them, none
+     * are, so that the journal never ends part way through a batch.
+     * <p/>
+     * This method may be invoked by any thread.
+     *
+     * @param source the index of the source from which the commands were received.
+     * @param serverHash the {@link ColorSourceSpec#serverHashCode} of the source's server.
+     * @param sequence the frame sequence number of the connection after the last command, or -1
+     * if it is not known; it is stored with every command.
+     * @param commands the commands to append, in the order in which they were received; must not
+     * be null.
+     * @param count the number of commands to append, which are the first elements of the given
+     * array.
+     * @return true if the commands were appended, or false if they were dropped because the
+     * journal is closed or the pending buffer is full.
+     * @throws IllegalArgumentException if the given source index is out of range.
+     */
+    public boolean appendAll(int source, int serverHash, long sequence,
+            @NonNull ColorCommand[] commands, int count) {
+        if (source < 0 || source >= MAX_SOURCE_COUNT) {
+            throw new IllegalArgumentException("invalid source: " + source);
+        }
+        synchronized (mMutex) {
+            final ByteBuffer pending = mPending;
+            if (mClosed || pending.remaining() < count * RECORD_LENGTH) {
+                RECORDS_DROPPED.add(count);
+                return false;
+            }
+            final boolean wasEmpty = (pending.position() == 0);
+            for (int i = 0; i < count; i++) {
+                putRecord(pending, source, serverHash, sequence, commands[i]);
+            }
+            if (wasEmpty && count > 0) {
+                mMutex.notifyAll();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Puts a record into the given buffer, leaving its CRC32 to be filled in by the writer
+     * thread.
+     */
+    private static void putRecord(@NonNull ByteBuffer buffer, int source, int serverHash,
+            long sequence, @NonNull ColorCommand command) {
+        buffer.putLong(command.id);
+        buffer.putLong(sequence);
+        buffer.putInt(serverHash);
+        buffer.put((byte) source);
+        buffer.put((byte) command.instruction.ordinal());
+        buffer.putShort((short) 0);
+        buffer.putInt(command.r);
+        buffer.putInt(command.g);
+        buffer.putInt(command.b);
+        buffer.putInt(0);
+    }
+
+    /**
+     * Writes the pending records, stops the writer thread, and closes the current segment.
+     * Commands appended afterwards are dropped.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    @Override
+    public void close() {
+        synchronized (mMutex) {
+            mClosed = true;
+            mMutex.notifyAll();
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mWriterThread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads the most recent commands of each source from the journal.  The ids of the commands
+     * are reserved with {@link ColorCommand#reserveId} so that they do not collide with those of
+     * new commands.  Records that are corrupt, or whose source index is out of range, are skipped.
+     * <p/>
+     * This method may be invoked by any thread.
+     *
+     * @param sourceCount the number of sources whose commands to read.
+     * @param maxCount the largest number of commands to read from each source.
+     * @return the tails, indexed by source; never returns null.
+     * @throws IOException if listing the segments fails.
+     */
+    @NonNull
+    public Tail[] readTails(int sourceCount, int maxCount) throws IOException {
+        final Tail[] tails = new Tail[sourceCount];
+        for (int i = 0; i < sourceCount; i++) {
+            tails[i] = new Tail();
+        }
+
+        final File[] segments = listSegments(mDirectory);
+        final byte[] record = new byte[RECORD_LENGTH];
+        final ByteBuffer recordBuffer = ByteBuffer.wrap(record);
+        final CRC32 crc = new CRC32();
+        long maxId = ColorCommand.INVALID_ID;
+        int incompleteCount = sourceCount;
+
+        for (int s = segments.length - 1; s >= 0 && incompleteCount > 0; s--) {
+            final MappedByteBuffer buffer = mapSegment(segments[s]);
+            if (buffer == null) {
+                continue;
+            }
+            final int recordCount = (buffer.capacity() - SEGMENT_HEADER_LENGTH) / RECORD_LENGTH;
+            for (int i = recordCount - 1; i >= 0 && incompleteCount > 0; i--) {
+                buffer.position(SEGMENT_HEADER_LENGTH + (i * RECORD_LENGTH));
+                buffer.get(record);
+                crc.reset();
+                crc.update(record, 0, RECORD_CHECKED_LENGTH);
+                recordBuffer.clear();
+                if ((int) crc.getValue() != recordBuffer.getInt(RECORD_CHECKED_LENGTH)) {
+                    continue;
+                }
+
+                final long id = recordBuffer.getLong();
+                final long sequence = recordBuffer.getLong();
+                final int serverHash = recordBuffer.getInt();
+                final int source = recordBuffer.get() & 0xFF;
+                final int instruction = recordBuffer.get();
+                recordBuffer.getShort();
+                final int r = recordBuffer.getInt();
+                final int g = recordBuffer.getInt();
+                final int b = recordBuffer.getInt();
+                if (source >= sourceCount || instruction < 0 || instruction >= INSTRUCTIONS.length
+                        || id == ColorCommand.INVALID_ID) {
+                    continue;
+                }
+
+                final Tail tail = tails[source];
+                if (tail.mCommands.size() >= maxCount) {
+                    continue;
+                }
+                if (tail.mCommands.isEmpty()) {
+                    tail.mServerHash = serverHash;
+                    tail.mSequence = sequence;
+                }
+                tail.mCommands.add(new ColorCommand(id, INSTRUCTIONS[instruction], r, g, b));
+                maxId = Math.max(maxId, id);
+                if (tail.mCommands.size() == maxCount) {
+                    incompleteCount--;
+                }
+            }
+        }
+
+        for (final Tail tail : tails) {
+            Collections.reverse(tail.mCommands);
+        }
+        ColorCommand.reserveId(maxId);
+        return tails;
+    }
+
+    /**
+     * Maps the given segment into memory, returning null if it does not exist, is not a segment,
+     * or has no records.
+     */
+    @Nullable
+    private static MappedByteBuffer mapSegment(@NonNull File file) throws IOException {
+        final RandomAccessFile raf;
+        try {
+            raf = new RandomAccessFile(file, "r");
+        } catch (FileNotFoundException e) {
+            // deleted by the writer thread after it was listed
+            return null;
+        }
+        try {
+            final long length = Math.min(raf.length(), Integer.MAX_VALUE);
+            if (length < SEGMENT_HEADER_LENGTH + RECORD_LENGTH) {
+                return null;
+            }
+            final MappedByteBuffer buffer =
+                    raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if (buffer.getInt() != SEGMENT_MAGIC || buffer.getInt() != SEGMENT_VERSION
+                    || buffer.getInt() != RECORD_LENGTH) {
+                LOG.w("ignoring unrecognized segment: {}", file);
+                return null;
+            }
+            return buffer;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Returns the segments in the given directory, from the oldest to the newest.
+     */
+    @NonNull
+    private static File[] listSegments(@NonNull File directory) throws IOException {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("unable to list directory: " + directory);
+        }
+        final List<File> segments = new ArrayList<>(files.length);
+        for (final File file : files) {
+            if (file.getName().endsWith(SEGMENT_SUFFIX) && parseSegmentNumber(file) >= 0) {
+                segments.add(file);
+            }
+        }
+        final File[] result = segments.toArray(new File[segments.size()]);
+        // the names are zero-padded, so they sort in the order in which they were created
+        Arrays.sort(result);
+        return result;
+    }
+
+    private static long parseSegmentNumber(@NonNull File file) {
+        final String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @NonNull
+    private File getSegmentFile(long number) {
+        return new File(mDirectory, String.format(Locale.US, "%020d", number) + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Writes the records in mWriting to the current segment, starting new segments as needed,
+     * and then syncs the segment.
+     */
+    private void writeGroup() throws IOException {
+        final ByteBuffer group = mWriting;
+        group.flip();
+        final byte[] records = group.array();
+        for (int offset = 0; offset < group.limit(); offset += RECORD_LENGTH) {
+            mCrc.reset();
+            mCrc.update(records, offset, RECORD_CHECKED_LENGTH);
+            group.putInt(offset + RECORD_CHECKED_LENGTH, (int) mCrc.getValue());
+        }
+
+        while (group.hasRemaining()) {
+            if (mSegmentFile == null || mSegmentLength + RECORD_LENGTH > mMaxSegmentLength) {
+                startSegment();
+            }
+            final long room = (mMaxSegmentLength - mSegmentLength) / RECORD_LENGTH;
+            final int length = (int) Math.min(group.remaining(), room * RECORD_LENGTH);
+            final int limit = group.limit();
+            group.limit(group.position() + length);
+            final FileChannel channel = mSegmentFile.getChannel();
+            while (group.hasRemaining()) {
+                channel.write(group);
+            }
+            group.limit(limit);
+            mSegmentLength += length;
+        }
+        mSegmentFile.getChannel().force(false);
+    }
+
+    /**
+     * Closes the current segment, if any, starts a new one, and deletes the oldest segments if
+     * there are too many.
+     */
+    private void startSegment() throws IOException {
+        closeSegment();
+
+        final File file = getSegmentFile(mNextSegmentNumber++);
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        final ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_LENGTH);
+        header.putInt(SEGMENT_MAGIC);
+        header.putInt(SEGMENT_VERSION);
+        header.putInt(RECORD_LENGTH);
+        header.putInt(0);
+        header.flip();
+        try {
+            raf.setLength(0);
+            while (header.hasRemaining()) {
+                raf.getChannel().write(header);
+            }
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        mSegmentFile = raf;
+        mSegmentLength = SEGMENT_HEADER_LENGTH;
+        LOG.d("started segment {}", file);
+
+        final File[] segments = listSegments(mDirectory);
+        for (int i = 0; i < segments.length - mMaxSegmentCount; i++) {
+            if (segments[i].delete()) {
+                SEGMENTS_DELETED.increment();
+                LOG.d("deleted segment {}", segments[i]);
+            } else {
+                LOG.w("unable to delete segment {}", segments[i]);
+            }
+        }
+    }
+
+    private void closeSegment() {
+        final RandomAccessFile raf = mSegmentFile;
+        mSegmentFile = null;
+        if (raf != null) {
+            try {
+                raf.getChannel().force(false);
+                raf.close();
+            } catch (IOException e) {
+                LOG.w("closing segment failed: {}", e);
+            }
+        }
+    }
+
+    /**
+     * The most recent commands read from the journal for one source.
+     */
+    public static class Tail {
+
+        private final List<ColorCommand> mCommands = new ArrayList<>();
+        private int mServerHash;
+        private long mSequence = -1;
+
+        /**
+         * Returns the commands, from the oldest to the newest; never returns null.
+         */
+        @NonNull
+        public List<ColorCommand> getCommands() {
+            return mCommands;
+        }
+
+        /**
+         * Returns the {@link ColorSourceSpec#serverHashCode} of the server from which the newest
+         * command was received, or 0 if there are no commands.
+         */
+        public int getServerHash() {
+            return mServerHash;
+        }
+
+        /**
+         * Returns the frame sequence number of the connection after the newest command, from
+         * which the server's stream can be resumed, or -1 if it is not known.
+         */
+        public long getSequence() {
+            return mSequence;
+        }
+
+    }
+
+    private class Writer implements Runnable {
+
+        @Override
+        public void run() {
+            LOG.d("writer thread started");
+            try {
+                while (true) {
+                    final boolean closed;
+                    synchronized (mMutex) {
+                        while (mPending.position() == 0 && !mClosed) {
+                            mMutex.wait();
+                        }
+                        if (!mClosed && mCommitDelayMillis > 0) {
+                            // let a burst of commands accumulate into the same group; only
+                            // close() notifies while the pending buffer is not empty
+                            mMutex.wait(mCommitDelayMillis);
+                        }
+                        closed = mClosed;
+                        final ByteBuffer pending = mPending;
+                        mPending = mWriting;
+                        mWriting = pending;
+                    }
+
+                    final int recordCount = mWriting.position() / RECORD_LENGTH;
+                    if (recordCount > 0) {
+                        final long startNanos = System.nanoTime();
+                        try {
+                            writeGroup();
+                            RECORDS_WRITTEN.add(recordCount);
+                        } catch (IOException e) {
+                            LOG.w("writing {} records failed: {}", recordCount, e);
+                            RECORDS_DROPPED.add(recordCount);
+                            closeSegment();
+                        }
+                        COMMIT_LATENCY.record((System.nanoTime() - startNanos) / 1000);
+                        GROUP_SIZE.record(recordCount);
+                    }
+                    mWriting.clear();
+
+                    if (closed) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                LOG.w("writer thread interrupted");
+            } finally {
+                closeSegment();
+                LOG.d("writer thread finished");
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Establishes a TCP connection to the first reachable address of a server, with an overall
+ * timeout.
+ * <p/>
+ * The addresses are tried in order, but rather than waiting for each attempt to fail before
+ * starting the next, a new attempt is started every {@code attemptDelay} milliseconds while the
+ * earlier attempts are still outstanding ("happy eyeballs").  The first attempt to succeed wins and
+ * all others are abandoned.  If an attempt fails before the delay elapses then the next attempt is
+ * started immediately.
+ * <p/>
+ * The attempts are non-blocking and are driven by a {@link Selector}: either one owned by the
+ * caller, such as that of a {@link SelectorEngine}, by invoking {@link #poll} and
+ * {@link #finishConnect}, or a private one by invoking {@link #await}.
+ * <p/>
+ * This class is not thread-safe, except for {@link #abort}.
+ */
+public class ConnectAttempt {
+
+    /**
+     * The default overall timeout for establishing a connection, in milliseconds.
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * The default delay between starting attempts to connect to successive addresses, in
+     * milliseconds.
+     */
+    public static final int DEFAULT_ATTEMPT_DELAY_MILLIS = 250;
+
+    @NonNull
+    private final InetAddress[] mAddresses;
+    private final int mPort;
+    private final long mDeadlineNanos;
+    private final long mAttemptDelayNanos;
+
+    @Nullable
+    private final Object mTag;
+
+    private final List<SelectionKey> mKeys = new ArrayList<>();
+    private int mNextAddressIndex;
+    private long mNextAttemptNanos;
+
+    @Nullable
+    private SelectionKey mConnectedKey;
+    @Nullable
+    private IOException mLastError;
+
+    private volatile boolean mAborted;
+    @Nullable
+    private volatile Selector mAwaitSelector;
+
+    /**
+     * Creates a new instance of this class.  The timeout starts now, but no attempts are started
+     * until {@link #poll} is invoked.
+     *
+     * @param addresses the addresses to try, in order; must not be null or empty.
+     * @param port the TCP port number to connect to.
+     * @param timeoutMillis the time after which to give up on all attempts, in milliseconds.
+     * @param attemptDelayMillis the delay between starting successive attempts, in milliseconds.
+     * @param tag an arbitrary object to associate with this attempt; may be null.
+     * @throws IllegalArgumentException if the given array of addresses is empty.
+     */
+    public ConnectAttempt(@NonNull InetAddress[] addresses, int port, long timeoutMillis,
+            long attemptDelayMillis, @Nullable Object tag) {
+        if (addresses.length == 0) {
+            throw new IllegalArgumentException("no addresses specified");
+        }
+        mAddresses = addresses;
+        mPort = port;
+        mAttemptDelayNanos = attemptDelayMillis * 1000000L;
+        mTag = tag;
+        mNextAttemptNanos = System.nanoTime();
+        mDeadlineNanos = mNextAttemptNanos + timeoutMillis * 1000000L;
+    }
+
+    /**
+     * Returns the tag that was specified to the constructor.
+     */
+    @Nullable
+    public Object getTag() {
+        return mTag;
+    }
+
+    /**
+     * Returns whether or not a connection has been established.
+     */
+    public boolean isConnected() {
+        return (mConnectedKey != null);
+    }
+
+    /**
+     * Returns the key of the channel whose connection was established, or null if no connection
+     * has been established.  The key's attachment is this object.
+     */
+    @Nullable
+    public SelectionKey getConnectedKey() {
+        return mConnectedKey;
+    }
+
+    /**
+     * Returns the value of {@link System#nanoTime} at which {@link #poll} next needs to be
+     * invoked, either to start the next attempt or to enforce the timeout.
+     */
+    public long getNextPollNanos() {
+        if (mNextAddressIndex < mAddresses.length) {
+            return Math.min(mNextAttemptNanos, mDeadlineNanos);
+        }
+        return mDeadlineNanos;
+    }
+
+    /**
+     * Enforces the timeout and starts the next attempt if it is due.  The channels of the
+     * attempts are registered with the given selector for {@link SelectionKey#OP_CONNECT} with
+     * this object as their attachment; when one of them is selected, {@link #finishConnect} must
+     * be invoked.  This method does nothing if a connection has already been established.
+     *
+     * @param selector the selector with which to register the channels; must not be null.
+     * @throws IOException if the timeout has elapsed or all attempts have failed; all attempts
+     * will have been abandoned.
+     */
+    public void poll(@NonNull Selector selector) throws IOException {
+        if (mConnectedKey != null) {
+            return;
+        }
+
+        final long now = System.nanoTime();
+        if (now - mDeadlineNanos >= 0) {
+            cancel();
+            throw new SocketTimeoutException("connecting to port " + mPort + " timed out");
+        }
+
+        while (mNextAddressIndex < mAddresses.length
+                && (mKeys.isEmpty() || now - mNextAttemptNanos >= 0)) {
+            final InetAddress address = mAddresses[mNextAddressIndex++];
+            mNextAttemptNanos = now + mAttemptDelayNanos;
+            if (startAttempt(selector, address)) {
+                return;
+            }
+        }
+
+        if (mKeys.isEmpty()) {
+            throw failure();
+        }
+    }
+
+    /**
+     * Completes the connection of the channel of a key that was selected as connectable.
+     *
+     * @param key the key that was selected; must not be null; its attachment must be this object.
+     * @return true if the connection was established, in which case all other attempts have been
+     * abandoned and {@link #getConnectedKey} returns the given key, or false if the connection
+     * is not yet established or failed and other attempts are still outstanding.
+     * @throws IOException if this attempt failed and there are no other attempts outstanding or
+     * left to start; all attempts will have been abandoned.
+     */
+    public boolean finishConnect(@NonNull SelectionKey key) throws IOException {
+        final SocketChannel channel = (SocketChannel) key.channel();
+        try {
+            if (!channel.finishConnect()) {
+                return false;
+            }
+        } catch (IOException e) {
+            mLastError = e;
+            mKeys.remove(key);
+            close(key);
+            if (mKeys.isEmpty()) {
+                if (mNextAddressIndex >= mAddresses.length) {
+                    throw failure();
+                }
+                // start the next attempt without waiting for the delay to elapse
+                mNextAttemptNanos = System.nanoTime();
+            }
+            return false;
+        }
+
+        mKeys.remove(key);
+        cancel();
+        mConnectedKey = key;
+        return true;
+    }
+
+    /**
+     * Abandons all outstanding attempts, closing their channels.  The channel of the established
+     * connection, if any, is not affected.
+     */
+    public void cancel() {
+        for (final SelectionKey key : mKeys) {
+            close(key);
+        }
+        mKeys.clear();
+    }
+
+    /**
+     * Causes {@link #await} to give up promptly, or immediately if it has not yet been invoked.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    public void abort() {
+        mAborted = true;
+        final Selector selector = mAwaitSelector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Establishes the connection using a private selector, blocking the calling thread until a
+     * connection is established, all attempts fail, the timeout elapses, {@link #abort} is
+     * invoked, or the thread is interrupted.
+     *
+     * @return the connected channel, in blocking mode; never returns null.
+     * @throws IOException if the connection could not be established.
+     */
+    @NonNull
+    public SocketChannel await() throws IOException {
+        final Selector selector = Selector.open();
+        mAwaitSelector = selector;
+        try {
+            while (mConnectedKey == null) {
+                if (mAborted) {
+                    throw new InterruptedIOException("connecting aborted");
+                } else if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("connecting interrupted");
+                }
+                poll(selector);
+                if (mConnectedKey != null) {
+                    break;
+                }
+
+                final long waitNanos = getNextPollNanos() - System.nanoTime();
+                selector.select(Math.max(1, (waitNanos + 999999) / 1000000));
+                final Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    final SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (key.isValid() && key.isConnectable() && finishConnect(key)) {
+                        break;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            cancel();
+            throw e;
+        } finally {
+            // closing the selector deregisters the connected channel so it can be made blocking
+            if (mConnectedKey != null) {
+                mConnectedKey.cancel();
+            }
+            mAwaitSelector = null;
+            selector.close();
+        }
+
+        final SocketChannel channel = (SocketChannel) mConnectedKey.channel();
+        try {
+            channel.configureBlocking(true);
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Starts an attempt to connect to the given address.
+     *
+     * @return true if the connection was established immediately, or false otherwise.
+     */
+    private boolean startAttempt(@NonNull Selector selector, @NonNull InetAddress address) {
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            final boolean connected = channel.connect(new InetSocketAddress(address, mPort));
+            final SelectionKey key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+            if (connected) {
+                cancel();
+                mConnectedKey = key;
+                return true;
+            }
+            mKeys.add(key);
+        } catch (IOException e) {
+            mLastError = e;
+            closeQuietly(channel);
+        }
+        return false;
+    }
+
+    @NonNull
+    private IOException failure() {
+        final IOException e = mLastError;
+        return (e != null) ? e : new IOException("unable to connect to port " + mPort);
+    }
+
+    private static void close(@NonNull SelectionKey key) {
+        key.cancel();
+        closeQuietly((SocketChannel) key.channel());
+    }
+
+    private static void closeQuietly(@Nullable SocketChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // oh well
+            }
+        }
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+/**
+ * Tracks the sequence numbers of the datagrams received from the server when using the UDP
+ * transport, deciding which datagrams to apply and counting those that were lost or arrived out
+ * of order.
+ * <p/>
+ * Only the latest state matters to the client, so a datagram is applied only if its sequence
+ * number is greater than that of every datagram applied before it; a datagram that arrives after
+ * a later one is dropped rather than applied late.  Each sequence number that is skipped is
+ * counted as lost, and if its datagram does arrive late it is additionally counted as reordered.
+ * A datagram whose sequence number is far behind the latest one is taken to mean that the server
+ * started its stream over, and is applied.
+ * <p/>
+ * This class is not thread-safe; each instance should only be used by one thread at a time,
+ * although the counts may be read by any thread.
+ */
+public class DatagramSequenceTracker {
+
+    /**
+     * The number of sequence numbers by which a datagram must be behind the latest one to be
+     * taken to mean that the server started its stream over rather than to have been reordered.
+     */
+    public static final long RESTART_THRESHOLD = 1024;
+
+    private long mLastSequence = -1;
+
+    private volatile long mAcceptedCount;
+    private volatile long mLostCount;
+    private volatile long mReorderedCount;
+    private volatile long mRestartCount;
+
+    /**
+     * Records the receipt of a datagram.
+     *
+     * @param sequence the sequence number of the datagram.
+     * @return true if the datagram should be applied, or false if it should be dropped because a
+     * datagram with the same or a later sequence number was already applied.
+     */
+    public boolean accept(long sequence) {
+        final long lastSequence = mLastSequence;
+        if (lastSequence >= 0 && sequence <= lastSequence) {
+            if (lastSequence - sequence < RESTART_THRESHOLD) {
+                mReorderedCount++;
+                return false;
+            }
+            mRestartCount++;
+        } else if (lastSequence >= 0 && sequence > lastSequence + 1) {
+            mLostCount += sequence - lastSequence - 1;
+        }
+        mLastSequence = sequence;
+        mAcceptedCount++;
+        return true;
+    }
+
+    /**
+     * Returns the sequence number of the last datagram that was applied, or -1 if none.
+     */
+    public long getLastSequence() {
+        return mLastSequence;
+    }
+
+    /**
+     * Returns the number of datagrams that were applied.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    public long getAcceptedCount() {
+        return mAcceptedCount;
+    }
+
+    /**
+     * Returns the number of sequence numbers that were skipped over, which includes those of the
+     * datagrams that were later counted as reordered.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    public long getLostCount() {
+        return mLostCount;
+    }
+
+    /**
+     * Returns the number of datagrams that were dropped because they arrived after a datagram with
+     * the same or a later sequence number.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    public long getReorderedCount() {
+        return mReorderedCount;
+    }
+
+    /**
+     * Returns the number of times that the server was taken to have started its stream over.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    public long getRestartCount() {
+        return mRestartCount;
+    }
+
+}
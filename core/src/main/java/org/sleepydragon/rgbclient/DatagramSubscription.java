@@ -0,0 +1,169 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Subscribes to the datagrams of a server with several addresses when using the UDP transport,
+ * until one of them answers.
+ * <p/>
+ * UDP has no handshake that fails when an address is unreachable, so the addresses are tried the
+ * way that {@link ConnectAttempt} tries them for TCP: in order, subscribing to one more every
+ * {@code attemptDelay} milliseconds while repeating the HELLO datagram to those already subscribed
+ * to, and moving on to the next immediately if sending to all of them failed.  The first address
+ * from which a datagram arrives is the one to use, and the others are then left to let their
+ * subscriptions expire.
+ * <p/>
+ * This class is not thread-safe.
+ */
+public class DatagramSubscription {
+
+    private static final long SUBSCRIBE_INTERVAL_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(Protocol.DATAGRAM_SUBSCRIBE_INTERVAL_MILLIS);
+
+    @NonNull
+    private final InetAddress[] mAddresses;
+    private final long mTimeoutMillis;
+    private final long mStartNanos;
+    private final long mAttemptDelayNanos;
+
+    // the time at which the HELLO datagram was last sent to each address, and whether sending to
+    // it failed
+    @NonNull
+    private final long[] mLastHelloNanos;
+    @NonNull
+    private final boolean[] mFailed;
+
+    private int mStartedCount;
+    private int mFailedCount;
+    private long mNextAttemptNanos;
+    @Nullable
+    private IOException mLastError;
+
+    /**
+     * Creates a new instance of this class.  The timeout starts now.
+     *
+     * @param addresses the addresses of the server, in the order in which they should be tried;
+     * must not be null or empty.
+     * @param timeoutMillis the time after which to give up if no address has answered, in
+     * milliseconds.
+     * @param attemptDelayMillis the delay between subscribing to successive addresses, in
+     * milliseconds.
+     * @throws IllegalArgumentException if the given array of addresses is empty.
+     */
+    public DatagramSubscription(@NonNull InetAddress[] addresses, long timeoutMillis,
+            long attemptDelayMillis) {
+        if (addresses.length == 0) {
+            throw new IllegalArgumentException("no addresses specified");
+        }
+        mAddresses = addresses;
+        mTimeoutMillis = timeoutMillis;
+        mAttemptDelayNanos = TimeUnit.MILLISECONDS.toNanos(attemptDelayMillis);
+        mLastHelloNanos = new long[addresses.length];
+        mFailed = new boolean[addresses.length];
+        mStartNanos = mNextAttemptNanos = System.nanoTime();
+    }
+
+    /**
+     * Subscribes to the next address if it is due, and repeats the HELLO datagram to each address
+     * already subscribed to that has not been sent one for
+     * {@link Protocol#DATAGRAM_SUBSCRIBE_INTERVAL_MILLIS}.
+     *
+     * @param socket the unconnected socket from which to send; must not be null.
+     * @param hello the HELLO datagram, whose address is set to that of each address in turn; must
+     * not be null.
+     * @param port the UDP port number of the server.
+     * @param now the current value of {@link System#nanoTime}.
+     * @throws IOException if sending to every one of the server's addresses failed.
+     */
+    public void sendHellos(@NonNull DatagramSocket socket, @NonNull DatagramPacket hello, int port,
+            long now) throws IOException {
+        while (mStartedCount < mAddresses.length
+                && (now - mNextAttemptNanos >= 0 || mFailedCount == mStartedCount)) {
+            mNextAttemptNanos = now + mAttemptDelayNanos;
+            sendHello(socket, hello, port, mStartedCount++, now);
+        }
+        for (int i = 0; i < mStartedCount; i++) {
+            if (!mFailed[i] && now - mLastHelloNanos[i] >= SUBSCRIBE_INTERVAL_NANOS) {
+                sendHello(socket, hello, port, i, now);
+            }
+        }
+        if (mFailedCount == mAddresses.length) {
+            throw mLastError;
+        }
+    }
+
+    /**
+     * Returns whether or not the given address is one of the server's addresses that has been
+     * subscribed to, and so is one from which datagrams should be accepted.
+     */
+    public boolean isSubscribed(@NonNull InetAddress address) {
+        for (int i = 0; i < mStartedCount; i++) {
+            if (!mFailed[i] && mAddresses[i].equals(address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of the server's addresses that have been subscribed to, including those
+     * to which sending failed.
+     */
+    public int getStartedCount() {
+        return mStartedCount;
+    }
+
+    /**
+     * Checks whether the time to wait for any of the addresses to answer has elapsed.
+     *
+     * @param now the current value of {@link System#nanoTime}.
+     * @throws SocketTimeoutException if it has elapsed.
+     */
+    public void checkTimeout(long now) throws SocketTimeoutException {
+        if (now - mStartNanos >= TimeUnit.MILLISECONDS.toNanos(mTimeoutMillis)) {
+            throw new SocketTimeoutException("no datagrams received from any of the "
+                    + mStartedCount + " addresses of the server in " + mTimeoutMillis + " ms");
+        }
+    }
+
+    private void sendHello(@NonNull DatagramSocket socket, @NonNull DatagramPacket hello,
+            int port, int index, long now) {
+        mLastHelloNanos[index] = now;
+        hello.setSocketAddress(new InetSocketAddress(mAddresses[index], port));
+        try {
+            socket.send(hello);
+        } catch (IOException e) {
+            // such as an IPv6 address on a network without IPv6
+            mFailed[index] = true;
+            mFailedCount++;
+            mLastError = e;
+        }
+    }
+
+}
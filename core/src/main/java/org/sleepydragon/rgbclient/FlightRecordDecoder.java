@@ -0,0 +1,178 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Turns a file written by {@link FlightRecorder#dump} into a readable timeline, one line per
+ * event, with times relative to the first event.
+ * <p/>
+ * This class does not depend on the Android framework, so a dump pulled from a device can be
+ * decoded on a workstation by running this class's {@link #main} method with the path of the
+ * dump file.
+ */
+public class FlightRecordDecoder {
+
+    private static final ColorCommand.Instruction[] INSTRUCTIONS =
+            ColorCommand.Instruction.values();
+
+    /**
+     * Private constructor to prevent instantiation.
+     */
+    private FlightRecordDecoder() {
+    }
+
+    /**
+     * Decodes the dump files whose paths are given as arguments, writing the timelines to
+     * standard output.
+     */
+    public static void main(String[] args) throws IOException {
+        final Writer out = new OutputStreamWriter(System.out, "UTF-8");
+        for (final String path : args) {
+            decode(new File(path), out);
+        }
+        out.flush();
+    }
+
+    /**
+     * Decodes a dump file.
+     *
+     * @param file the file written by {@link FlightRecorder#dump}; must not be null.
+     * @param out the object to which to write the timeline; must not be null.
+     * @throws IOException if reading the file or writing the timeline fails, or the file is not
+     * a valid dump file.
+     */
+    public static void decode(@NonNull File file, @NonNull Appendable out) throws IOException {
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            final FileChannel channel = in.getChannel();
+            decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), out);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Decodes the contents of a dump file.
+     *
+     * @param buffer the contents of the file written by {@link FlightRecorder#dump}, from its
+     * position to its limit; must not be null.
+     * @param out the object to which to write the timeline; must not be null.
+     * @throws IOException if writing the timeline fails or the buffer does not contain a valid
+     * dump.
+     */
+    public static void decode(@NonNull ByteBuffer buffer, @NonNull Appendable out)
+            throws IOException {
+        if (buffer.remaining() < FlightRecorder.DUMP_HEADER_LENGTH
+                || buffer.getInt() != FlightRecorder.DUMP_MAGIC) {
+            throw new IOException("not a flight recorder dump");
+        }
+        final int version = buffer.getInt();
+        if (version != FlightRecorder.DUMP_VERSION) {
+            throw new IOException("unsupported flight recorder dump version: " + version);
+        }
+        final long dumpNanos = buffer.getLong();
+        final long dumpMillis = buffer.getLong();
+        final int count = buffer.getInt();
+        if (count < 0 || buffer.remaining() < (long) count * FlightRecorder.DUMP_EVENT_LENGTH) {
+            throw new IOException("truncated flight recorder dump: " + count + " events");
+        }
+
+        final SimpleDateFormat dateFormat =
+                new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS Z", Locale.US);
+        out.append("flight recorder dump taken at ").append(dateFormat.format(new Date(dumpMillis)))
+                .append(" with ").append(String.valueOf(count)).append(" events\n");
+
+        long firstNanos = 0;
+        for (int i = 0; i < count; i++) {
+            final long nanos = buffer.getLong();
+            final int type = buffer.get();
+            final long id = buffer.getLong();
+            final int value = buffer.getInt();
+            if (i == 0) {
+                firstNanos = nanos;
+                out.append("first event occurred ")
+                        .append(formatMillis(dumpNanos - nanos)).append(" ms before the dump\n");
+            }
+
+            out.append('+').append(formatMillis(nanos - firstNanos)).append(" ms  ");
+            final FlightRecorder.Event event = FlightRecorder.eventForOrdinal(type);
+            if (event == null) {
+                out.append("UNKNOWN(").append(String.valueOf(type)).append(") id=")
+                        .append(String.valueOf(id)).append(" value=")
+                        .append(String.valueOf(value)).append('\n');
+                continue;
+            }
+
+            out.append(String.format(Locale.US, "%-13s ", event.name()));
+            switch (event) {
+                case FRAME_DECODED:
+                    out.append("seq=").append(String.valueOf(id)).append(' ')
+                            .append(instructionName(value));
+                    break;
+                case CONFLATED:
+                    out.append("frames=").append(String.valueOf(id))
+                            .append(" commands=").append(String.valueOf(value));
+                    break;
+                case ENQUEUED:
+                    out.append("id=").append(String.valueOf(id))
+                            .append((value != 0) ? " accepted" : " REJECTED (queue full)");
+                    break;
+                case APPLIED:
+                    out.append("id=").append(String.valueOf(id)).append(' ')
+                            .append(instructionName(value));
+                    break;
+                case DISPLAYED:
+                    out.append("id=").append(String.valueOf(id))
+                            .append(String.format(Locale.US, " color=#%08X", value));
+                    break;
+                case BATCH_DECODED:
+                    out.append("seq=").append(String.valueOf(id)).append(" frames=")
+                            .append(String.valueOf(value));
+                    break;
+                default:
+                    throw new AssertionError("unknown event: " + event);
+            }
+            out.append('\n');
+        }
+    }
+
+    @NonNull
+    private static String formatMillis(long nanos) {
+        return String.format(Locale.US, "%12.3f", nanos / 1000000.0);
+    }
+
+    @NonNull
+    private static String instructionName(int ordinal) {
+        return (ordinal >= 0 && ordinal < INSTRUCTIONS.length)
+                ? INSTRUCTIONS[ordinal].name() : ("UNKNOWN(" + ordinal + ")");
+    }
+
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records timestamped events of the command pipeline into a fixed-size in-memory ring, so that
+ * the recent history of the pipeline can be inspected after the fact, such as when a device shows
+ * the wrong color or lags behind the server.
+ * <p/>
+ * Each event consists of a timestamp, an {@link Event} type, and two primitive values whose
+ * meaning depends on the type.  The events are stored in atomic arrays of primitives, so recording
+ * an event never allocates or locks; once the ring is full the oldest events are overwritten.  The
+ * ring can be written to a file with {@link #dump} and the file turned into a readable timeline
+ * with {@link FlightRecordDecoder}.
+ * <p/>
+ * This class is thread-safe.  Any number of threads may record events concurrently; a dump
+ * taken while events are being recorded omits any events that are overwritten while it is being
+ * taken.  The only event that a dump can tear is one whose slot is recorded into again by
+ * another thread, a whole lap of the ring later, before its own recording has completed.
+ */
+public class FlightRecorder {
+
+    /**
+     * The types of events that are recorded.
+     */
+    public enum Event {
+        /**
+         * A frame was decoded by a {@link ClientConnection}.  The id is the frame's sequence
+         * number in the server's stream and the value is the ordinal of its
+         * {@link ColorCommand.Instruction}.
+         */
+        FRAME_DECODED,
+
+        /**
+         * A batch of frames was passed through a {@link CommandConflater}.  The id is the number of
+         * frames in the batch and the value is the number of commands delivered.
+         */
+        CONFLATED,
+
+        /**
+         * A command was offered to the main thread's queue.  The id is the command's id and the
+         * value is 1 if the command was accepted or 0 if the queue was full.
+         */
+        ENQUEUED,
+
+        /**
+         * A command was applied to the color state.  The id is the command's id and the value is
+         * the ordinal of its {@link ColorCommand.Instruction}.
+         */
+        APPLIED,
+
+        /**
+         * The displayed color was updated.  The id is the id of the last command applied and the
+         * value is the displayed color, in ARGB format.
+         */
+        DISPLAYED,
+
+        /**
+         * A run of frames of a BATCH frame was decoded by a {@link ClientConnection}.  The id is
+         * the sequence number of the first frame of the run and the value is the number of frames
+         * in the run, all of which have the same instruction.
+         */
+        BATCH_DECODED,
+    }
+
+    /**
+     * The default number of events retained by the ring.
+     */
+    public static final int DEFAULT_CAPACITY = 16384;
+
+    /**
+     * The value at the start of a dump file that identifies it as such.
+     */
+    static final int DUMP_MAGIC = 0x52474246;
+
+    /**
+     * The version of the format of dump files.
+     */
+    static final int DUMP_VERSION = 1;
+
+    /**
+     * The number of bytes in the header of a dump file: the magic number, the version, the
+     * {@link System#nanoTime} and {@link System#currentTimeMillis} at which the dump was taken,
+     * and the number of events.
+     */
+    static final int DUMP_HEADER_LENGTH = 4 + 4 + 8 + 8 + 4;
+
+    /**
+     * The number of bytes of each event in a dump file: the timestamp, the event type, the id, and
+     * the value.
+     */
+    static final int DUMP_EVENT_LENGTH = 8 + 1 + 8 + 4;
+
+    private static final Event[] EVENTS = Event.values();
+
+    private static final FlightRecorder sDefault = new FlightRecorder(DEFAULT_CAPACITY);
+
+    private final int mMask;
+
+    // the fields of the events, which are atomic arrays only so that their accesses cannot be
+    // reordered with those of mPublished, without which a dump could copy a torn event
+    private final AtomicLongArray mTimes;
+    private final AtomicIntegerArray mTypes;
+    private final AtomicLongArray mIds;
+    private final AtomicIntegerArray mValues;
+
+    /**
+     * For each slot, one more than the position of the event whose recording in that slot has
+     * completed, or 0 if an event is being recorded into it.
+     */
+    private final AtomicLongArray mPublished;
+
+    /**
+     * The position of the next event to be recorded; the event at position p is stored in slot
+     * (p & mMask).
+     */
+    private final AtomicLong mNextPosition = new AtomicLong();
+
+    private volatile boolean mEnabled = true;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param capacity the number of events to retain; must be a positive power of two.
+     * @throws IllegalArgumentException if the given capacity is not a positive power of two.
+     */
+    public FlightRecorder(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("invalid capacity: " + capacity
+                    + " (must be a positive power of two)");
+        }
+        mMask = capacity - 1;
+        mTimes = new AtomicLongArray(capacity);
+        mTypes = new AtomicIntegerArray(capacity);
+        mIds = new AtomicLongArray(capacity);
+        mValues = new AtomicIntegerArray(capacity);
+        mPublished = new AtomicLongArray(capacity);
+    }
+
+    /**
+     * Returns the recorder into which the command pipeline records its events.
+     */
+    @NonNull
+    public static FlightRecorder getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Returns the number of events that the ring retains.
+     */
+    public int getCapacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * Sets whether or not events are recorded; when disabled, {@link #record} does nothing.
+     * Recording is enabled by default.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Records an event, timestamped with {@link System#nanoTime}.
+     * <p/>
+     * This method may be invoked by any thread.
+     *
+     * @param event the type of the event; must not be null.
+     * @param id the id of the event, whose meaning depends on its type.
+     * @param value the value of the event, whose meaning depends on its type.
+     */
+    public void record(@NonNull Event event, long id, int value) {
+        if (!mEnabled) {
+            return;
+        }
+        final long position = mNextPosition.getAndIncrement();
+        final int slot = (int) (position & mMask);
+        // the ordered stores cannot be moved before the volatile store that unpublishes the slot
+        mPublished.set(slot, 0);
+        mTimes.lazySet(slot, System.nanoTime());
+        mTypes.lazySet(slot, event.ordinal());
+        mIds.lazySet(slot, id);
+        mValues.lazySet(slot, value);
+        mPublished.lazySet(slot, position + 1);
+    }
+
+    /**
+     * Writes the events in the ring, oldest first, to the given file through a memory mapping.
+     * The file is replaced if it exists.  The events remain in the ring.
+     * <p/>
+     * This method may be invoked by any thread, but should not be invoked by the main thread
+     * because it performs file I/O.
+     *
+     * @param file the file to which to write the events; must not be null.
+     * @return the number of events written.
+     * @throws IOException if writing the file fails.
+     */
+    public int dump(@NonNull File file) throws IOException {
+        final long dumpNanos = System.nanoTime();
+        final long dumpMillis = System.currentTimeMillis();
+
+        // copy the events out first so that they are overwritten as little as possible
+        final int capacity = getCapacity();
+        final long[] times = new long[capacity];
+        final byte[] types = new byte[capacity];
+        final long[] ids = new long[capacity];
+        final int[] values = new int[capacity];
+        int count = 0;
+        final long endPosition = mNextPosition.get();
+        for (long position = Math.max(0, endPosition - capacity); position < endPosition;
+                position++) {
+            final int slot = (int) (position & mMask);
+            if (mPublished.get(slot) != position + 1) {
+                continue;
+            }
+            times[count] = mTimes.get(slot);
+            types[count] = (byte) mTypes.get(slot);
+            ids[count] = mIds.get(slot);
+            values[count] = mValues.get(slot);
+            if (mPublished.get(slot) == position + 1) {
+                count++;
+            }
+        }
+
+        final long length = DUMP_HEADER_LENGTH + (long) count * DUMP_EVENT_LENGTH;
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+            final FileChannel channel = raf.getChannel();
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            buffer.putInt(DUMP_MAGIC);
+            buffer.putInt(DUMP_VERSION);
+            buffer.putLong(dumpNanos);
+            buffer.putLong(dumpMillis);
+            buffer.putInt(count);
+            for (int i = 0; i < count; i++) {
+                buffer.putLong(times[i]);
+                buffer.put(types[i]);
+                buffer.putLong(ids[i]);
+                buffer.putInt(values[i]);
+            }
+            buffer.force();
+        } finally {
+            raf.close();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the event type with the given ordinal, or null if the ordinal is invalid.
+     */
+    static Event eventForOrdinal(int ordinal) {
+        return (ordinal >= 0 && ordinal < EVENTS.length) ? EVENTS[ordinal] : null;
+    }
+
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Decodes the frames sent by the RGB Server from a stream of bytes.
+ * <p/>
+ * Bytes are read in large chunks into a reusable buffer by {@link #readFrom} and then all
+ * complete frames in the buffer are parsed in a single pass by {@link #decode}.  Any trailing
+ * partial frame is left in the buffer and completed by the bytes of the next read.  The records of
+ * a BATCH frame are instead decoded as they arrive, in runs delivered to
+ * {@link Listener#onBatchDecoded}, so a batch may be larger than the buffer.
+ * <p/>
+ * This class is not thread-safe; each instance should only be used by one thread at a time.
+ */
+public class FrameDecoder {
+
+    /**
+     * The default size of the buffer into which bytes are read, in bytes.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    /**
+     * The largest number of records of a BATCH frame delivered by a single invocation of
+     * {@link Listener#onBatchDecoded}.
+     */
+    public static final int MAX_BATCH_RUN_LENGTH = 256;
+
+    /**
+     * The buffer into which bytes are read; between method calls it is always in "fill" mode,
+     * with the unparsed bytes between 0 and its position.
+     */
+    @NonNull
+    private final ByteBuffer mBuffer;
+
+    /**
+     * The red, green and blue components of the records of a BATCH frame that are delivered to
+     * {@link Listener#onBatchDecoded}.
+     */
+    private final int[] mBatchComponents = new int[3 * MAX_BATCH_RUN_LENGTH];
+
+    private int mCapabilities;
+
+    // the instruction of the BATCH frame whose records are being decoded, and the number of its
+    // records that have not yet been decoded
+    private ColorCommand.Instruction mBatchInstruction;
+    private int mBatchRemaining;
+
+    /**
+     * Creates a new instance of this class with a buffer of {@link #DEFAULT_BUFFER_SIZE} bytes.
+     */
+    public FrameDecoder() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param bufferSize the size of the buffer into which bytes are read, in bytes; must be at
+     * least {@link Protocol#MAX_FRAME_LENGTH}.
+     * @throws IllegalArgumentException if the given buffer size is too small.
+     */
+    public FrameDecoder(int bufferSize) {
+        if (bufferSize < Protocol.MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("invalid bufferSize: " + bufferSize
+                    + " (must be at least " + Protocol.MAX_FRAME_LENGTH + ")");
+        }
+        mBuffer = ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Sets the capabilities that were agreed on with the server, which determine the frames that
+     * the server may send.  The default is none.
+     *
+     * @param capabilities the {@code CAPABILITY_} flags of {@link Protocol}.
+     */
+    public void setCapabilities(int capabilities) {
+        mCapabilities = capabilities;
+    }
+
+    /**
+     * Performs a single read from the given stream, appending the bytes that were read to the
+     * bytes that have not yet been decoded.
+     *
+     * @param in the stream from which to read; must not be null.
+     * @return the number of bytes read, or -1 if the end of the stream was reached.
+     * @throws IOException if reading from the stream fails.
+     */
+    public int readFrom(@NonNull InputStream in) throws IOException {
+        final ByteBuffer buffer = mBuffer;
+        final int position = buffer.position();
+        final int count = in.read(buffer.array(), buffer.arrayOffset() + position,
+                buffer.remaining());
+        if (count > 0) {
+            buffer.position(position + count);
+        }
+        return count;
+    }
+
+    /**
+     * Performs a single read from the given channel, appending the bytes that were read to the
+     * bytes that have not yet been decoded.
+     *
+     * @param channel the channel from which to read; must not be null; if the channel is in
+     * non-blocking mode then this method may read zero bytes.
+     * @return the number of bytes read, or -1 if the end of the stream was reached.
+     * @throws IOException if reading from the channel fails.
+     */
+    public int readFrom(@NonNull ReadableByteChannel channel) throws IOException {
+        return channel.read(mBuffer);
+    }
+
+    /**
+     * Decodes all complete frames that have been read, notifying the given listener of each one
+     * in the order in which they were received.  Any trailing partial frame is retained until
+     * the rest of its bytes are read.
+     *
+     * @param listener the listener to notify of each decoded frame; must not be null.
+     * @return the number of color frames (that is, RELATIVE and ABSOLUTE frames, including the
+     * records of BATCH frames) that were decoded.
+     * @throws ProtocolException if an invalid opcode is encountered, or a BATCH or PONG frame is
+     * received without the capability that it requires; any frames preceding the invalid frame
+     * will have been delivered to the listener.
+     */
+    public int decode(@NonNull Listener listener) throws ProtocolException {
+        final ByteBuffer buffer = mBuffer;
+        buffer.flip();
+        try {
+            return decodeFrames(buffer, listener);
+        } finally {
+            buffer.compact();
+        }
+    }
+
+    /**
+     * Decodes the frames of a datagram, which must all be complete, notifying the given listener
+     * of each one in the order in which they appear.  The bytes that have been read by
+     * {@link #readFrom} are not affected.
+     *
+     * @param datagram the frames of the datagram, between its position and limit; must not be
+     * null.  Its position is advanced past the decoded frames.
+     * @param listener the listener to notify of each decoded frame; must not be null.
+     * @return the number of color frames that were decoded.
+     * @throws ProtocolException if an invalid opcode is encountered or the datagram ends with a
+     * partial frame; any frames preceding the invalid frame will have been delivered to the
+     * listener.
+     */
+    public int decodeDatagram(@NonNull ByteBuffer datagram, @NonNull Listener listener)
+            throws ProtocolException {
+        final int frameCount = decodeFrames(datagram, listener);
+        if (datagram.hasRemaining() || mBatchRemaining > 0) {
+            mBatchRemaining = 0;
+            throw new ProtocolException("datagram ends with a partial frame");
+        }
+        return frameCount;
+    }
+
+    /**
+     * Decodes the complete frames between the position and the limit of the given buffer,
+     * advancing its position past them.
+     */
+    private int decodeFrames(@NonNull ByteBuffer buffer, @NonNull Listener listener)
+            throws ProtocolException {
+        int frameCount = 0;
+        while (buffer.hasRemaining()) {
+            if (mBatchRemaining > 0) {
+                final int recordCount = decodeBatchRecords(buffer, listener);
+                frameCount += recordCount;
+                if (mBatchRemaining > 0) {
+                    // the rest of the batch has not been read yet
+                    return frameCount;
+                }
+                continue;
+            }
+
+            final int position = buffer.position();
+            final byte opcode = buffer.get(position);
+            final ColorCommand.Instruction instruction;
+            final int r, g, b;
+            switch (opcode) {
+                case Protocol.OPCODE_RELATIVE:
+                    if (buffer.remaining() < 1 + Protocol.RELATIVE_PAYLOAD_LENGTH) {
+                        return frameCount;
+                    }
+                    instruction = ColorCommand.Instruction.RELATIVE;
+                    r = buffer.getShort(position + 1);
+                    g = buffer.getShort(position + 3);
+                    b = buffer.getShort(position + 5);
+                    buffer.position(position + 1 + Protocol.RELATIVE_PAYLOAD_LENGTH);
+                    break;
+                case Protocol.OPCODE_ABSOLUTE:
+                    if (buffer.remaining() < 1 + Protocol.ABSOLUTE_PAYLOAD_LENGTH) {
+                        return frameCount;
+                    }
+                    instruction = ColorCommand.Instruction.ABSOLUTE;
+                    r = buffer.get(position + 1) & 0xFF;
+                    g = buffer.get(position + 2) & 0xFF;
+                    b = buffer.get(position + 3) & 0xFF;
+                    buffer.position(position + 1 + Protocol.ABSOLUTE_PAYLOAD_LENGTH);
+                    break;
+                case Protocol.OPCODE_RESUMED:
+                    if (buffer.remaining() < 1 + Protocol.RESUMED_PAYLOAD_LENGTH) {
+                        return frameCount;
+                    }
+                    final long sequence = buffer.getLong(position + 1);
+                    buffer.position(position + 1 + Protocol.RESUMED_PAYLOAD_LENGTH);
+                    listener.onResumed(sequence);
+                    continue;
+                case Protocol.OPCODE_HELLO_ACK:
+                    if (buffer.remaining() < 1 + Protocol.HELLO_ACK_PAYLOAD_LENGTH) {
+                        return frameCount;
+                    }
+                    final int version = buffer.get(position + 1) & 0xFF;
+                    final int capabilities = buffer.getInt(position + 2);
+                    buffer.position(position + 1 + Protocol.HELLO_ACK_PAYLOAD_LENGTH);
+                    listener.onHelloAcknowledged(version, capabilities);
+                    continue;
+                case Protocol.OPCODE_PONG:
+                    if ((mCapabilities & Protocol.CAPABILITY_HEARTBEAT) == 0) {
+                        throw new ProtocolException("PONG frame received but the heartbeat "
+                                + "capability was not agreed on");
+                    } else if (buffer.remaining() < 1 + Protocol.PONG_PAYLOAD_LENGTH) {
+                        return frameCount;
+                    }
+                    final long token = buffer.getLong(position + 1);
+                    buffer.position(position + 1 + Protocol.PONG_PAYLOAD_LENGTH);
+                    listener.onPong(token);
+                    continue;
+                case Protocol.OPCODE_BATCH:
+                    if ((mCapabilities & Protocol.CAPABILITY_BATCH) == 0) {
+                        throw new ProtocolException("BATCH frame received but the batch "
+                                + "capability was not agreed on");
+                    } else if (buffer.remaining() < 1 + Protocol.BATCH_HEADER_LENGTH) {
+                        return frameCount;
+                    }
+                    final byte batchOpcode = buffer.get(position + 1);
+                    if (batchOpcode == Protocol.OPCODE_RELATIVE) {
+                        mBatchInstruction = ColorCommand.Instruction.RELATIVE;
+                    } else if (batchOpcode == Protocol.OPCODE_ABSOLUTE) {
+                        mBatchInstruction = ColorCommand.Instruction.ABSOLUTE;
+                    } else {
+                        throw new ProtocolException("invalid instruction in BATCH frame: "
+                                + batchOpcode);
+                    }
+                    mBatchRemaining = buffer.getShort(position + 2) & 0xFFFF;
+                    buffer.position(position + 1 + Protocol.BATCH_HEADER_LENGTH);
+                    continue;
+                default:
+                    throw new ProtocolException("invalid instruction: " + opcode);
+            }
+
+            frameCount++;
+            listener.onFrameDecoded(instruction, r, g, b);
+        }
+        return frameCount;
+    }
+
+    /**
+     * Decodes the complete records of the current BATCH frame that are in the given buffer, in
+     * runs of at most {@link #MAX_BATCH_RUN_LENGTH} records.
+     *
+     * @return the number of records that were decoded.
+     */
+    private int decodeBatchRecords(@NonNull ByteBuffer buffer, @NonNull Listener listener) {
+        final ColorCommand.Instruction instruction = mBatchInstruction;
+        final boolean relative = (instruction == ColorCommand.Instruction.RELATIVE);
+        final int recordLength = relative
+                ? Protocol.RELATIVE_PAYLOAD_LENGTH : Protocol.ABSOLUTE_PAYLOAD_LENGTH;
+        final int[] components = mBatchComponents;
+
+        int available = Math.min(buffer.remaining() / recordLength, mBatchRemaining);
+        int decodedCount = 0;
+        while (available > 0) {
+            final int runLength = Math.min(available, MAX_BATCH_RUN_LENGTH);
+            int position = buffer.position();
+            if (relative) {
+                for (int i = 0, j = 0; i < runLength; i++, j += 3) {
+                    components[j] = buffer.getShort(position);
+                    components[j + 1] = buffer.getShort(position + 2);
+                    components[j + 2] = buffer.getShort(position + 4);
+                    position += Protocol.RELATIVE_PAYLOAD_LENGTH;
+                }
+            } else {
+                for (int i = 0, j = 0; i < runLength; i++, j += 3) {
+                    components[j] = buffer.get(position) & 0xFF;
+                    components[j + 1] = buffer.get(position + 1) & 0xFF;
+                    components[j + 2] = buffer.get(position + 2) & 0xFF;
+                    position += Protocol.ABSOLUTE_PAYLOAD_LENGTH;
+                }
+            }
+            buffer.position(position);
+            mBatchRemaining -= runLength;
+            available -= runLength;
+            decodedCount += runLength;
+            listener.onBatchDecoded(instruction, components, runLength);
+        }
+        return decodedCount;
+    }
+
+    /**
+     * Implement this interface to be notified of the frames decoded by {@link #decode}.
+     */
+    public interface Listener {
+
+        /**
+         * Called when a complete frame has been decoded.
+         *
+         * @param instruction the instruction of the frame; will never be null.
+         * @param r the red component of the frame.
+         * @param g the green component of the frame.
+         * @param b the blue component of the frame.
+         */
+        void onFrameDecoded(@NonNull ColorCommand.Instruction instruction, int r, int g, int b);
+
+        /**
+         * Called when a RESUMED frame has been decoded, indicating that the server has accepted
+         * the client's request to resume its stream of frames.
+         *
+         * @param sequence the sequence number of the next color frame that the server will send.
+         */
+        void onResumed(long sequence);
+
+        /**
+         * Called when a HELLO_ACK frame has been decoded, indicating that the server supports the
+         * handshake.  The listener should pass the capabilities that were agreed on to
+         * {@link #setCapabilities}.
+         *
+         * @param version the version of the protocol spoken by the server.
+         * @param capabilities the capabilities that the server will use.
+         */
+        void onHelloAcknowledged(int version, int capabilities);
+
+        /**
+         * Called when a PONG frame has been decoded in response to a PING frame sent by the
+         * client.
+         *
+         * @param token the payload of the PING frame that the server is responding to.
+         */
+        void onPong(long token);
+
+        /**
+         * Called when a run of records of a BATCH frame has been decoded; this is called instead
+         * of {@link #onFrameDecoded} for each of the records.
+         *
+         * @param instruction the instruction of the records; will never be null.
+         * @param components the red, green and blue components of the records, in that order;
+         * will never be null.  The array is reused, so its contents are only valid until this
+         * method returns.
+         * @param count the number of records.
+         */
+        void onBatchDecoded(@NonNull ColorCommand.Instruction instruction,
+                @NonNull int[] components, int count);
+
+    }
+
+}
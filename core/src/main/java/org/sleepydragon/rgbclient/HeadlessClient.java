@@ -0,0 +1,491 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A client that runs on a plain JVM, without Android, for load-testing the client's pipeline
+ * against a server.
+ * <p/>
+ * It connects to the server with a {@link ClientConnection}, hands the commands to a consumer
+ * thread through a {@link SpscCommandQueue} and applies them to a {@link ColorAccumulator}, just
+ * as the app's main thread does, reconnecting with backoff if the connection is lost.  Once per
+ * interval it prints the throughput and the latency from reading each command to applying it;
+ * when it finishes it prints a snapshot of the {@link MetricsRegistry}.
+ * <p/>
+ * A TCP connection is driven by a {@link SelectorEngine}, as in the app, unless the blocking
+ * transport is requested, in which case it runs on a thread of its own.
+ * <p/>
+ * Run it with the host and port of the server as arguments; run it without arguments to print
+ * the available options.
+ */
+public class HeadlessClient implements ClientConnection.Callback {
+
+    private static final Logger LOG = new Logger("HeadlessClient");
+
+    private static final int COMMAND_QUEUE_CAPACITY = 1024;
+    private static final int DRAIN_BATCH_SIZE = 256;
+    private static final int MAX_COMMAND_HISTORY = 100;
+
+    /**
+     * The longest time for which the consumer thread sleeps when there are no commands to apply.
+     */
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final long[] LATENCY_BOUNDS_MICROS = Histogram.exponentialBounds(50, 2.0, 17);
+
+    private static final StripedCounter COMMANDS_APPLIED =
+            MetricsRegistry.getDefault().counter("headless.commands_applied");
+    private static final StripedCounter COMMANDS_DROPPED =
+            MetricsRegistry.getDefault().counter("headless.commands_dropped");
+    private static final Histogram READ_TO_APPLY_LATENCY = MetricsRegistry.getDefault()
+            .histogram("headless.read_to_apply_us", LATENCY_BOUNDS_MICROS);
+
+    @NonNull
+    private final String mHost;
+    private final int mPort;
+    @NonNull
+    private final ClientConnection.Transport mTransport;
+    @NonNull
+    private final CommandConflater.Policy mConflationPolicy;
+    private final boolean mBlocking;
+    @NonNull
+    private final PrintStream mOut;
+
+    private final SpscCommandQueue mCommandQueue = new SpscCommandQueue(COMMAND_QUEUE_CAPACITY);
+    private final ColorCommand[] mDrainBatch = new ColorCommand[DRAIN_BATCH_SIZE];
+    private final ColorAccumulator mAccumulator = new ColorAccumulator(MAX_COMMAND_HISTORY);
+    private final ColorAccumulator.RGB mRGB = new ColorAccumulator.RGB();
+
+    private final ReconnectScheduler mReconnectScheduler =
+            new ReconnectScheduler(500, 30000, 2.0, 0.5);
+
+    /**
+     * Runs the blocking connections, resolves the host name for the selector engine, and
+     * schedules the reconnects; a single thread suffices because only one connection runs at a
+     * time.
+     */
+    private final ScheduledExecutorService mExecutor =
+            Executors.newSingleThreadScheduledExecutor();
+
+    // the engine that drives the TCP connections and its thread, or null if the connections
+    // run on mExecutor instead
+    private SelectorEngine mSelectorEngine;
+    private Thread mSelectorThread;
+
+    private final Object mConnectionMutex = new Object();
+
+    // the active connection and the sequence number from which the next connection should resume
+    // the server's stream; guarded by mConnectionMutex
+    private ClientConnection mConnection;
+    private long mResumeSequence = -1;
+    private boolean mStopped;
+
+    // the latencies of the commands applied during the current interval; only used by the
+    // consumer thread
+    private Histogram mIntervalLatency = new Histogram(LATENCY_BOUNDS_MICROS);
+
+    private volatile Thread mConsumerThread;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param host the host name or IP address of the server; must not be null.
+     * @param port the port number of the server.
+     * @param transport the transport over which to connect to the server; must not be null.
+     * @param conflationPolicy the policy with which each connection merges bursts of frames;
+     * must not be null.
+     * @param blocking whether to run each TCP connection on a thread of its own rather than
+     * driving it with a {@link SelectorEngine}; the UDP transport always does.
+     * @param out the stream to which to print the statistics; must not be null.
+     */
+    public HeadlessClient(@NonNull String host, int port,
+            @NonNull ClientConnection.Transport transport,
+            @NonNull CommandConflater.Policy conflationPolicy, boolean blocking,
+            @NonNull PrintStream out) {
+        mHost = host;
+        mPort = port;
+        mTransport = transport;
+        mConflationPolicy = conflationPolicy;
+        mBlocking = blocking;
+        mOut = out;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        String host = null;
+        int port = -1;
+        ClientConnection.Transport transport = ClientConnection.Transport.TCP;
+        CommandConflater.Policy policy = CommandConflater.Policy.PASS_THROUGH;
+        long durationSeconds = 0;
+        long intervalSeconds = 1;
+        boolean blocking = false;
+        try {
+            for (final String arg : args) {
+                if (arg.startsWith("--policy=")) {
+                    policy = CommandConflater.Policy.valueOf(
+                            arg.substring("--policy=".length()).toUpperCase(Locale.US));
+                } else if (arg.startsWith("--duration=")) {
+                    durationSeconds = Long.parseLong(arg.substring("--duration=".length()));
+                } else if (arg.startsWith("--interval=")) {
+                    intervalSeconds = Long.parseLong(arg.substring("--interval=".length()));
+                } else if (arg.equals("--udp")) {
+                    transport = ClientConnection.Transport.UDP;
+                } else if (arg.equals("--blocking")) {
+                    blocking = true;
+                } else if (arg.equals("--verbose")) {
+                    Logger.setMinPriority(Logger.DEBUG);
+                } else if (host == null) {
+                    host = arg;
+                } else if (port < 0) {
+                    port = Integer.parseInt(arg);
+                } else {
+                    throw new IllegalArgumentException("unexpected argument: " + arg);
+                }
+            }
+            if (host == null || port < 0) {
+                throw new IllegalArgumentException("the host and port must be specified");
+            } else if (intervalSeconds <= 0) {
+                throw new IllegalArgumentException("invalid interval: " + intervalSeconds);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("ERROR: " + e.getMessage());
+            System.err.println("usage: HeadlessClient <host> <port> [--policy=POLICY] "
+                    + "[--duration=SECONDS] [--interval=SECONDS] [--udp] [--blocking] "
+                    + "[--verbose]");
+            System.err.println("  --policy    the conflation policy (default: PASS_THROUGH)");
+            System.err.println("  --duration  the number of seconds to run for, or 0 to run "
+                    + "until killed (default: 0)");
+            System.err.println("  --interval  the number of seconds between statistics lines "
+                    + "(default: 1)");
+            System.err.println("  --udp       receive datagrams instead of a TCP stream");
+            System.err.println("  --blocking  read the TCP stream on a thread of its own "
+                    + "instead of with a selector");
+            System.err.println("  --verbose   log debug messages");
+            System.exit(2);
+            return;
+        }
+
+        final HeadlessClient client = new HeadlessClient(host, port, transport, policy, blocking,
+                System.out);
+        client.run(TimeUnit.SECONDS.toMillis(durationSeconds),
+                TimeUnit.SECONDS.toMillis(intervalSeconds));
+    }
+
+    /**
+     * Connects to the server and applies the commands that it sends until the given duration
+     * elapses, printing statistics once per interval.  The commands are applied by the calling
+     * thread.
+     *
+     * @param durationMillis the time for which to run, in milliseconds, or 0 to run until the
+     * calling thread is interrupted.
+     * @param intervalMillis the time between printing statistics, in milliseconds; must be
+     * greater than zero.
+     */
+    public void run(long durationMillis, long intervalMillis) {
+        mConsumerThread = Thread.currentThread();
+        mOut.println("connecting to " + mHost + ":" + mPort + " over " + mTransport
+                + " with conflation policy " + mConflationPolicy);
+        if (mTransport == ClientConnection.Transport.TCP && !mBlocking) {
+            startSelectorEngine();
+        }
+        startConnection();
+
+        final long intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        final long startNanos = System.nanoTime();
+        final long durationNanos = TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        final IntervalStats stats = new IntervalStats(startNanos);
+        long nextReportNanos = startNanos + intervalNanos;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                applyQueuedCommands();
+
+                final long now = System.nanoTime();
+                if (now - nextReportNanos >= 0) {
+                    stats.print(now, now - startNanos);
+                    nextReportNanos += intervalNanos;
+                }
+                if (durationNanos > 0 && now - startNanos >= durationNanos) {
+                    break;
+                }
+                LockSupport.parkNanos(this, Math.min(MAX_PARK_NANOS, nextReportNanos - now));
+            }
+        } finally {
+            stop();
+        }
+
+        mOut.println();
+        mOut.println("final metrics:");
+        mOut.print(MetricsRegistry.getDefault().snapshot());
+        mOut.println("command queue: " + mCommandQueue);
+    }
+
+    private void applyQueuedCommands() {
+        final ColorCommand[] batch = mDrainBatch;
+        int count;
+        while ((count = mCommandQueue.drain(batch)) > 0) {
+            final int start = mAccumulator.getFastForwardIndex(batch, 0, count);
+            for (int i = start; i < count; i++) {
+                mAccumulator.addCommand(batch[i]);
+            }
+            // the equivalent of MainFragment updating the displayed color
+            mAccumulator.getEffectiveColor(mRGB);
+            final long now = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                final long receivedNanos = batch[i].receivedNanos;
+                if (receivedNanos != 0) {
+                    final long latencyMicros = (now - receivedNanos) / 1000;
+                    READ_TO_APPLY_LATENCY.record(latencyMicros);
+                    mIntervalLatency.record(latencyMicros);
+                }
+                batch[i] = null;
+            }
+            COMMANDS_APPLIED.add(count);
+        }
+    }
+
+    private void startSelectorEngine() {
+        try {
+            mSelectorEngine = new SelectorEngine(mExecutor);
+        } catch (IOException e) {
+            mOut.println("unable to create the selector engine; using a blocking connection: "
+                    + e);
+            return;
+        }
+        mSelectorThread = new Thread(mSelectorEngine, "SelectorEngine");
+        mSelectorThread.start();
+    }
+
+    private void startConnection() {
+        final ClientConnection connection = new ClientConnection(mHost, mPort, this);
+        connection.setTransport(mTransport);
+        connection.setConflationPolicy(mConflationPolicy);
+        synchronized (mConnectionMutex) {
+            if (mStopped) {
+                return;
+            }
+            if (mResumeSequence >= 0) {
+                connection.setResumeSequence(mResumeSequence);
+            }
+            mConnection = connection;
+        }
+        if (mSelectorEngine != null) {
+            mSelectorEngine.register(connection);
+        } else {
+            mExecutor.execute(connection);
+        }
+    }
+
+    private void stop() {
+        final ClientConnection connection;
+        synchronized (mConnectionMutex) {
+            mStopped = true;
+            connection = mConnection;
+            mConnection = null;
+        }
+        if (connection != null) {
+            try {
+                if (!connection.stopAndAwait(1, TimeUnit.SECONDS)) {
+                    LOG.w("the connection did not stop within 1 second");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (mSelectorEngine != null) {
+            mSelectorEngine.requestStop();
+            try {
+                mSelectorThread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Stops the given connection and, if it was the active connection, schedules a reconnect.
+     */
+    private void clearConnection(@NonNull ClientConnection connection) {
+        connection.requestStop();
+        synchronized (mConnectionMutex) {
+            if (mConnection != connection) {
+                return;
+            }
+            mConnection = null;
+            if (connection.getFrameSequence() > 0 || connection.isResumed()) {
+                mResumeSequence = connection.getFrameSequence();
+            }
+        }
+
+        final long delayMillis = mReconnectScheduler.nextDelayMillis();
+        mOut.println("reconnecting in " + delayMillis + " ms");
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                startConnection();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void connectionStateChanged(@NonNull ClientConnection connection, boolean connected) {
+        if (connected) {
+            mOut.println("connected" + (connection.isResumed()
+                    ? " (resuming from frame " + connection.getFrameSequence() + ")" : ""));
+            mReconnectScheduler.reset();
+        } else {
+            mOut.println("disconnected");
+            clearConnection(connection);
+        }
+    }
+
+    @Override
+    public void connectionError(@NonNull ClientConnection connection,
+            @NonNull ConnectionError error, @NonNull String message) {
+        mOut.println("connection error: " + error + ": " + message);
+        clearConnection(connection);
+    }
+
+    @Override
+    public void commandReceived(@NonNull ClientConnection connection,
+            @NonNull ColorCommand command) {
+        if (!mCommandQueue.offer(command)) {
+            // unlike the app, which catches up from its history, the command is simply lost
+            COMMANDS_DROPPED.increment();
+        }
+        LockSupport.unpark(mConsumerThread);
+    }
+
+    @Override
+    public void commandsReceived(@NonNull ClientConnection connection,
+            @NonNull ColorCommand[] commands, int count) {
+        final int addedCount = mCommandQueue.offerAll(commands, count);
+        if (addedCount < count) {
+            COMMANDS_DROPPED.add(count - addedCount);
+        }
+        LockSupport.unpark(mConsumerThread);
+    }
+
+    /**
+     * Computes and prints the statistics of each interval from the differences between the values
+     * of the counters at its start and end.
+     */
+    private class IntervalStats {
+
+        private final MetricsRegistry mRegistry = MetricsRegistry.getDefault();
+        private final StripedCounter mRelativeFrames =
+                mRegistry.counter("connection.frames.relative");
+        private final StripedCounter mAbsoluteFrames =
+                mRegistry.counter("connection.frames.absolute");
+        private final StripedCounter mBytesRead = mRegistry.counter("connection.bytes_read");
+        private final StripedCounter mLostDatagrams =
+                mRegistry.counter("connection.datagrams.lost");
+        private final StripedCounter mReorderedDatagrams =
+                mRegistry.counter("connection.datagrams.reordered");
+
+        private long mStartNanos;
+        private long mFrames;
+        private long mCommands;
+        private long mBytes;
+        private long mDropped;
+        private long mLost;
+        private long mReordered;
+
+        public IntervalStats(long startNanos) {
+            mStartNanos = startNanos;
+            mFrames = mRelativeFrames.get() + mAbsoluteFrames.get();
+            mCommands = COMMANDS_APPLIED.get();
+            mBytes = mBytesRead.get();
+            mDropped = COMMANDS_DROPPED.get();
+            mLost = mLostDatagrams.get();
+            mReordered = mReorderedDatagrams.get();
+        }
+
+        public void print(long now, long elapsedNanos) {
+            final double seconds = (now - mStartNanos) / 1000000000.0;
+            final long frames = mRelativeFrames.get() + mAbsoluteFrames.get();
+            final long commands = COMMANDS_APPLIED.get();
+            final long bytes = mBytesRead.get();
+            final long dropped = COMMANDS_DROPPED.get();
+            final long lost = mLostDatagrams.get();
+            final long reordered = mReorderedDatagrams.get();
+
+            final StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.US,
+                    "[%7.1fs] %9.0f frames/s %9.0f commands/s %8.1f KiB/s  queue %4d  dropped %d",
+                    elapsedNanos / 1000000000.0,
+                    (frames - mFrames) / seconds,
+                    (commands - mCommands) / seconds,
+                    (bytes - mBytes) / seconds / 1024,
+                    mCommandQueue.size(),
+                    dropped - mDropped));
+            if (mTransport == ClientConnection.Transport.UDP) {
+                sb.append("  datagrams lost ").append(lost - mLost).append(" reordered ")
+                        .append(reordered - mReordered);
+            }
+
+            final ClientConnection connection;
+            synchronized (mConnectionMutex) {
+                connection = mConnection;
+            }
+            if (connection != null) {
+                final long rttNanos = connection.getHeartbeat().getSmoothedRttNanos();
+                if (rttNanos >= 0) {
+                    sb.append(String.format(Locale.US, "  rtt %.2fms", rttNanos / 1000000.0));
+                }
+            }
+
+            final Histogram latency = mIntervalLatency;
+            if (latency.getCount() > 0) {
+                sb.append("  latency p50<=").append(formatBound(latency.getPercentileBound(0.5)))
+                        .append(" p99<=").append(formatBound(latency.getPercentileBound(0.99)))
+                        .append(" max=").append(latency.getMax()).append("us");
+            }
+            if (mAccumulator.getEffectiveColor(mRGB)) {
+                sb.append("  color (").append(mRGB.r).append(", ").append(mRGB.g).append(", ")
+                        .append(mRGB.b).append(')');
+            }
+            mOut.println(sb);
+
+            mStartNanos = now;
+            mFrames = frames;
+            mCommands = commands;
+            mBytes = bytes;
+            mDropped = dropped;
+            mLost = lost;
+            mReordered = reordered;
+            mIntervalLatency = new Histogram(LATENCY_BOUNDS_MICROS);
+        }
+
+        @NonNull
+        private String formatBound(long boundMicros) {
+            return (boundMicros == Long.MAX_VALUE) ? "inf" : (boundMicros + "us");
+        }
+
+    }
+
+}
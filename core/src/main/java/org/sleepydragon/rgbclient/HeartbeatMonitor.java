@@ -0,0 +1,263 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when to send PING frames to the server, estimates the round-trip time from the PONG
+ * frames that it sends in response, and decides when the server has stalled.
+ * <p/>
+ * The round-trip time is smoothed the way that TCP smooths it (RFC 6298): the estimate and the
+ * mean deviation of the samples from it are exponentially-weighted moving averages.  Since the
+ * server answers every PING frame, a healthy server is never silent for much longer than the ping
+ * interval, even when it has no frames to send; the server is therefore considered stalled once
+ * nothing at all has been received from it for longer than the idle timeout, which is twice the
+ * ping interval plus a margin of twice the smoothed round-trip time plus four times its deviation,
+ * capped at {@link #MAX_IDLE_TIMEOUT_MILLIS}.  The PONG frames queue behind the frames that the
+ * server has already sent, so the margin grows when the client falls behind a busy server and
+ * shrinks again when it catches up; on a fast, idle network stalls are detected in about two ping
+ * intervals.
+ * <p/>
+ * This class is not thread-safe; each instance should only be used by one thread at a time,
+ * although the statistics may be read by any thread.
+ */
+public class HeartbeatMonitor {
+
+    /**
+     * The default interval at which PING frames are sent, in milliseconds.
+     */
+    public static final int DEFAULT_PING_INTERVAL_MILLIS = 1000;
+
+    /**
+     * The largest idle timeout, in milliseconds, no matter how large the round-trip time.
+     */
+    public static final int MAX_IDLE_TIMEOUT_MILLIS = 30000;
+
+    /**
+     * The round-trip time to assume until the first PONG frame is received, as recommended by RFC
+     * 6298; its deviation is assumed to be half of it.
+     */
+    private static final long INITIAL_RTT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final long mPingIntervalNanos;
+
+    private boolean mStarted;
+    private long mStartNanos;
+    private long mLastReceivedNanos;
+    private long mNextPingNanos;
+    private long mLastPingToken;
+
+    private volatile long mSmoothedRttNanos = -1;
+    private volatile long mRttVariationNanos = -1;
+    private volatile long mLastRttNanos = -1;
+    private volatile long mIdleTimeoutNanos;
+    private volatile long mPingCount;
+    private volatile long mPongCount;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param pingIntervalMillis the interval at which to send PING frames, in milliseconds; must
+     * be greater than zero.
+     * @throws IllegalArgumentException if the given interval is not greater than zero.
+     */
+    public HeartbeatMonitor(int pingIntervalMillis) {
+        if (pingIntervalMillis <= 0) {
+            throw new IllegalArgumentException("invalid pingIntervalMillis: "
+                    + pingIntervalMillis);
+        }
+        mPingIntervalNanos = TimeUnit.MILLISECONDS.toNanos(pingIntervalMillis);
+        mIdleTimeoutNanos = computeIdleTimeoutNanos(INITIAL_RTT_NANOS, INITIAL_RTT_NANOS / 2);
+    }
+
+    /**
+     * Starts monitoring the server, which should be done once it has agreed to answer PING
+     * frames; the first PING frame is due immediately.
+     *
+     * @param now the current value of {@link System#nanoTime}.
+     */
+    public void start(long now) {
+        mStarted = true;
+        mStartNanos = now;
+        mLastReceivedNanos = now;
+        mNextPingNanos = now;
+        mLastPingToken = now;
+    }
+
+    /**
+     * Returns whether or not {@link #start} has been invoked.
+     */
+    public boolean isStarted() {
+        return mStarted;
+    }
+
+    /**
+     * Records that bytes of any kind were received from the server, which shows that it is alive.
+     *
+     * @param now the value of {@link System#nanoTime} at which the bytes were read.
+     */
+    public void onReceived(long now) {
+        mLastReceivedNanos = now;
+    }
+
+    /**
+     * Returns whether or not it is time to send a PING frame.
+     *
+     * @param now the current value of {@link System#nanoTime}.
+     */
+    public boolean isPingDue(long now) {
+        return mStarted && now - mNextPingNanos >= 0;
+    }
+
+    /**
+     * Records that a PING frame is being sent and schedules the next one.
+     *
+     * @param now the current value of {@link System#nanoTime}.
+     * @return the payload to send in the PING frame, which the server echoes in its PONG frame.
+     */
+    public long onPingSent(long now) {
+        mPingCount++;
+        mNextPingNanos = now + mPingIntervalNanos;
+        mLastPingToken = now;
+        return now;
+    }
+
+    /**
+     * Records the receipt of a PONG frame, updating the round-trip time estimate.
+     *
+     * @param token the payload of the PONG frame.
+     * @param now the value of {@link System#nanoTime} at which the PONG frame was read.
+     * @return true if the PONG frame answered a PING frame sent by {@link #onPingSent}, or false
+     * if it did not and was ignored.
+     */
+    public boolean onPong(long token, long now) {
+        if (!mStarted || token - mStartNanos < 0 || token - mLastPingToken > 0
+                || now - token < 0) {
+            return false;
+        }
+        mPongCount++;
+        final long rtt = now - token;
+        mLastRttNanos = rtt;
+
+        long srtt = mSmoothedRttNanos;
+        long rttvar = mRttVariationNanos;
+        if (srtt < 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            // alpha = 1/8 and beta = 1/4, as recommended by RFC 6298
+            rttvar += (Math.abs(srtt - rtt) - rttvar) / 4;
+            srtt += (rtt - srtt) / 8;
+        }
+        mSmoothedRttNanos = srtt;
+        mRttVariationNanos = rttvar;
+        mIdleTimeoutNanos = computeIdleTimeoutNanos(srtt, rttvar);
+        return true;
+    }
+
+    private long computeIdleTimeoutNanos(long srtt, long rttvar) {
+        final long timeout = (2 * mPingIntervalNanos) + (2 * (srtt + (4 * rttvar)));
+        return Math.min(timeout, TimeUnit.MILLISECONDS.toNanos(MAX_IDLE_TIMEOUT_MILLIS));
+    }
+
+    /**
+     * Returns whether or not the server has been silent for longer than the idle timeout.
+     *
+     * @param now the current value of {@link System#nanoTime}.
+     */
+    public boolean isStalled(long now) {
+        return mStarted && now - mLastReceivedNanos > mIdleTimeoutNanos;
+    }
+
+    /**
+     * Returns how long the caller may wait before it must either send the next PING frame or
+     * check whether the server has stalled.
+     *
+     * @param now the current value of {@link System#nanoTime}.
+     * @return the time to wait, in nanoseconds, which is zero if something is due now, or -1 if
+     * monitoring has not started.
+     */
+    public long getNanosUntilDue(long now) {
+        if (!mStarted) {
+            return -1;
+        }
+        final long untilPing = mNextPingNanos - now;
+        final long untilStall = mLastReceivedNanos + mIdleTimeoutNanos - now + 1;
+        return Math.max(0, Math.min(untilPing, untilStall));
+    }
+
+    /**
+     * Returns the time for which the server may be silent before it is considered stalled, in
+     * nanoseconds.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    public long getIdleTimeoutNanos() {
+        return mIdleTimeoutNanos;
+    }
+
+    /**
+     * Returns the smoothed round-trip time, in nanoseconds, or -1 if no PONG frame has been
+     * received.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    public long getSmoothedRttNanos() {
+        return mSmoothedRttNanos;
+    }
+
+    /**
+     * Returns the mean deviation of the round-trip time samples from the smoothed round-trip
+     * time, in nanoseconds, or -1 if no PONG frame has been received.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    public long getRttVariationNanos() {
+        return mRttVariationNanos;
+    }
+
+    /**
+     * Returns the round-trip time measured by the most recent PONG frame, in nanoseconds, or -1
+     * if no PONG frame has been received.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    public long getLastRttNanos() {
+        return mLastRttNanos;
+    }
+
+    /**
+     * Returns the number of PING frames that were sent.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    public long getPingCount() {
+        return mPingCount;
+    }
+
+    /**
+     * Returns the number of PONG frames that were received in response to them.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    public long getPongCount() {
+        return mPongCount;
+    }
+
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how many recorded values fall into each of a fixed set of buckets, such as to measure
+ * the distribution of latencies.
+ * <p/>
+ * The upper bounds of the buckets are specified when the histogram is created; a value is counted
+ * in the first bucket whose upper bound is greater than or equal to it, or in an overflow bucket
+ * if it is greater than all of the upper bounds.  Recording a value never locks or allocates.
+ * <p/>
+ * This class is thread-safe.
+ */
+public class Histogram {
+
+    @NonNull
+    private final long[] mUpperBounds;
+
+    /**
+     * The number of values in each bucket; the last element is the overflow bucket.
+     */
+    @NonNull
+    private final AtomicLongArray mCounts;
+
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param upperBounds the inclusive upper bounds of the buckets, in strictly increasing order;
+     * must not be null or empty.  The array is copied.
+     * @throws IllegalArgumentException if the given upper bounds are empty or not strictly
+     * increasing.
+     */
+    public Histogram(@NonNull long[] upperBounds) {
+        if (upperBounds.length == 0) {
+            throw new IllegalArgumentException("no upper bounds specified");
+        }
+        for (int i = 1; i < upperBounds.length; i++) {
+            if (upperBounds[i] <= upperBounds[i - 1]) {
+                throw new IllegalArgumentException("invalid upper bounds: "
+                        + Arrays.toString(upperBounds) + " (must be strictly increasing)");
+            }
+        }
+        mUpperBounds = upperBounds.clone();
+        mCounts = new AtomicLongArray(upperBounds.length + 1);
+    }
+
+    /**
+     * Creates upper bounds that grow exponentially, which suit values such as latencies whose
+     * relative rather than absolute precision matters.
+     *
+     * @param first the upper bound of the first bucket; must be greater than zero.
+     * @param factor the ratio between the upper bounds of successive buckets; must be greater
+     * than 1.
+     * @param count the number of upper bounds; must be greater than zero.
+     * @return the upper bounds, which can be specified to the constructor; never returns null.
+     * @throws IllegalArgumentException if any of the arguments are invalid.
+     */
+    @NonNull
+    public static long[] exponentialBounds(long first, double factor, int count) {
+        if (first <= 0) {
+            throw new IllegalArgumentException("invalid first: " + first);
+        } else if (factor <= 1.0) {
+            throw new IllegalArgumentException("invalid factor: " + factor);
+        } else if (count <= 0) {
+            throw new IllegalArgumentException("invalid count: " + count);
+        }
+        final long[] bounds = new long[count];
+        double bound = first;
+        for (int i = 0; i < count; i++) {
+            // ensure that the bounds are strictly increasing even if the factor is small
+            bounds[i] = (i == 0) ? first : Math.max(bounds[i - 1] + 1, Math.round(bound));
+            bound *= factor;
+        }
+        return bounds;
+    }
+
+    /**
+     * Records a value.
+     * <p/>
+     * This method may be invoked by any thread.
+     *
+     * @param value the value to record.
+     */
+    public void record(long value) {
+        int index = Arrays.binarySearch(mUpperBounds, value);
+        if (index < 0) {
+            index = -(index + 1);
+        }
+        mCounts.getAndIncrement(index);
+        mSum.getAndAdd(value);
+        while (true) {
+            final long max = mMax.get();
+            if (value <= max || mMax.compareAndSet(max, value)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of values that have been recorded.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < mCounts.length(); i++) {
+            count += mCounts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the largest value that has been recorded, or {@link Long#MIN_VALUE} if no values
+     * have been recorded.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * Returns an upper bound of the given percentile of the values that have been recorded,
+     * estimated from the buckets: the upper bound of the bucket that contains it, or
+     * {@link Long#MAX_VALUE} if it is in the overflow bucket or no values have been recorded.
+     * <p/>
+     * This method may be invoked by any thread.
+     *
+     * @param percentile the percentile, between 0 and 1, such as 0.99 for the 99th percentile.
+     */
+    public long getPercentileBound(double percentile) {
+        final long[] counts = new long[mCounts.length()];
+        long count = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = mCounts.get(i);
+            count += counts[i];
+        }
+        final int index = percentileIndex(counts, count, percentile);
+        return (index < mUpperBounds.length) ? mUpperBounds[index] : Long.MAX_VALUE;
+    }
+
+    /**
+     * Writes a textual representation of this histogram to the given object: the number of values
+     * recorded, their mean and maximum, upper bounds of their 50th, 90th and 99th percentiles
+     * (estimated from the buckets), and the number of values in each non-empty bucket.  The
+     * values recorded concurrently with this method may or may not be included.
+     *
+     * @param name the name of this histogram, with which the line is prefixed; must not be null.
+     * @param out the object to which to write; must not be null.
+     * @throws IOException if writing to the given object fails.
+     */
+    void writeTo(@NonNull String name, @NonNull Appendable out) throws IOException {
+        final long[] counts = new long[mCounts.length()];
+        long count = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = mCounts.get(i);
+            count += counts[i];
+        }
+
+        out.append("histogram ").append(name).append(" count=").append(String.valueOf(count));
+        if (count > 0) {
+            out.append(" mean=").append(String.valueOf(mSum.get() / count))
+                    .append(" max=").append(String.valueOf(mMax.get()))
+                    .append(" p50<=").append(percentileBound(counts, count, 0.50))
+                    .append(" p90<=").append(percentileBound(counts, count, 0.90))
+                    .append(" p99<=").append(percentileBound(counts, count, 0.99));
+        }
+        out.append('\n');
+
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0) {
+                continue;
+            }
+            out.append("  le=").append(bucketName(i))
+                    .append(' ').append(String.valueOf(counts[i])).append('\n');
+        }
+    }
+
+    @NonNull
+    private String percentileBound(@NonNull long[] counts, long count, double percentile) {
+        return bucketName(percentileIndex(counts, count, percentile));
+    }
+
+    /**
+     * Returns the index of the bucket that contains the given percentile of the values, or the
+     * index of the overflow bucket if no values were recorded.
+     */
+    private static int percentileIndex(@NonNull long[] counts, long count, double percentile) {
+        final long rank = Math.max(1, (long) Math.ceil(count * percentile));
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            if (cumulative >= rank) {
+                return i;
+            }
+        }
+        return counts.length - 1;
+    }
+
+    @NonNull
+    private String bucketName(int index) {
+        return (index < mUpperBounds.length) ? String.valueOf(mUpperBounds[index]) : "inf";
+    }
+
+}
@@ -0,0 +1,485 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Provides methods to conveniently log messages with an application-specific log tag.
+ * <p/>
+ * This class is intended to have one static instance per class that uses it.  Each class sets its
+ * own "sub-tag" that will be automatically prepended to all messages that it logs.
+ * <p/>
+ * The messages are written to a {@link Sink}, which by default writes them to standard error;
+ * the app replaces it with one that writes them to logcat.  Messages below a minimum priority are
+ * suppressed; by default that is {@link #INFO}.  Messages that are built from values
+ * should use the overloads that take a pattern and arguments, where each occurrence of "{}" in the
+ * pattern is replaced by the next argument: the message is only built if it will actually be
+ * logged, and the overloads that take primitive arguments avoid boxing them, so a suppressed
+ * message costs nothing but the priority check.  Code that does additional work to compute the
+ * arguments should check {@link #isDebugEnabled} or {@link #isVerboseEnabled} first.
+ */
+public class Logger {
+
+    /**
+     * The log tag that will be used in all logcat messages emitted by this class.
+     */
+    public static final String LOG_TAG = "RgbClient";
+
+    // the priorities of messages, which have the same values as those of android.util.Log
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    private static final String PLACEHOLDER = "{}";
+
+    private static volatile int sMinPriority = INFO;
+
+    @NonNull
+    private static volatile Sink sSink = new PrintStreamSink(System.err);
+
+    private final String mSubTag;
+    private final String mPrefix;
+    private final ConcurrentHashMap<String, Logger> mSubLoggers = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param subTag the log "sub-tag" to prepend to each log messages emitted by this object;
+     * must not be null.
+     */
+    public Logger(@NonNull String subTag) {
+        this(null, subTag);
+    }
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param parentLogger the Logger whose child to create; may be null if this logger has no
+     * parent.
+     * @param subTag the log "sub-tag" to prepend to each log messages emitted by this object;
+     * must not be null.
+     */
+    public Logger(@Nullable Logger parentLogger, @NonNull String subTag) {
+        mSubTag = (parentLogger == null) ? subTag : (parentLogger.mSubTag + ": " + subTag);
+        mPrefix = mSubTag + ": ";
+    }
+
+    /**
+     * Sets the minimum priority of the messages that are logged by all loggers.
+     * <p/>
+     * This method may be invoked by any thread.
+     *
+     * @param priority the minimum priority, such as {@link #DEBUG}.
+     */
+    public static void setMinPriority(int priority) {
+        sMinPriority = priority;
+    }
+
+    /**
+     * Returns the minimum priority of the messages that are logged.
+     *
+     * @see #setMinPriority
+     */
+    public static int getMinPriority() {
+        return sMinPriority;
+    }
+
+    /**
+     * Sets the object to which the messages of all loggers are written.
+     * <p/>
+     * This method may be invoked by any thread.
+     *
+     * @param sink the sink to which to write messages; must not be null.
+     */
+    public static void setSink(@NonNull Sink sink) {
+        sSink = sink;
+    }
+
+    /**
+     * Returns the object to which messages are written.
+     *
+     * @see #setSink
+     */
+    @NonNull
+    public static Sink getSink() {
+        return sSink;
+    }
+
+    /**
+     * Returns whether or not "debug" level messages are logged.
+     */
+    public boolean isDebugEnabled() {
+        return (sMinPriority <= DEBUG);
+    }
+
+    /**
+     * Returns whether or not "verbose" level messages are logged.
+     */
+    public boolean isVerboseEnabled() {
+        return (sMinPriority <= VERBOSE);
+    }
+
+    /**
+     * Logs an "information" level message.
+     *
+     * @param message the message to log; should not be null.
+     */
+    public void i(@NonNull String message) {
+        if (sMinPriority <= INFO) {
+            sSink.log(INFO, LOG_TAG, createLogMessage(message));
+        }
+    }
+
+    /**
+     * Logs an "information" level message built from the given pattern and argument.
+     */
+    public void i(@NonNull String pattern, @Nullable Object arg) {
+        if (sMinPriority <= INFO) {
+            sSink.log(INFO, LOG_TAG, format(pattern, arg));
+        }
+    }
+
+    /**
+     * Logs an "information" level message built from the given pattern and arguments.
+     */
+    public void i(@NonNull String pattern, @Nullable Object arg1, @Nullable Object arg2) {
+        if (sMinPriority <= INFO) {
+            sSink.log(INFO, LOG_TAG, format(pattern, arg1, arg2));
+        }
+    }
+
+    /**
+     * Logs an "information" level message built from the given pattern and arguments.
+     */
+    public void i(@NonNull String pattern, @Nullable Object arg1, @Nullable Object arg2,
+            @Nullable Object arg3) {
+        if (sMinPriority <= INFO) {
+            sSink.log(INFO, LOG_TAG, format(pattern, arg1, arg2, arg3));
+        }
+    }
+
+    /**
+     * Logs a "debug" level message.
+     * Note that "debug" level messages are suppressed on release builds of this application.
+     *
+     * @param message the message to log; should not be null.
+     */
+    public void d(@NonNull String message) {
+        if (sMinPriority <= DEBUG) {
+            sSink.log(DEBUG, LOG_TAG, createLogMessage(message));
+        }
+    }
+
+    /**
+     * Logs a "debug" level message built from the given pattern and argument.
+     */
+    public void d(@NonNull String pattern, @Nullable Object arg) {
+        if (sMinPriority <= DEBUG) {
+            sSink.log(DEBUG, LOG_TAG, format(pattern, arg));
+        }
+    }
+
+    /**
+     * Logs a "debug" level message built from the given pattern and arguments.
+     */
+    public void d(@NonNull String pattern, @Nullable Object arg1, @Nullable Object arg2) {
+        if (sMinPriority <= DEBUG) {
+            sSink.log(DEBUG, LOG_TAG, format(pattern, arg1, arg2));
+        }
+    }
+
+    /**
+     * Logs a "debug" level message built from the given pattern and arguments.
+     */
+    public void d(@NonNull String pattern, @Nullable Object arg1, @Nullable Object arg2,
+            @Nullable Object arg3) {
+        if (sMinPriority <= DEBUG) {
+            sSink.log(DEBUG, LOG_TAG, format(pattern, arg1, arg2, arg3));
+        }
+    }
+
+    /**
+     * Logs a "debug" level message built from the given pattern and argument.
+     */
+    public void d(@NonNull String pattern, long arg) {
+        if (sMinPriority <= DEBUG) {
+            sSink.log(DEBUG, LOG_TAG, format(pattern, arg));
+        }
+    }
+
+    /**
+     * Logs a "debug" level message built from the given pattern and arguments.
+     */
+    public void d(@NonNull String pattern, @Nullable Object arg1, long arg2) {
+        if (sMinPriority <= DEBUG) {
+            sSink.log(DEBUG, LOG_TAG, format(pattern, arg1, arg2));
+        }
+    }
+
+    /**
+     * Logs a "debug" level message built from the given pattern and arguments.
+     */
+    public void d(@NonNull String pattern, @Nullable Object arg1, int arg2, int arg3, int arg4) {
+        if (sMinPriority <= DEBUG) {
+            sSink.log(DEBUG, LOG_TAG, format(pattern, arg1, arg2, arg3, arg4));
+        }
+    }
+
+    /**
+     * Logs a "verbose" level message.
+     * Note that "verbose" level messages are suppressed on release builds of this application.
+     *
+     * @param message the message to log; should not be null.
+     */
+    public void v(@NonNull String message) {
+        if (sMinPriority <= VERBOSE) {
+            sSink.log(VERBOSE, LOG_TAG, createLogMessage(message));
+        }
+    }
+
+    /**
+     * Logs a "verbose" level message built from the given pattern and argument.
+     */
+    public void v(@NonNull String pattern, @Nullable Object arg) {
+        if (sMinPriority <= VERBOSE) {
+            sSink.log(VERBOSE, LOG_TAG, format(pattern, arg));
+        }
+    }
+
+    /**
+     * Logs a "verbose" level message built from the given pattern and arguments.
+     */
+    public void v(@NonNull String pattern, @Nullable Object arg1, @Nullable Object arg2) {
+        if (sMinPriority <= VERBOSE) {
+            sSink.log(VERBOSE, LOG_TAG, format(pattern, arg1, arg2));
+        }
+    }
+
+    /**
+     * Logs a "verbose" level message built from the given pattern and argument.
+     */
+    public void v(@NonNull String pattern, long arg) {
+        if (sMinPriority <= VERBOSE) {
+            sSink.log(VERBOSE, LOG_TAG, format(pattern, arg));
+        }
+    }
+
+    /**
+     * Logs a "warning" level message.
+     *
+     * @param message the message to log; should not be null.
+     */
+    public void w(@NonNull String message) {
+        if (sMinPriority <= WARN) {
+            sSink.log(WARN, LOG_TAG, createLogMessage(message));
+        }
+    }
+
+    /**
+     * Logs a "warning" level message built from the given pattern and argument.
+     */
+    public void w(@NonNull String pattern, @Nullable Object arg) {
+        if (sMinPriority <= WARN) {
+            sSink.log(WARN, LOG_TAG, format(pattern, arg));
+        }
+    }
+
+    /**
+     * Logs a "warning" level message built from the given pattern and arguments.
+     */
+    public void w(@NonNull String pattern, @Nullable Object arg1, @Nullable Object arg2) {
+        if (sMinPriority <= WARN) {
+            sSink.log(WARN, LOG_TAG, format(pattern, arg1, arg2));
+        }
+    }
+
+    /**
+     * Returns a Logger with this logger as the parent.
+     * Invoking this method is the same as using the {@link #Logger(Logger, String)} constructor
+     * except that the sub-logger for each sub-tag is only created once and then reused, so this
+     * method can be invoked repeatedly without allocating.  The sub-tag should therefore be one of
+     * a fixed set of values, such as a method name.
+     * <p/>
+     * This method may be invoked by any thread.
+     *
+     * @param subTag the log "sub-tag" to prepend to each log messages emitted by this object;
+     * must not be null.
+     * @return the Logger; never returns null.
+     */
+    @NonNull
+    public Logger createSubLogger(@NonNull String subTag) {
+        final Logger logger = mSubLoggers.get(subTag);
+        if (logger != null) {
+            return logger;
+        }
+        final Logger newLogger = new Logger(this, subTag);
+        final Logger existingLogger = mSubLoggers.putIfAbsent(subTag, newLogger);
+        return (existingLogger == null) ? newLogger : existingLogger;
+    }
+
+    private String createLogMessage(@NonNull String message) {
+        return mPrefix + message;
+    }
+
+    @NonNull
+    private String format(@NonNull String pattern, @Nullable Object arg) {
+        final StringBuilder sb = new StringBuilder(mPrefix);
+        int index = appendUntilPlaceholder(sb, pattern, 0);
+        sb.append(arg);
+        appendUntilPlaceholder(sb, pattern, index);
+        return sb.toString();
+    }
+
+    @NonNull
+    private String format(@NonNull String pattern, @Nullable Object arg1, @Nullable Object arg2) {
+        final StringBuilder sb = new StringBuilder(mPrefix);
+        int index = appendUntilPlaceholder(sb, pattern, 0);
+        sb.append(arg1);
+        index = appendUntilPlaceholder(sb, pattern, index);
+        sb.append(arg2);
+        appendUntilPlaceholder(sb, pattern, index);
+        return sb.toString();
+    }
+
+    @NonNull
+    private String format(@NonNull String pattern, @Nullable Object arg1, @Nullable Object arg2,
+            @Nullable Object arg3) {
+        final StringBuilder sb = new StringBuilder(mPrefix);
+        int index = appendUntilPlaceholder(sb, pattern, 0);
+        sb.append(arg1);
+        index = appendUntilPlaceholder(sb, pattern, index);
+        sb.append(arg2);
+        index = appendUntilPlaceholder(sb, pattern, index);
+        sb.append(arg3);
+        appendUntilPlaceholder(sb, pattern, index);
+        return sb.toString();
+    }
+
+    @NonNull
+    private String format(@NonNull String pattern, long arg) {
+        final StringBuilder sb = new StringBuilder(mPrefix);
+        int index = appendUntilPlaceholder(sb, pattern, 0);
+        sb.append(arg);
+        appendUntilPlaceholder(sb, pattern, index);
+        return sb.toString();
+    }
+
+    @NonNull
+    private String format(@NonNull String pattern, @Nullable Object arg1, long arg2) {
+        final StringBuilder sb = new StringBuilder(mPrefix);
+        int index = appendUntilPlaceholder(sb, pattern, 0);
+        sb.append(arg1);
+        index = appendUntilPlaceholder(sb, pattern, index);
+        sb.append(arg2);
+        appendUntilPlaceholder(sb, pattern, index);
+        return sb.toString();
+    }
+
+    @NonNull
+    private String format(@NonNull String pattern, @Nullable Object arg1, int arg2, int arg3,
+            int arg4) {
+        final StringBuilder sb = new StringBuilder(mPrefix);
+        int index = appendUntilPlaceholder(sb, pattern, 0);
+        sb.append(arg1);
+        index = appendUntilPlaceholder(sb, pattern, index);
+        sb.append(arg2);
+        index = appendUntilPlaceholder(sb, pattern, index);
+        sb.append(arg3);
+        index = appendUntilPlaceholder(sb, pattern, index);
+        sb.append(arg4);
+        appendUntilPlaceholder(sb, pattern, index);
+        return sb.toString();
+    }
+
+    /**
+     * Appends the characters of the given pattern starting at the given index up to the next
+     * placeholder, or to the end of the pattern if there are no more placeholders.
+     *
+     * @return the index of the character following the placeholder, or the length of the pattern
+     * if there are no more placeholders.
+     */
+    private static int appendUntilPlaceholder(@NonNull StringBuilder sb, @NonNull String pattern,
+            int startIndex) {
+        final int placeholderIndex = pattern.indexOf(PLACEHOLDER, startIndex);
+        if (placeholderIndex < 0) {
+            sb.append(pattern, startIndex, pattern.length());
+            return pattern.length();
+        }
+        sb.append(pattern, startIndex, placeholderIndex);
+        return placeholderIndex + PLACEHOLDER.length();
+    }
+
+    /**
+     * Implement this interface to receive the messages logged by all loggers.
+     */
+    public interface Sink {
+
+        /**
+         * Writes a message.  This method is invoked by whichever thread logged the message, so it
+         * must be thread-safe.
+         *
+         * @param priority the priority of the message, such as {@link #INFO}.
+         * @param tag the log tag; will never be null.
+         * @param message the message, prefixed with the sub-tag of the logger; will never be null.
+         */
+        void log(int priority, @NonNull String tag, @NonNull String message);
+
+    }
+
+    /**
+     * A sink that writes each message as a line to a {@link PrintStream}, prefixed with the time
+     * and the priority, for use outside of Android.
+     */
+    public static class PrintStreamSink implements Sink {
+
+        private static final String PRIORITY_LETTERS = "??VDIWE";
+
+        @NonNull
+        private final PrintStream mOut;
+        @NonNull
+        private final SimpleDateFormat mDateFormat =
+                new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+
+        public PrintStreamSink(@NonNull PrintStream out) {
+            mOut = out;
+        }
+
+        @Override
+        public void log(int priority, @NonNull String tag, @NonNull String message) {
+            final char priorityLetter = (priority >= 0 && priority < PRIORITY_LETTERS.length())
+                    ? PRIORITY_LETTERS.charAt(priority) : '?';
+            // the lock also guards mDateFormat, which is not thread-safe
+            synchronized (mOut) {
+                mOut.println(mDateFormat.format(new Date()) + " " + priorityLetter + "/" + tag
+                        + ": " + message);
+            }
+        }
+
+    }
+
+}
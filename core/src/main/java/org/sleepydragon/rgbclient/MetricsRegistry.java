@@ -0,0 +1,211 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A set of named metrics that describe the performance of the client: {@link StripedCounter}s,
+ * {@link Histogram}s and {@link Gauge}s.
+ * <p/>
+ * The counters and histograms are created once, typically into static fields, and recording into
+ * them never locks or allocates, so they can be used on the hot path.  A textual snapshot of all
+ * metrics can be taken with {@link #writeSnapshot}, which is suitable for comparing the behaviour
+ * of different builds or devices under the same load.
+ * <p/>
+ * This class is thread-safe.
+ */
+public class MetricsRegistry {
+
+    private static final MetricsRegistry sDefault = new MetricsRegistry();
+
+    private final Object mMutex = new Object();
+
+    // all of the following are guarded by mMutex
+    private final TreeMap<String, StripedCounter> mCounters = new TreeMap<>();
+    private final TreeMap<String, Histogram> mHistograms = new TreeMap<>();
+    private final TreeMap<String, Gauge> mGauges = new TreeMap<>();
+    private final Map<String, Long> mPreviousCounts = new HashMap<>();
+    private final long mCreatedNanos = System.nanoTime();
+    private long mPreviousSnapshotNanos = mCreatedNanos;
+
+    /**
+     * Returns the registry into which the client records its metrics.
+     */
+    @NonNull
+    public static MetricsRegistry getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Returns the counter with the given name, creating it if it does not exist.
+     * <p/>
+     * This method may be invoked by any thread.
+     *
+     * @param name the name of the counter; must not be null.
+     * @return the counter; never returns null.
+     */
+    @NonNull
+    public StripedCounter counter(@NonNull String name) {
+        synchronized (mMutex) {
+            StripedCounter counter = mCounters.get(name);
+            if (counter == null) {
+                counter = new StripedCounter();
+                mCounters.put(name, counter);
+            }
+            return counter;
+        }
+    }
+
+    /**
+     * Returns the histogram with the given name, creating it with the given bucket upper bounds
+     * if it does not exist.
+     * <p/>
+     * This method may be invoked by any thread.
+     *
+     * @param name the name of the histogram; must not be null.
+     * @param upperBounds the upper bounds of the buckets of the histogram if it is created, as
+     * accepted by {@link Histogram#Histogram}; must not be null.
+     * @return the histogram; never returns null.
+     */
+    @NonNull
+    public Histogram histogram(@NonNull String name, @NonNull long[] upperBounds) {
+        synchronized (mMutex) {
+            Histogram histogram = mHistograms.get(name);
+            if (histogram == null) {
+                histogram = new Histogram(upperBounds);
+                mHistograms.put(name, histogram);
+            }
+            return histogram;
+        }
+    }
+
+    /**
+     * Registers a gauge with the given name, replacing any gauge previously registered with that
+     * name.  Gauges usually refer to objects with a limited lifetime, such as a fragment, so they
+     * must be unregistered with {@link #unregisterGauge} when that lifetime ends.
+     * <p/>
+     * This method may be invoked by any thread.
+     *
+     * @param name the name of the gauge; must not be null.
+     * @param gauge the gauge; must not be null.
+     */
+    public void registerGauge(@NonNull String name, @NonNull Gauge gauge) {
+        synchronized (mMutex) {
+            mGauges.put(name, gauge);
+        }
+    }
+
+    /**
+     * Unregisters the gauge with the given name if it is the given gauge; if another gauge has
+     * since been registered with the same name then it is left registered.
+     * <p/>
+     * This method may be invoked by any thread.
+     *
+     * @param name the name of the gauge; must not be null.
+     * @param gauge the gauge that was registered; must not be null.
+     */
+    public void unregisterGauge(@NonNull String name, @NonNull Gauge gauge) {
+        synchronized (mMutex) {
+            if (mGauges.get(name) == gauge) {
+                mGauges.remove(name);
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot of all metrics to the given object, one metric per line, sorted by name.
+     * Each counter is written with its total and its rate per second over the interval since the
+     * previous snapshot (or since the registry was created, for the first snapshot), so taking a
+     * snapshot before and after applying a load gives the rates under that load.
+     * <p/>
+     * This method may be invoked by any thread.
+     *
+     * @param out the object to which to write the snapshot; must not be null.
+     * @throws IOException if writing to the given object fails.
+     */
+    public void writeSnapshot(@NonNull Appendable out) throws IOException {
+        synchronized (mMutex) {
+            final long now = System.nanoTime();
+            final long intervalNanos = now - mPreviousSnapshotNanos;
+            mPreviousSnapshotNanos = now;
+            final double intervalSeconds = intervalNanos / 1000000000.0;
+
+            out.append("uptime_ms ").append(String.valueOf((now - mCreatedNanos) / 1000000))
+                    .append('\n');
+            out.append("interval_ms ").append(String.valueOf(intervalNanos / 1000000))
+                    .append('\n');
+
+            for (final Map.Entry<String, StripedCounter> entry : mCounters.entrySet()) {
+                final String name = entry.getKey();
+                final long count = entry.getValue().get();
+                final Long previousCount = mPreviousCounts.put(name, count);
+                final long delta = count - ((previousCount == null) ? 0 : previousCount);
+                final double rate = (intervalSeconds > 0) ? (delta / intervalSeconds) : 0;
+                out.append("counter ").append(name).append(' ').append(String.valueOf(count))
+                        .append(String.format(Locale.US, " rate=%.1f/s", rate)).append('\n');
+            }
+
+            for (final Map.Entry<String, Gauge> entry : mGauges.entrySet()) {
+                out.append("gauge ").append(entry.getKey()).append(' ')
+                        .append(String.valueOf(entry.getValue().get())).append('\n');
+            }
+
+            for (final Map.Entry<String, Histogram> entry : mHistograms.entrySet()) {
+                entry.getValue().writeTo(entry.getKey(), out);
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of all metrics, as written by {@link #writeSnapshot}.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    @NonNull
+    public String snapshot() {
+        final StringBuilder sb = new StringBuilder();
+        try {
+            writeSnapshot(sb);
+        } catch (IOException e) {
+            throw new AssertionError("StringBuilder threw IOException: " + e);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A metric whose value is computed when a snapshot is taken, such as the size of a queue.
+     */
+    public interface Gauge {
+
+        /**
+         * Returns the current value of the metric.  This method is invoked with the registry's
+         * lock held, by whichever thread takes the snapshot, so it must be thread-safe and must
+         * return quickly.
+         */
+        long get();
+
+    }
+
+}
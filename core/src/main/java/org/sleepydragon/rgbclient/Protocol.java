@@ -0,0 +1,209 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+/**
+ * Constants that describe the wire protocol spoken by the RGB Server.
+ * <p/>
+ * The server sends a stream of frames; each frame is a one-byte opcode followed by a payload
+ * whose length is determined by the opcode.  All multi-byte values are big-endian.
+ */
+public class Protocol {
+
+    /**
+     * The opcode of a RELATIVE frame, whose payload is three signed 16-bit integers specifying
+     * the red, green, and blue deltas, in that order.
+     */
+    public static final byte OPCODE_RELATIVE = 1;
+
+    /**
+     * The number of bytes in the payload of a RELATIVE frame.
+     */
+    public static final int RELATIVE_PAYLOAD_LENGTH = 6;
+
+    /**
+     * The opcode of an ABSOLUTE frame, whose payload is three unsigned 8-bit integers specifying
+     * the red, green, and blue values, in that order.
+     */
+    public static final byte OPCODE_ABSOLUTE = 2;
+
+    /**
+     * The number of bytes in the payload of an ABSOLUTE frame.
+     */
+    public static final int ABSOLUTE_PAYLOAD_LENGTH = 3;
+
+    /**
+     * The opcode of a RESUME frame, which is sent by the client to the server immediately after
+     * connecting; its payload is a signed 64-bit integer specifying the number of frames that the
+     * client received from the server's stream before the previous connection was lost.  A server
+     * that supports resuming responds with a RESUMED frame and then sends only the frames that the
+     * client missed; a server that does not support resuming ignores it.
+     */
+    public static final byte OPCODE_RESUME = 0x10;
+
+    /**
+     * The number of bytes in the payload of a RESUME frame.
+     */
+    public static final int RESUME_PAYLOAD_LENGTH = 8;
+
+    /**
+     * The opcode of a RESUMED frame, which is sent by the server in response to a RESUME frame;
+     * its payload is a signed 64-bit integer specifying the sequence number of the next frame
+     * that the server will send, where the first frame of the stream has sequence number 0.
+     */
+    public static final byte OPCODE_RESUMED = 0x11;
+
+    /**
+     * The number of bytes in the payload of a RESUMED frame.
+     */
+    public static final int RESUMED_PAYLOAD_LENGTH = 8;
+
+    /**
+     * The opcode of a HELLO frame, which is sent by the client to the server immediately after
+     * connecting, before any RESUME frame; its payload is an unsigned 8-bit integer specifying the
+     * version of the protocol spoken by the client followed by a 32-bit set of the
+     * {@code CAPABILITY_} flags that the client supports.  A server that supports the handshake
+     * responds with a HELLO_ACK frame before sending any other frame; a server that does not
+     * ignores it and speaks version 0 of the protocol, which has no capabilities.
+     */
+    public static final byte OPCODE_HELLO = 0x12;
+
+    /**
+     * The number of bytes in the payload of a HELLO frame.
+     */
+    public static final int HELLO_PAYLOAD_LENGTH = 5;
+
+    /**
+     * The opcode of a HELLO_ACK frame, which is sent by the server in response to a HELLO frame;
+     * its payload has the same layout as that of a HELLO frame and specifies the version of the
+     * protocol spoken by the server and the capabilities that it will use, which are a subset of
+     * those offered by the client.
+     */
+    public static final byte OPCODE_HELLO_ACK = 0x13;
+
+    /**
+     * The number of bytes in the payload of a HELLO_ACK frame.
+     */
+    public static final int HELLO_ACK_PAYLOAD_LENGTH = 5;
+
+    /**
+     * The opcode of a PING frame, which the client may send only if both sides agreed on
+     * {@link #CAPABILITY_HEARTBEAT}; its payload is a signed 64-bit integer chosen by the client.
+     * The server responds to each PING frame with a PONG frame as soon as it has sent the frames
+     * that it had already queued.
+     */
+    public static final byte OPCODE_PING = 0x14;
+
+    /**
+     * The number of bytes in the payload of a PING frame.
+     */
+    public static final int PING_PAYLOAD_LENGTH = 8;
+
+    /**
+     * The opcode of a PONG frame, which is sent by the server in response to a PING frame; its
+     * payload is that of the PING frame, unchanged.
+     */
+    public static final byte OPCODE_PONG = 0x15;
+
+    /**
+     * The number of bytes in the payload of a PONG frame.
+     */
+    public static final int PONG_PAYLOAD_LENGTH = 8;
+
+    /**
+     * The opcode of a BATCH frame, which the server may send only if both sides agreed on
+     * {@link #CAPABILITY_BATCH}.  Its header is the opcode of the frames in the batch, either
+     * {@link #OPCODE_RELATIVE} or {@link #OPCODE_ABSOLUTE}, followed by an unsigned 16-bit integer
+     * specifying the number of records in the batch; the header is followed by that many records,
+     * each of which is the payload of one frame of the given opcode.  Each record counts as one
+     * frame of the server's stream.
+     */
+    public static final byte OPCODE_BATCH = 0x20;
+
+    /**
+     * The number of bytes in the header of a BATCH frame that follows its opcode.
+     */
+    public static final int BATCH_HEADER_LENGTH = 3;
+
+    /**
+     * The largest number of records in a BATCH frame.
+     */
+    public static final int MAX_BATCH_RECORD_COUNT = 0xFFFF;
+
+    /**
+     * The version of the protocol spoken by this client, which is sent in its HELLO frame.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * The capability of receiving BATCH frames.
+     */
+    public static final int CAPABILITY_BATCH = 1;
+
+    /**
+     * The capability of answering PING frames with PONG frames.
+     */
+    public static final int CAPABILITY_HEARTBEAT = 2;
+
+    /**
+     * The capabilities supported by this client.
+     */
+    public static final int SUPPORTED_CAPABILITIES = CAPABILITY_BATCH | CAPABILITY_HEARTBEAT;
+
+    /**
+     * The number of bytes in the header of each datagram sent by the server when using the UDP
+     * transport: a signed 64-bit sequence number, which is 0 for the first datagram of the
+     * server's stream and is incremented for each datagram.  The header is followed by one or more
+     * complete frames; frames never span datagrams.
+     * <p/>
+     * To receive datagrams the client sends the server a datagram containing a HELLO frame, and
+     * repeats it every {@link #DATAGRAM_SUBSCRIBE_INTERVAL_MILLIS} for as long as it wants to keep
+     * receiving them; the server stops sending to a client that it has not heard from for
+     * {@link #DATAGRAM_SUBSCRIPTION_TIMEOUT_MILLIS}.
+     */
+    public static final int DATAGRAM_HEADER_LENGTH = 8;
+
+    /**
+     * The largest number of bytes in a datagram sent by the server, including its header.
+     */
+    public static final int MAX_DATAGRAM_LENGTH = 65507;
+
+    /**
+     * The interval at which the client repeats its HELLO datagram when using the UDP transport.
+     */
+    public static final int DATAGRAM_SUBSCRIBE_INTERVAL_MILLIS = 1000;
+
+    /**
+     * The time after which the server stops sending datagrams to a client that has not sent a
+     * HELLO datagram.
+     */
+    public static final int DATAGRAM_SUBSCRIPTION_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * The number of bytes in the largest frame defined by this protocol, including its opcode.
+     * The records of a BATCH frame are decoded as they arrive, so only its header counts.
+     */
+    public static final int MAX_FRAME_LENGTH = 1 + RESUMED_PAYLOAD_LENGTH;
+
+    /**
+     * Private constructor to prevent instantiation.
+     */
+    private Protocol() {
+    }
+
+}
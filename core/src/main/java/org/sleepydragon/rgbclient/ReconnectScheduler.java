@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import java.util.Random;
+
+/**
+ * Computes the delays between successive attempts to reconnect to the server using exponential
+ * backoff with random jitter.
+ * <p/>
+ * The nominal delay before attempt n (starting at 0) is {@code initialDelay * multiplier^n},
+ * capped at {@code maxDelay}.  A random fraction of up to {@code jitter} of the nominal delay is
+ * then subtracted so that many clients that lost their connections at the same moment do not all
+ * reconnect at the same moment.
+ * <p/>
+ * This class is thread-safe.
+ */
+public class ReconnectScheduler {
+
+    private final long mInitialDelayMillis;
+    private final long mMaxDelayMillis;
+    private final double mMultiplier;
+    private final double mJitter;
+    private final Random mRandom = new Random();
+
+    private int mAttemptCount;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param initialDelayMillis the nominal delay before the first reconnect attempt, in
+     * milliseconds; must be greater than zero.
+     * @param maxDelayMillis the maximum nominal delay, in milliseconds; must be greater than or
+     * equal to initialDelayMillis.
+     * @param multiplier the factor by which the nominal delay grows after each attempt; must be
+     * at least 1.
+     * @param jitter the maximum fraction of the nominal delay to randomly subtract from it; must
+     * be between 0 and 1, inclusive.
+     * @throws IllegalArgumentException if any of the arguments are invalid.
+     */
+    public ReconnectScheduler(long initialDelayMillis, long maxDelayMillis, double multiplier,
+            double jitter) {
+        if (initialDelayMillis <= 0) {
+            throw new IllegalArgumentException("invalid initialDelayMillis: "
+                    + initialDelayMillis);
+        } else if (maxDelayMillis < initialDelayMillis) {
+            throw new IllegalArgumentException("invalid maxDelayMillis: " + maxDelayMillis);
+        } else if (!(multiplier >= 1.0)) {
+            throw new IllegalArgumentException("invalid multiplier: " + multiplier);
+        } else if (!(jitter >= 0.0 && jitter <= 1.0)) {
+            throw new IllegalArgumentException("invalid jitter: " + jitter);
+        }
+        mInitialDelayMillis = initialDelayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+        mMultiplier = multiplier;
+        mJitter = jitter;
+    }
+
+    /**
+     * Returns the delay to wait before the next reconnect attempt and advances to the next
+     * attempt.
+     *
+     * @return the delay, in milliseconds; never returns a negative value.
+     */
+    public synchronized long nextDelayMillis() {
+        final double nominalDelay = Math.min(
+                mInitialDelayMillis * Math.pow(mMultiplier, mAttemptCount), mMaxDelayMillis);
+        mAttemptCount++;
+        final double jitter = nominalDelay * mJitter * mRandom.nextDouble();
+        return Math.max(0, Math.round(nominalDelay - jitter));
+    }
+
+    /**
+     * Returns the number of times that {@link #nextDelayMillis} has been invoked since this object
+     * was created or {@link #reset} was last invoked.
+     */
+    public synchronized int getAttemptCount() {
+        return mAttemptCount;
+    }
+
+    /**
+     * Resets the delay back to the initial delay; this should be invoked when a connection is
+     * successfully established or a new server is to be connected to.
+     */
+    public synchronized void reset() {
+        mAttemptCount = 0;
+    }
+
+}
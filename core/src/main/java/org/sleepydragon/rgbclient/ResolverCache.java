@@ -0,0 +1,186 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A small cache of host name resolutions, so that reconnecting to the same server does not wait
+ * for DNS every time.
+ * <p/>
+ * Each entry expires after a fixed time-to-live and the least-recently-used entries are discarded
+ * when the cache is full.  The resolved addresses are ordered so that IPv6 and IPv4 addresses
+ * alternate, starting with the family of the first address returned by the resolver, which is the
+ * order in which {@link ConnectAttempt} should try them.
+ * <p/>
+ * This class is thread-safe.  Resolution is performed without holding the lock, so a slow lookup
+ * of one host does not delay lookups of other hosts.
+ */
+public class ResolverCache {
+
+    /**
+     * The default time-to-live of each entry, in milliseconds.
+     */
+    public static final long DEFAULT_TTL_MILLIS = 60000;
+
+    /**
+     * The default maximum number of entries.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 16;
+
+    private static final ResolverCache sDefault =
+            new ResolverCache(DEFAULT_TTL_MILLIS, DEFAULT_MAX_ENTRIES);
+
+    private final Object mMutex = new Object();
+    private final long mTtlNanos;
+    private final int mMaxEntries;
+    private final LinkedHashMap<String, CacheEntry> mEntries;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param ttlMillis the time after which each entry expires, in milliseconds; must not be
+     * negative.
+     * @param maxEntries the maximum number of entries to retain; must be greater than zero.
+     * @throws IllegalArgumentException if any of the arguments are invalid.
+     */
+    public ResolverCache(long ttlMillis, int maxEntries) {
+        if (ttlMillis < 0) {
+            throw new IllegalArgumentException("invalid ttlMillis: " + ttlMillis);
+        } else if (maxEntries <= 0) {
+            throw new IllegalArgumentException("invalid maxEntries: " + maxEntries);
+        }
+        mTtlNanos = ttlMillis * 1000000L;
+        mMaxEntries = maxEntries;
+        mEntries = new LinkedHashMap<String, CacheEntry>(maxEntries, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > mMaxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the cache shared by all connections.
+     */
+    @NonNull
+    public static ResolverCache getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Returns the addresses of the given host, resolving it if it is not cached or its entry has
+     * expired.
+     *
+     * @param host the host name or IP address to resolve; must not be null.
+     * @return the addresses of the host, in the order in which they should be tried; never
+     * returns null or an empty array.  The caller must not modify the returned array.
+     * @throws UnknownHostException if the host could not be resolved.
+     */
+    @NonNull
+    public InetAddress[] resolve(@NonNull String host) throws UnknownHostException {
+        final long now = System.nanoTime();
+        synchronized (mMutex) {
+            final CacheEntry entry = mEntries.get(host);
+            if (entry != null && now - entry.resolvedTimeNanos < mTtlNanos) {
+                return entry.addresses;
+            }
+        }
+
+        final InetAddress[] addresses = interleaveFamilies(InetAddress.getAllByName(host));
+        synchronized (mMutex) {
+            mEntries.put(host, new CacheEntry(addresses, now));
+        }
+        return addresses;
+    }
+
+    /**
+     * Discards the cached addresses of the given host, if any, so that the next invocation of
+     * {@link #resolve} resolves it again; this should be invoked when connecting to all of its
+     * addresses failed, since they may be stale.
+     *
+     * @param host the host whose entry to discard; must not be null.
+     */
+    public void invalidate(@NonNull String host) {
+        synchronized (mMutex) {
+            mEntries.remove(host);
+        }
+    }
+
+    /**
+     * Discards all entries; this should be invoked when the network changes, since the addresses
+     * resolved on one network may not be reachable from another.
+     */
+    public void clear() {
+        synchronized (mMutex) {
+            mEntries.clear();
+        }
+    }
+
+    @NonNull
+    private static InetAddress[] interleaveFamilies(@NonNull InetAddress[] addresses) {
+        if (addresses.length <= 1) {
+            return addresses;
+        }
+
+        final boolean firstIsIpv6 = (addresses[0] instanceof Inet6Address);
+        final List<InetAddress> preferred = new ArrayList<>(addresses.length);
+        final List<InetAddress> other = new ArrayList<>(addresses.length);
+        for (final InetAddress address : addresses) {
+            if ((address instanceof Inet6Address) == firstIsIpv6) {
+                preferred.add(address);
+            } else {
+                other.add(address);
+            }
+        }
+
+        final InetAddress[] result = new InetAddress[addresses.length];
+        int count = 0;
+        for (int i = 0; count < result.length; i++) {
+            if (i < preferred.size()) {
+                result[count++] = preferred.get(i);
+            }
+            if (i < other.size()) {
+                result[count++] = other.get(i);
+            }
+        }
+        return result;
+    }
+
+    private static class CacheEntry {
+
+        @NonNull
+        public final InetAddress[] addresses;
+        public final long resolvedTimeNanos;
+
+        public CacheEntry(@NonNull InetAddress[] addresses, long resolvedTimeNanos) {
+            this.addresses = addresses;
+            this.resolvedTimeNanos = resolvedTimeNanos;
+        }
+
+    }
+
+}
@@ -0,0 +1,636 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An I/O engine that drives any number of {@link ClientConnection} objects from a single thread
+ * using non-blocking {@link SocketChannel}s multiplexed by a {@link Selector}.
+ * <p/>
+ * This is an alternative to invoking {@link ClientConnection#run} on a dedicated thread per
+ * connection.  Connections are added with {@link #register} and the engine's {@link #run} method
+ * must be invoked on the thread that is to perform the I/O.  The connections' callbacks are
+ * invoked on that same thread, with exactly the same contract as when using
+ * {@link ClientConnection#run}.
+ * <p/>
+ * Resolving a host name blocks, so the servers' host names are resolved by an executor given to
+ * the constructor rather than by the I/O thread; a slow DNS lookup for one server therefore does
+ * not delay the I/O of the others.
+ */
+public class SelectorEngine implements Runnable {
+
+    private static final Logger LOG = new Logger("SelectorEngine");
+
+    /**
+     * The maximum amount of time to block waiting for I/O, in milliseconds; this bounds how long
+     * it takes to notice that {@link ClientConnection#requestStop} has been invoked.
+     */
+    private static final long SELECT_TIMEOUT_MILLIS = 250;
+
+    /**
+     * The error reported to the connections that were abandoned because {@link #run} returned.
+     */
+    private static final String ENGINE_STOPPED = "the selector engine has stopped";
+
+    @NonNull
+    private final Selector mSelector;
+    @NonNull
+    private final Executor mResolverExecutor;
+
+    // the connections waiting to be started, the results of resolving the host names of those
+    // that were started, and whether run() has finished closing the connections; guarded by
+    // mPendingConnections
+    private final List<ClientConnection> mPendingConnections = new ArrayList<>();
+    private final List<Resolution> mResolutions = new ArrayList<>();
+    private boolean mClosed;
+
+    private final List<ConnectAttempt> mConnectAttempts = new ArrayList<>();
+    private final AtomicBoolean mStopRequested = new AtomicBoolean(false);
+
+    /**
+     * The time until the next connection needs to send a PING frame or check for a stall, in
+     * milliseconds, as of the last invocation of {@link #pollHeartbeats}.
+     */
+    private long mHeartbeatWaitMillis = SELECT_TIMEOUT_MILLIS;
+
+    /**
+     * Attached to each registered connection so that {@link ClientConnection#requestStop} wakes
+     * up the I/O thread, which then closes the connection's channel.
+     */
+    private final Closeable mStopWaker = new Closeable() {
+        @Override
+        public void close() {
+            mSelector.wakeup();
+        }
+    };
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param resolverExecutor the executor with which to resolve the host names of the servers;
+     * must not be null.  Each host name is resolved by a separate task, which may block.
+     * @throws IOException if opening the selector fails.
+     */
+    public SelectorEngine(@NonNull Executor resolverExecutor) throws IOException {
+        mSelector = Selector.open();
+        mResolverExecutor = resolverExecutor;
+    }
+
+    /**
+     * Adds a connection to be driven by this engine.  The connection will be established
+     * asynchronously by the thread that invokes {@link #run}.  The given connection must not have
+     * been registered with an engine before and its {@link ClientConnection#run} method must never
+     * be invoked.  Requesting the connection to stop wakes up the engine, which promptly closes
+     * its channel.  If the connection has a {@linkplain ClientConnection#setPredecessor
+     * predecessor} then it is not started until the predecessor has finished.
+     * <p/>
+     * If this engine has already {@linkplain #isClosed closed} then the connection's callback is
+     * notified of the failure to connect by the calling thread before this method returns, so
+     * that the connection is replaced like any other that failed.
+     * <p/>
+     * This method may be invoked by any thread.
+     *
+     * @param connection the connection to add; must not be null.
+     * @throws IllegalArgumentException if the connection uses the UDP transport, which this
+     * engine does not support.
+     */
+    public void register(@NonNull ClientConnection connection) {
+        if (connection.getTransport() != ClientConnection.Transport.TCP) {
+            throw new IllegalArgumentException("unsupported transport: "
+                    + connection.getTransport());
+        }
+        LOG.d("register() {}:{}", connection.getHost(), connection.getPort());
+        connection.attachTransport(mStopWaker);
+        synchronized (mPendingConnections) {
+            if (!mClosed) {
+                mPendingConnections.add(connection);
+                mSelector.wakeup();
+                return;
+            }
+        }
+        abandon(connection, ENGINE_STOPPED);
+    }
+
+    /**
+     * Wakes up the I/O thread.  This is not normally necessary, since requesting a registered
+     * connection to stop does so automatically.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    public void wakeup() {
+        mSelector.wakeup();
+    }
+
+    /**
+     * Signals to {@link #run} that all connections should be closed and that it should return.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    public void requestStop() {
+        LOG.d("requestStop()");
+        mStopRequested.set(true);
+        mSelector.wakeup();
+    }
+
+    /**
+     * Returns whether or not {@link #requestStop} has been invoked.
+     * <p/>
+     * This method may be invoked by any thread.
+     *
+     * @return true if {@link #requestStop} has been invoked or false if it has not.
+     */
+    public boolean isStopRequested() {
+        return mStopRequested.get();
+    }
+
+    /**
+     * Returns whether or not {@link #run} has returned, either because {@link #requestStop} was
+     * invoked or because selecting on the channels failed.  Connections registered from then on
+     * fail immediately.
+     * <p/>
+     * This method may be invoked by any thread.
+     *
+     * @return true if {@link #run} has returned or false if it has not.
+     */
+    public boolean isClosed() {
+        synchronized (mPendingConnections) {
+            return mClosed;
+        }
+    }
+
+    /**
+     * Performs I/O for all registered connections until {@link #requestStop} is invoked.
+     */
+    @Override
+    public void run() {
+        LOG.d("run()");
+        try {
+            while (!isStopRequested()) {
+                mSelector.select(getSelectTimeoutMillis());
+                registerPendingConnections();
+                processResolutions();
+                processSelectedKeys();
+                pollHeartbeats();
+                pollConnectAttempts();
+                closeStoppedConnections();
+            }
+        } catch (IOException e) {
+            LOG.w("selecting on channels failed: {}", e);
+        } finally {
+            LOG.d("closing all connections");
+            for (final ConnectAttempt attempt : mConnectAttempts) {
+                attempt.cancel();
+                abandon((ClientConnection) attempt.getTag(), ENGINE_STOPPED);
+            }
+            mConnectAttempts.clear();
+            for (final SelectionKey key : mSelector.keys()) {
+                try {
+                    close(key);
+                } catch (RuntimeException e) {
+                    LOG.w("closing a connection failed: {}", e);
+                }
+            }
+            // the connections whose host names are still being resolved are abandoned by
+            // onResolved() instead
+            final List<ClientConnection> abandonedConnections = new ArrayList<>();
+            synchronized (mPendingConnections) {
+                mClosed = true;
+                abandonedConnections.addAll(mPendingConnections);
+                mPendingConnections.clear();
+                for (final Resolution resolution : mResolutions) {
+                    abandonedConnections.add(resolution.connection);
+                }
+                mResolutions.clear();
+            }
+            // the callbacks are invoked without holding the lock, since they may register the
+            // connections' replacements
+            for (final ClientConnection connection : abandonedConnections) {
+                abandon(connection, ENGINE_STOPPED);
+            }
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                // oh well
+            }
+        }
+    }
+
+    private void registerPendingConnections() {
+        final ClientConnection[] connections;
+        synchronized (mPendingConnections) {
+            if (mPendingConnections.isEmpty()) {
+                return;
+            }
+            connections = mPendingConnections.toArray(
+                    new ClientConnection[mPendingConnections.size()]);
+            mPendingConnections.clear();
+        }
+
+        for (final ClientConnection connection : connections) {
+            // the connection being replaced may be running on another thread; this connection
+            // must not invoke any callbacks, nor finish and so let its own successor start,
+            // until the predecessor has finished, so check again later
+            final ClientConnection predecessor = connection.getUnfinishedPredecessor();
+            if (predecessor != null) {
+                predecessor.requestStop();
+                synchronized (mPendingConnections) {
+                    mPendingConnections.add(connection);
+                }
+                continue;
+            }
+
+            if (connection.isStopRequested()) {
+                connection.markFinished();
+                continue;
+            }
+
+            try {
+                mResolverExecutor.execute(new ResolveTask(connection));
+            } catch (RejectedExecutionException e) {
+                onResolved(new Resolution(connection, null,
+                        new IOException("unable to resolve " + connection.getHost(), e)));
+            }
+        }
+    }
+
+    /**
+     * Starts the connect attempts of the connections whose host names have been resolved, and
+     * reports the failures of those whose host names could not be resolved.
+     */
+    private void processResolutions() {
+        final Resolution[] resolutions;
+        synchronized (mPendingConnections) {
+            if (mResolutions.isEmpty()) {
+                return;
+            }
+            resolutions = mResolutions.toArray(new Resolution[mResolutions.size()]);
+            mResolutions.clear();
+        }
+
+        for (final Resolution resolution : resolutions) {
+            final ClientConnection connection = resolution.connection;
+            if (connection.isStopRequested()) {
+                connection.markFinished();
+            } else if (resolution.error != null) {
+                connection.notifyConnectionFailed(resolution.error);
+                connection.markFinished();
+            } else {
+                mConnectAttempts.add(new ConnectAttempt(resolution.addresses,
+                        connection.getPort(), connection.getConnectTimeoutMillis(),
+                        ConnectAttempt.DEFAULT_ATTEMPT_DELAY_MILLIS, connection));
+            }
+        }
+    }
+
+    /**
+     * Hands the result of resolving a connection's host name to the I/O thread.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    private void onResolved(@NonNull Resolution resolution) {
+        synchronized (mPendingConnections) {
+            if (!mClosed) {
+                mResolutions.add(resolution);
+                mSelector.wakeup();
+                return;
+            }
+        }
+        abandon(resolution.connection, ENGINE_STOPPED);
+    }
+
+    /**
+     * Returns how long to block in select(), which is shortened so that the next pending connect
+     * attempt is started, and the next PING frame is sent, on time.
+     */
+    private long getSelectTimeoutMillis() {
+        long timeoutMillis = Math.min(SELECT_TIMEOUT_MILLIS, mHeartbeatWaitMillis);
+        if (!mConnectAttempts.isEmpty()) {
+            final long now = System.nanoTime();
+            for (final ConnectAttempt attempt : mConnectAttempts) {
+                final long waitNanos = attempt.getNextPollNanos() - now;
+                timeoutMillis = Math.min(timeoutMillis, (waitNanos + 999999) / 1000000);
+            }
+        }
+        return Math.max(1, timeoutMillis);
+    }
+
+    /**
+     * Starts the connect attempts that are due, enforces their timeouts, and abandons those
+     * whose connections were requested to stop.
+     */
+    private void pollConnectAttempts() {
+        final Iterator<ConnectAttempt> iterator = mConnectAttempts.iterator();
+        while (iterator.hasNext()) {
+            final ConnectAttempt attempt = iterator.next();
+            final ClientConnection connection = (ClientConnection) attempt.getTag();
+            if (connection.isStopRequested()) {
+                attempt.cancel();
+                iterator.remove();
+                connection.markFinished();
+                continue;
+            }
+            try {
+                attempt.poll(mSelector);
+            } catch (IOException e) {
+                iterator.remove();
+                connection.notifyConnectionFailed(e);
+                connection.markFinished();
+                continue;
+            }
+            if (attempt.isConnected()) {
+                iterator.remove();
+                onConnectAttemptSucceeded(attempt);
+            }
+        }
+    }
+
+    /**
+     * Starts reading from the channel whose connection was established by the given attempt.
+     */
+    private void onConnectAttemptSucceeded(@NonNull ConnectAttempt attempt) {
+        final ClientConnection connection = (ClientConnection) attempt.getTag();
+        final SelectionKey key = attempt.getConnectedKey();
+        final SocketChannel channel = (SocketChannel) key.channel();
+        try {
+            writeHandshake(channel, connection);
+        } catch (IOException e) {
+            key.cancel();
+            closeQuietly(channel);
+            connection.notifyConnectionFailed(e);
+            connection.markFinished();
+            return;
+        }
+        key.attach(connection);
+        key.interestOps(SelectionKey.OP_READ);
+        connection.notifyConnected();
+    }
+
+    private void processSelectedKeys() {
+        final Set<SelectionKey> selectedKeys = mSelector.selectedKeys();
+        final Iterator<SelectionKey> iterator = selectedKeys.iterator();
+        while (iterator.hasNext()) {
+            final SelectionKey key = iterator.next();
+            iterator.remove();
+            if (!key.isValid()) {
+                continue;
+            }
+            try {
+                processSelectedKey(key);
+            } catch (RuntimeException e) {
+                // a bug in one connection, or in its callback, must not stop the I/O of the others
+                LOG.w("processing the I/O of a connection failed: {}", e);
+                abandon(key, "processing the connection's I/O failed: " + e);
+            }
+        }
+    }
+
+    private void processSelectedKey(@NonNull SelectionKey key) {
+        if (key.attachment() instanceof ConnectAttempt) {
+            final ConnectAttempt attempt = (ConnectAttempt) key.attachment();
+            if (key.isConnectable()) {
+                try {
+                    if (!attempt.finishConnect(key)) {
+                        return;
+                    }
+                } catch (IOException e) {
+                    mConnectAttempts.remove(attempt);
+                    final ClientConnection connection = (ClientConnection) attempt.getTag();
+                    connection.notifyConnectionFailed(e);
+                    connection.markFinished();
+                    return;
+                }
+                mConnectAttempts.remove(attempt);
+                onConnectAttemptSucceeded(attempt);
+            }
+            return;
+        }
+
+        final ClientConnection connection = (ClientConnection) key.attachment();
+        final SocketChannel channel = (SocketChannel) key.channel();
+        if (key.isReadable()) {
+            try {
+                connection.readFrames(channel);
+            } catch (IOException e) {
+                if (!connection.isStopRequested()) {
+                    connection.notifyReadFailed(e);
+                }
+                close(key);
+            } catch (ProtocolException e) {
+                connection.notifyProtocolError(e);
+                close(key);
+            }
+        }
+    }
+
+    /**
+     * Closes the channel of a key whose processing failed unexpectedly and abandons its
+     * connection, along with the connection's other connect attempts, if any.
+     */
+    private void abandon(@NonNull SelectionKey key, @NonNull String reason) {
+        key.cancel();
+        closeQuietly((SocketChannel) key.channel());
+        final ClientConnection connection;
+        if (key.attachment() instanceof ConnectAttempt) {
+            final ConnectAttempt attempt = (ConnectAttempt) key.attachment();
+            attempt.cancel();
+            mConnectAttempts.remove(attempt);
+            connection = (ClientConnection) attempt.getTag();
+        } else {
+            connection = (ClientConnection) key.attachment();
+        }
+        abandon(connection, reason);
+    }
+
+    /**
+     * Sends the PING frames that are due and closes the connections whose servers have stalled.
+     */
+    private void pollHeartbeats() {
+        final long now = System.nanoTime();
+        long waitNanos = Long.MAX_VALUE;
+        for (final SelectionKey key : mSelector.keys()) {
+            if (!key.isValid() || !(key.attachment() instanceof ClientConnection)) {
+                continue;
+            }
+            final ClientConnection connection = (ClientConnection) key.attachment();
+            try {
+                final long connectionWaitNanos =
+                        connection.pollHeartbeat((SocketChannel) key.channel(), now);
+                if (connectionWaitNanos >= 0) {
+                    waitNanos = Math.min(waitNanos, connectionWaitNanos);
+                }
+            } catch (IOException e) {
+                if (!connection.isStopRequested()) {
+                    connection.notifyReadFailed(e);
+                }
+                close(key);
+            }
+        }
+        mHeartbeatWaitMillis = (waitNanos == Long.MAX_VALUE)
+                ? SELECT_TIMEOUT_MILLIS : TimeUnit.NANOSECONDS.toMillis(waitNanos) + 1;
+    }
+
+    /**
+     * Sends the connection's handshake, if any, over the newly-connected channel.  The handshake
+     * is small enough to always fit into the empty send buffer of a new socket, so it is written
+     * with a single non-blocking write.
+     */
+    private static void writeHandshake(@NonNull SocketChannel channel,
+            @NonNull ClientConnection connection) throws IOException {
+        final ByteBuffer handshake = connection.createHandshake();
+        if (handshake != null) {
+            channel.write(handshake);
+            if (handshake.hasRemaining()) {
+                throw new IOException("unable to send handshake to server");
+            }
+        }
+    }
+
+    private void closeStoppedConnections() {
+        for (final SelectionKey key : mSelector.keys()) {
+            // keys of connect attempts are cleaned up by pollConnectAttempts()
+            if (!(key.attachment() instanceof ClientConnection)) {
+                continue;
+            }
+            final ClientConnection connection = (ClientConnection) key.attachment();
+            if (key.isValid() && connection.isStopRequested()) {
+                close(key);
+            }
+        }
+    }
+
+    /**
+     * Closes the channel of the given key and, if it belongs to a connection, notifies the
+     * connection that it has been disconnected (if it had been established) and has finished.
+     */
+    private static void close(@NonNull SelectionKey key) {
+        final boolean wasConnected = key.isValid()
+                && (key.interestOps() & SelectionKey.OP_READ) != 0;
+        key.cancel();
+        closeQuietly((SocketChannel) key.channel());
+        if (key.attachment() instanceof ClientConnection) {
+            final ClientConnection connection = (ClientConnection) key.attachment();
+            if (wasConnected) {
+                connection.notifyDisconnected();
+            }
+            connection.markFinished();
+        }
+    }
+
+    /**
+     * Notifies the callback of a connection that this engine has given up on, unless the
+     * connection was requested to stop, then marks the connection as finished.  Without the
+     * notification, the owner of the connection would consider it to still be connecting, or
+     * connected, and would never replace it.
+     *
+     * @param reason the message of the error reported if the connection was not yet connected.
+     */
+    private static void abandon(@NonNull ClientConnection connection, @NonNull String reason) {
+        try {
+            if (!connection.isStopRequested()) {
+                if (connection.isConnected()) {
+                    connection.notifyDisconnected();
+                } else {
+                    connection.notifyConnectionFailed(new IOException(reason));
+                }
+            }
+        } catch (RuntimeException e) {
+            LOG.w("notifying an abandoned connection failed: {}", e);
+        } finally {
+            connection.markFinished();
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // oh well
+            }
+        }
+    }
+
+    /**
+     * Resolves the host name of a connection, then hands the result to the I/O thread.
+     */
+    private class ResolveTask implements Runnable {
+
+        @NonNull
+        private final ClientConnection mConnection;
+
+        public ResolveTask(@NonNull ClientConnection connection) {
+            mConnection = connection;
+        }
+
+        @Override
+        public void run() {
+            if (mConnection.isStopRequested()) {
+                onResolved(new Resolution(mConnection, null, null));
+                return;
+            }
+            try {
+                final InetAddress[] addresses =
+                        ResolverCache.getDefault().resolve(mConnection.getHost());
+                onResolved(new Resolution(mConnection, addresses, null));
+            } catch (IOException e) {
+                onResolved(new Resolution(mConnection, null, e));
+            }
+        }
+
+    }
+
+    /**
+     * The result of resolving the host name of a connection: either its addresses or the error.
+     */
+    private static class Resolution {
+
+        @NonNull
+        final ClientConnection connection;
+        @Nullable
+        final InetAddress[] addresses;
+        @Nullable
+        final IOException error;
+
+        Resolution(@NonNull ClientConnection connection, @Nullable InetAddress[] addresses,
+                @Nullable IOException error) {
+            this.connection = connection;
+            this.addresses = addresses;
+            this.error = error;
+        }
+
+    }
+
+}
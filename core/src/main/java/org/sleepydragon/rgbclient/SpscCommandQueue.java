@@ -0,0 +1,279 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, lock-free queue of commands with a single producer thread and a single consumer
+ * thread.
+ * <p/>
+ * The producer adds commands with {@link #offer} or {@link #offerAll}, which never block: if the
+ * queue is full then the commands that do not fit are rejected and the producer must arrange for
+ * the consumer to recover by other means.  The consumer removes commands in batches with
+ * {@link #drain}.  Only {@link #offer} and {@link #offerAll} may be invoked by the producer thread
+ * and only {@link #drain} and {@link #peekAll} may be invoked by the consumer thread; the
+ * statistics may be read by any thread.
+ * <p/>
+ * The queue records how long each command waited in the queue and the maximum occupancy that
+ * it reached, which indicates whether the consumer is keeping up with the producer.
+ */
+public class SpscCommandQueue {
+
+    @NonNull
+    private final ColorCommand[] mCommands;
+    @NonNull
+    private final long[] mEnqueueTimes;
+    private final int mMask;
+
+    /**
+     * The number of commands that have ever been removed; written only by the consumer.
+     */
+    private final AtomicLong mHead = new AtomicLong();
+
+    /**
+     * The number of commands that have ever been added; written only by the producer.
+     */
+    private final AtomicLong mTail = new AtomicLong();
+
+    /**
+     * The producer's most recently observed value of mHead, to avoid reading it on every offer.
+     */
+    private long mProducerCachedHead;
+
+    private volatile int mHighWaterMark;
+    private volatile long mRejectedCount;
+    private volatile long mDrainedCount;
+    private volatile long mTotalWaitNanos;
+    private volatile long mMaxWaitNanos;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param capacity the maximum number of commands that the queue can hold; must be a positive
+     * power of two.
+     * @throws IllegalArgumentException if the given capacity is not a positive power of two.
+     */
+    public SpscCommandQueue(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("invalid capacity: " + capacity
+                    + " (must be a positive power of two)");
+        }
+        mCommands = new ColorCommand[capacity];
+        mEnqueueTimes = new long[capacity];
+        mMask = capacity - 1;
+    }
+
+    /**
+     * Returns the maximum number of commands that the queue can hold.
+     */
+    public int getCapacity() {
+        return mCommands.length;
+    }
+
+    /**
+     * Adds a command to the end of the queue, if there is room.
+     * <p/>
+     * This method may only be invoked by the producer thread.
+     *
+     * @param command the command to add; must not be null.
+     * @return true if the command was added, or false if the queue was full.
+     */
+    public boolean offer(@NonNull ColorCommand command) {
+        final long tail = mTail.get();
+        final int capacity = mCommands.length;
+        if (tail - mProducerCachedHead >= capacity) {
+            mProducerCachedHead = mHead.get();
+            if (tail - mProducerCachedHead >= capacity) {
+                mRejectedCount++;
+                return false;
+            }
+        }
+
+        final int index = (int) (tail & mMask);
+        mCommands[index] = command;
+        mEnqueueTimes[index] = System.nanoTime();
+        mTail.lazySet(tail + 1);
+        return true;
+    }
+
+    /**
+     * Adds as many of the given commands to the end of the queue as there is room for, publishing
+     * them to the consumer all at once.
+     * <p/>
+     * This method may only be invoked by the producer thread.
+     *
+     * @param commands the commands to add, in order; must not be null and must not contain null.
+     * @param count the number of commands to add, which are the first elements of the given
+     * array.
+     * @return the number of commands that were added, which are the first ones; the rest were
+     * rejected because the queue was full.
+     */
+    public int offerAll(@NonNull ColorCommand[] commands, int count) {
+        final long tail = mTail.get();
+        final int capacity = mCommands.length;
+        if (tail - mProducerCachedHead > capacity - count) {
+            mProducerCachedHead = mHead.get();
+        }
+        final int addCount = (int) Math.min(count, capacity - (tail - mProducerCachedHead));
+        if (addCount < count) {
+            mRejectedCount += count - addCount;
+        }
+        if (addCount == 0) {
+            return 0;
+        }
+
+        final long now = System.nanoTime();
+        for (int i = 0; i < addCount; i++) {
+            final int index = (int) ((tail + i) & mMask);
+            mCommands[index] = commands[i];
+            mEnqueueTimes[index] = now;
+        }
+        mTail.lazySet(tail + addCount);
+        return addCount;
+    }
+
+    /**
+     * Removes commands from the front of the queue, storing them into the given array.
+     * <p/>
+     * This method may only be invoked by the consumer thread.
+     *
+     * @param batch the array into which to store the removed commands; at most
+     * {@code batch.length} commands are removed; must not be null.
+     * @return the number of commands removed and stored into the given array.
+     */
+    public int drain(@NonNull ColorCommand[] batch) {
+        final long head = mHead.get();
+        final long tail = mTail.get();
+        final int size = (int) (tail - head);
+        if (size > mHighWaterMark) {
+            mHighWaterMark = size;
+        }
+        final int count = Math.min(size, batch.length);
+        if (count == 0) {
+            return 0;
+        }
+
+        final long now = System.nanoTime();
+        long totalWaitNanos = 0;
+        long maxWaitNanos = mMaxWaitNanos;
+        for (int i = 0; i < count; i++) {
+            final int index = (int) ((head + i) & mMask);
+            batch[i] = mCommands[index];
+            mCommands[index] = null;
+            final long waitNanos = now - mEnqueueTimes[index];
+            totalWaitNanos += waitNanos;
+            if (waitNanos > maxWaitNanos) {
+                maxWaitNanos = waitNanos;
+            }
+        }
+        mHead.lazySet(head + count);
+
+        mDrainedCount += count;
+        mTotalWaitNanos += totalWaitNanos;
+        mMaxWaitNanos = maxWaitNanos;
+        return count;
+    }
+
+    /**
+     * Adds all commands in the queue to the given list without removing them from the queue.
+     * <p/>
+     * This method may only be invoked by the consumer thread.
+     *
+     * @param commands the list to which to add the commands; must not be null.
+     */
+    public void peekAll(@NonNull List<ColorCommand> commands) {
+        final long tail = mTail.get();
+        for (long position = mHead.get(); position < tail; position++) {
+            commands.add(mCommands[(int) (position & mMask)]);
+        }
+    }
+
+    /**
+     * Returns the number of commands currently in the queue.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    public int size() {
+        final long head = mHead.get();
+        final long tail = mTail.get();
+        return (int) Math.max(0, tail - head);
+    }
+
+    /**
+     * Returns the largest number of commands that {@link #drain} has found in the queue.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    public int getHighWaterMark() {
+        return mHighWaterMark;
+    }
+
+    /**
+     * Returns the number of commands that were rejected by {@link #offer} because the queue was
+     * full.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    public long getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    /**
+     * Returns the number of commands that have been removed by {@link #drain}.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    public long getDrainedCount() {
+        return mDrainedCount;
+    }
+
+    /**
+     * Returns the average time that the commands removed by {@link #drain} spent in the queue, in
+     * nanoseconds, or 0 if no commands have been removed.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    public long getAverageWaitNanos() {
+        final long drainedCount = mDrainedCount;
+        return (drainedCount == 0) ? 0 : mTotalWaitNanos / drainedCount;
+    }
+
+    /**
+     * Returns the longest time that any command removed by {@link #drain} spent in the queue, in
+     * nanoseconds.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    public long getMaxWaitNanos() {
+        return mMaxWaitNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "SpscCommandQueue{size=" + size() + " capacity=" + getCapacity()
+                + " highWaterMark=" + getHighWaterMark() + " rejected=" + getRejectedCount()
+                + " drained=" + getDrainedCount()
+                + " avgWaitNanos=" + getAverageWaitNanos()
+                + " maxWaitNanos=" + getMaxWaitNanos() + "}";
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can increment concurrently without contending with each other.
+ * <p/>
+ * The count is spread over a number of "stripes", each of which is an atomic long in its own
+ * cache line; each thread adds to the stripe selected by its thread id, so threads rarely write to
+ * the same cache line.  Adding to the counter never locks or allocates.  Reading the counter sums
+ * the stripes, which is more expensive, so it should be done rarely, such as when taking a
+ * snapshot of the metrics.
+ * <p/>
+ * This class is thread-safe.
+ */
+public class StripedCounter {
+
+    /**
+     * The number of longs between the values of adjacent stripes, so that each stripe occupies its
+     * own 64-byte cache line.
+     */
+    private static final int STRIPE_STRIDE = 8;
+
+    private static final int STRIPE_COUNT = stripeCountFor(
+            Runtime.getRuntime().availableProcessors());
+
+    private final AtomicLongArray mStripes = new AtomicLongArray(STRIPE_COUNT * STRIPE_STRIDE);
+
+    /**
+     * Adds 1 to this counter.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * Adds the given value to this counter.
+     * <p/>
+     * This method may be invoked by any thread.
+     *
+     * @param delta the value to add.
+     */
+    public void add(long delta) {
+        final int stripe = (int) Thread.currentThread().getId() & (STRIPE_COUNT - 1);
+        mStripes.getAndAdd(stripe * STRIPE_STRIDE, delta);
+    }
+
+    /**
+     * Returns the value of this counter.  Values added concurrently with this method may or may
+     * not be included.
+     * <p/>
+     * This method may be invoked by any thread.
+     */
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            sum += mStripes.get(i * STRIPE_STRIDE);
+        }
+        return sum;
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(get());
+    }
+
+    /**
+     * Returns the number of stripes to use on a device with the given number of processors: the
+     * smallest power of two that is at least twice the number of processors, but at most 64.
+     */
+    private static int stripeCountFor(int processorCount) {
+        int count = 1;
+        while (count < processorCount * 2 && count < 64) {
+            count <<= 1;
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ClientConnectionTest {
+
+    @Test
+    public void testBatchIsDeliveredAsBatch() throws IOException, ProtocolException {
+        final ByteBuffer stream = ByteBuffer.allocate(64);
+        stream.put(Protocol.OPCODE_HELLO_ACK);
+        stream.put((byte) Protocol.VERSION);
+        stream.putInt(Protocol.CAPABILITY_BATCH);
+        stream.put(Protocol.OPCODE_BATCH);
+        stream.put(Protocol.OPCODE_ABSOLUTE);
+        stream.putShort((short) 3);
+        stream.put(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9});
+        final byte[] first = Arrays.copyOf(stream.array(), stream.position());
+
+        final RecordingCallback callback = new RecordingCallback();
+        final ClientConnection connection = new ClientConnection("localhost", 0, callback);
+        connection.readFrames(Channels.newChannel(new ByteArrayInputStream(first)));
+
+        // the synthetic reset command precedes the first command of the stream
+        assertEquals(Arrays.asList("ABSOLUTE (127, 127, 127) ABSOLUTE (1, 2, 3) "
+                + "ABSOLUTE (4, 5, 6) ABSOLUTE (7, 8, 9)"), callback.events);
+        assertEquals(3, connection.getFrameSequence());
+
+        final byte[] second = {Protocol.OPCODE_ABSOLUTE, 10, 11, 12};
+        connection.readFrames(Channels.newChannel(new ByteArrayInputStream(second)));
+        assertEquals("ABSOLUTE (10, 11, 12)", callback.events.get(1));
+        assertEquals(2, callback.events.size());
+        assertEquals(4, connection.getFrameSequence());
+    }
+
+    @Test
+    public void testConflatedCommandsAreDeliveredAsBatch() throws IOException, ProtocolException {
+        final byte[] stream = {
+                Protocol.OPCODE_ABSOLUTE, 1, 2, 3,
+                Protocol.OPCODE_RELATIVE, 0, 1, 0, 1, 0, 1,
+                Protocol.OPCODE_RELATIVE, 0, 2, 0, 2, 0, 2,
+        };
+        final RecordingCallback callback = new RecordingCallback();
+        final ClientConnection connection = new ClientConnection("localhost", 0, callback);
+        connection.setConflationPolicy(CommandConflater.Policy.SUM_RELATIVE);
+        connection.readFrames(Channels.newChannel(new ByteArrayInputStream(stream)));
+
+        assertEquals(Arrays.asList("ABSOLUTE (127, 127, 127) ABSOLUTE (1, 2, 3) "
+                + "RELATIVE (3, 3, 3)"), callback.events);
+    }
+
+    @Test
+    public void testRunWaitsForPredecessor() throws InterruptedException {
+        final ClientConnection predecessor =
+                new ClientConnection("localhost", 0, new RecordingCallback());
+        final ClientConnection connection =
+                new ClientConnection("localhost", 0, new RecordingCallback());
+        connection.setPredecessor(predecessor);
+        final Thread thread = new Thread(connection);
+        thread.start();
+
+        Thread.sleep(100);
+        assertTrue(predecessor.isStopRequested());
+        assertFalse(connection.isFinished());
+
+        connection.requestStop();
+        predecessor.markFinished();
+        thread.join(10000);
+        assertTrue(connection.isFinished());
+        assertNull(connection.getUnfinishedPredecessor());
+    }
+
+    /**
+     * Records the commands that it receives; each command received on its own is one event, and
+     * each batch of commands is one event.
+     */
+    private static class RecordingCallback implements ClientConnection.Callback {
+
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void connectionStateChanged(@NonNull ClientConnection connection,
+                boolean connected) {
+        }
+
+        @Override
+        public void connectionError(@NonNull ClientConnection connection,
+                @NonNull ConnectionError error, @NonNull String message) {
+            throw new AssertionError("unexpected error: " + error + ": " + message);
+        }
+
+        @Override
+        public void commandReceived(@NonNull ClientConnection connection,
+                @NonNull ColorCommand command) {
+            events.add(command.toString());
+        }
+
+        @Override
+        public void commandsReceived(@NonNull ClientConnection connection,
+                @NonNull ColorCommand[] commands, int count) {
+            final StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                sb.append((i == 0) ? "" : " ").append(commands[i]);
+            }
+            events.add(sb.toString());
+        }
+
+    }
+
+}
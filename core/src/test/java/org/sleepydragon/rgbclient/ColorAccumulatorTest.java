@@ -0,0 +1,157 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ColorAccumulatorTest {
+
+    @Test
+    public void testFastForwardLeavesTheSameState() {
+        final Random random = new Random(7);
+        int skippedCount = 0;
+        for (int trial = 0; trial < 500; trial++) {
+            final int capacity = 1 + random.nextInt(32);
+            final ColorCommand[] prefix = createCommands(random, random.nextInt(40), 4);
+            final ColorCommand[] backlog = createCommands(random, random.nextInt(100),
+                    1 + random.nextInt(20));
+            final int fromIndex = random.nextInt(backlog.length + 1);
+            final int toIndex = fromIndex + random.nextInt(backlog.length - fromIndex + 1);
+
+            final ColorAccumulator expected = createAccumulator(capacity, prefix);
+            final ColorAccumulator actual = createAccumulator(capacity, prefix);
+            for (int i = fromIndex; i < toIndex; i++) {
+                expected.addCommand(backlog[i]);
+            }
+            final int startIndex = actual.getFastForwardIndex(backlog, fromIndex, toIndex);
+            assertTrue(startIndex >= fromIndex && startIndex <= toIndex);
+            for (int i = startIndex; i < toIndex; i++) {
+                actual.addCommand(backlog[i]);
+            }
+            skippedCount += startIndex - fromIndex;
+
+            assertSameState("trial " + trial, expected, actual);
+        }
+        assertTrue(skippedCount > 0);
+    }
+
+    @Test
+    public void testFastForwardWithoutAbsoluteSkipsNothing() {
+        final ColorCommand[] backlog = new ColorCommand[10];
+        for (int i = 0; i < backlog.length; i++) {
+            backlog[i] = new ColorCommand(ColorCommand.Instruction.RELATIVE, i, i, i);
+        }
+        final ColorAccumulator accumulator = new ColorAccumulator(2);
+        assertEquals(3, accumulator.getFastForwardIndex(backlog, 3, backlog.length));
+    }
+
+    @Test
+    public void testFastForwardToLastAbsolute() {
+        final ColorCommand[] backlog = createCommands(new Random(8), 50, Integer.MAX_VALUE);
+        backlog[40] = new ColorCommand(ColorCommand.Instruction.ABSOLUTE, 1, 2, 3);
+        final ColorAccumulator accumulator = new ColorAccumulator(4);
+        assertEquals(40, accumulator.getFastForwardIndex(backlog, 0, backlog.length));
+        // the last four commands will be in the history, so they must still be added
+        assertEquals(39, accumulator.getFastForwardIndex(backlog, 0, 43));
+    }
+
+    @Test
+    public void testEffectiveColorIncludesEvictedRelativeCommands() {
+        final ColorAccumulator accumulator = new ColorAccumulator(2);
+        accumulator.addCommand(new ColorCommand(ColorCommand.Instruction.ABSOLUTE, 10, 20, 30));
+        accumulator.addCommand(new ColorCommand(ColorCommand.Instruction.RELATIVE, 1, 1, 1));
+        accumulator.addCommand(new ColorCommand(ColorCommand.Instruction.RELATIVE, 2, 2, 2));
+        accumulator.addCommand(new ColorCommand(ColorCommand.Instruction.RELATIVE, 3, 3, 3));
+
+        final ColorAccumulator.RGB rgb = new ColorAccumulator.RGB();
+        assertTrue(accumulator.getEffectiveColor(rgb));
+        assertEquals(16, rgb.r);
+        assertEquals(26, rgb.g);
+        assertEquals(36, rgb.b);
+        assertEquals(-1, accumulator.getSelectedAbsoluteIndex());
+
+        accumulator.setSlotSelected(accumulator.getSlot(0), false);
+        assertTrue(accumulator.getEffectiveColor(rgb));
+        assertEquals(14, rgb.r);
+    }
+
+    /**
+     * Creates random commands, on average one in every {@code absoluteInterval} of which is an
+     * ABSOLUTE command.
+     */
+    @NonNull
+    private static ColorCommand[] createCommands(@NonNull Random random, int count,
+            int absoluteInterval) {
+        final ColorCommand[] commands = new ColorCommand[count];
+        for (int i = 0; i < count; i++) {
+            final boolean absolute = random.nextInt(absoluteInterval) == 0;
+            commands[i] = absolute
+                    ? new ColorCommand(ColorCommand.Instruction.ABSOLUTE,
+                    random.nextInt(256), random.nextInt(256), random.nextInt(256))
+                    : new ColorCommand(ColorCommand.Instruction.RELATIVE,
+                    random.nextInt(61) - 30, random.nextInt(61) - 30, random.nextInt(61) - 30);
+        }
+        return commands;
+    }
+
+    @NonNull
+    private static ColorAccumulator createAccumulator(int capacity,
+            @NonNull ColorCommand[] commands) {
+        final ColorAccumulator accumulator = new ColorAccumulator(capacity);
+        for (int i = 0; i < commands.length; i++) {
+            accumulator.addCommand(commands[i]);
+            if (i % 5 == 4) {
+                accumulator.setSlotSelected(accumulator.getSlot(accumulator.size() - 1), false);
+            }
+        }
+        return accumulator;
+    }
+
+    private static void assertSameState(@NonNull String message,
+            @NonNull ColorAccumulator expected, @NonNull ColorAccumulator actual) {
+        assertEquals(message, expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(message, expected.get(i), actual.get(i));
+        }
+        assertEquals(message, expected.getSelectedAbsoluteCommand(),
+                actual.getSelectedAbsoluteCommand());
+        assertEquals(message, expected.getSelectedAbsoluteIndex(),
+                actual.getSelectedAbsoluteIndex());
+        assertArrayEquals(message, expected.getSelectedRelativeIndices(),
+                actual.getSelectedRelativeIndices());
+
+        final ColorAccumulator.RGB expectedRgb = new ColorAccumulator.RGB();
+        final ColorAccumulator.RGB actualRgb = new ColorAccumulator.RGB();
+        assertEquals(message, expected.getEffectiveColor(expectedRgb),
+                actual.getEffectiveColor(actualRgb));
+        expected.getRelativeSum(expectedRgb);
+        actual.getRelativeSum(actualRgb);
+        assertEquals(message, expectedRgb.r, actualRgb.r);
+        assertEquals(message, expectedRgb.g, actualRgb.g);
+        assertEquals(message, expectedRgb.b, actualRgb.b);
+    }
+
+}
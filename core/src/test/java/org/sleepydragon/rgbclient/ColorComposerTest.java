@@ -0,0 +1,167 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ColorComposerTest {
+
+    @Test
+    public void testIncrementalUpdatesMatchFullRecompute() {
+        final Random random = new Random(11);
+        int incrementalCount = 0;
+        for (int trial = 0; trial < 200; trial++) {
+            final int sourceCount = 1 + random.nextInt(6);
+            final int[] priorities = new int[sourceCount];
+            final ColorComposer.BlendMode[] modes = new ColorComposer.BlendMode[sourceCount];
+            final int[] opacities = new int[sourceCount];
+            for (int i = 0; i < sourceCount; i++) {
+                priorities[i] = random.nextInt(3);
+                modes[i] = random.nextBoolean()
+                        ? ColorComposer.BlendMode.OVER : ColorComposer.BlendMode.ADD;
+                opacities[i] = random.nextInt(ColorComposer.OPAQUE + 1);
+            }
+
+            final ColorComposer actual = createComposer(priorities, modes, opacities);
+            final int[][] colors = new int[sourceCount][];
+            for (int step = 0; step < 100; step++) {
+                final int source = random.nextInt(sourceCount);
+                if (random.nextInt(10) == 0) {
+                    actual.clearColor(source);
+                    colors[source] = null;
+                } else {
+                    // the components are neither clamped nor wrapped, as with relative commands
+                    final int[] color = {random.nextInt(1024) - 512, random.nextInt(1024) - 512,
+                            random.nextInt(1024) - 512};
+                    if (colors[source] != null) {
+                        incrementalCount++;
+                    }
+                    actual.setColor(source, color[0], color[1], color[2]);
+                    colors[source] = color;
+                }
+
+                // a new composer computes all of the weights and sums from scratch
+                final ColorComposer expected = createComposer(priorities, modes, opacities);
+                for (int i = 0; i < sourceCount; i++) {
+                    if (colors[i] != null) {
+                        expected.setColor(i, colors[i][0], colors[i][1], colors[i][2]);
+                    }
+                }
+                assertSameColor("trial " + trial + " step " + step, expected, actual);
+            }
+        }
+        assertTrue(incrementalCount > 0);
+    }
+
+    @Test
+    public void testSingleOpaqueSourceIsExact() {
+        final ColorComposer composer = new ColorComposer();
+        composer.addSource(0, ColorComposer.BlendMode.OVER, ColorComposer.OPAQUE);
+        final ColorAccumulator.RGB rgb = new ColorAccumulator.RGB();
+        assertFalse(composer.getColor(rgb));
+
+        for (int i = 0; i < 1000; i++) {
+            composer.setColor(0, i, -i, 3 * i + 7);
+            assertTrue(composer.getColor(rgb));
+            assertEquals(i, rgb.r);
+            assertEquals(-i, rgb.g);
+            assertEquals(3 * i + 7, rgb.b);
+        }
+    }
+
+    @Test
+    public void testOverCoversInProportionToOpacity() {
+        final ColorComposer composer = new ColorComposer();
+        composer.addSource(0, ColorComposer.BlendMode.OVER, ColorComposer.OPAQUE);
+        composer.addSource(1, ColorComposer.BlendMode.OVER, 51);
+        composer.setColor(0, 100, 100, 100);
+        composer.setColor(1, 200, 0, 100);
+
+        // the top source has an opacity of 20%
+        final ColorAccumulator.RGB rgb = new ColorAccumulator.RGB();
+        assertTrue(composer.getColor(rgb));
+        assertEquals(120, rgb.r);
+        assertEquals(80, rgb.g);
+        assertEquals(100, rgb.b);
+
+        composer.clearColor(1);
+        assertTrue(composer.getColor(rgb));
+        assertEquals(100, rgb.r);
+        assertEquals(100, rgb.g);
+        assertEquals(100, rgb.b);
+    }
+
+    @Test
+    public void testAddDoesNotCover() {
+        final ColorComposer composer = new ColorComposer();
+        composer.addSource(1, ColorComposer.BlendMode.ADD, ColorComposer.OPAQUE);
+        composer.addSource(0, ColorComposer.BlendMode.OVER, ColorComposer.OPAQUE);
+        composer.setColor(0, 10, 20, 30);
+        composer.setColor(1, 100, 100, 100);
+
+        final ColorAccumulator.RGB rgb = new ColorAccumulator.RGB();
+        assertTrue(composer.getColor(rgb));
+        assertEquals(110, rgb.r);
+        assertEquals(120, rgb.g);
+        assertEquals(130, rgb.b);
+    }
+
+    @Test
+    public void testTiesAreBrokenInFavourOfTheSourceAddedLast() {
+        final ColorComposer composer = new ColorComposer();
+        composer.addSource(0, ColorComposer.BlendMode.OVER, ColorComposer.OPAQUE);
+        composer.addSource(0, ColorComposer.BlendMode.OVER, ColorComposer.OPAQUE);
+        composer.setColor(0, 1, 2, 3);
+        composer.setColor(1, 4, 5, 6);
+
+        final ColorAccumulator.RGB rgb = new ColorAccumulator.RGB();
+        assertTrue(composer.getColor(rgb));
+        assertEquals(4, rgb.r);
+        assertEquals(5, rgb.g);
+        assertEquals(6, rgb.b);
+    }
+
+    @NonNull
+    private static ColorComposer createComposer(@NonNull int[] priorities,
+            @NonNull ColorComposer.BlendMode[] modes, @NonNull int[] opacities) {
+        final ColorComposer composer = new ColorComposer();
+        for (int i = 0; i < priorities.length; i++) {
+            assertEquals(i, composer.addSource(priorities[i], modes[i], opacities[i]));
+        }
+        return composer;
+    }
+
+    private static void assertSameColor(@NonNull String message, @NonNull ColorComposer expected,
+            @NonNull ColorComposer actual) {
+        final ColorAccumulator.RGB expectedRgb = new ColorAccumulator.RGB();
+        final ColorAccumulator.RGB actualRgb = new ColorAccumulator.RGB();
+        assertEquals(message, expected.getColor(expectedRgb), actual.getColor(actualRgb));
+        assertEquals(message, expectedRgb.r, actualRgb.r);
+        assertEquals(message, expectedRgb.g, actualRgb.g);
+        assertEquals(message, expectedRgb.b, actualRgb.b);
+    }
+
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ColorSnapshotTest {
+
+    private static final int CAPACITY = 64;
+
+    @Test
+    public void testRoundTrip() {
+        final ColorAccumulator accumulator = createAccumulator(new Random(1), 150);
+        final byte[] snapshot = ColorSnapshot.encode(accumulator, 64 * 1024);
+        final ColorAccumulator decoded = new ColorAccumulator(CAPACITY);
+        ColorSnapshot.decode(snapshot, decoded);
+
+        assertEquals(accumulator.size(), decoded.size());
+        for (int i = 0; i < accumulator.size(); i++) {
+            assertEquals(accumulator.get(i), decoded.get(i));
+            assertEquals("index " + i, accumulator.isSlotSelected(accumulator.getSlot(i)),
+                    decoded.isSlotSelected(decoded.getSlot(i)));
+        }
+        assertEquals(accumulator.getSelectedAbsoluteCommand(),
+                decoded.getSelectedAbsoluteCommand());
+        assertEquals(accumulator.getSelectedAbsoluteIndex(), decoded.getSelectedAbsoluteIndex());
+        assertArrayEquals(accumulator.getSelectedRelativeIndices(),
+                decoded.getSelectedRelativeIndices());
+        assertSameColor(accumulator, decoded);
+    }
+
+    @Test
+    public void testRoundTripOfEmptyAccumulator() {
+        final ColorAccumulator decoded = new ColorAccumulator(CAPACITY);
+        ColorSnapshot.decode(ColorSnapshot.encode(new ColorAccumulator(CAPACITY),
+                ColorSnapshot.MIN_LENGTH), decoded);
+        assertEquals(0, decoded.size());
+        assertEquals(null, decoded.getSelectedAbsoluteCommand());
+        assertSameColor(new ColorAccumulator(CAPACITY), decoded);
+    }
+
+    @Test
+    public void testRoundTripTruncatedAtSizeCap() {
+        final Random random = new Random(2);
+        for (int maxLength = ColorSnapshot.MIN_LENGTH; maxLength < 400; maxLength += 7) {
+            final ColorAccumulator accumulator = createAccumulator(random, 200);
+            final byte[] snapshot = ColorSnapshot.encode(accumulator, maxLength);
+            assertTrue("length " + snapshot.length, snapshot.length <= maxLength);
+            final ColorAccumulator decoded = new ColorAccumulator(CAPACITY);
+            ColorSnapshot.decode(snapshot, decoded);
+
+            // the newest commands are kept, and the color is unchanged
+            final int size = decoded.size();
+            final int offset = accumulator.size() - size;
+            assertTrue("size " + size, size > 0 && size < accumulator.size());
+            for (int i = 0; i < size; i++) {
+                assertEquals(accumulator.get(offset + i), decoded.get(i));
+                assertEquals(accumulator.isSlotSelected(accumulator.getSlot(offset + i)),
+                        decoded.isSlotSelected(decoded.getSlot(i)));
+            }
+            assertEquals(accumulator.getSelectedAbsoluteCommand(),
+                    decoded.getSelectedAbsoluteCommand());
+            assertSameColor(accumulator, decoded);
+        }
+    }
+
+    @Test
+    public void testDecodeIntoSmallerAccumulator() {
+        final ColorAccumulator accumulator = createAccumulator(new Random(3), 100);
+        final ColorAccumulator decoded = new ColorAccumulator(CAPACITY / 4);
+        ColorSnapshot.decode(ColorSnapshot.encode(accumulator, 64 * 1024), decoded);
+        assertEquals(CAPACITY / 4, decoded.size());
+        assertEquals(accumulator.getLast(), decoded.getLast());
+        assertSameColor(accumulator, decoded);
+    }
+
+    @Test
+    public void testDecodeMalformed() {
+        final byte[] snapshot = ColorSnapshot.encode(createAccumulator(new Random(4), 20), 4096);
+        final byte[][] malformed = {
+                new byte[0],
+                new byte[]{(byte) (ColorSnapshot.VERSION + 1)},
+                Arrays.copyOf(snapshot, snapshot.length / 2),
+        };
+        for (final byte[] bytes : malformed) {
+            try {
+                ColorSnapshot.decode(bytes, new ColorAccumulator(CAPACITY));
+                fail("IllegalArgumentException should have been thrown for "
+                        + Arrays.toString(bytes));
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Creates an accumulator with the given number of random commands added to it and some of
+     * its RELATIVE commands deselected.
+     */
+    @NonNull
+    private static ColorAccumulator createAccumulator(@NonNull Random random, int commandCount) {
+        final ColorAccumulator accumulator = new ColorAccumulator(CAPACITY);
+        for (int i = 0; i < commandCount; i++) {
+            if (random.nextInt(10) == 0) {
+                accumulator.addCommand(new ColorCommand(ColorCommand.Instruction.ABSOLUTE,
+                        random.nextInt(256), random.nextInt(256), random.nextInt(256)));
+            } else {
+                accumulator.addCommand(new ColorCommand(ColorCommand.Instruction.RELATIVE,
+                        random.nextInt(2001) - 1000, random.nextInt(21) - 10,
+                        random.nextInt(100000)));
+            }
+        }
+        for (int i = 0; i < accumulator.size(); i += 3) {
+            accumulator.setSlotSelected(accumulator.getSlot(i), false);
+        }
+        return accumulator;
+    }
+
+    private static void assertSameColor(@NonNull ColorAccumulator expected,
+            @NonNull ColorAccumulator actual) {
+        final ColorAccumulator.RGB expectedRgb = new ColorAccumulator.RGB();
+        final ColorAccumulator.RGB actualRgb = new ColorAccumulator.RGB();
+        assertEquals(expected.getEffectiveColor(expectedRgb), actual.getEffectiveColor(actualRgb));
+        assertEquals(expectedRgb.r, actualRgb.r);
+        assertEquals(expectedRgb.g, actualRgb.g);
+        assertEquals(expectedRgb.b, actualRgb.b);
+        expected.getRelativeSum(expectedRgb);
+        actual.getRelativeSum(actualRgb);
+        assertEquals(expectedRgb.r, actualRgb.r);
+        assertEquals(expectedRgb.g, actualRgb.g);
+        assertEquals(expectedRgb.b, actualRgb.b);
+    }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CommandConflaterTest {
+
+    private static final int BATCH_COUNT = 200;
+    private static final int MAX_BATCH_LENGTH = 40;
+
+    @Test
+    public void testEveryPolicyProducesTheSameColor() {
+        for (final CommandConflater.Policy policy : CommandConflater.Policy.values()) {
+            final Random random = new Random(42);
+            final ColorSink expected = new ColorSink();
+            final ColorSink actual = new ColorSink();
+            final CommandConflater conflater = new CommandConflater(actual);
+            conflater.setPolicy(policy);
+
+            for (int batch = 0; batch < BATCH_COUNT; batch++) {
+                final int length = random.nextInt(MAX_BATCH_LENGTH);
+                for (int i = 0; i < length; i++) {
+                    final ColorCommand.Instruction instruction = random.nextInt(8) == 0
+                            ? ColorCommand.Instruction.ABSOLUTE
+                            : ColorCommand.Instruction.RELATIVE;
+                    final int r = randomComponent(random, instruction);
+                    final int g = randomComponent(random, instruction);
+                    final int b = randomComponent(random, instruction);
+                    expected.deliver(instruction, r, g, b);
+                    conflater.add(instruction, r, g, b);
+                }
+                conflater.flush();
+                assertEquals(policy + " batch " + batch, expected.getColor(), actual.getColor());
+            }
+
+            assertEquals(conflater.getFrameCount(),
+                    conflater.getCommandCount() + conflater.getMergedFrameCount());
+            if (policy != CommandConflater.Policy.PASS_THROUGH) {
+                assertTrue(policy.toString(), conflater.getMergedFrameCount() > 0);
+            }
+        }
+    }
+
+    @Test
+    public void testPassThroughDeliversImmediately() {
+        final ColorSink sink = new ColorSink();
+        final CommandConflater conflater = new CommandConflater(sink);
+        conflater.add(ColorCommand.Instruction.ABSOLUTE, 1, 2, 3);
+        assertEquals(1, sink.commands.size());
+    }
+
+    @Test
+    public void testLatestAbsoluteAndSumRelative() {
+        final ColorSink sink = new ColorSink();
+        final CommandConflater conflater = new CommandConflater(sink);
+        conflater.setPolicy(CommandConflater.Policy.LATEST_ABSOLUTE_AND_SUM_RELATIVE);
+        conflater.add(ColorCommand.Instruction.RELATIVE, 5, 5, 5);
+        conflater.add(ColorCommand.Instruction.ABSOLUTE, 10, 20, 30);
+        conflater.add(ColorCommand.Instruction.RELATIVE, 1, 2, 3);
+        conflater.add(ColorCommand.Instruction.RELATIVE, -4, 5, -6);
+        assertEquals(0, sink.commands.size());
+        conflater.flush();
+
+        assertEquals(2, sink.commands.size());
+        assertEquals(ColorCommand.Instruction.ABSOLUTE + " 10 20 30", sink.commands.get(0));
+        assertEquals(ColorCommand.Instruction.RELATIVE + " -3 7 -3", sink.commands.get(1));
+        assertEquals(2, conflater.getMergedFrameCount());
+    }
+
+    private static int randomComponent(@NonNull Random random,
+            @NonNull ColorCommand.Instruction instruction) {
+        return (instruction == ColorCommand.Instruction.ABSOLUTE)
+                ? random.nextInt(256) : random.nextInt(101) - 50;
+    }
+
+    /**
+     * Records the commands delivered to it and applies them to a color: an ABSOLUTE command
+     * replaces the color and a RELATIVE command is added to it.
+     */
+    private static class ColorSink implements CommandConflater.Sink {
+
+        final List<String> commands = new ArrayList<>();
+
+        private boolean mHasAbsolute;
+        private int mR;
+        private int mG;
+        private int mB;
+
+        @Override
+        public void deliver(@NonNull ColorCommand.Instruction instruction, int r, int g, int b) {
+            commands.add(instruction + " " + r + " " + g + " " + b);
+            if (instruction == ColorCommand.Instruction.ABSOLUTE) {
+                mHasAbsolute = true;
+                mR = r;
+                mG = g;
+                mB = b;
+            } else {
+                mR += r;
+                mG += g;
+                mB += b;
+            }
+        }
+
+        @NonNull
+        String getColor() {
+            return mHasAbsolute + " " + mR + " " + mG + " " + mB;
+        }
+
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class CommandHistoryTest {
+
+    @Test
+    public void testCommandsSinceAfterWraparound() {
+        final CommandHistory history = createHistory(4, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10);
+        assertEquals(4, history.size());
+        assertIdsSince(history, 7, 8, 9, 10);
+        assertIdsSince(history, 8, 9, 10);
+        assertIdsSince(history, 10);
+    }
+
+    @Test
+    public void testCommandsSinceWithInterleavedIds() {
+        // the ids of one source are not contiguous when the sources share the id counter, which
+        // defeats the constant-time index calculation and falls back to the binary search
+        final CommandHistory history = createHistory(5, 2, 5, 6, 9, 13, 14, 20);
+        assertIdsSince(history, 9, 13, 14, 20);
+        assertIdsSince(history, 13, 14, 20);
+        assertIdsSince(history, 6, 9, 13, 14, 20);
+        assertIdsSince(history, 20);
+    }
+
+    @Test
+    public void testCommandsSinceIdNotInHistory() {
+        final CommandHistory history = createHistory(5, 2, 5, 6, 9, 13, 14, 20);
+        // an id between two ids in the history was never in it, so everything is copied
+        assertIdsSince(history, 10, 6, 9, 13, 14, 20);
+        // an id newer than all of those in the history
+        assertIdsSince(history, 21, 6, 9, 13, 14, 20);
+    }
+
+    @Test
+    public void testCommandsSinceEvictedId() {
+        final CommandHistory history = createHistory(3, 1, 2, 3, 4, 5, 6);
+        assertIdsSince(history, 2, 4, 5, 6);
+        assertIdsSince(history, 3, 4, 5, 6);
+        assertIdsSince(history, 4, 5, 6);
+    }
+
+    @Test
+    public void testCommandsSinceInvalidId() {
+        final CommandHistory history = createHistory(3, 1, 2, 3, 4);
+        assertIdsSince(history, ColorCommand.INVALID_ID, 2, 3, 4);
+        assertIdsSince(createHistory(3), ColorCommand.INVALID_ID);
+    }
+
+    @Test
+    public void testAddAllIsTheSameAsAdd() {
+        final ColorCommand[] commands = new ColorCommand[7];
+        for (int i = 0; i < commands.length; i++) {
+            commands[i] = new ColorCommand(3 * i + 1, ColorCommand.Instruction.RELATIVE, i, -i, 0);
+        }
+        final CommandHistory history = new CommandHistory(5);
+        history.add(commands[0]);
+        history.addAll(new ColorCommand[]{commands[1], commands[2], commands[3], commands[4],
+                commands[5], commands[6], null}, 6);
+
+        final List<ColorCommand> actual = new ArrayList<>();
+        history.getCommandsSince(ColorCommand.INVALID_ID, actual);
+        assertEquals(5, actual.size());
+        for (int i = 0; i < actual.size(); i++) {
+            final ColorCommand expected = commands[i + 2];
+            assertEquals(expected.id, actual.get(i).id);
+            assertEquals(expected.instruction, actual.get(i).instruction);
+            assertEquals(expected.r, actual.get(i).r);
+            assertEquals(expected.g, actual.get(i).g);
+            assertEquals(expected.b, actual.get(i).b);
+        }
+    }
+
+    @NonNull
+    private static CommandHistory createHistory(int capacity, long... ids) {
+        final CommandHistory history = new CommandHistory(capacity);
+        for (final long id : ids) {
+            history.add(new ColorCommand(id, ColorCommand.Instruction.ABSOLUTE, 1, 2, 3));
+        }
+        return history;
+    }
+
+    private static void assertIdsSince(@NonNull CommandHistory history, long id,
+            long... expectedIds) {
+        final CommandHistory.Snapshot snapshot = new CommandHistory.Snapshot(0);
+        final int count = history.copySince(id, snapshot);
+        final long[] actualIds = new long[count];
+        for (int i = 0; i < count; i++) {
+            actualIds[i] = snapshot.getId(i);
+        }
+        assertArrayEquals("since " + id, expectedIds, actualIds);
+    }
+
+}
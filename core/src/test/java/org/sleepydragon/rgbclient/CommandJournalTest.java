@@ -0,0 +1,181 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CommandJournalTest {
+
+    private static final int SERVER_HASH = 0x12345678;
+
+    @Rule
+    public final TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testReadTails() throws IOException {
+        final File directory = mTemporaryFolder.getRoot();
+        final List<ColorCommand> source0 = new ArrayList<>();
+        final List<ColorCommand> source1 = new ArrayList<>();
+        final CommandJournal journal = createJournal(directory);
+        for (int i = 0; i < 10; i++) {
+            final List<ColorCommand> commands = (i % 3 == 0) ? source1 : source0;
+            final ColorCommand command = createCommand(i);
+            assertTrue(journal.append((commands == source0) ? 0 : 1, SERVER_HASH, i, command));
+            commands.add(command);
+        }
+        journal.close();
+
+        final CommandJournal.Tail[] tails = readTails(directory, 2, 100);
+        assertEquals(source0, tails[0].getCommands());
+        assertEquals(source1, tails[1].getCommands());
+        assertEquals(SERVER_HASH, tails[0].getServerHash());
+        assertEquals(8, tails[0].getSequence());
+        assertEquals(9, tails[1].getSequence());
+
+        final CommandJournal.Tail[] limitedTails = readTails(directory, 1, 2);
+        assertEquals(source0.subList(source0.size() - 2, source0.size()),
+                limitedTails[0].getCommands());
+    }
+
+    @Test
+    public void testReadTailsSkipsTornRecord() throws IOException {
+        final File directory = mTemporaryFolder.getRoot();
+        final List<ColorCommand> commands = appendCommands(directory, 5);
+
+        // simulate the process being killed part way through writing a record
+        final File segment = getOnlySegment(directory);
+        final RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            raf.seek(raf.length());
+            raf.write(new byte[CommandJournal.RECORD_LENGTH / 2]);
+        } finally {
+            raf.close();
+        }
+
+        final CommandJournal.Tail[] tails = readTails(directory, 1, 100);
+        assertEquals(commands, tails[0].getCommands());
+        assertEquals(4, tails[0].getSequence());
+    }
+
+    @Test
+    public void testReadTailsSkipsCorruptRecords() throws IOException {
+        final File directory = mTemporaryFolder.getRoot();
+        final List<ColorCommand> commands = appendCommands(directory, 5);
+
+        // corrupt a byte of the second record, and the CRC32 of the last record
+        final File segment = getOnlySegment(directory);
+        final RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            flipBits(raf, CommandJournal.SEGMENT_HEADER_LENGTH + CommandJournal.RECORD_LENGTH + 3);
+            flipBits(raf, raf.length() - 1);
+        } finally {
+            raf.close();
+        }
+        commands.remove(4);
+        commands.remove(1);
+
+        final CommandJournal.Tail[] tails = readTails(directory, 1, 100);
+        assertEquals(commands, tails[0].getCommands());
+        assertEquals(3, tails[0].getSequence());
+    }
+
+    @Test
+    public void testReadTailsSkipsUnknownSources() throws IOException {
+        final File directory = mTemporaryFolder.getRoot();
+        final CommandJournal journal = createJournal(directory);
+        final ColorCommand command = createCommand(0);
+        journal.append(0, SERVER_HASH, 0, command);
+        journal.append(5, SERVER_HASH, 1, createCommand(1));
+        journal.close();
+
+        final CommandJournal.Tail[] tails = readTails(directory, 2, 100);
+        assertEquals(1, tails[0].getCommands().size());
+        assertEquals(command, tails[0].getCommands().get(0));
+        assertEquals(0, tails[1].getCommands().size());
+        assertEquals(-1, tails[1].getSequence());
+    }
+
+    @NonNull
+    private static CommandJournal createJournal(@NonNull File directory) throws IOException {
+        return new CommandJournal(directory, 1024 * 1024, 4, 64, 0);
+    }
+
+    @NonNull
+    private static CommandJournal.Tail[] readTails(@NonNull File directory, int sourceCount,
+            int maxCount) throws IOException {
+        final CommandJournal journal = createJournal(directory);
+        try {
+            return journal.readTails(sourceCount, maxCount);
+        } finally {
+            journal.close();
+        }
+    }
+
+    @NonNull
+    private static ColorCommand createCommand(int i) {
+        return new ColorCommand((i % 2 == 0)
+                ? ColorCommand.Instruction.ABSOLUTE : ColorCommand.Instruction.RELATIVE,
+                i, -i, 1000 * i);
+    }
+
+    /**
+     * Appends the given number of commands from source 0 to a new journal in the given directory,
+     * with consecutive sequence numbers starting at 0, and closes it.
+     */
+    @NonNull
+    private static List<ColorCommand> appendCommands(@NonNull File directory, int count)
+            throws IOException {
+        final List<ColorCommand> commands = new ArrayList<>();
+        final CommandJournal journal = createJournal(directory);
+        for (int i = 0; i < count; i++) {
+            final ColorCommand command = createCommand(i);
+            assertTrue(journal.append(0, SERVER_HASH, i, command));
+            commands.add(command);
+        }
+        journal.close();
+        return commands;
+    }
+
+    private static void flipBits(@NonNull RandomAccessFile raf, long offset) throws IOException {
+        raf.seek(offset);
+        final int value = raf.read();
+        raf.seek(offset);
+        raf.write(value ^ 0xFF);
+    }
+
+    @NonNull
+    private static File getOnlySegment(@NonNull File directory) {
+        final File[] files = directory.listFiles();
+        assertEquals(1, files.length);
+        return files[0];
+    }
+
+}
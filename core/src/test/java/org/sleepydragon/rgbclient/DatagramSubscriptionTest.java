@@ -0,0 +1,176 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DatagramSubscriptionTest {
+
+    private static final int PORT = 5678;
+    private static final long DELAY_MILLIS = 250;
+    private static final long DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(DELAY_MILLIS);
+    private static final long INTERVAL_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(Protocol.DATAGRAM_SUBSCRIBE_INTERVAL_MILLIS);
+
+    private InetAddress[] mAddresses;
+    private RecordingSocket mSocket;
+    private DatagramPacket mHello;
+
+    @Before
+    public void setUp() throws IOException {
+        mAddresses = new InetAddress[]{
+                InetAddress.getByAddress(new byte[]{10, 0, 0, 1}),
+                InetAddress.getByAddress(new byte[]{10, 0, 0, 2}),
+                InetAddress.getByAddress(new byte[]{10, 0, 0, 3}),
+        };
+        mSocket = new RecordingSocket();
+        mHello = new DatagramPacket(new byte[5], 5);
+    }
+
+    @After
+    public void tearDown() {
+        mSocket.close();
+    }
+
+    @Test
+    public void testAddressesAreSubscribedToInOrder() throws IOException {
+        final DatagramSubscription subscription =
+                new DatagramSubscription(mAddresses, 10000, DELAY_MILLIS);
+        final long start = System.nanoTime();
+
+        subscription.sendHellos(mSocket, mHello, PORT, start);
+        assertSent(mAddresses[0]);
+        assertTrue(subscription.isSubscribed(mAddresses[0]));
+        assertFalse(subscription.isSubscribed(mAddresses[1]));
+
+        subscription.sendHellos(mSocket, mHello, PORT, start + DELAY_NANOS / 2);
+        assertSent();
+
+        subscription.sendHellos(mSocket, mHello, PORT, start + DELAY_NANOS);
+        assertSent(mAddresses[1]);
+        subscription.sendHellos(mSocket, mHello, PORT, start + 2 * DELAY_NANOS);
+        assertSent(mAddresses[2]);
+        assertEquals(3, subscription.getStartedCount());
+
+        // the HELLO datagram is repeated to every address subscribed to
+        subscription.sendHellos(mSocket, mHello, PORT, start + 2 * DELAY_NANOS + INTERVAL_NANOS);
+        assertSent(mAddresses[0], mAddresses[1], mAddresses[2]);
+    }
+
+    @Test
+    public void testFailedAddressIsSkippedImmediately() throws IOException {
+        mSocket.mUnreachable.add(mAddresses[0]);
+        mSocket.mUnreachable.add(mAddresses[1]);
+        final DatagramSubscription subscription =
+                new DatagramSubscription(mAddresses, 10000, DELAY_MILLIS);
+        final long start = System.nanoTime();
+
+        subscription.sendHellos(mSocket, mHello, PORT, start);
+        assertSent(mAddresses[0], mAddresses[1], mAddresses[2]);
+        assertFalse(subscription.isSubscribed(mAddresses[0]));
+        assertTrue(subscription.isSubscribed(mAddresses[2]));
+
+        subscription.sendHellos(mSocket, mHello, PORT, start + INTERVAL_NANOS);
+        assertSent(mAddresses[2]);
+    }
+
+    @Test
+    public void testAllAddressesFailed() throws IOException {
+        mSocket.mUnreachable.addAll(Arrays.asList(mAddresses));
+        final DatagramSubscription subscription =
+                new DatagramSubscription(mAddresses, 10000, DELAY_MILLIS);
+        try {
+            subscription.sendHellos(mSocket, mHello, PORT, System.nanoTime());
+            fail("IOException should have been thrown");
+        } catch (IOException expected) {
+            assertEquals("unreachable: " + mAddresses[2], expected.getMessage());
+        }
+    }
+
+    @Test
+    public void testTimeout() throws IOException {
+        final DatagramSubscription subscription =
+                new DatagramSubscription(mAddresses, 1000, DELAY_MILLIS);
+        final long start = System.nanoTime();
+        subscription.sendHellos(mSocket, mHello, PORT, start);
+        subscription.checkTimeout(start);
+        try {
+            subscription.checkTimeout(start + TimeUnit.SECONDS.toNanos(1));
+            fail("SocketTimeoutException should have been thrown");
+        } catch (SocketTimeoutException expected) {
+            // expected
+        }
+    }
+
+    private void assertSent(@NonNull InetAddress... addresses) {
+        final List<InetSocketAddress> expected = new ArrayList<>();
+        for (final InetAddress address : addresses) {
+            expected.add(new InetSocketAddress(address, PORT));
+        }
+        assertEquals(expected, mSocket.mSent);
+        mSocket.mSent.clear();
+    }
+
+    /**
+     * Records the addresses to which datagrams are sent instead of sending them, failing to send
+     * to the addresses in {@link #mUnreachable}.
+     */
+    private static class RecordingSocket extends DatagramSocket {
+
+        final List<InetSocketAddress> mSent = new ArrayList<>();
+        final Set<InetAddress> mUnreachable = new HashSet<>();
+
+        RecordingSocket() throws SocketException {
+            super((InetSocketAddress) null);
+        }
+
+        @Override
+        public void send(DatagramPacket packet) throws IOException {
+            final InetSocketAddress address = (InetSocketAddress) packet.getSocketAddress();
+            mSent.add(address);
+            if (mUnreachable.contains(address.getAddress())) {
+                throw new IOException("unreachable: " + address.getAddress());
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class FrameDecoderTest {
+
+    private static final int CAPABILITIES =
+            Protocol.CAPABILITY_BATCH | Protocol.CAPABILITY_HEARTBEAT;
+
+    @Test
+    public void testDecodeWholeStream() throws IOException, ProtocolException {
+        final List<String> events = decodeInChunks(createStream(), new int[0]);
+        assertEquals(createExpectedEvents(), events);
+    }
+
+    @Test
+    public void testDecodeSplitAtEveryByteBoundary() throws IOException, ProtocolException {
+        final byte[] stream = createStream();
+        final List<String> expected = createExpectedEvents();
+        for (int split = 1; split < stream.length; split++) {
+            final List<String> events = decodeInChunks(stream, new int[]{split});
+            assertEquals("split at byte " + split, expected, events);
+        }
+    }
+
+    @Test
+    public void testDecodeOneByteAtATime() throws IOException, ProtocolException {
+        final byte[] stream = createStream();
+        final int[] splits = new int[stream.length - 1];
+        for (int i = 0; i < splits.length; i++) {
+            splits[i] = i + 1;
+        }
+        assertEquals(createExpectedEvents(), decodeInChunks(stream, splits));
+    }
+
+    @Test
+    public void testDecodeBatchLargerThanBuffer() throws IOException, ProtocolException {
+        final int recordCount = 3 * Protocol.MAX_FRAME_LENGTH;
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final List<String> expected = new ArrayList<>();
+        out.write(Protocol.OPCODE_BATCH);
+        out.write(Protocol.OPCODE_ABSOLUTE);
+        writeShort(out, recordCount);
+        for (int i = 0; i < recordCount; i++) {
+            out.write(i);
+            out.write(i + 1);
+            out.write(i + 2);
+            expected.add(absolute(i, i + 1, i + 2));
+        }
+
+        final FrameDecoder decoder = new FrameDecoder(Protocol.MAX_FRAME_LENGTH);
+        decoder.setCapabilities(CAPABILITIES);
+        final RecordingListener listener = new RecordingListener();
+        final ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        int frameCount = 0;
+        while (decoder.readFrom(in) > 0) {
+            frameCount += decoder.decode(listener);
+        }
+        assertEquals(recordCount, frameCount);
+        assertEquals(expected, listener.events);
+    }
+
+    @Test
+    public void testDecodeBatchWithoutCapability() throws IOException, ProtocolException {
+        final FrameDecoder decoder = new FrameDecoder();
+        decoder.readFrom(new ByteArrayInputStream(new byte[]{
+                Protocol.OPCODE_BATCH, Protocol.OPCODE_ABSOLUTE, 0, 1, 1, 2, 3}));
+        try {
+            decoder.decode(new RecordingListener());
+            fail("ProtocolException should have been thrown");
+        } catch (ProtocolException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testDecodeInvalidOpcode() throws IOException, ProtocolException {
+        final FrameDecoder decoder = new FrameDecoder();
+        decoder.readFrom(new ByteArrayInputStream(new byte[]{
+                Protocol.OPCODE_ABSOLUTE, 1, 2, 3, 0x7F}));
+        final RecordingListener listener = new RecordingListener();
+        try {
+            decoder.decode(listener);
+            fail("ProtocolException should have been thrown");
+        } catch (ProtocolException expected) {
+            // expected
+        }
+        assertEquals(1, listener.events.size());
+        assertEquals(absolute(1, 2, 3), listener.events.get(0));
+    }
+
+    @Test
+    public void testDecodeDatagramWithPartialFrame() {
+        final FrameDecoder decoder = new FrameDecoder();
+        final ByteBuffer datagram = ByteBuffer.wrap(new byte[]{
+                Protocol.OPCODE_ABSOLUTE, 1, 2, 3, Protocol.OPCODE_RELATIVE, 0, 1});
+        try {
+            decoder.decodeDatagram(datagram, new RecordingListener());
+            fail("ProtocolException should have been thrown");
+        } catch (ProtocolException expected) {
+            // expected
+        }
+    }
+
+    /**
+     * Feeds the given stream to a new decoder in chunks that end at the given offsets, decoding
+     * after each chunk, and returns the events delivered to the listener.
+     */
+    @NonNull
+    private static List<String> decodeInChunks(@NonNull byte[] stream, @NonNull int[] splits)
+            throws IOException, ProtocolException {
+        final FrameDecoder decoder = new FrameDecoder();
+        decoder.setCapabilities(CAPABILITIES);
+        final RecordingListener listener = new RecordingListener();
+        int frameCount = 0;
+        int start = 0;
+        for (int i = 0; i <= splits.length; i++) {
+            final int end = (i < splits.length) ? splits[i] : stream.length;
+            final ByteArrayInputStream in = new ByteArrayInputStream(stream, start, end - start);
+            while (decoder.readFrom(in) > 0) {
+                frameCount += decoder.decode(listener);
+            }
+            start = end;
+        }
+        assertEquals(listener.colorFrameCount, frameCount);
+        return listener.events;
+    }
+
+    /**
+     * Returns a stream with one of every frame that the server may send.
+     */
+    @NonNull
+    private static byte[] createStream() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(Protocol.OPCODE_HELLO_ACK);
+        out.write(Protocol.VERSION);
+        writeInt(out, CAPABILITIES);
+        out.write(Protocol.OPCODE_ABSOLUTE);
+        out.write(255);
+        out.write(128);
+        out.write(0);
+        out.write(Protocol.OPCODE_RELATIVE);
+        writeShort(out, -300);
+        writeShort(out, 7);
+        writeShort(out, 0x1234);
+        out.write(Protocol.OPCODE_RESUMED);
+        writeLong(out, 0x0102030405060708L);
+        out.write(Protocol.OPCODE_BATCH);
+        out.write(Protocol.OPCODE_RELATIVE);
+        writeShort(out, 3);
+        for (int i = 0; i < 3; i++) {
+            writeShort(out, i);
+            writeShort(out, -i);
+            writeShort(out, 100 * i);
+        }
+        out.write(Protocol.OPCODE_PONG);
+        writeLong(out, -2L);
+        out.write(Protocol.OPCODE_BATCH);
+        out.write(Protocol.OPCODE_ABSOLUTE);
+        writeShort(out, 2);
+        out.write(1);
+        out.write(2);
+        out.write(3);
+        out.write(4);
+        out.write(5);
+        out.write(6);
+        out.write(Protocol.OPCODE_ABSOLUTE);
+        out.write(9);
+        out.write(8);
+        out.write(7);
+        return out.toByteArray();
+    }
+
+    @NonNull
+    private static List<String> createExpectedEvents() {
+        final List<String> events = new ArrayList<>();
+        events.add("HELLO_ACK " + Protocol.VERSION + " " + CAPABILITIES);
+        events.add(absolute(255, 128, 0));
+        events.add(relative(-300, 7, 0x1234));
+        events.add("RESUMED " + 0x0102030405060708L);
+        for (int i = 0; i < 3; i++) {
+            events.add(relative(i, -i, 100 * i));
+        }
+        events.add("PONG -2");
+        events.add(absolute(1, 2, 3));
+        events.add(absolute(4, 5, 6));
+        events.add(absolute(9, 8, 7));
+        return events;
+    }
+
+    @NonNull
+    private static String absolute(int r, int g, int b) {
+        return ColorCommand.Instruction.ABSOLUTE + " " + r + " " + g + " " + b;
+    }
+
+    @NonNull
+    private static String relative(int r, int g, int b) {
+        return ColorCommand.Instruction.RELATIVE + " " + r + " " + g + " " + b;
+    }
+
+    private static void writeShort(@NonNull ByteArrayOutputStream out, int value) {
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    private static void writeInt(@NonNull ByteArrayOutputStream out, int value) {
+        writeShort(out, value >> 16);
+        writeShort(out, value);
+    }
+
+    private static void writeLong(@NonNull ByteArrayOutputStream out, long value) {
+        writeInt(out, (int) (value >> 32));
+        writeInt(out, (int) value);
+    }
+
+    /**
+     * Records the frames that it is notified of, with the records of BATCH frames recorded
+     * individually so that the events do not depend on how a batch is split into runs.
+     */
+    private static class RecordingListener implements FrameDecoder.Listener {
+
+        final List<String> events = new ArrayList<>();
+        int colorFrameCount;
+
+        @Override
+        public void onFrameDecoded(@NonNull ColorCommand.Instruction instruction,
+                int r, int g, int b) {
+            colorFrameCount++;
+            events.add(instruction + " " + r + " " + g + " " + b);
+        }
+
+        @Override
+        public void onResumed(long sequence) {
+            events.add("RESUMED " + sequence);
+        }
+
+        @Override
+        public void onHelloAcknowledged(int version, int capabilities) {
+            events.add("HELLO_ACK " + version + " " + capabilities);
+        }
+
+        @Override
+        public void onPong(long token) {
+            events.add("PONG " + token);
+        }
+
+        @Override
+        public void onBatchDecoded(@NonNull ColorCommand.Instruction instruction,
+                @NonNull int[] components, int count) {
+            colorFrameCount += count;
+            for (int i = 0; i < count; i++) {
+                events.add(instruction + " " + components[3 * i] + " " + components[3 * i + 1]
+                        + " " + components[3 * i + 2]);
+            }
+        }
+
+    }
+
+}
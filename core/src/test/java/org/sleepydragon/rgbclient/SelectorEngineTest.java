@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SelectorEngineTest {
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            command.run();
+        }
+    };
+
+    @Test
+    public void testPendingConnectionFailsWhenEngineStops() throws IOException {
+        final SelectorEngine engine = new SelectorEngine(DIRECT_EXECUTOR);
+        final RecordingCallback callback = new RecordingCallback();
+        final ClientConnection connection = new ClientConnection("localhost", 0, callback);
+        engine.register(connection);
+        engine.requestStop();
+        engine.run();
+
+        assertTrue(engine.isClosed());
+        assertEquals(Arrays.asList("CONNECTION_ESTABLISHMENT"), callback.events);
+        assertTrue(connection.isFinished());
+    }
+
+    @Test
+    public void testRegisterFailsAfterEngineStops() throws IOException {
+        final SelectorEngine engine = new SelectorEngine(DIRECT_EXECUTOR);
+        engine.requestStop();
+        engine.run();
+
+        final RecordingCallback callback = new RecordingCallback();
+        final ClientConnection connection = new ClientConnection("localhost", 0, callback);
+        engine.register(connection);
+
+        assertEquals(Arrays.asList("CONNECTION_ESTABLISHMENT"), callback.events);
+        assertTrue(connection.isFinished());
+    }
+
+    @Test
+    public void testStoppedConnectionIsNotReported() throws IOException {
+        final SelectorEngine engine = new SelectorEngine(DIRECT_EXECUTOR);
+        final RecordingCallback callback = new RecordingCallback();
+        final ClientConnection connection = new ClientConnection("localhost", 0, callback);
+        engine.register(connection);
+        connection.requestStop();
+        engine.requestStop();
+        engine.run();
+
+        assertEquals(0, callback.events.size());
+        assertTrue(connection.isFinished());
+    }
+
+    /**
+     * Records the state changes and errors that it is notified of.
+     */
+    private static class RecordingCallback implements ClientConnection.Callback {
+
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void connectionStateChanged(@NonNull ClientConnection connection,
+                boolean connected) {
+            events.add(connected ? "CONNECTED" : "DISCONNECTED");
+        }
+
+        @Override
+        public void connectionError(@NonNull ClientConnection connection,
+                @NonNull ConnectionError error, @NonNull String message) {
+            events.add(error.name());
+        }
+
+        @Override
+        public void commandReceived(@NonNull ClientConnection connection,
+                @NonNull ColorCommand command) {
+            throw new AssertionError("unexpected command: " + command);
+        }
+
+        @Override
+        public void commandsReceived(@NonNull ClientConnection connection,
+                @NonNull ColorCommand[] commands, int count) {
+            throw new AssertionError("unexpected commands: " + count);
+        }
+
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+
+/**
+ * A source of the steps that {@link LoadServer} performs for a connection: frames to send and
+ * pauses during which nothing is sent.
+ */
+public interface FrameSource {
+
+    /**
+     * Stores the next step into the given object, overwriting all of its fields.
+     *
+     * @param step the object into which to store the next step; must not be null.
+     * @return true if the next step was stored, or false if there are no more steps.
+     */
+    boolean next(@NonNull Step step);
+
+    /**
+     * A step performed by {@link LoadServer}, which is reused for every step to avoid allocating
+     * an object for every frame.
+     */
+    class Step {
+
+        /**
+         * The opcode of the frame to send: {@link Protocol#OPCODE_RELATIVE},
+         * {@link Protocol#OPCODE_ABSOLUTE} or, to test the client's handling of protocol errors,
+         * any other value, which is sent without a payload.  Ignored if {@link #pauseMillis} is
+         * greater than zero.
+         */
+        public byte opcode;
+
+        /**
+         * The red, green and blue values of the frame's payload, if it has one.
+         */
+        public int r, g, b;
+
+        /**
+         * Whether to split the frame across two TCP segments by sending it in two parts with a
+         * short delay in between, to test the client's handling of partial frames.
+         */
+        public boolean split;
+
+        /**
+         * If greater than zero, this step is a pause rather than a frame: the number of
+         * milliseconds for which to send nothing.
+         */
+        public long pauseMillis;
+
+        public void setFrame(byte opcode, int r, int g, int b) {
+            this.opcode = opcode;
+            this.r = r;
+            this.g = g;
+            this.b = b;
+            split = false;
+            pauseMillis = 0;
+        }
+
+        public void setPause(long pauseMillis) {
+            if (pauseMillis <= 0) {
+                throw new IllegalArgumentException("invalid pauseMillis: " + pauseMillis);
+            }
+            opcode = 0;
+            r = g = b = 0;
+            split = false;
+            this.pauseMillis = pauseMillis;
+        }
+
+        public boolean isPause() {
+            return pauseMillis > 0;
+        }
+
+    }
+
+}
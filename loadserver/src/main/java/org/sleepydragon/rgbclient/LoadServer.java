@@ -0,0 +1,1112 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A stand-in for the RGB Server that sends a stream of frames from a {@link FrameSource} to each
+ * client that connects, at a target rate, for testing the client under load.
+ * <p/>
+ * The server listens only on the loopback interface and serves one client at a time.  It ignores
+ * anything that the client sends, just as a server that does not support resuming ignores a
+ * RESUME frame, except that with the --batch or --heartbeat options it answers the client's HELLO
+ * frame and, if the client supports them, sends runs of frames of the same kind as BATCH frames
+ * or answers its PING frames.  With the --stall-after option it falls silent after a while
+ * without closing the connection, as a server whose network went away would, and reports how
+ * long the client took to give up on it.  While serving
+ * a client it prints the rate at which it is sending, and when the client disconnects or the
+ * source runs out it prints what it sent, so that the counts can be reconciled with those of the
+ * client: the number of frames of each kind, the number of bytes, and the color that results from
+ * applying all of the frames, which is what a client that applies every frame should display.
+ * Frames that were buffered but could not be written because the client disconnected are not
+ * counted.
+ * <p/>
+ * With the --udp option the server instead sends the frames in sequenced datagrams to the client
+ * that most recently subscribed by sending a HELLO datagram, for as long as the client keeps
+ * subscribing, and can drop or reorder datagrams to simulate an unreliable network.  The datagrams
+ * that it drops or sends out of order are counted separately from those that it sent, since a
+ * client does not apply them, and should match the client's counts of lost and reordered
+ * datagrams.
+ * <p/>
+ * Run it with --help to print the available options.
+ */
+public class LoadServer {
+
+    /**
+     * The largest number of frames to send with a single write when sending as fast as possible,
+     * or when catching up to the target rate.
+     */
+    private static final int MAX_BATCH_FRAMES = 4096;
+
+    /**
+     * The longest time for which to sleep while waiting to send the next frame, so that progress
+     * is still reported and the duration honored at very low rates.
+     */
+    private static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * The time to wait between sending the two parts of a split frame, which gives the first part
+     * time to be sent in its own TCP segment.
+     */
+    private static final long SPLIT_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * The longest time to wait for the client's HELLO frame.
+     */
+    private static final int HELLO_TIMEOUT_MILLIS = 1000;
+
+    /**
+     * The time after the last HELLO datagram from a UDP client after which it is considered to
+     * have stopped subscribing.
+     */
+    private static final long SUBSCRIPTION_TIMEOUT_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(Protocol.DATAGRAM_SUBSCRIPTION_TIMEOUT_MILLIS);
+
+    @NonNull
+    private final Options mOptions;
+    @NonNull
+    private final PrintStream mOut;
+
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    private final ByteBuffer mFrame = ByteBuffer.allocate(Protocol.MAX_FRAME_LENGTH);
+    private final FrameSource.Step mStep = new FrameSource.Step();
+    private final Random mSplitRandom;
+    private final Random mNetworkRandom;
+
+    // the frames that have been buffered but not yet written, and those that have been written
+    private final SendStats mPending = new SendStats();
+    private final SendStats mSent = new SendStats();
+    private final SendStats mTotal = new SendStats();
+
+    // the frames in the datagrams that were dropped, and in those that were sent out of order,
+    // to simulate an unreliable network, over all connections
+    private final SendStats mDropped = new SendStats();
+    private final SendStats mReordered = new SendStats();
+
+    private long mDeadlineNanos;
+
+    // whether frames are being sent in BATCH frames to the current connection and, if so, the
+    // opcode of the open BATCH frame, the position of its record count in mBuffer, or -1 if
+    // there is no open BATCH frame, and its number of records
+    private boolean mBatching;
+    private byte mBatchOpcode;
+    private int mBatchCountPosition = -1;
+    private int mBatchRecordCount;
+
+    // the connection of the current TCP client and the stream from which its PING frames are
+    // read, or null if not using TCP, and whether its PING frames are being answered
+    private SocketChannel mClientChannel;
+    private DataInputStream mClientInput;
+    private boolean mAnsweringPings;
+
+    // when using UDP, the channel on which datagrams are sent and received, the address of the
+    // client being sent to, or null if none, and the sequence number of the next datagram, which
+    // is never reset so that a client that subscribes again does not see the sequence go back
+    private DatagramChannel mDatagramChannel;
+    private SocketAddress mDatagramTarget;
+    private long mDatagramSequence;
+
+    // a datagram being held back to send after the next one, to simulate reordering
+    private final ByteBuffer mHeldBack = ByteBuffer.allocateDirect(Protocol.MAX_DATAGRAM_LENGTH);
+    private boolean mHoldingBack;
+
+    // the client that most recently sent a HELLO datagram, and when, which are set by the thread
+    // that receives the datagrams; guarded by mSubscriptionLock
+    private final Object mSubscriptionLock = new Object();
+    private SocketAddress mSubscriber;
+    private volatile long mLastHelloNanos;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param options the options with which to run; must not be null.
+     * @param out the stream to which to print the progress and statistics; must not be null.
+     */
+    public LoadServer(@NonNull Options options, @NonNull PrintStream out) {
+        mOptions = options;
+        mOut = out;
+        mSplitRandom = new Random(options.seed);
+        mNetworkRandom = new Random(options.seed);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 1 && args[0].equals("--help")) {
+            Options.printUsage(System.out);
+            return;
+        }
+
+        final Options options;
+        try {
+            options = Options.parse(args);
+            // create a source up front so that errors in the options or the script are reported
+            // before listening
+            options.createFrameSource();
+        } catch (IllegalArgumentException e) {
+            System.err.println("ERROR: " + e.getMessage());
+            Options.printUsage(System.err);
+            System.exit(2);
+            return;
+        }
+
+        final LoadServer server = new LoadServer(options, System.out);
+        server.run();
+    }
+
+    /**
+     * Listens for connections, or subscriptions if using UDP, and serves them, one at a time,
+     * until the duration elapses or the number of connections to serve have been served.
+     *
+     * @throws IOException if listening for or accepting a connection fails.
+     */
+    public void run() throws IOException {
+        final long startNanos = System.nanoTime();
+        mDeadlineNanos = startNanos + TimeUnit.SECONDS.toNanos(mOptions.durationSeconds);
+
+        if (mOptions.udp) {
+            serveDatagrams();
+        } else {
+            serveStreams();
+        }
+
+        mOut.println();
+        mOut.println(String.format(Locale.US, "sent in total over %.1f s:",
+                (System.nanoTime() - startNanos) / 1000000000.0));
+        mTotal.print(mOut);
+        if (mOptions.udp) {
+            mOut.println("dropped to simulate loss:");
+            mDropped.print(mOut);
+            mOut.println("sent out of order to simulate reordering:");
+            mReordered.print(mOut);
+        }
+    }
+
+    private void serveStreams() throws IOException {
+        final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), mOptions.port));
+            mOut.println("listening on " + serverChannel.socket().getInetAddress().getHostAddress()
+                    + ":" + serverChannel.socket().getLocalPort());
+
+            int connectionCount = 0;
+            while (mOptions.connections == 0 || connectionCount < mOptions.connections) {
+                if (mOptions.durationSeconds > 0) {
+                    // wait in short intervals so that the deadline is noticed while idle
+                    serverChannel.socket().setSoTimeout(
+                            (int) Math.max(1, Math.min(1000, millisUntilDeadline())));
+                }
+                final SocketChannel channel;
+                try {
+                    channel = serverChannel.socket().accept().getChannel();
+                } catch (SocketTimeoutException e) {
+                    if (isPastDeadline(System.nanoTime())) {
+                        break;
+                    }
+                    continue;
+                }
+
+                connectionCount++;
+                try {
+                    channel.socket().setTcpNoDelay(true);
+                    mOut.println("connection " + connectionCount + " from "
+                            + channel.socket().getRemoteSocketAddress());
+                    final int capabilities =
+                            (mOptions.getCapabilities() != 0) ? performHandshake(channel) : 0;
+                    mBatching = (capabilities & Protocol.CAPABILITY_BATCH) != 0;
+                    mAnsweringPings = (capabilities & Protocol.CAPABILITY_HEARTBEAT) != 0;
+                    mClientChannel = channel;
+                    mClientInput = new DataInputStream(channel.socket().getInputStream());
+                    serve(channel, connectionCount);
+                } finally {
+                    mClientChannel = null;
+                    mClientInput = null;
+                    mAnsweringPings = false;
+                    closeGracefully(channel);
+                }
+                if (isPastDeadline(System.nanoTime())) {
+                    break;
+                }
+            }
+        } finally {
+            serverChannel.close();
+        }
+    }
+
+    private void serveDatagrams() throws IOException {
+        final DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.socket().setReuseAddress(true);
+            channel.socket().bind(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), mOptions.port));
+            mOut.println("listening for subscriptions on UDP "
+                    + channel.socket().getLocalAddress().getHostAddress() + ":"
+                    + channel.socket().getLocalPort());
+            mDatagramChannel = channel;
+
+            final Thread receiver = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    receiveSubscriptions(channel);
+                }
+            }, "LoadServer.receiveSubscriptions");
+            receiver.setDaemon(true);
+            receiver.start();
+
+            int connectionCount = 0;
+            while (mOptions.connections == 0 || connectionCount < mOptions.connections) {
+                final SocketAddress subscriber = awaitSubscriber();
+                if (subscriber == null) {
+                    if (isPastDeadline(System.nanoTime())) {
+                        break;
+                    }
+                    continue;
+                }
+
+                connectionCount++;
+                mOut.println("connection " + connectionCount + " subscribed from " + subscriber);
+                mDatagramTarget = subscriber;
+                mBatching = false;
+                try {
+                    serve(channel, connectionCount);
+                } finally {
+                    mDatagramTarget = null;
+                    synchronized (mSubscriptionLock) {
+                        mSubscriber = null;
+                    }
+                }
+                if (isPastDeadline(System.nanoTime())) {
+                    break;
+                }
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Receives the datagrams sent to the server until the channel is closed, recording the
+     * sender of each HELLO datagram as the subscriber, unless another client is subscribed.
+     */
+    private void receiveSubscriptions(@NonNull DatagramChannel channel) {
+        final ByteBuffer buffer = ByteBuffer.allocate(Protocol.MAX_DATAGRAM_LENGTH);
+        while (true) {
+            buffer.clear();
+            final SocketAddress sender;
+            try {
+                sender = channel.receive(buffer);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                continue;
+            }
+            if (buffer.position() == 0 || buffer.get(0) != Protocol.OPCODE_HELLO) {
+                continue;
+            }
+            synchronized (mSubscriptionLock) {
+                if (mSubscriber == null || mSubscriber.equals(sender)) {
+                    mSubscriber = sender;
+                    mLastHelloNanos = System.nanoTime();
+                    mSubscriptionLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits a short time for a client to subscribe.
+     *
+     * @return the address of the subscribed client, or null if none subscribed in time.
+     */
+    private SocketAddress awaitSubscriber() throws InterruptedIOException {
+        long waitMillis = 1000;
+        if (mOptions.durationSeconds > 0) {
+            waitMillis = Math.max(1, Math.min(waitMillis, millisUntilDeadline()));
+        }
+        synchronized (mSubscriptionLock) {
+            if (mSubscriber == null) {
+                try {
+                    mSubscriptionLock.wait(waitMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted waiting for a subscriber");
+                }
+            }
+            return mSubscriber;
+        }
+    }
+
+    /**
+     * Closes the given channel after reading and discarding anything that the client sent, since
+     * closing a socket with unread data resets the connection, which discards the frames that the
+     * client has not yet read.
+     */
+    private static void closeGracefully(@NonNull SocketChannel channel) {
+        try {
+            channel.socket().shutdownOutput();
+            channel.socket().setSoTimeout(HELLO_TIMEOUT_MILLIS);
+            final InputStream in = channel.socket().getInputStream();
+            final byte[] buffer = new byte[1024];
+            while (in.read(buffer) >= 0) {
+                // discard the bytes until the client closes the connection
+            }
+        } catch (IOException e) {
+            // the client has already gone away or did not close the connection in time
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // oh well
+            }
+        }
+    }
+
+    private boolean isPastDeadline(long now) {
+        return mOptions.durationSeconds > 0 && now - mDeadlineNanos >= 0;
+    }
+
+    private long millisUntilDeadline() {
+        return TimeUnit.NANOSECONDS.toMillis(mDeadlineNanos - System.nanoTime());
+    }
+
+    private void serve(@NonNull WritableByteChannel channel, int connectionNumber)
+            throws IOException {
+        final FrameSource source = mOptions.createFrameSource();
+        resetBuffer();
+        mBatchCountPosition = -1;
+        mHoldingBack = false;
+        mPending.reset();
+        mSent.reset();
+
+        final long startNanos = System.nanoTime();
+        final long intervalNanos = TimeUnit.SECONDS.toNanos(mOptions.intervalSeconds);
+        final double framesPerNano = mOptions.rate / 1000000000.0;
+        final FrameSource.Step step = mStep;
+
+        // the time from which the frames are paced, which is moved forward by each pause so that
+        // the frames that would have been sent during it are not sent in a burst afterwards
+        long pacingOriginNanos = startNanos;
+        long pacedFrameCount = 0;
+
+        final long stallNanos = TimeUnit.SECONDS.toNanos(mOptions.stallAfterSeconds);
+
+        long nextReportNanos = startNanos + intervalNanos;
+        long reportStartNanos = startNanos;
+        long reportStartFrames = 0;
+        long reportStartBytes = 0;
+
+        String endReason = null;
+        try {
+            while (endReason == null) {
+                final long now = System.nanoTime();
+                if (isPastDeadline(now)) {
+                    endReason = "the duration elapsed";
+                    break;
+                } else if (mDatagramTarget != null
+                        && now - mLastHelloNanos > SUBSCRIPTION_TIMEOUT_NANOS) {
+                    endReason = "the client stopped subscribing";
+                    break;
+                } else if (stallNanos > 0 && now - startNanos >= stallNanos) {
+                    flush(channel);
+                    endReason = stall();
+                    break;
+                }
+                if (mAnsweringPings && answerPings(channel)) {
+                    flush(channel);
+                }
+                if (now - nextReportNanos >= 0) {
+                    final double seconds = (now - reportStartNanos) / 1000000000.0;
+                    mOut.println(String.format(Locale.US,
+                            "[%7.1fs] %10.0f frames/s %9.1f KiB/s  sent %d frames",
+                            (now - startNanos) / 1000000000.0,
+                            (mSent.getFrameCount() - reportStartFrames) / seconds,
+                            (mSent.bytes - reportStartBytes) / seconds / 1024,
+                            mSent.getFrameCount()));
+                    reportStartNanos = now;
+                    reportStartFrames = mSent.getFrameCount();
+                    reportStartBytes = mSent.bytes;
+                    nextReportNanos += intervalNanos;
+                }
+
+                int batchSize = MAX_BATCH_FRAMES;
+                if (mOptions.rate > 0) {
+                    final long dueFrameCount = (long) ((now - pacingOriginNanos) * framesPerNano);
+                    if (dueFrameCount <= pacedFrameCount) {
+                        final long nextFrameNanos = pacingOriginNanos
+                                + (long) ((pacedFrameCount + 1) / framesPerNano);
+                        LockSupport.parkNanos(Math.min(MAX_WAIT_NANOS, nextFrameNanos - now));
+                        continue;
+                    }
+                    batchSize = (int) Math.min(MAX_BATCH_FRAMES, dueFrameCount - pacedFrameCount);
+                }
+
+                for (int i = 0; i < batchSize; i++) {
+                    if (!source.next(step)) {
+                        endReason = "all frames were sent";
+                        break;
+                    } else if (step.isPause()) {
+                        flush(channel);
+                        final long pauseStartNanos = System.nanoTime();
+                        pause(channel, TimeUnit.MILLISECONDS.toNanos(step.pauseMillis));
+                        pacingOriginNanos += System.nanoTime() - pauseStartNanos;
+                        mSent.pauses++;
+                        break;
+                    }
+                    sendFrame(channel, step);
+                    pacedFrameCount++;
+                }
+                flush(channel);
+            }
+            if (mHoldingBack) {
+                // the datagram being held back was counted as reordered, so send it at last
+                sendDatagram(mHeldBack);
+                mHoldingBack = false;
+            }
+        } catch (IOException e) {
+            endReason = "the client disconnected (" + e.getMessage() + ")";
+        }
+
+        mTotal.add(mSent);
+        mOut.println(String.format(Locale.US, "connection %d ended after %.1f s because %s; sent:",
+                connectionNumber, (System.nanoTime() - startNanos) / 1000000000.0, endReason));
+        mSent.print(mOut);
+    }
+
+    /**
+     * Waits for the client's HELLO frame and answers it, agreeing on those of the capabilities
+     * enabled by the options that the client offered.
+     *
+     * @return the capabilities that were agreed on.
+     */
+    private int performHandshake(@NonNull SocketChannel channel) throws IOException {
+        final byte[] hello = new byte[1 + Protocol.HELLO_PAYLOAD_LENGTH];
+        final DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+        channel.socket().setSoTimeout(HELLO_TIMEOUT_MILLIS);
+        try {
+            in.readFully(hello);
+        } catch (SocketTimeoutException | EOFException e) {
+            mOut.println("the client did not send a HELLO frame; no capabilities agreed");
+            return 0;
+        } finally {
+            channel.socket().setSoTimeout(0);
+        }
+        final ByteBuffer helloBuffer = ByteBuffer.wrap(hello);
+        if (helloBuffer.get(0) != Protocol.OPCODE_HELLO) {
+            mOut.println("the client did not send a HELLO frame; no capabilities agreed");
+            return 0;
+        }
+        final int version = helloBuffer.get(1) & 0xFF;
+        final int capabilities = helloBuffer.getInt(2) & mOptions.getCapabilities();
+
+        final ByteBuffer ack = ByteBuffer.allocate(1 + Protocol.HELLO_ACK_PAYLOAD_LENGTH);
+        ack.put(Protocol.OPCODE_HELLO_ACK);
+        ack.put((byte) Protocol.VERSION);
+        ack.putInt(capabilities);
+        ack.flip();
+        while (ack.hasRemaining()) {
+            channel.write(ack);
+        }
+        mOut.println("the client speaks version " + version + " of the protocol; "
+                + ((capabilities & Protocol.CAPABILITY_BATCH) != 0 ? "batching" : "not batching")
+                + ", " + ((capabilities & Protocol.CAPABILITY_HEARTBEAT) != 0
+                ? "answering PING frames" : "not answering PING frames"));
+        return capabilities;
+    }
+
+    /**
+     * Reads the PING frames that the client has sent, without blocking, and queues a PONG frame
+     * in response to each one behind the frames that are already buffered.  A RESUME frame, which
+     * has a payload of the same length, is skipped.
+     *
+     * @return true if any PONG frames were queued.
+     */
+    private boolean answerPings(@NonNull WritableByteChannel channel) throws IOException {
+        final DataInputStream in = mClientInput;
+        boolean answered = false;
+        while (in.available() >= 1 + Protocol.PING_PAYLOAD_LENGTH) {
+            final byte opcode = in.readByte();
+            final long token = in.readLong();
+            if (opcode != Protocol.OPCODE_PING) {
+                continue;
+            }
+            closeBatch();
+            if (mBuffer.remaining() < 1 + Protocol.PONG_PAYLOAD_LENGTH) {
+                flush(channel);
+            }
+            mBuffer.put(Protocol.OPCODE_PONG);
+            mBuffer.putLong(token);
+            mPending.bytes += 1 + Protocol.PONG_PAYLOAD_LENGTH;
+            mPending.pongs++;
+            answered = true;
+        }
+        return answered;
+    }
+
+    /**
+     * Sends nothing more, not even PONG frames, until the client gives up on the server by
+     * closing the connection or no longer subscribing, or until the duration elapses.
+     *
+     * @return the reason that the connection ended.
+     */
+    @NonNull
+    private String stall() throws IOException {
+        mOut.println("stalling");
+        final long startNanos = System.nanoTime();
+        while (true) {
+            final long now = System.nanoTime();
+            final String silence = String.format(Locale.US, "%.1f s of silence",
+                    (now - startNanos) / 1000000000.0);
+            if (isPastDeadline(now)) {
+                return "the duration elapsed after " + silence;
+            } else if (mDatagramTarget != null) {
+                if (now - mLastHelloNanos > SUBSCRIPTION_TIMEOUT_NANOS) {
+                    return "the client stopped subscribing after " + silence;
+                }
+                LockSupport.parkNanos(MAX_WAIT_NANOS);
+                continue;
+            }
+
+            // read and discard anything that the client sends, such as PING frames, until it
+            // closes the connection
+            mClientChannel.socket().setSoTimeout(
+                    (int) TimeUnit.NANOSECONDS.toMillis(MAX_WAIT_NANOS));
+            try {
+                if (mClientInput.read() < 0) {
+                    return "the client closed the connection after " + silence;
+                }
+            } catch (SocketTimeoutException e) {
+                // check the deadline
+            }
+        }
+    }
+
+    private void sendFrame(@NonNull WritableByteChannel channel, @NonNull FrameSource.Step step)
+            throws IOException {
+        final ByteBuffer frame = mFrame;
+        frame.clear();
+        frame.put(step.opcode);
+        if (step.opcode == Protocol.OPCODE_RELATIVE) {
+            frame.putShort((short) step.r);
+            frame.putShort((short) step.g);
+            frame.putShort((short) step.b);
+        } else if (step.opcode == Protocol.OPCODE_ABSOLUTE) {
+            frame.put((byte) step.r);
+            frame.put((byte) step.g);
+            frame.put((byte) step.b);
+        }
+        frame.flip();
+
+        final boolean batched = mBatching && (step.opcode == Protocol.OPCODE_RELATIVE
+                || step.opcode == Protocol.OPCODE_ABSOLUTE);
+        if (batched) {
+            if (mBatchCountPosition < 0 || mBatchOpcode != step.opcode
+                    || mBatchRecordCount == mOptions.batchSize
+                    || mBuffer.remaining() < frame.remaining() - 1) {
+                closeBatch();
+                if (mBuffer.remaining() < 1 + Protocol.BATCH_HEADER_LENGTH + frame.remaining()) {
+                    flush(channel);
+                }
+                mBuffer.put(Protocol.OPCODE_BATCH);
+                mBuffer.put(step.opcode);
+                mBatchCountPosition = mBuffer.position();
+                mBuffer.putShort((short) 0);
+                mBatchOpcode = step.opcode;
+                mBatchRecordCount = 0;
+                mPending.bytes += 1 + Protocol.BATCH_HEADER_LENGTH;
+                mPending.batches++;
+            }
+            // the record is the frame without its opcode
+            frame.position(1);
+            mBatchRecordCount++;
+        } else {
+            closeBatch();
+            if (mBuffer.remaining() < frame.remaining()) {
+                flush(channel);
+            }
+        }
+        final int length = frame.remaining();
+
+        // a datagram is delivered whole, so there is no way to split a frame
+        final boolean split = step.split && frame.remaining() > 1 && mDatagramTarget == null;
+        if (split) {
+            // send everything before the split point, including the buffered frames, by itself
+            final int limit = frame.limit();
+            frame.limit(frame.position() + 1 + mSplitRandom.nextInt(frame.remaining() - 1));
+            mBuffer.put(frame);
+            flush(channel);
+            LockSupport.parkNanos(SPLIT_DELAY_NANOS);
+            frame.limit(limit);
+        }
+        mBuffer.put(frame);
+
+        mPending.addFrame(step.opcode, step.r, step.g, step.b, length);
+        if (split) {
+            mPending.splits++;
+        }
+    }
+
+    /**
+     * Fills in the record count of the open BATCH frame, if any, so that no more records can be
+     * added to it.
+     */
+    private void closeBatch() {
+        if (mBatchCountPosition >= 0) {
+            mBuffer.putShort(mBatchCountPosition, (short) mBatchRecordCount);
+            mBatchCountPosition = -1;
+        }
+    }
+
+    private void flush(@NonNull WritableByteChannel channel) throws IOException {
+        closeBatch();
+        if (mDatagramTarget != null) {
+            flushDatagram();
+            return;
+        }
+        final ByteBuffer buffer = mBuffer;
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            buffer.clear();
+        }
+        // a frame that was split is counted once its second part has been written
+        if (mPending.getFrameCount() > 0 || mPending.pongs > 0) {
+            mSent.add(mPending);
+            mPending.reset();
+        }
+    }
+
+    /**
+     * Sends the buffered frames in a datagram, unless it is chosen to be dropped or held back to
+     * simulate an unreliable network.
+     */
+    private void flushDatagram() throws IOException {
+        final ByteBuffer buffer = mBuffer;
+        if (buffer.position() == Protocol.DATAGRAM_HEADER_LENGTH) {
+            return;
+        }
+        buffer.putLong(0, mDatagramSequence++);
+        buffer.flip();
+        final SendStats pending = mPending;
+        pending.bytes += Protocol.DATAGRAM_HEADER_LENGTH;
+        pending.datagrams++;
+        try {
+            final double chance = mNetworkRandom.nextDouble();
+            if (chance < mOptions.dropProbability) {
+                mDropped.add(pending);
+            } else if (!mHoldingBack && chance < mOptions.dropProbability
+                    + mOptions.reorderProbability) {
+                mHeldBack.clear();
+                mHeldBack.put(buffer);
+                mHeldBack.flip();
+                mHoldingBack = true;
+                mReordered.add(pending);
+            } else {
+                sendDatagram(buffer);
+                mSent.add(pending);
+                if (mHoldingBack) {
+                    sendDatagram(mHeldBack);
+                    mHoldingBack = false;
+                }
+            }
+        } finally {
+            resetBuffer();
+            pending.reset();
+        }
+    }
+
+    private void sendDatagram(@NonNull ByteBuffer datagram) throws IOException {
+        mDatagramChannel.send(datagram, mDatagramTarget);
+    }
+
+    /**
+     * Empties mBuffer, leaving room for the sequence number at its start and limiting it to the
+     * largest datagram if using UDP.
+     */
+    private void resetBuffer() {
+        mBuffer.clear();
+        if (mDatagramTarget != null) {
+            mBuffer.limit(mOptions.datagramSize);
+            mBuffer.position(Protocol.DATAGRAM_HEADER_LENGTH);
+        }
+    }
+
+    /**
+     * Sends no frames for the given time, but continues to answer PING frames.
+     */
+    private void pause(@NonNull WritableByteChannel channel, long nanos) throws IOException {
+        final long endNanos = System.nanoTime() + nanos;
+        long remaining;
+        while ((remaining = endNanos - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(Math.min(remaining, MAX_WAIT_NANOS));
+            if (mAnsweringPings && answerPings(channel)) {
+                flush(channel);
+            }
+        }
+    }
+
+    /**
+     * Counts the frames that were sent and computes the color that results from applying them.
+     */
+    private static class SendStats {
+
+        public long relative;
+        public long absolute;
+        public long invalid;
+        public long bytes;
+        public long splits;
+        public long pauses;
+        public long batches;
+        public long datagrams;
+        public long pongs;
+
+        // the color that results from applying the frames: the values of the last ABSOLUTE frame,
+        // if any, plus the sums of the deltas of the RELATIVE frames since then
+        public boolean hasAbsolute;
+        public long r, g, b;
+
+        public long getFrameCount() {
+            return relative + absolute + invalid;
+        }
+
+        public void addFrame(byte opcode, int r, int g, int b, int length) {
+            bytes += length;
+            if (opcode == Protocol.OPCODE_RELATIVE) {
+                relative++;
+                this.r += r;
+                this.g += g;
+                this.b += b;
+            } else if (opcode == Protocol.OPCODE_ABSOLUTE) {
+                absolute++;
+                hasAbsolute = true;
+                this.r = r;
+                this.g = g;
+                this.b = b;
+            } else {
+                invalid++;
+            }
+        }
+
+        /**
+         * Adds the frames counted by the given object, which were sent after those counted by
+         * this object.
+         */
+        public void add(@NonNull SendStats later) {
+            relative += later.relative;
+            absolute += later.absolute;
+            invalid += later.invalid;
+            bytes += later.bytes;
+            splits += later.splits;
+            pauses += later.pauses;
+            batches += later.batches;
+            datagrams += later.datagrams;
+            pongs += later.pongs;
+            if (later.hasAbsolute) {
+                hasAbsolute = true;
+                r = later.r;
+                g = later.g;
+                b = later.b;
+            } else {
+                r += later.r;
+                g += later.g;
+                b += later.b;
+            }
+        }
+
+        public void reset() {
+            relative = absolute = invalid = bytes = 0;
+            splits = pauses = batches = datagrams = pongs = 0;
+            hasAbsolute = false;
+            r = g = b = 0;
+        }
+
+        public void print(@NonNull PrintStream out) {
+            out.println("  frames    " + getFrameCount());
+            out.println("  relative  " + relative);
+            out.println("  absolute  " + absolute);
+            out.println("  invalid   " + invalid);
+            out.println("  bytes     " + bytes);
+            out.println("  splits    " + splits);
+            out.println("  pauses    " + pauses);
+            out.println("  batches   " + batches);
+            out.println("  datagrams " + datagrams);
+            out.println("  pongs     " + pongs);
+            out.println("  color     (" + r + ", " + g + ", " + b + ")"
+                    + (hasAbsolute ? "" : " relative to the client's initial color"));
+        }
+
+    }
+
+    /**
+     * The command-line options of {@link LoadServer}.
+     */
+    public static class Options {
+
+        public int port;
+        public double rate = 1000;
+        public long durationSeconds;
+        public long intervalSeconds = 1;
+        public int connections;
+        public long frames;
+        public double absoluteRatio = 0.1;
+        public int maxDelta = 16;
+        public int burstSize;
+        public long gapMillis = 100;
+        public double splitProbability;
+        public long invalidEvery;
+        public int batchSize;
+        public long seed = 1;
+        public String scriptPath;
+        public boolean loop;
+        public boolean udp;
+        public int datagramSize = 1472;
+        public double dropProbability;
+        public double reorderProbability;
+        public boolean heartbeat;
+        public long stallAfterSeconds;
+
+        @NonNull
+        public static Options parse(@NonNull String[] args) {
+            final Options options = new Options();
+            for (final String arg : args) {
+                final int equalsIndex = arg.indexOf('=');
+                final String name = (equalsIndex < 0) ? arg : arg.substring(0, equalsIndex);
+                final String value = (equalsIndex < 0) ? null : arg.substring(equalsIndex + 1);
+                if (name.equals("--loop") && value == null) {
+                    options.loop = true;
+                    continue;
+                } else if (name.equals("--udp") && value == null) {
+                    options.udp = true;
+                    continue;
+                } else if (name.equals("--heartbeat") && value == null) {
+                    options.heartbeat = true;
+                    continue;
+                } else if (value == null) {
+                    throw new IllegalArgumentException("unexpected argument: " + arg);
+                }
+                try {
+                    switch (name) {
+                        case "--port":
+                            options.port = Integer.parseInt(value);
+                            break;
+                        case "--rate":
+                            options.rate = Double.parseDouble(value);
+                            break;
+                        case "--duration":
+                            options.durationSeconds = Long.parseLong(value);
+                            break;
+                        case "--interval":
+                            options.intervalSeconds = Long.parseLong(value);
+                            break;
+                        case "--connections":
+                            options.connections = Integer.parseInt(value);
+                            break;
+                        case "--frames":
+                            options.frames = Long.parseLong(value);
+                            break;
+                        case "--absolute-ratio":
+                            options.absoluteRatio = Double.parseDouble(value);
+                            break;
+                        case "--max-delta":
+                            options.maxDelta = Integer.parseInt(value);
+                            break;
+                        case "--burst":
+                            options.burstSize = Integer.parseInt(value);
+                            break;
+                        case "--gap":
+                            options.gapMillis = Long.parseLong(value);
+                            break;
+                        case "--split":
+                            options.splitProbability = Double.parseDouble(value);
+                            break;
+                        case "--invalid-every":
+                            options.invalidEvery = Long.parseLong(value);
+                            break;
+                        case "--batch":
+                            options.batchSize = Integer.parseInt(value);
+                            break;
+                        case "--seed":
+                            options.seed = Long.parseLong(value);
+                            break;
+                        case "--script":
+                            options.scriptPath = value;
+                            break;
+                        case "--datagram-size":
+                            options.datagramSize = Integer.parseInt(value);
+                            break;
+                        case "--drop":
+                            options.dropProbability = Double.parseDouble(value);
+                            break;
+                        case "--reorder":
+                            options.reorderProbability = Double.parseDouble(value);
+                            break;
+                        case "--stall-after":
+                            options.stallAfterSeconds = Long.parseLong(value);
+                            break;
+                        default:
+                            throw new IllegalArgumentException("unknown option: " + name);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("invalid value for " + name + ": " + value);
+                }
+            }
+
+            if (options.port < 0 || options.port > 65535) {
+                throw new IllegalArgumentException("invalid port: " + options.port);
+            } else if (options.rate < 0 || Double.isNaN(options.rate)) {
+                throw new IllegalArgumentException("invalid rate: " + options.rate);
+            } else if (options.durationSeconds < 0) {
+                throw new IllegalArgumentException("invalid duration: "
+                        + options.durationSeconds);
+            } else if (options.intervalSeconds <= 0) {
+                throw new IllegalArgumentException("invalid interval: "
+                        + options.intervalSeconds);
+            } else if (options.connections < 0) {
+                throw new IllegalArgumentException("invalid connections: " + options.connections);
+            } else if (options.batchSize < 0
+                    || options.batchSize > Protocol.MAX_BATCH_RECORD_COUNT) {
+                throw new IllegalArgumentException("invalid batch: " + options.batchSize);
+            } else if (options.datagramSize < Protocol.DATAGRAM_HEADER_LENGTH
+                    + Protocol.MAX_FRAME_LENGTH
+                    || options.datagramSize > Protocol.MAX_DATAGRAM_LENGTH) {
+                throw new IllegalArgumentException("invalid datagram-size: "
+                        + options.datagramSize);
+            } else if (!(options.dropProbability >= 0 && options.dropProbability <= 1)) {
+                throw new IllegalArgumentException("invalid drop: " + options.dropProbability);
+            } else if (!(options.reorderProbability >= 0 && options.reorderProbability <= 1)) {
+                throw new IllegalArgumentException("invalid reorder: "
+                        + options.reorderProbability);
+            } else if (options.stallAfterSeconds < 0) {
+                throw new IllegalArgumentException("invalid stall-after: "
+                        + options.stallAfterSeconds);
+            } else if (options.udp && options.batchSize > 0) {
+                throw new IllegalArgumentException("--batch cannot be used with --udp");
+            } else if (options.udp && options.heartbeat) {
+                throw new IllegalArgumentException("--heartbeat cannot be used with --udp");
+            }
+            return options;
+        }
+
+        public static void printUsage(@NonNull PrintStream out) {
+            out.println("usage: LoadServer [options]");
+            out.println("  --port=N            the port on which to listen, or 0 to choose one "
+                    + "(default: 0)");
+            out.println("  --rate=N            the frames per second to send, or 0 to send as "
+                    + "fast as possible (default: 1000)");
+            out.println("  --duration=N        the seconds to run for, or 0 to run until killed "
+                    + "(default: 0)");
+            out.println("  --interval=N        the seconds between progress lines (default: 1)");
+            out.println("  --connections=N     the connections to serve before exiting, or 0 for "
+                    + "no limit (default: 0)");
+            out.println("  --frames=N          the random frames to send to each connection, or 0 "
+                    + "for no limit (default: 0)");
+            out.println("  --absolute-ratio=F  the fraction of frames that are ABSOLUTE "
+                    + "(default: 0.1)");
+            out.println("  --max-delta=N       the largest delta of a RELATIVE frame "
+                    + "(default: 16)");
+            out.println("  --burst=N           send in bursts of N frames, or 0 to not send in "
+                    + "bursts (default: 0)");
+            out.println("  --gap=N             the milliseconds between bursts (default: 100)");
+            out.println("  --split=F           the probability that a frame is split across TCP "
+                    + "segments (default: 0)");
+            out.println("  --invalid-every=N   send an invalid opcode every N frames, or 0 to "
+                    + "never send one (default: 0)");
+            out.println("  --batch=N           answer the client's HELLO frame and send up to N "
+                    + "frames in each BATCH frame, or 0 to never batch; without this or "
+                    + "--heartbeat HELLO frames are ignored, like an older server (default: 0)");
+            out.println("  --heartbeat         answer the client's HELLO frame and its PING "
+                    + "frames");
+            out.println("  --stall-after=N     stop sending anything, without closing the "
+                    + "connection, N seconds after a client connects, or 0 to never stall "
+                    + "(default: 0)");
+            out.println("  --seed=N            the seed of the random frames (default: 1)");
+            out.println("  --script=FILE       send the frames listed in FILE instead of random "
+                    + "ones; see ScriptedFrameSource for its format");
+            out.println("  --loop              repeat the script indefinitely");
+            out.println("  --udp               send sequenced datagrams to the client that "
+                    + "subscribes with a HELLO datagram instead of accepting connections");
+            out.println("  --datagram-size=N   the largest datagram to send, including its "
+                    + "sequence number (default: 1472)");
+            out.println("  --drop=F            the probability that a datagram is dropped "
+                    + "(default: 0)");
+            out.println("  --reorder=F         the probability that a datagram is sent after the "
+                    + "next one (default: 0)");
+        }
+
+        /**
+         * Returns the {@code CAPABILITY_} flags of {@link Protocol} that the server agrees on
+         * with the clients that offer them, which is none for an older server that does not
+         * answer HELLO frames.
+         */
+        public int getCapabilities() {
+            return (batchSize > 0 ? Protocol.CAPABILITY_BATCH : 0)
+                    | (heartbeat ? Protocol.CAPABILITY_HEARTBEAT : 0);
+        }
+
+        /**
+         * Creates the source of the frames to send to a connection.
+         *
+         * @throws IllegalArgumentException if the options or the script are invalid.
+         * @throws IOException if reading the script fails.
+         */
+        @NonNull
+        public FrameSource createFrameSource() throws IOException {
+            if (scriptPath == null) {
+                return new RandomFrameSource(seed, absoluteRatio, maxDelta, frames, burstSize,
+                        gapMillis, splitProbability, invalidEvery);
+            }
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(scriptPath), Charset.forName("UTF-8")));
+            try {
+                return new ScriptedFrameSource(reader, loop);
+            } finally {
+                reader.close();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+
+import java.util.Random;
+
+/**
+ * A {@link FrameSource} that generates a random mix of RELATIVE and ABSOLUTE frames, optionally
+ * sent in bursts separated by idle gaps, with some frames split across TCP segments and with an
+ * invalid opcode injected periodically.
+ * <p/>
+ * The frames are determined entirely by the seed, so a run can be reproduced exactly.
+ */
+public class RandomFrameSource implements FrameSource {
+
+    /**
+     * An opcode that is not defined by {@link Protocol}; the client should treat it as a protocol
+     * error.
+     */
+    public static final byte INVALID_OPCODE = 0x7F;
+
+    @NonNull
+    private final Random mRandom;
+    private final double mAbsoluteRatio;
+    private final int mMaxDelta;
+    private final long mMaxFrames;
+    private final int mBurstSize;
+    private final long mGapMillis;
+    private final double mSplitProbability;
+    private final long mInvalidEvery;
+
+    private long mFrameCount;
+    private int mBurstRemaining;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param seed the seed of the random number generator.
+     * @param absoluteRatio the fraction of frames that are ABSOLUTE rather than RELATIVE; must be
+     * between 0 and 1, inclusive.
+     * @param maxDelta the largest absolute value of each delta of a RELATIVE frame; must be
+     * between 0 and {@link Short#MAX_VALUE}, inclusive.
+     * @param maxFrames the number of frames to generate, or 0 to generate frames indefinitely.
+     * @param burstSize the number of frames in each burst, or 0 to not send in bursts.
+     * @param gapMillis the number of milliseconds to pause between bursts; ignored if burstSize
+     * is 0.
+     * @param splitProbability the probability that a frame is split across TCP segments; must be
+     * between 0 and 1, inclusive.
+     * @param invalidEvery the number of frames after which to generate a frame with an invalid
+     * opcode, or 0 to never generate one.
+     */
+    public RandomFrameSource(long seed, double absoluteRatio, int maxDelta, long maxFrames,
+            int burstSize, long gapMillis, double splitProbability, long invalidEvery) {
+        if (absoluteRatio < 0.0 || absoluteRatio > 1.0) {
+            throw new IllegalArgumentException("invalid absoluteRatio: " + absoluteRatio);
+        } else if (maxDelta < 0 || maxDelta > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("invalid maxDelta: " + maxDelta);
+        } else if (maxFrames < 0) {
+            throw new IllegalArgumentException("invalid maxFrames: " + maxFrames);
+        } else if (burstSize < 0) {
+            throw new IllegalArgumentException("invalid burstSize: " + burstSize);
+        } else if (burstSize > 0 && gapMillis <= 0) {
+            throw new IllegalArgumentException("invalid gapMillis: " + gapMillis);
+        } else if (splitProbability < 0.0 || splitProbability > 1.0) {
+            throw new IllegalArgumentException("invalid splitProbability: " + splitProbability);
+        } else if (invalidEvery < 0) {
+            throw new IllegalArgumentException("invalid invalidEvery: " + invalidEvery);
+        }
+        mRandom = new Random(seed);
+        mAbsoluteRatio = absoluteRatio;
+        mMaxDelta = maxDelta;
+        mMaxFrames = maxFrames;
+        mBurstSize = burstSize;
+        mGapMillis = gapMillis;
+        mSplitProbability = splitProbability;
+        mInvalidEvery = invalidEvery;
+        mBurstRemaining = burstSize;
+    }
+
+    @Override
+    public boolean next(@NonNull Step step) {
+        if (mMaxFrames > 0 && mFrameCount >= mMaxFrames) {
+            return false;
+        }
+
+        if (mBurstSize > 0) {
+            if (mBurstRemaining == 0) {
+                mBurstRemaining = mBurstSize;
+                step.setPause(mGapMillis);
+                return true;
+            }
+            mBurstRemaining--;
+        }
+
+        mFrameCount++;
+        final Random random = mRandom;
+        if (mInvalidEvery > 0 && mFrameCount % mInvalidEvery == 0) {
+            step.setFrame(INVALID_OPCODE, 0, 0, 0);
+        } else if (random.nextDouble() < mAbsoluteRatio) {
+            step.setFrame(Protocol.OPCODE_ABSOLUTE, random.nextInt(256), random.nextInt(256),
+                    random.nextInt(256));
+        } else {
+            final int range = (mMaxDelta * 2) + 1;
+            step.setFrame(Protocol.OPCODE_RELATIVE, random.nextInt(range) - mMaxDelta,
+                    random.nextInt(range) - mMaxDelta, random.nextInt(range) - mMaxDelta);
+        }
+        step.split = (mSplitProbability > 0.0 && random.nextDouble() < mSplitProbability);
+        return true;
+    }
+
+}
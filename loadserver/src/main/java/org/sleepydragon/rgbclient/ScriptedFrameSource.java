@@ -0,0 +1,204 @@
+/*
+ * Copyright 2015 Denver Coneybeare <denver@sleepydragon.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sleepydragon.rgbclient;
+
+import android.support.annotation.NonNull;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * A {@link FrameSource} that plays back the steps listed in a script.
+ * <p/>
+ * Each line of a script is one of the following, where blank lines and lines starting with '#'
+ * are ignored:
+ * <pre>
+ * relative R G B    a RELATIVE frame; each delta is between -32768 and 32767
+ * absolute R G B    an ABSOLUTE frame; each value is between 0 and 255
+ * invalid OPCODE    a frame with the given opcode, in decimal or 0x-prefixed hex, and no payload
+ * pause MILLIS      send nothing for the given number of milliseconds
+ * </pre>
+ * A frame line may be prefixed with "split" to split the frame across TCP segments, and any line
+ * may be prefixed with "repeat N" to perform its step N times; for example, "repeat 1000 split
+ * relative 1 0 -1".
+ */
+public class ScriptedFrameSource implements FrameSource {
+
+    @NonNull
+    private final ArrayList<Step> mSteps;
+    @NonNull
+    private final int[] mRepeatCounts;
+    private final boolean mLoop;
+
+    private int mIndex;
+    private int mRepeatRemaining;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param reader the reader from which to read the script; must not be null.  It is read in its
+     * entirety but not closed.
+     * @param loop whether to start again from the beginning of the script after its last step.
+     * @throws IOException if reading the script fails.
+     * @throws IllegalArgumentException if the script is invalid.
+     */
+    public ScriptedFrameSource(@NonNull BufferedReader reader, boolean loop) throws IOException {
+        final ArrayList<Step> steps = new ArrayList<>();
+        final ArrayList<Integer> repeatCounts = new ArrayList<>();
+        int lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            try {
+                parseLine(line.split("\\s+"), steps, repeatCounts);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("line " + lineNumber + ": " + e.getMessage()
+                        + ": " + line);
+            }
+        }
+        if (steps.isEmpty()) {
+            throw new IllegalArgumentException("the script does not contain any steps");
+        }
+
+        mSteps = steps;
+        mRepeatCounts = new int[repeatCounts.size()];
+        for (int i = 0; i < mRepeatCounts.length; i++) {
+            mRepeatCounts[i] = repeatCounts.get(i);
+        }
+        mLoop = loop;
+        mRepeatRemaining = mRepeatCounts[0];
+    }
+
+    private static void parseLine(@NonNull String[] tokens, @NonNull ArrayList<Step> steps,
+            @NonNull ArrayList<Integer> repeatCounts) {
+        int index = 0;
+        int repeatCount = 1;
+        if (tokens[index].equals("repeat")) {
+            if (tokens.length < 3) {
+                throw new IllegalArgumentException("repeat requires a count and a step");
+            }
+            repeatCount = parseInt(tokens[1], 1, Integer.MAX_VALUE);
+            index = 2;
+        }
+        boolean split = false;
+        if (tokens[index].equals("split")) {
+            split = true;
+            index++;
+            if (index == tokens.length) {
+                throw new IllegalArgumentException("split requires a frame");
+            }
+        }
+
+        final String keyword = tokens[index].toLowerCase(Locale.US);
+        final int argCount = tokens.length - index - 1;
+        final Step step = new Step();
+        switch (keyword) {
+            case "relative":
+                requireArgCount(keyword, argCount, 3);
+                step.setFrame(Protocol.OPCODE_RELATIVE,
+                        parseInt(tokens[index + 1], Short.MIN_VALUE, Short.MAX_VALUE),
+                        parseInt(tokens[index + 2], Short.MIN_VALUE, Short.MAX_VALUE),
+                        parseInt(tokens[index + 3], Short.MIN_VALUE, Short.MAX_VALUE));
+                break;
+            case "absolute":
+                requireArgCount(keyword, argCount, 3);
+                step.setFrame(Protocol.OPCODE_ABSOLUTE,
+                        parseInt(tokens[index + 1], 0, 255),
+                        parseInt(tokens[index + 2], 0, 255),
+                        parseInt(tokens[index + 3], 0, 255));
+                break;
+            case "invalid":
+                requireArgCount(keyword, argCount, 1);
+                final int opcode = parseInt(tokens[index + 1], 0, 255);
+                if (opcode == Protocol.OPCODE_RELATIVE || opcode == Protocol.OPCODE_ABSOLUTE) {
+                    throw new IllegalArgumentException("opcode " + opcode + " is valid");
+                }
+                step.setFrame((byte) opcode, 0, 0, 0);
+                break;
+            case "pause":
+                requireArgCount(keyword, argCount, 1);
+                if (split) {
+                    throw new IllegalArgumentException("a pause cannot be split");
+                }
+                step.setPause(parseInt(tokens[index + 1], 1, Integer.MAX_VALUE));
+                break;
+            default:
+                throw new IllegalArgumentException("unknown step: " + keyword);
+        }
+        step.split = split;
+
+        steps.add(step);
+        repeatCounts.add(repeatCount);
+    }
+
+    private static void requireArgCount(@NonNull String keyword, int argCount, int expected) {
+        if (argCount != expected) {
+            throw new IllegalArgumentException(keyword + " requires " + expected + " argument"
+                    + (expected == 1 ? "" : "s"));
+        }
+    }
+
+    private static int parseInt(@NonNull String s, int min, int max) {
+        final long value;
+        try {
+            if (s.startsWith("0x") || s.startsWith("0X")) {
+                value = Long.parseLong(s.substring(2), 16);
+            } else {
+                value = Long.parseLong(s);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid number: " + s);
+        }
+        if (value < min || value > max) {
+            throw new IllegalArgumentException(s + " is not between " + min + " and " + max);
+        }
+        return (int) value;
+    }
+
+    @Override
+    public boolean next(@NonNull Step step) {
+        if (mRepeatRemaining == 0) {
+            mIndex++;
+            if (mIndex == mSteps.size()) {
+                if (!mLoop) {
+                    mIndex--;
+                    return false;
+                }
+                mIndex = 0;
+            }
+            mRepeatRemaining = mRepeatCounts[mIndex];
+        }
+        mRepeatRemaining--;
+
+        final Step src = mSteps.get(mIndex);
+        if (src.isPause()) {
+            step.setPause(src.pauseMillis);
+        } else {
+            step.setFrame(src.opcode, src.r, src.g, src.b);
+            step.split = src.split;
+        }
+        return true;
+    }
+
+}